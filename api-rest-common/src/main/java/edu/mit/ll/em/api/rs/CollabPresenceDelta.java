@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.rs;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The presence changes of one collab room, merged over a short window.
+ * Holds the latest status of each member whose status changed in the window.
+ */
+public class CollabPresenceDelta {
+
+	private int incidentId;
+	private int collabroomId;
+	private List<CollabPresenceStatus> statuses = new ArrayList<CollabPresenceStatus>();
+	private Date timestamp;
+
+	public CollabPresenceDelta() {}
+
+	public CollabPresenceDelta(int incidentId, int collabroomId, List<CollabPresenceStatus> statuses) {
+		this.setIncidentId(incidentId);
+		this.setCollabroomId(collabroomId);
+		this.setStatuses(statuses);
+		this.setTimestamp(new Date());
+	}
+
+	public int getIncidentId() {
+		return incidentId;
+	}
+
+	public void setIncidentId(int incidentId) {
+		this.incidentId = incidentId;
+	}
+
+	public int getCollabroomId() {
+		return collabroomId;
+	}
+
+	public void setCollabroomId(int collabroomId) {
+		this.collabroomId = collabroomId;
+	}
+
+	public List<CollabPresenceStatus> getStatuses() {
+		return statuses;
+	}
+
+	public void setStatuses(List<CollabPresenceStatus> statuses) {
+		this.statuses = statuses;
+	}
+
+	public Date getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(Date timestamp) {
+		this.timestamp = timestamp;
+	}
+}
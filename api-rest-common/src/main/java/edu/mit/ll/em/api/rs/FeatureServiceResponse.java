@@ -43,6 +43,12 @@ public class FeatureServiceResponse {
 	private Collection<Long> deletedFeatures = new ArrayList<Long>();
 	
 	private int count;
+	
+	// Version of the room's features the response brings the client to
+	private Long version;
+	
+	// True when only the features changed since the version asked for are held
+	private boolean delta;
 
 	public String getMessage() {
 		return message;
@@ -79,6 +85,22 @@ public class FeatureServiceResponse {
 
 	public void setCount(int count) {
 		this.count = count;
+	}
+
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+
+	public boolean isDelta() {
+		return delta;
+	}
+
+	public void setDelta(boolean delta) {
+		this.delta = delta;
 	}	
 }
 
@@ -37,6 +37,12 @@ public class MsgEnvelope {
 	
 	private String msgTimestamp;
 	
+	// Position of the message in the bus, increasing with each message.
+	private long msgSeq;
+	
+	// Node process that numbered the message; msgSeq means nothing to another.
+	private String msgNode;
+	
 	public String getMsgType() {
 		return msgType;
 	}
@@ -53,6 +59,22 @@ public class MsgEnvelope {
 		this.msgPayload = msgPayload;
 	}
 
+	public long getMsgSeq() {
+		return msgSeq;
+	}
+
+	public void setMsgSeq(long msgSeq) {
+		this.msgSeq = msgSeq;
+	}
+
+	public String getMsgNode() {
+		return msgNode;
+	}
+
+	public void setMsgNode(String msgNode) {
+		this.msgNode = msgNode;
+	}
+
 	public String getMsgTimestamp() {
 		return msgTimestamp;
 	}
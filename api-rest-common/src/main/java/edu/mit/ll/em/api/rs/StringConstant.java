@@ -33,6 +33,8 @@ public class StringConstant {
 
 	public static final String DEFAULT_MSGBUS_TIMEOUT = "600";
 	public static final String URIOPT_FROM_DATETIME = "FROMDATETIME";
+	public static final String URIOPT_LAST_SEQ = "LASTSEQ";
+	public static final String URIOPT_NODE_ID = "NODEID";
 	public static final String URIOPT_SUBSCRIBER_ID = "SUBSCRIBERID";
 	public static final String URIOPT_TIMEOUT = "TIMEOUT";
 	public static final String URIOPT_TOPICS = "TOPICS";
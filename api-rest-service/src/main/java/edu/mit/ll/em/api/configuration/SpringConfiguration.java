@@ -41,6 +41,7 @@ import edu.mit.ll.em.api.service.UserRegistrationService;
 import edu.mit.ll.em.api.util.APIConfig;
 import edu.mit.ll.em.api.util.APILogger;
 import edu.mit.ll.em.api.util.CRSTransformer;
+import edu.mit.ll.em.api.util.RabbitPublisher;
 import edu.mit.ll.nics.common.geoserver.api.GeoServer;
 import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
 import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
@@ -223,6 +224,11 @@ public class SpringConfiguration {
                     this.emApiConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
     }
 
+    @Bean
+    RabbitPublisher rabbitPublisher() {
+        return RabbitPublisher.getInstance();
+    }
+
     @Override
     public void finalize() {
         if(this.jerseyClient != null) {
@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import edu.mit.ll.em.api.util.SADisplayConstants;
+
+/**
+ * Reads the links between features and collab rooms a set at a time, where
+ * nics-dao only reads them one feature at a time.
+ * 
+ * Run within {@link TransactionMgr#execute}, the statements join its
+ * transaction, as they are made on the same DataSource.
+ */
+public class CollabroomFeatureDAO {
+
+	private static final String COLLABROOM_FEATURE_TABLE = SADisplayConstants.COLLABROOM_FEATURE.toLowerCase();
+	private static final String FEATURE_ID = SADisplayConstants.FEATURE_ID;
+
+	private static final String LOCK_SQL = "SELECT " + FEATURE_ID
+			+ " FROM " + COLLABROOM_FEATURE_TABLE
+			+ " WHERE collabroomid = :collabroomId AND " + FEATURE_ID + " IN (:featureIds)"
+			+ " FOR UPDATE";
+
+	private final NamedParameterJdbcTemplate template;
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static CollabroomFeatureDAO instance = new CollabroomFeatureDAO();
+	}
+
+	public static CollabroomFeatureDAO getInstance() {
+		return Holder.instance;
+	}
+
+	// Hide the default constructor.
+	private CollabroomFeatureDAO() {
+		this(new NamedParameterJdbcTemplate(TransactionMgr.getInstance().getDataSource()));
+	}
+
+	CollabroomFeatureDAO(NamedParameterJdbcTemplate template) {
+		this.template = template;
+	}
+
+	/**
+	 * Reads which of the features are in the collab room, with one statement,
+	 * and locks their links to it until the transaction ends so they can't
+	 * change before the caller acts on them.
+	 * 
+	 * @return The ids of the features linked to the collab room
+	 * @throws org.springframework.dao.DataAccessException When the links can't be read
+	 */
+	public Set<Long> lockRoomFeatures(int collabroomId, Collection<Long> featureIds) {
+		Set<Long> inRoom = new HashSet<Long>();
+		if (featureIds.isEmpty()) {
+			return inRoom;
+		}
+		MapSqlParameterSource params = new MapSqlParameterSource()
+				.addValue("collabroomId", collabroomId)
+				.addValue("featureIds", featureIds);
+		inRoom.addAll(template.queryForList(LOCK_SQL, params, Long.class));
+		return inRoom;
+	}
+}
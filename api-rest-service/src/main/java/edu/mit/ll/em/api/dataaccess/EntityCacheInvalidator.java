@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.configuration.Configuration;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.mit.ll.em.api.msgbus.MsgBusRelay;
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.em.api.util.RabbitPublisher;
+
+/**
+ * Keeps the {@link EntityCacheMgr} of every em-api node coherent.
+ * 
+ * Write paths that change a cached entity call one of the invalidate methods,
+ * which evicts the entry locally and publishes an invalidation event on the
+ * "...cache.invalidation.topic" topic. Every node listens on that topic, through
+ * the {@link MsgBusRelay}, and evicts the matching entry from its own cache, ignoring the events it published.
+ * Registered {@link Listener}s are told of every invalidation, local or not.
+ */
+public class EntityCacheInvalidator {
+
+	private static final String CNAME = EntityCacheInvalidator.class.getName();
+
+	public static final String COLLABROOM = "collabroom";
+	public static final String INCIDENT = "incident";
+	public static final String USER = "user";
+
+	private static final String ENTITY = "entity";
+	private static final String ID = "id";
+	private static final String ORIGIN = "origin";
+
+	private static final String DEFAULT_TOPIC = "iweb.NICS.cache.invalidate";
+
+	/**
+	 * Told of each entity invalidated on any node, after it was evicted here.
+	 */
+	public interface Listener {
+		void invalidated(String entity, int id);
+	}
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	// Identifies the events published by this node.
+	private final String nodeId = UUID.randomUUID().toString();
+
+	private final String topic;
+	private final boolean enabled;
+
+	private boolean listening;
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static EntityCacheInvalidator instance = new EntityCacheInvalidator();
+	}
+
+	public static EntityCacheInvalidator getInstance() {
+		return Holder.instance;
+	}
+
+	// Hide the default constructor.
+	private EntityCacheInvalidator() {
+		Configuration config = APIConfig.getInstance().getConfiguration();
+		topic = config.getString(APIConfig.CACHE_INVALIDATION_TOPIC, DEFAULT_TOPIC);
+		enabled = config.getBoolean(APIConfig.CACHE_INVALIDATION_ENABLED, true);
+	}
+
+	public void invalidateCollabRoom(int collabRoomId) {
+		EntityCacheMgr.getInstance().invalidateCollabRoom(collabRoomId);
+		notifyListeners(COLLABROOM, collabRoomId);
+		publish(COLLABROOM, collabRoomId);
+	}
+
+	public void invalidateIncident(int incidentId) {
+		EntityCacheMgr.getInstance().invalidateIncident(incidentId);
+		notifyListeners(INCIDENT, incidentId);
+		publish(INCIDENT, incidentId);
+	}
+
+	public void invalidateUser(int userId) {
+		EntityCacheMgr.getInstance().invalidateUser(userId);
+		notifyListeners(USER, userId);
+		publish(USER, userId);
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	private void notifyListeners(String entity, int id) {
+		for (Listener listener : listeners) {
+			try {
+				listener.invalidated(entity, id);
+			} catch (RuntimeException e) {
+				APILogger.getInstance().e(CNAME, "Cache invalidation listener failed on " + entity + " " + id, e);
+			}
+		}
+	}
+
+	/**
+	 * Starts evicting entries from the given cache as invalidation events
+	 * arrive from the other nodes. Subsequent calls have no effect.
+	 */
+	public synchronized void listen(final EntityCacheMgr cacheMgr) {
+		if (!enabled || listening) {
+			return;
+		}
+		listening = true;
+		MsgBusRelay.getInstance().addListener(new String[] { topic + ".#" }, new MsgBusRelay.ConnectionListener() {
+			public void onMessage(String routingKey, String msg) {
+				apply(cacheMgr, msg);
+			}
+
+			public void connected() {
+			}
+
+			public void disconnected() {
+				// Anything missed while disconnected may be stale, start over.
+				cacheMgr.freeResources();
+			}
+		});
+	}
+
+	private void publish(String entity, int id) {
+		if (!enabled) {
+			return;
+		}
+		try {
+			JSONObject message = new JSONObject();
+			message.put(ENTITY, entity);
+			message.put(ID, id);
+			message.put(ORIGIN, nodeId);
+			RabbitPublisher.getInstance().publish(String.format("%s.%s.%s", topic, entity, id),
+					message.toString());
+		} catch (Exception e) {
+			APILogger.getInstance().e(CNAME, "Failed to publish cache invalidation for " +
+					entity + " " + id, e);
+		}
+	}
+
+	void apply(EntityCacheMgr cacheMgr, String message) {
+		try {
+			JSONObject event = new JSONObject(message);
+			if (nodeId.equals(event.optString(ORIGIN))) {
+				return;
+			}
+			String entity = event.getString(ENTITY);
+			int id = event.getInt(ID);
+			if (COLLABROOM.equals(entity)) {
+				cacheMgr.invalidateCollabRoom(id);
+			} else if (INCIDENT.equals(entity)) {
+				cacheMgr.invalidateIncident(id);
+			} else if (USER.equals(entity)) {
+				cacheMgr.invalidateUser(id);
+			} else {
+				APILogger.getInstance().w(CNAME, "Ignoring invalidation for unknown entity " + entity);
+				return;
+			}
+			notifyListeners(entity, id);
+		} catch (JSONException e) {
+			APILogger.getInstance().w(CNAME, "Ignoring malformed cache invalidation: " + message);
+		}
+	}
+
+}
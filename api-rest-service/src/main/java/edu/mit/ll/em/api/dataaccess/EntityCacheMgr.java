@@ -29,14 +29,34 @@
  */
 package edu.mit.ll.em.api.dataaccess;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.configuration.Configuration;
 import org.springframework.dao.DataAccessException;
 
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 import edu.mit.ll.em.api.util.APIConfig;
 import edu.mit.ll.em.api.util.APILogger;
 import edu.mit.ll.nics.common.entity.CollabRoom;
@@ -53,9 +73,24 @@ import edu.mit.ll.nics.nicsdao.impl.UserSessionDAOImpl;
  * Maintains a collection of entities, meant to be used for read-only purposes.
  * Frequent queries for entity attributes known to change infrequently, if ever at all,
  * can avoid hitting the database by going through this cache instead.
- * The cache is refreshed at configurable intervals of time controlled via the
- * api properties file, by the key "...cache.entity.refreshminutes".
- * The default is 60 minutes.
+ * 
+ * Each entity type is held in its own size-bounded cache that evicts the least
+ * recently used entries once "...cache.entity.maxsize" is reached. Entries expire
+ * individually "...cache.entity.expireminutes" after being loaded, and are reloaded
+ * in the background once they are older than "...cache.entity.refreshminutes", so
+ * readers keep getting the previous value while the refresh is in flight.
+ * Concurrent misses for the same key share a single load, and ids that do not
+ * exist are remembered for "...cache.entity.negativeseconds" so repeated requests
+ * for them do not reach the database.
+ * Hit, miss, load time and eviction counters are kept per cache; see {@link #getStats()}.
+ * Entries changed through the API are evicted on every node by {@link EntityCacheInvalidator}.
+ * 
+ * Usernames are resolved to userIds through a cache of the same size and expiry,
+ * so authorizing a request by its requesting user does not cost a query.
+ * 
+ * Collab room permission decisions are cached as well, per user and room, for
+ * "...cache.permission.seconds". They are dropped whenever the room is invalidated,
+ * which happens each time its permissions are changed through the API.
  * 
  * CAUTION: It is imperative that entities in this Cache not be used for updates,
  * nor is it to be relied on for an up-to-date state of entity attributes known to
@@ -65,61 +100,131 @@ import edu.mit.ll.nics.nicsdao.impl.UserSessionDAOImpl;
  */
 public class EntityCacheMgr {
 
+	private static final String CNAME = EntityCacheMgr.class.getName();
+
+	private static final long DEFAULT_MAX_SIZE = 10000;
+	private static final int DEFAULT_REFRESH_MINS = 10;
+	private static final int DEFAULT_STATS_MINS = 15;
+	private static final int DEFAULT_NEGATIVE_SECS = 30;
+	private static final long DEFAULT_PERMISSION_MAX_SIZE = 50000;
+	private static final int DEFAULT_PERMISSION_SECS = 30;
+	private static final int REFRESH_THREADS = 2;
+
+	// The form types are loaded and cached as a single unit.
+	private static final Integer ALL_FORM_TYPES = 0;
+
 	private CollabRoomDAOImpl collabRoomDao = null;
 	private IncidentDAOImpl incidentDao = null;
 	private UserDAOImpl userDao = null;
 	private UserSessionDAOImpl userSessDao = null;
 	private FormDAOImpl formDao = null;
 	
-	// Invalidates the user cache every so many minutes.
-	TimerTask cacheRecycler;
+	// Logs the cache statistics every so many minutes.
+	TimerTask statsReporter;
+
+	// Runs the refresh-ahead reloads off of the request threads.
+	private ExecutorService refreshExecutor;
 
 	// Caches CollabRoom per collabRoomId
-	private ConcurrentHashMap<Integer, CollabRoom> collabRoomCache =
-			new ConcurrentHashMap<Integer, CollabRoom>();	
+	private LoadingCache<Integer, CollabRoom> collabRoomCache;
 
 	// Caches Incident per incidentId
-	private ConcurrentHashMap<Integer, Incident> incidentCache =
-			new ConcurrentHashMap<Integer, Incident>();
+	private LoadingCache<Integer, Incident> incidentCache;
 
 	// Caches User entries.
-	private ConcurrentHashMap<Integer, User> userCache =
-			new ConcurrentHashMap<Integer, User>();
+	private LoadingCache<Integer, User> userCache;
+
+	// Caches userIds per username
+	private LoadingCache<String, Long> userIdCache;
 
 	// Caches UserSessionIds per userId
-	private ConcurrentHashMap<Integer, Integer> userSessionIdCache =
-			new ConcurrentHashMap<Integer, Integer>();
-	
-	// Caches FormType entries.
-	private ConcurrentHashMap<String, FormType> formTypeCache =
-			new ConcurrentHashMap<String, FormType>();
+	private LoadingCache<Integer, Integer> userSessionIdCache;
 	
-	private ConcurrentHashMap<Integer, FormType> formTypeIdCache =
-			new ConcurrentHashMap<Integer, FormType>();
+	// Caches FormType entries, indexed by name and by id.
+	private LoadingCache<Integer, FormTypeIndex> formTypeCache;
+
+	// Caches collab room permission decisions per user and room.
+	private LoadingCache<PermissionKey, Boolean> permissionCache;
+
+	// Ids recently looked up and not found, per entity.
+	private Cache<Integer, Boolean> missingCollabRooms;
+	private Cache<Integer, Boolean> missingIncidents;
+	private Cache<Integer, Boolean> missingUsers;
 
 	// Lazy-initialization Holder class idiom.
 	private static class Holder {
 		public static EntityCacheMgr instance = new EntityCacheMgr();
 	}
 
-	private void flushCaches() {
-		// TODO: Race condition if a user were to be added simultaneously.
-		// Totally preventing this condition would cost performance-wise.
-		if (collabRoomCache != null && !collabRoomCache.isEmpty()) {
-			collabRoomCache.clear();
-		}			
-		if (incidentCache != null && !incidentCache.isEmpty()) {
-			incidentCache.clear();
-		}		
-		if (userCache != null && !userCache.isEmpty()) {
-			userCache.clear();
+	/**
+	 * Immutable snapshot of the FormType table.
+	 */
+	private static class FormTypeIndex {
+		private final List<FormType> types;
+		private final Map<String, FormType> byName;
+		private final Map<Integer, FormType> byId;
+
+		FormTypeIndex(List<FormType> types) {
+			Map<String, FormType> names = new LinkedHashMap<String, FormType>();
+			Map<Integer, FormType> ids = new HashMap<Integer, FormType>();
+			if (types != null) {
+				for (FormType f : types) {
+					names.put(f.getFormTypeName(), f);
+					ids.put(f.getFormTypeId(), f);
+				}
+			}
+			this.types = (types == null) ? Collections.<FormType>emptyList()
+					: Collections.unmodifiableList(new ArrayList<FormType>(types));
+			this.byName = Collections.unmodifiableMap(names);
+			this.byId = Collections.unmodifiableMap(ids);
+		}
+	}
+
+	/**
+	 * Identifies a permission decision. The incident map name is only set for
+	 * checks that grant everyone access to the incident map.
+	 */
+	private static final class PermissionKey {
+		private final long userId;
+		private final int collabRoomId;
+		private final String incidentMap;
+
+		PermissionKey(long userId, int collabRoomId, String incidentMap) {
+			this.userId = userId;
+			this.collabRoomId = collabRoomId;
+			this.incidentMap = incidentMap;
 		}
-		if (userSessionIdCache != null && !userSessionIdCache.isEmpty()) {
-			userSessionIdCache.clear();
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof PermissionKey)) {
+				return false;
+			}
+			PermissionKey other = (PermissionKey) o;
+			return userId == other.userId && collabRoomId == other.collabRoomId &&
+					(incidentMap == null ? other.incidentMap == null : incidentMap.equals(other.incidentMap));
+		}
+
+		@Override
+		public int hashCode() {
+			int result = (int) (userId ^ (userId >>> 32));
+			result = 31 * result + collabRoomId;
+			result = 31 * result + (incidentMap == null ? 0 : incidentMap.hashCode());
+			return result;
 		}
-		if (formTypeCache != null && !formTypeCache.isEmpty()) {
-			formTypeCache.clear();
-		}			
+	}
+
+	private void flushCaches() {
+		collabRoomCache.invalidateAll();
+		incidentCache.invalidateAll();
+		userCache.invalidateAll();
+		userIdCache.invalidateAll();
+		userSessionIdCache.invalidateAll();
+		formTypeCache.invalidateAll();
+		permissionCache.invalidateAll();
 	}
 
 	public void finalize() {
@@ -136,98 +241,321 @@ public class EntityCacheMgr {
 
 	// Hide the default constructor.
 	private EntityCacheMgr() {
-        this.collabRoomDao = new CollabRoomDAOImpl();
-        this.incidentDao = new IncidentDAOImpl();
-        this.userDao = new UserDAOImpl();
-        this.userSessDao = new UserSessionDAOImpl();
-        this.formDao = new FormDAOImpl();
+		this(new CollabRoomDAOImpl(), new IncidentDAOImpl(), new UserDAOImpl(),
+				new UserSessionDAOImpl(), new FormDAOImpl(),
+				APIConfig.getInstance().getConfiguration());
+		EntityCacheInvalidator.getInstance().listen(this);
+	}
+
+	EntityCacheMgr(CollabRoomDAOImpl collabRoomDao, IncidentDAOImpl incidentDao,
+			UserDAOImpl userDao, UserSessionDAOImpl userSessDao, FormDAOImpl formDao,
+			Configuration config) {
+		this(collabRoomDao, incidentDao, userDao, userSessDao, formDao, config, Ticker.systemTicker());
+	}
+
+	EntityCacheMgr(CollabRoomDAOImpl collabRoomDao, IncidentDAOImpl incidentDao,
+			UserDAOImpl userDao, UserSessionDAOImpl userSessDao, FormDAOImpl formDao,
+			Configuration config, Ticker ticker) {
+        this.collabRoomDao = collabRoomDao;
+        this.incidentDao = incidentDao;
+        this.userDao = userDao;
+        this.userSessDao = userSessDao;
+        this.formDao = formDao;
+
+		long maxSize = config.getLong(APIConfig.CACHE_ENTITY_MAXSIZE, DEFAULT_MAX_SIZE);
+		// Expire every 60 minutes by default, as the old global flush did.
+		int expireMins = config.getInt(APIConfig.CACHE_ENTITY_EXPIREMINUTES,
+				config.getInt(APIConfig.CACHE_USER_REFRESHMINUTES, 60));
+		int refreshMins = config.getInt(APIConfig.CACHE_ENTITY_REFRESHMINUTES, DEFAULT_REFRESH_MINS);
+		int statsMins = config.getInt(APIConfig.CACHE_ENTITY_STATSMINUTES, DEFAULT_STATS_MINS);
+		int negativeSecs = config.getInt(APIConfig.CACHE_ENTITY_NEGATIVESECONDS, DEFAULT_NEGATIVE_SECS);
+		long permissionMaxSize = config.getLong(APIConfig.CACHE_PERMISSION_MAXSIZE, DEFAULT_PERMISSION_MAX_SIZE);
+		int permissionSecs = config.getInt(APIConfig.CACHE_PERMISSION_SECONDS, DEFAULT_PERMISSION_SECS);
+
+		refreshExecutor = Executors.newFixedThreadPool(REFRESH_THREADS,
+				new ThreadFactoryBuilder().setDaemon(true)
+					.setNameFormat("entity-cache-refresh-%d").build());
+
+		collabRoomCache = newCache(maxSize, expireMins, refreshMins, ticker)
+				.build(CacheLoader.asyncReloading(new CacheLoader<Integer, CollabRoom>() {
+					@Override
+					public CollabRoom load(Integer collabRoomId) {
+						return EntityCacheMgr.this.collabRoomDao.getCollabRoomById(collabRoomId);
+					}
+				}, refreshExecutor));
+
+		incidentCache = newCache(maxSize, expireMins, refreshMins, ticker)
+				.build(CacheLoader.asyncReloading(new CacheLoader<Integer, Incident>() {
+					@Override
+					public Incident load(Integer incidentId) {
+						return EntityCacheMgr.this.incidentDao.getIncident(incidentId);
+					}
+				}, refreshExecutor));
+
+		userCache = newCache(maxSize, expireMins, refreshMins, ticker)
+				.build(CacheLoader.asyncReloading(new CacheLoader<Integer, User>() {
+					@Override
+					public User load(Integer userId) {
+						return EntityCacheMgr.this.userDao.getUserById(userId);
+					}
+				}, refreshExecutor));
+
+		userIdCache = newCache(maxSize, expireMins, refreshMins, ticker)
+				.build(CacheLoader.asyncReloading(new CacheLoader<String, Long>() {
+					@Override
+					public Long load(String username) {
+						return EntityCacheMgr.this.userDao.getUserId(username);
+					}
+				}, refreshExecutor));
+
+		userSessionIdCache = newCache(maxSize, expireMins, refreshMins, ticker)
+				.build(CacheLoader.asyncReloading(new CacheLoader<Integer, Integer>() {
+					@Override
+					public Integer load(Integer userId) {
+						return EntityCacheMgr.this.userSessDao.getUserSessionid(userId);
+					}
+				}, refreshExecutor));
+
+		formTypeCache = newCache(1, expireMins, refreshMins, ticker)
+				.build(CacheLoader.asyncReloading(new CacheLoader<Integer, FormTypeIndex>() {
+					@Override
+					public FormTypeIndex load(Integer key) {
+						return new FormTypeIndex(EntityCacheMgr.this.formDao.getFormTypes());
+					}
+				}, refreshExecutor));
+
+		permissionCache = CacheBuilder.newBuilder()
+				.maximumSize(permissionMaxSize)
+				.expireAfterWrite(Math.max(permissionSecs, 0), TimeUnit.SECONDS)
+				.ticker(ticker)
+				.recordStats()
+				.build(new CacheLoader<PermissionKey, Boolean>() {
+					@Override
+					public Boolean load(PermissionKey key) {
+						if (key.incidentMap == null) {
+							return EntityCacheMgr.this.collabRoomDao.hasPermissions(
+									key.userId, key.collabRoomId);
+						}
+						return EntityCacheMgr.this.collabRoomDao.hasPermissions(
+								key.userId, key.collabRoomId, key.incidentMap);
+					}
+				});
 
-		cacheRecycler = new TimerTask() { 
+		missingCollabRooms = newNegativeCache(maxSize, negativeSecs, ticker);
+		missingIncidents = newNegativeCache(maxSize, negativeSecs, ticker);
+		missingUsers = newNegativeCache(maxSize, negativeSecs, ticker);
+
+		statsReporter = new TimerTask() { 
 			public void run() {
-				EntityCacheMgr.getInstance().flushCaches();
+				logStats();
 			}
 		};
-		// Refresh every 60 minutes by default.
-		int userCacheRefreshMins = APIConfig.getInstance().getConfiguration()
-				.getInt(APIConfig.CACHE_USER_REFRESHMINUTES, 60);
-		new Timer(true).scheduleAtFixedRate(cacheRecycler, 0,
-				userCacheRefreshMins * 60 * 1000);
+		if (statsMins > 0) {
+			new Timer(true).scheduleAtFixedRate(statsReporter, statsMins * 60 * 1000L,
+					statsMins * 60 * 1000L);
+		}
+	}
+
+	private static CacheBuilder<Object, Object> newCache(long maxSize, int expireMins, int refreshMins,
+			Ticker ticker) {
+		CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(expireMins, TimeUnit.MINUTES)
+				.ticker(ticker)
+				.recordStats();
+		// A refresh interval at or beyond the expiry would never fire.
+		if (refreshMins > 0 && refreshMins < expireMins) {
+			builder.refreshAfterWrite(refreshMins, TimeUnit.MINUTES);
+		}
+		return builder;
+	}
+
+	private static Cache<Integer, Boolean> newNegativeCache(long maxSize, int negativeSecs, Ticker ticker) {
+		return CacheBuilder.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(Math.max(negativeSecs, 0), TimeUnit.SECONDS)
+				.ticker(ticker)
+				.recordStats()
+				.<Integer, Boolean>build();
+	}
+
+	/**
+	 * Reads through the given cache. A loader that finds nothing is not cached,
+	 * and null is returned to the caller.
+	 */
+	private static <K, V> V read(LoadingCache<K, V> cache, K key) throws ExecutionException {
+		try {
+			return cache.get(key);
+		} catch (InvalidCacheLoadException e) {
+			return null;
+		} catch (UncheckedExecutionException e) {
+			throw new ExecutionException(e.getCause());
+		}
+	}
+
+	/**
+	 * Reads through the given cache, remembering keys that could not be found
+	 * in the missing cache so they are answered with null until that entry expires.
+	 * Concurrent callers waiting on the same load all see the same outcome.
+	 */
+	private static <V> V read(LoadingCache<Integer, V> cache, Cache<Integer, Boolean> missing,
+			Integer key) throws ExecutionException {
+		if (missing.getIfPresent(key) != null) {
+			return null;
+		}
+		V value = read(cache, key);
+		if (value == null) {
+			missing.put(key, Boolean.TRUE);
+		}
+		return value;
+	}
+
+	/**
+	 * Reads through the given cache for callers that used to go to the DAO directly,
+	 * surfacing a failed load as the exception the DAO threw.
+	 */
+	private static <K, V> V readUnchecked(LoadingCache<K, V> cache, K key) {
+		try {
+			return cache.getUnchecked(key);
+		} catch (UncheckedExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return hit, miss, load and eviction counters for each of the entity caches,
+	 *         keyed by entity name.
+	 */
+	public Map<String, Map<String, Number>> getStats() {
+		Map<String, Map<String, Number>> stats = new LinkedHashMap<String, Map<String, Number>>();
+		stats.put("collabroom", toMap(collabRoomCache, missingCollabRooms));
+		stats.put("incident", toMap(incidentCache, missingIncidents));
+		stats.put("user", toMap(userCache, missingUsers));
+		stats.put("userid", toMap(userIdCache));
+		stats.put("usersession", toMap(userSessionIdCache));
+		stats.put("formtype", toMap(formTypeCache));
+		stats.put("permission", toMap(permissionCache));
+		return stats;
+	}
+
+	private static Map<String, Number> toMap(LoadingCache<?, ?> cache, Cache<?, ?> missing) {
+		Map<String, Number> m = toMap(cache);
+		m.put("negativeSize", missing.size());
+		m.put("negativeHitCount", missing.stats().hitCount());
+		return m;
+	}
+
+	private static Map<String, Number> toMap(LoadingCache<?, ?> cache) {
+		CacheStats s = cache.stats();
+		Map<String, Number> m = new LinkedHashMap<String, Number>();
+		m.put("size", cache.size());
+		m.put("hitCount", s.hitCount());
+		m.put("missCount", s.missCount());
+		m.put("hitRate", s.hitRate());
+		m.put("loadSuccessCount", s.loadSuccessCount());
+		m.put("loadExceptionCount", s.loadExceptionCount());
+		m.put("averageLoadPenaltyMillis", s.averageLoadPenalty() / 1000000d);
+		m.put("totalLoadTimeMillis", s.totalLoadTime() / 1000000);
+		m.put("evictionCount", s.evictionCount());
+		return m;
+	}
+
+	private void logStats() {
+		APILogger.getInstance().i(CNAME, "Entity cache stats: " + getStats());
+	}
+
+	public void invalidateCollabRoom(int collabRoomId) {
+		collabRoomCache.invalidate(collabRoomId);
+		missingCollabRooms.invalidate(collabRoomId);
+		// Permission changes are rare enough to scan for the room's decisions.
+		Iterator<PermissionKey> keys = permissionCache.asMap().keySet().iterator();
+		while (keys.hasNext()) {
+			if (keys.next().collabRoomId == collabRoomId) {
+				keys.remove();
+			}
+		}
+	}
+
+	/**
+	 * Cached equivalent of {@link CollabRoomDAOImpl#hasPermissions(long, long)}.
+	 */
+	public boolean hasCollabRoomPermission(long userId, int collabRoomId) {
+		return hasPermission(new PermissionKey(userId, collabRoomId, null));
+	}
+
+	/**
+	 * Cached equivalent of CollabRoomDAOImpl#hasPermissions(userId, collabRoomId, incidentMap),
+	 * where everyone has access to the room named incidentMap.
+	 */
+	public boolean hasCollabRoomPermission(long userId, int collabRoomId, String incidentMap) {
+		return hasPermission(new PermissionKey(userId, collabRoomId, incidentMap));
+	}
+
+	private boolean hasPermission(PermissionKey key) {
+		return readUnchecked(permissionCache, key);
+	}
+
+	public void invalidateIncident(int incidentId) {
+		incidentCache.invalidate(incidentId);
+		missingIncidents.invalidate(incidentId);
+	}
+
+	public void invalidateUser(int userId) {
+		userCache.invalidate(userId);
+		missingUsers.invalidate(userId);
+		userSessionIdCache.invalidate(userId);
+		// Users are disabled rarely enough to scan for their usernames.
+		userIdCache.asMap().values().removeAll(Collections.singleton((long) userId));
 	}
 
 	public CollabRoom getCollabRoomEntity(int collabRoomId) throws ICSDatastoreException {
-		CollabRoom cr = null;
-		if (collabRoomCache.containsKey(collabRoomId)) {
-			cr = collabRoomCache.get(collabRoomId);
-		} else {
-			// We need to hit the database.
-			try {
-				CollabRoom collabRoomEntity = collabRoomDao.getCollabRoomById(collabRoomId);				
-				
-				cr = collabRoomEntity;
-				collabRoomCache.putIfAbsent(collabRoomId, cr);
-			} catch(DataAccessException e) {
+		try {
+			return read(collabRoomCache, missingCollabRooms, collabRoomId);
+		} catch(ExecutionException e) {
+			if (e.getCause() instanceof DataAccessException) {
 				// TODO:refactor keep using, or get rid of ICSDataStoreException?
 				throw new ICSDatastoreException("Cannot read CollabRoom entity with id " + 
-						collabRoomId + e.getMessage());
-			} catch(Exception e) {
-				// TODO:refactor keep using, or get rid of ICSDataStoreException?
-				throw new ICSDatastoreException("Caught unhandled exception trying to read CollabRoom entity with id " + 
-						collabRoomId + e.getMessage());
+						collabRoomId + e.getCause().getMessage());
 			}
+			// TODO:refactor keep using, or get rid of ICSDataStoreException?
+			throw new ICSDatastoreException("Caught unhandled exception trying to read CollabRoom entity with id " + 
+					collabRoomId + e.getCause().getMessage());
 		}
-		return cr;
 	}
 
 	public Incident getIncidentEntity(int incidentId) throws ICSDatastoreException {
-		Incident incident = null;
-		if (incidentCache.containsKey(incidentId)) {
-			incident = incidentCache.get(incidentId);
-		} else {
-			// We need to hit the database.
-			try {
-				Incident incidentEntity = incidentDao.getIncident(incidentId);
-				
-				incident = incidentEntity;
-				incidentCache.putIfAbsent(incidentId, incident);
-			} catch(DataAccessException e) {
+		try {
+			return read(incidentCache, missingIncidents, incidentId);
+		} catch(ExecutionException e) {
+			if (e.getCause() instanceof DataAccessException) {
 				throw new ICSDatastoreException(
 						"Cannot read Incident entity with id " + incidentId +
-						e.getMessage());
-			} catch(Exception e) {
-				throw new ICSDatastoreException("Unhandled exception reading Incident entity with id " + 
-						incidentId + ": " + e.getMessage());
+						e.getCause().getMessage());
 			}
+			throw new ICSDatastoreException("Unhandled exception reading Incident entity with id " + 
+					incidentId + ": " + e.getCause().getMessage());
 		}
-		return incident;
 	}
 
 	public User getUserEntity(int userId) throws ICSDatastoreException {
-		User user = null;
-		if (userCache.containsKey(userId)) {
-			user = userCache.get(userId);
-		} else {
-			// We need to hit the database.
-			
-			try {
-				User userEntity = userDao.getUserById(userId);
-				
-				user = userEntity;
-				userCache.putIfAbsent(userId, user);
-				
-			} catch(DataAccessException e) {
+		try {
+			return read(userCache, missingUsers, userId);
+		} catch(ExecutionException e) {
+			if (e.getCause() instanceof DataAccessException) {
 				throw new ICSDatastoreException("Cannot read User entity with id " + 
-						userId + ": " + e.getMessage());
-			} catch(Exception e) {
-				throw new ICSDatastoreException("Caught unhandled exception while trying to read User entity with id " + 
-						userId + ": " + e.getMessage());
+						userId + ": " + e.getCause().getMessage());
 			}
+			throw new ICSDatastoreException("Caught unhandled exception while trying to read User entity with id " + 
+					userId + ": " + e.getCause().getMessage());
 		}
-		return user;
 	}
 
 	public User getUserEntityByUsername(String username) throws ICSDatastoreException {
 		User user = null;
-		for (User u : userCache.values()) {
+		for (User u : userCache.asMap().values()) {
 			if (u.getUsername().equals(username)) {
 				return u;
 			}
@@ -235,39 +563,73 @@ public class EntityCacheMgr {
 
 		user = userDao.getUser(username);
 		if (user != null) {
-			userCache.putIfAbsent(user.getUserId(), user);
+			userCache.asMap().putIfAbsent(user.getUserId(), user);
+			missingUsers.invalidate(user.getUserId());
 		}
 		return user;
 	}		
 
+	/**
+	 * Cached equivalent of {@link UserDAOImpl#getUserId(String)}. Usernames that do
+	 * not resolve to a user are not cached, so accounts created afterwards are found.
+	 * 
+	 * @param username the username to resolve, typically the requesting user
+	 * @return the userId, or whatever the DAO returns for an unknown username
+	 */
+	public long getUserId(String username) {
+		if (username == null) {
+			return userDao.getUserId(username);
+		}
+		long userId = readUnchecked(userIdCache, username);
+		if (userId <= 0) {
+			userIdCache.invalidate(username);
+		}
+		return userId;
+	}
+
 	public int getUserSessionId(int userId) throws ICSDatastoreException {
 		int userSessionId = -1;
-		if (userSessionIdCache.containsKey(userId)) {
-			userSessionId = userSessionIdCache.get(userId);
-		} else {
-			// We need to hit the database.			
-			try {
-
-				userSessionId = userSessDao.getUserSessionid(userId);
-				if (userSessionId < 0) {
-					// We need to create a User Session.
-					// TODO:refactor do we? If this is just a cache to get one if it exists, I don't think
-					//  we should assume one needs created?
-					//userSessionId = dbf.createUserSession(em, userId);
-					APILogger.getInstance().i("EntityCacheMgr", "No usersession found for userId: " + userId
-							+ ", TODO: is this a use case where one should be created?");
-				} else {
-					userSessionIdCache.putIfAbsent(userId, userSessionId);
-				}
-
-			} catch(DataAccessException e) {
-				throw new ICSDatastoreException(
-						"Unable to find/create UserSession entry for user " + userId +
-						e.getMessage());
+		try {
+			Integer cached = read(userSessionIdCache, userId);
+			if (cached != null) {
+				userSessionId = cached;
 			}
+		} catch(ExecutionException e) {
+			throw new ICSDatastoreException(
+					"Unable to find/create UserSession entry for user " + userId +
+					e.getCause().getMessage());
+		}
+		if (userSessionId < 0) {
+			// Only existing sessions are worth remembering.
+			userSessionIdCache.invalidate(userId);
+			// We need to create a User Session.
+			// TODO:refactor do we? If this is just a cache to get one if it exists, I don't think
+			//  we should assume one needs created?
+			//userSessionId = dbf.createUserSession(em, userId);
+			APILogger.getInstance().i("EntityCacheMgr", "No usersession found for userId: " + userId
+					+ ", TODO: is this a use case where one should be created?");
 		}
 		return userSessionId;
 	}
+
+	private FormTypeIndex getFormTypeIndex() throws ICSDatastoreException {
+		try {
+			return formTypeCache.get(ALL_FORM_TYPES);
+		} catch (ExecutionException e) {
+			throw formTypeException(e.getCause());
+		} catch (UncheckedExecutionException e) {
+			throw formTypeException(e.getCause());
+		}
+	}
+
+	private static ICSDatastoreException formTypeException(Throwable cause) {
+		if (cause instanceof DataAccessException) {
+			return new ICSDatastoreException(
+					"Data access exception trying to read FormType entities: " + cause.getMessage());
+		}
+		return new ICSDatastoreException(
+				"Unhandled exception trying to read FormType entities: " + cause.getMessage());
+	}
 	
 	/**
 	 * 
@@ -278,56 +640,15 @@ public class EntityCacheMgr {
 	 */
 	public FormType getFormTypeByName(String formTypeName)
 			throws ICSDatastoreException, NullPointerException {
-		FormType ret = null;
 		if (formTypeName == null) {
 			throw new NullPointerException("formTypeName cannot be null");
 		}
-		formTypeName = formTypeName.toUpperCase();
-		if (formTypeCache.contains(formTypeName)) {
-			return formTypeCache.get(formTypeName);
-		}
-		try {
-
-			List<FormType> types = formDao.getFormTypes();
-			if (types != null && types.size() > 0) {
-				for (FormType f : types) {
-					formTypeCache.putIfAbsent(f.getFormTypeName(), f);
-				}
-			}
-			ret = formTypeCache.get(formTypeName);
-		} catch (DataAccessException e) {
-			throw new ICSDatastoreException(
-					"Data access exception trying to read FormType entities: " + e.getMessage());
-		} catch (Exception e) {
-			throw new ICSDatastoreException(
-					"Unhandled exception trying to read FormType entities: " + e.getMessage());
-		}
-		return ret;
+		return getFormTypeIndex().byName.get(formTypeName.toUpperCase());
 	}
 	
 	public Set<String> getFormTypeNames()
 			throws ICSDatastoreException {
-		if (formTypeCache.isEmpty()) {
-			try {
-				/*List<FormType> types = PhinicsDbFactory.getInstance().getPhinicsDbFacadeSingleton()
-						.getFormTypes();*/
-				List<FormType> types = formDao.getFormTypes();
-				
-				if (types != null && types.size() > 0) {
-					for (FormType f : types) {
-						formTypeCache.putIfAbsent(f.getFormTypeName(), f);
-					}
-				}
-			} catch (DataAccessException e) {
-				throw new ICSDatastoreException(
-						"Data access exception trying to read FormType entities: " + e.getMessage());
-			} catch (Exception e) {
-				throw new ICSDatastoreException(
-						"Unhandled exception trying to read FormType entities: " + e.getMessage());
-			}
-		}
-
-		return formTypeCache.keySet();
+		return getFormTypeIndex().byName.keySet();
 	}
 
 	/**
@@ -339,40 +660,16 @@ public class EntityCacheMgr {
 	 */
 	public FormType getFormTypeById(int formTypeId)
 			throws ICSDatastoreException {
-		FormType ret = null;
 		if (formTypeId < 0) {
 			throw new ICSDatastoreException("formTypeId cannot be less than zero");
 		}
-		
-		if (formTypeIdCache.contains(formTypeId)) {
-			return formTypeIdCache.get(formTypeId);
-		}
-		
-		try {
-
-			List<FormType> types = formDao.getFormTypes();
-			if (types != null && types.size() > 0) {
-				for (FormType f : types) {
-					formTypeIdCache.putIfAbsent(f.getFormTypeId(), f);
-				}
-			}
-			ret = formTypeIdCache.get(formTypeId);
-		} catch (DataAccessException e) {
-			throw new ICSDatastoreException(
-					"Data access exception trying to read FormType entities: " + e.getMessage());
-		} catch (Exception e) {
-			throw new ICSDatastoreException(
-					"Unhandled exception trying to read FormType entities: " + e.getMessage());
-		}
-		return ret;
+		return getFormTypeIndex().byId.get(formTypeId);
 	}
 
 	public List<FormType> getFormTypes() {
 		List<FormType> types = null;
 		try {
-			// TODO: could/should just cache these so it's not querying every time, plus once one of the get
-			// formtype by id or name has been called, we already have all the data in the two caches
-			types = formDao.getFormTypes();
+			types = getFormTypeIndex().types;
 		} catch(Exception e) {
 			
 		}
@@ -0,0 +1,359 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.configuration.Configuration;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import edu.mit.ll.em.api.msgbus.MsgBusRelay;
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+
+/**
+ * Change versions of the features of each collab room, so clients can ask for
+ * only what changed since the version they hold.
+ * 
+ * Every feature added, changed or deleted in a room is journaled under a new
+ * version, which only ever grows. The journal keeps the last
+ * "...feature.changelog.size" changes of each room; a client holding a version
+ * older than that, or one handed out by another node or before a restart, is
+ * answered with the full state instead.
+ * 
+ * Changes are learned from the feature messages published on the
+ * iweb.NICS.collabroom.*.feature, .changefeature, .deletefeature and
+ * .featurebatch topics, relayed by the {@link MsgBusRelay}, so each node
+ * knows the changes made through the others. With "...feature.changelog.listen" off, only the changes made
+ * through this node are known.
+ */
+public class FeatureChangeLog {
+
+	private static final String CNAME = FeatureChangeLog.class.getName();
+
+	private static final int DEFAULT_SIZE = 500;
+	private static final long DEFAULT_MAXROOMS = 10000;
+	private static final long DEFAULT_IDLE_HOURS = 24;
+
+	private static final int NODE_BITS = 16;
+
+	private static final Pattern TOPIC =
+			Pattern.compile("iweb\\.NICS\\.collabroom\\.(\\d+)\\.(feature|changefeature|deletefeature|featurebatch)");
+	private static final String[] BINDING_KEYS = {
+		"iweb.NICS.collabroom.*.feature",
+		"iweb.NICS.collabroom.*.changefeature",
+		"iweb.NICS.collabroom.*.deletefeature",
+		"iweb.NICS.collabroom.*.featurebatch"
+	};
+
+	private static final String FEATURE_ID = "featureId";
+	private static final String DELETED_FEATURE_ID = "deletedFeatureId";
+	private static final String FEATURES = "features";
+	private static final String DELETED_FEATURE_IDS = "deletedFeatureIds";
+	private static final String LAST_UPDATE = "lastupdate";
+
+	/**
+	 * What changed in a room since a version.
+	 */
+	public static final class Delta {
+		private final long version;
+		private final Set<Long> changed;
+		private final Set<Long> deleted;
+		private final long changedSince;
+
+		Delta(long version, Set<Long> changed, Set<Long> deleted, long changedSince) {
+			this.version = version;
+			this.changed = changed;
+			this.deleted = deleted;
+			this.changedSince = changedSince;
+		}
+
+		/** @return The version the delta brings the client to */
+		public long getVersion() {
+			return version;
+		}
+
+		public boolean isEmpty() {
+			return changed.isEmpty() && deleted.isEmpty();
+		}
+
+		/** @return Ids of the features added or changed */
+		public Set<Long> getChanged() {
+			return changed;
+		}
+
+		/** @return Ids of the features deleted */
+		public Set<Long> getDeleted() {
+			return deleted;
+		}
+
+		/** @return Earliest last update time of the changed features, in epoch millis */
+		public long getChangedSince() {
+			return changedSince;
+		}
+	}
+
+	private static final class Change {
+		private final long version;
+		private final long featureId;
+		private final boolean deleted;
+		// Last update time of the feature, or -1 when unknown.
+		private final long lastUpdate;
+
+		Change(long version, long featureId, boolean deleted, long lastUpdate) {
+			this.version = version;
+			this.featureId = featureId;
+			this.deleted = deleted;
+			this.lastUpdate = lastUpdate;
+		}
+	}
+
+	private final class RoomLog {
+		private final Deque<Change> changes = new ArrayDeque<Change>();
+		// Versions older than this can no longer be answered with a delta.
+		private long floor;
+		private long version;
+
+		RoomLog() {
+			floor = version = nextVersion();
+		}
+
+		synchronized void record(long featureId, boolean deleted, long lastUpdate) {
+			version = nextVersion();
+			changes.addLast(new Change(version, featureId, deleted, lastUpdate));
+			while (changes.size() > size) {
+				floor = changes.removeFirst().version;
+			}
+		}
+
+		synchronized long getVersion() {
+			return version;
+		}
+
+		synchronized Delta since(long since) {
+			if (since < floor || since > version) {
+				return null;
+			}
+			Map<Long, Change> latest = new HashMap<Long, Change>();
+			Iterator<Change> newestFirst = changes.descendingIterator();
+			while (newestFirst.hasNext()) {
+				Change change = newestFirst.next();
+				if (change.version <= since) {
+					break;
+				}
+				if (!latest.containsKey(change.featureId)) {
+					latest.put(change.featureId, change);
+				}
+			}
+			Set<Long> changed = new HashSet<Long>();
+			Set<Long> deleted = new HashSet<Long>();
+			long changedSince = Long.MAX_VALUE;
+			for (Change change : latest.values()) {
+				if (change.deleted) {
+					deleted.add(change.featureId);
+				} else if (change.lastUpdate < 0) {
+					// Can't tell which features to read back
+					return null;
+				} else {
+					changed.add(change.featureId);
+					changedSince = Math.min(changedSince, change.lastUpdate);
+				}
+			}
+			return new Delta(version, changed, deleted, changedSince);
+		}
+	}
+
+	private final long nodeId = new Random().nextInt(1 << NODE_BITS);
+	// Starts at the clock so versions keep growing across restarts.
+	private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis());
+
+	private final int size;
+	private final boolean listen;
+	private final Cache<Integer, RoomLog> rooms;
+
+	// While the relay is down, changes made elsewhere may be missed.
+	private volatile boolean connected;
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static FeatureChangeLog instance = new FeatureChangeLog();
+	}
+
+	public static FeatureChangeLog getInstance() {
+		return Holder.instance;
+	}
+
+	// Hide the default constructor.
+	private FeatureChangeLog() {
+		this(APIConfig.getInstance().getConfiguration());
+		startListening();
+	}
+
+	FeatureChangeLog(Configuration config) {
+		this.size = Math.max(1, config.getInt(APIConfig.FEATURE_CHANGELOG_SIZE, DEFAULT_SIZE));
+		this.listen = config.getBoolean(APIConfig.FEATURE_CHANGELOG_LISTEN, true);
+		this.rooms = CacheBuilder.newBuilder()
+				.maximumSize(config.getLong(APIConfig.FEATURE_CHANGELOG_MAXROOMS, DEFAULT_MAXROOMS))
+				.expireAfterAccess(config.getLong(APIConfig.FEATURE_CHANGELOG_IDLEHOURS, DEFAULT_IDLE_HOURS),
+						TimeUnit.HOURS)
+				.build();
+	}
+
+	private long nextVersion() {
+		return (sequence.incrementAndGet() << NODE_BITS) | nodeId;
+	}
+
+	private RoomLog room(int collabroomId) {
+		try {
+			return rooms.get(collabroomId, new Callable<RoomLog>() {
+				public RoomLog call() {
+					return new RoomLog();
+				}
+			});
+		} catch (ExecutionException e) {
+			// RoomLog can't fail to construct
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return The current version of the room's features. Read it before
+	 * 	reading the features, so a change made meanwhile is in the next delta.
+	 */
+	public long getVersion(int collabroomId) {
+		return room(collabroomId).getVersion();
+	}
+
+	/**
+	 * @return False while changes made through other nodes may be going
+	 * 	unjournaled, and versions can't be trusted to have moved with them
+	 */
+	public boolean isCurrent() {
+		return !listen || connected;
+	}
+
+	/**
+	 * @return What changed in the room since the version, or null if that can't
+	 * 	be told and the client needs the full state
+	 */
+	public Delta getChangesSince(int collabroomId, long version) {
+		if ((version & ((1 << NODE_BITS) - 1)) != nodeId || !isCurrent()) {
+			return null;
+		}
+		return room(collabroomId).since(version);
+	}
+
+	/**
+	 * Journals a feature message, as published on its collab room topic. Called
+	 * by the publisher when this node doesn't listen to the topics itself.
+	 */
+	public void published(String topic, String message) {
+		if (!listen) {
+			record(topic, message);
+		}
+	}
+
+	void record(String topic, String message) {
+		Matcher matcher = TOPIC.matcher(topic);
+		if (!matcher.matches()) {
+			return;
+		}
+		try {
+			int collabroomId = Integer.parseInt(matcher.group(1));
+			JSONObject event = new JSONObject(message);
+			if ("featurebatch".equals(matcher.group(2))) {
+				recordBatch(room(collabroomId), event);
+			} else if ("deletefeature".equals(matcher.group(2))) {
+				room(collabroomId).record(event.getLong(DELETED_FEATURE_ID), true, -1);
+			} else {
+				room(collabroomId).record(event.getLong(FEATURE_ID), false, event.optLong(LAST_UPDATE, -1));
+			}
+		} catch (JSONException e) {
+			APILogger.getInstance().w(CNAME, "Ignoring malformed feature message on " + topic);
+		} catch (NumberFormatException e) {
+			APILogger.getInstance().w(CNAME, "Ignoring feature message on " + topic);
+		}
+	}
+
+	private void recordBatch(RoomLog log, JSONObject batch) throws JSONException {
+		JSONArray features = batch.optJSONArray(FEATURES);
+		JSONArray deleted = batch.optJSONArray(DELETED_FEATURE_IDS);
+		// All at once, so no delta holds part of the batch
+		synchronized (log) {
+			for (int i = 0; features != null && i < features.length(); i++) {
+				JSONObject feature = features.getJSONObject(i);
+				log.record(feature.getLong(FEATURE_ID), false, feature.optLong(LAST_UPDATE, -1));
+			}
+			for (int i = 0; deleted != null && i < deleted.length(); i++) {
+				log.record(deleted.getLong(i), true, -1);
+			}
+		}
+	}
+
+	private void startListening() {
+		if (!listen) {
+			return;
+		}
+		MsgBusRelay.getInstance().addListener(BINDING_KEYS, new MsgBusRelay.ConnectionListener() {
+			public void onMessage(String topic, String msg) {
+				record(topic, msg);
+			}
+
+			public void connected() {
+				// Changes missed while disconnected can't be told apart, start over
+				rooms.invalidateAll();
+				connected = true;
+			}
+
+			public void disconnected() {
+				connected = false;
+			}
+		});
+	}
+}
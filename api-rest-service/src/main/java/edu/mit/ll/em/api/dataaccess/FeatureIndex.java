@@ -0,0 +1,274 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.index.quadtree.Quadtree;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.nics.common.entity.Feature;
+
+/**
+ * Spatial index of the features of each collab room, answering bounding box
+ * queries without a round trip to the database.
+ * 
+ * A room is indexed, per geoType, on its first bounding box query and kept in
+ * step through the {@link FeatureChangeLog}: each query first applies what
+ * changed in the room since the index was last brought up to date, reading
+ * back only the changed features. When the change log can't tell what changed,
+ * the room is read again in full. Rooms not queried for
+ * "...feature.index.idleminutes" are dropped.
+ */
+public class FeatureIndex {
+
+	private static final String CNAME = FeatureIndex.class.getName();
+
+	private static final long DEFAULT_MAXROOMS = 100;
+	private static final long DEFAULT_IDLE_MINUTES = 30;
+	private static final long DEFAULT_SKEW_SECONDS = 60;
+
+	/**
+	 * Reads the features of a room, ready to be returned to clients.
+	 */
+	public interface Loader {
+		/**
+		 * @param changedSince null for every feature of the room, else the
+		 * 	time (ms) the features returned were updated since
+		 */
+		List<Feature> load(int collabroomId, int geoType, Long changedSince);
+	}
+
+	/**
+	 * Features within a bounding box, and the change version of the room they
+	 * are current as of.
+	 */
+	public static final class Result {
+		private final long version;
+		private final List<Feature> features;
+
+		public Result(long version, List<Feature> features) {
+			this.version = version;
+			this.features = features;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public List<Feature> getFeatures() {
+			return features;
+		}
+	}
+
+	private static final class Entry {
+		final Feature feature;
+		final Envelope envelope;
+
+		Entry(Feature feature, Envelope envelope) {
+			this.feature = feature;
+			this.envelope = envelope;
+		}
+	}
+
+	/** Guarded by itself, once cached */
+	private static final class RoomIndex {
+		private final WKTReader reader = new WKTReader();
+		private Quadtree tree = new Quadtree();
+		private Map<Long, Entry> entries = new HashMap<Long, Entry>();
+		private boolean built;
+		private long version;
+
+		/** Takes over the features of an index built apart */
+		void replaceWith(RoomIndex built) {
+			tree = built.tree;
+			entries = built.entries;
+			version = built.version;
+			this.built = true;
+		}
+
+		void put(Feature feature) {
+			remove(feature.getFeatureId());
+			Envelope envelope = null;
+			if (feature.getGeometry() != null) {
+				try {
+					envelope = reader.read(feature.getGeometry()).getEnvelopeInternal();
+				} catch (ParseException e) {
+					APILogger.getInstance().w(CNAME, "Feature " + feature.getFeatureId()
+							+ " has an unreadable geometry, leaving it out of the index");
+				}
+			}
+			Entry entry = new Entry(feature, envelope);
+			entries.put(feature.getFeatureId(), entry);
+			if (envelope != null && !envelope.isNull()) {
+				tree.insert(envelope, entry);
+			}
+		}
+
+		void remove(Long featureId) {
+			Entry entry = entries.remove(featureId);
+			if (entry != null && entry.envelope != null && !entry.envelope.isNull()) {
+				tree.remove(entry.envelope, entry);
+			}
+		}
+
+		List<Feature> query(Envelope bbox, int limit) {
+			List<Feature> features = new ArrayList<Feature>();
+			for (Object candidate : tree.query(bbox)) {
+				// The quadtree returns everything in the nodes the box touches
+				Entry entry = (Entry) candidate;
+				if (entry.envelope.intersects(bbox)) {
+					features.add(entry.feature);
+					if (features.size() >= limit) {
+						break;
+					}
+				}
+			}
+			return features;
+		}
+	}
+
+	private final Cache<String, RoomIndex> rooms;
+	private final FeatureChangeLog changeLog;
+	private final long skewMillis;
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static FeatureIndex instance = new FeatureIndex();
+	}
+
+	public static FeatureIndex getInstance() {
+		return Holder.instance;
+	}
+
+	// Hide the default constructor.
+	private FeatureIndex() {
+		this(APIConfig.getInstance().getConfiguration(), FeatureChangeLog.getInstance());
+	}
+
+	FeatureIndex(Configuration config, FeatureChangeLog changeLog) {
+		this.changeLog = changeLog;
+		this.skewMillis = 1000L * config.getLong(APIConfig.FEATURE_CHANGELOG_SKEWSECONDS,
+				DEFAULT_SKEW_SECONDS);
+		this.rooms = CacheBuilder.newBuilder()
+				.maximumSize(config.getLong(APIConfig.FEATURE_INDEX_MAXROOMS, DEFAULT_MAXROOMS))
+				.expireAfterAccess(config.getLong(APIConfig.FEATURE_INDEX_IDLEMINUTES, DEFAULT_IDLE_MINUTES),
+						TimeUnit.MINUTES)
+				.build();
+	}
+
+	private RoomIndex room(int collabroomId, int geoType) {
+		try {
+			return rooms.get(collabroomId + ":" + geoType, new Callable<RoomIndex>() {
+				public RoomIndex call() {
+					return new RoomIndex();
+				}
+			});
+		} catch (ExecutionException e) {
+			// RoomIndex can't fail to construct
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param bbox Box in the coordinates of the geoType
+	 * @param limit Most features to return
+	 * @param loader Reads the room's features when the index needs them
+	 * @return The room's features intersecting the box, up to the limit
+	 */
+	public Result query(int collabroomId, int geoType, Envelope bbox, int limit, Loader loader) {
+		RoomIndex index = room(collabroomId, geoType);
+		update(collabroomId, geoType, index, loader);
+		synchronized (index) {
+			if (limit <= 0) {
+				return new Result(index.version, Collections.<Feature>emptyList());
+			}
+			return new Result(index.version, index.query(bbox, limit));
+		}
+	}
+
+	/**
+	 * Brings the index up to date, reading the features without holding it so
+	 * queries of the room aren't held up by the database. Should another query
+	 * update the index meanwhile, what was read is dropped in favor of it.
+	 */
+	private void update(int collabroomId, int geoType, RoomIndex index, Loader loader) {
+		boolean built;
+		long version;
+		synchronized (index) {
+			built = index.built;
+			version = index.version;
+		}
+		FeatureChangeLog.Delta delta = built ? changeLog.getChangesSince(collabroomId, version) : null;
+		if (delta == null) {
+			RoomIndex rebuilt = new RoomIndex();
+			// Read before the features, so a change made meanwhile is applied next time
+			rebuilt.version = changeLog.getVersion(collabroomId);
+			for (Feature feature : loader.load(collabroomId, geoType, null)) {
+				rebuilt.put(feature);
+			}
+			synchronized (index) {
+				if (index.built == built && index.version == version) {
+					index.replaceWith(rebuilt);
+				}
+			}
+		} else if (!delta.isEmpty()) {
+			List<Feature> changed = delta.getChanged().isEmpty() ? Collections.<Feature>emptyList()
+					: loader.load(collabroomId, geoType, delta.getChangedSince() - skewMillis);
+			synchronized (index) {
+				if (index.built != built || index.version != version) {
+					return;
+				}
+				for (Long featureId : delta.getDeleted()) {
+					index.remove(featureId);
+				}
+				for (Feature feature : changed) {
+					index.put(feature);
+				}
+				index.version = delta.getVersion();
+			}
+		}
+	}
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.google.common.cache.CacheBuilder;
+
+import edu.mit.ll.em.api.rs.MDTrack;
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+
+/**
+ * Dead-band filter deciding which MDT positions are worth publishing.
+ * 
+ * The last published position is kept per user and device. A new one is
+ * suppressed when it moved less than "...mdt.deadband.meters", turned less
+ * than "...mdt.deadband.degrees" and changed speed by less than
+ * "...mdt.deadband.speed" m/s, unless "...mdt.deadband.maxsilenceseconds"
+ * have passed since the last one published for the device. Positions older
+ * than the last one published are suppressed as stale. A distance of 0
+ * turns the filter off.
+ * 
+ * Counters are logged every "...mdt.deadband.statsminutes"; see {@link #getStats()}.
+ */
+public class MDTDeadbandFilter {
+
+	private static final String CNAME = MDTDeadbandFilter.class.getName();
+
+	private static final double DEFAULT_METERS = 10;
+	private static final double DEFAULT_DEGREES = 15;
+	private static final double DEFAULT_SPEED = 1;
+	private static final long DEFAULT_MAXSILENCE_SECONDS = 60;
+	private static final long DEFAULT_MAXDEVICES = 50000;
+	private static final int DEFAULT_STATS_MINS = 15;
+
+	static final double EARTH_RADIUS_METERS = 6371008.8;
+
+	/** The last position published for a device */
+	private static final class Position {
+		private final double latitude;
+		private final double longitude;
+		private final double course;
+		private final double speed;
+		private final long time;
+
+		Position(MDTrack mdtrack, long time) {
+			this.latitude = mdtrack.getLatitude();
+			this.longitude = mdtrack.getLongitude();
+			this.course = mdtrack.getCourse();
+			this.speed = mdtrack.getSpeed();
+			this.time = time;
+		}
+	}
+
+	private final double meters;
+	private final double degrees;
+	private final double speed;
+	private final long maxSilenceMillis;
+
+	// Devices not heard from within the max silence would be published anyway.
+	private final ConcurrentMap<String, Position> published;
+
+	private final AtomicLong publishedCount = new AtomicLong();
+	private final AtomicLong heartbeatCount = new AtomicLong();
+	private final AtomicLong suppressedCount = new AtomicLong();
+	private final AtomicLong staleCount = new AtomicLong();
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static MDTDeadbandFilter instance = new MDTDeadbandFilter();
+	}
+
+	public static MDTDeadbandFilter getInstance() {
+		return Holder.instance;
+	}
+
+	// Hide the default constructor.
+	private MDTDeadbandFilter() {
+		this(APIConfig.getInstance().getConfiguration());
+
+		int statsMins = APIConfig.getInstance().getConfiguration().getInt(
+				APIConfig.MDT_DEADBAND_STATSMINUTES, DEFAULT_STATS_MINS);
+		if (isEnabled() && statsMins > 0) {
+			new Timer("mdt-deadband-filter", true).scheduleAtFixedRate(new TimerTask() {
+				public void run() {
+					APILogger.getInstance().i(CNAME, "MDT dead-band filter stats: " + getStats());
+				}
+			}, statsMins * 60 * 1000L, statsMins * 60 * 1000L);
+		}
+	}
+
+	MDTDeadbandFilter(Configuration config) {
+		this.meters = config.getDouble(APIConfig.MDT_DEADBAND_METERS, DEFAULT_METERS);
+		this.degrees = config.getDouble(APIConfig.MDT_DEADBAND_DEGREES, DEFAULT_DEGREES);
+		this.speed = config.getDouble(APIConfig.MDT_DEADBAND_SPEED, DEFAULT_SPEED);
+		this.maxSilenceMillis = TimeUnit.SECONDS.toMillis(Math.max(0,
+				config.getLong(APIConfig.MDT_DEADBAND_MAXSILENCESECONDS, DEFAULT_MAXSILENCE_SECONDS)));
+		this.published = CacheBuilder.newBuilder()
+				.maximumSize(config.getLong(APIConfig.MDT_DEADBAND_MAXDEVICES, DEFAULT_MAXDEVICES))
+				.expireAfterWrite(maxSilenceMillis, TimeUnit.MILLISECONDS)
+				.<String, Position>build()
+				.asMap();
+	}
+
+	public boolean isEnabled() {
+		return meters > 0;
+	}
+
+	/**
+	 * Decides whether to publish the position, remembering it as the device's
+	 * last published one if so
+	 * 
+	 * @param mdtrack
+	 * @param time When the position was taken, in epoch millis
+	 * @return false if the position should be suppressed
+	 */
+	public boolean accept(MDTrack mdtrack, long time) {
+		if (!isEnabled()) {
+			return true;
+		}
+		String key = key(mdtrack);
+		Position next = new Position(mdtrack, time);
+		while (true) {
+			Position last = published.get(key);
+			if (last == null) {
+				if (published.putIfAbsent(key, next) == null) {
+					publishedCount.incrementAndGet();
+					return true;
+				}
+				continue;
+			}
+			if (time < last.time) {
+				staleCount.incrementAndGet();
+				return false;
+			}
+			boolean heartbeat = time - last.time >= maxSilenceMillis;
+			if (!heartbeat && !moved(last, next)) {
+				suppressedCount.incrementAndGet();
+				return false;
+			}
+			if (published.replace(key, last, next)) {
+				publishedCount.incrementAndGet();
+				if (heartbeat && !moved(last, next)) {
+					heartbeatCount.incrementAndGet();
+				}
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Forgets the device's last published position, i.e. when publishing the
+	 * position it accepted failed, so the next one isn't held back by it.
+	 */
+	public void forget(MDTrack mdtrack) {
+		published.remove(key(mdtrack));
+	}
+
+	private boolean moved(Position last, Position next) {
+		return distanceMeters(last.latitude, last.longitude, next.latitude, next.longitude) >= meters
+				|| courseChange(last.course, next.course) >= degrees
+				|| Math.abs(next.speed - last.speed) >= speed;
+	}
+
+	private static String key(MDTrack mdtrack) {
+		return mdtrack.getUserId() + "/" + mdtrack.getDeviceId();
+	}
+
+	/** Haversine distance between the two points, in meters */
+	static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLon = Math.toRadians(lon2 - lon1);
+		double h = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+				+ Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+				* Math.sin(dLon / 2) * Math.sin(dLon / 2);
+		return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(h)));
+	}
+
+	/** Smallest angle between the two courses, in degrees */
+	static double courseChange(double from, double to) {
+		double change = Math.abs(to - from) % 360;
+		return change > 180 ? 360 - change : change;
+	}
+
+	/**
+	 * @return Counts of the positions published and suppressed
+	 */
+	public Map<String, Number> getStats() {
+		long publishedTotal = publishedCount.get();
+		long suppressedTotal = suppressedCount.get() + staleCount.get();
+		Map<String, Number> m = new LinkedHashMap<String, Number>();
+		m.put("deviceCount", published.size());
+		m.put("publishedCount", publishedTotal);
+		m.put("heartbeatCount", heartbeatCount.get());
+		m.put("suppressedCount", suppressedCount.get());
+		m.put("staleCount", staleCount.get());
+		m.put("suppressedRate", publishedTotal + suppressedTotal == 0 ? 0d
+				: suppressedTotal / (double) (publishedTotal + suppressedTotal));
+		return m;
+	}
+}
@@ -30,11 +30,12 @@
 package edu.mit.ll.em.api.dataaccess;
 
 
-import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.TimeZone;
 import java.util.TreeSet;
 
 import org.apache.commons.lang.StringUtils;
@@ -45,18 +46,19 @@ import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.PrecisionModel;
 
+import edu.mit.ll.em.api.entity.GmlEncoder;
 import edu.mit.ll.em.api.entity.JSONPLIEntry;
 import edu.mit.ll.em.api.rs.MDTOptionalParms;
 import edu.mit.ll.em.api.rs.MDTrack;
+import edu.mit.ll.em.api.rs.MDTrackResult;
 import edu.mit.ll.em.api.rs.QueryConstraintHelper;
 import edu.mit.ll.em.api.util.APIConfig;
 import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.em.api.util.RabbitPublisher;
 import edu.mit.ll.em.api.util.TimeUtil;
 import edu.mit.ll.nics.common.entity.Mdt;
 import edu.mit.ll.nics.common.entity.UserInfo;
 import edu.mit.ll.nics.common.entity.User;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.common.rabbitmq.client.RabbitProducer;
 import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
 
@@ -68,9 +70,8 @@ public class MDTrackDAO extends BaseDAO {
 	private static final UserDAOImpl userDao = new UserDAOImpl();
 		
 	private static GeometryFactory geomFactory= new GeometryFactory(new PrecisionModel(), 4326);
-
-	// Rabbit producer
-	private RabbitPubSubProducer producer;
+	
+	private static final int DEFAULT_MAX_RESULTS = 1000;
 
 	// MDT GML Properties
 	
@@ -86,6 +87,9 @@ public class MDTrackDAO extends BaseDAO {
 	
 	private String gmlTopic;
 	
+	// Built from the schema URIs above once they're validated
+	private GmlEncoder gmlEncoder;
+	
 	private boolean validated;
 	private boolean valid;
 	
@@ -119,8 +123,12 @@ public class MDTrackDAO extends BaseDAO {
 			
 			if(valid) {
 				// TODO:LDDRS-1119 for now just publish it in addition to persisting
-				publishMDTGML(dbMDT);
+				if(MDTDeadbandFilter.getInstance().accept(mdtrack, dbMDT.getTime())
+						&& !publishMDTGML(dbMDT)) {
+					MDTDeadbandFilter.getInstance().forget(mdtrack);
+				}
 				ret = makeMDTrackFromPhiMdt(dbMDT); // No id, no reason to send back?
+				MDTrackIndex.getInstance().update(ret);
 			} else {
 				APILogger.getInstance().w(CNAME, "Not publishing MDT due to invalid MDT properties");
 			}
@@ -140,6 +148,63 @@ public class MDTrackDAO extends BaseDAO {
 		return ret;
 	}
 	
+	/**
+	 * Publishes a batch of MDTs together, as a single GML FeatureCollection
+	 * 
+	 * @param mdtracks
+	 * @return The outcome of each MDT, in the order given
+	 */
+	public List<MDTrackResult> createMDTracks(List<MDTrack> mdtracks) {
+		List<MDTrackResult> results = new ArrayList<MDTrackResult>(mdtracks.size());
+		if(!validated) {
+			validated = validateMDTProperties();
+		}
+		if(!valid) {
+			APILogger.getInstance().w(CNAME, "Not publishing MDTs due to invalid MDT properties");
+			for (int i = 0; i < mdtracks.size(); i++) {
+				results.add(MDTrackResult.failed(i, "MDT publishing is not configured"));
+			}
+			return results;
+		}
+
+		// Fleets send many positions per user, only look each user up once.
+		Map<Integer, User> users = new HashMap<Integer, User>();
+		List<Mdt> dbMDTs = new ArrayList<Mdt>(mdtracks.size());
+		List<MDTrackResult> published = new ArrayList<MDTrackResult>(mdtracks.size());
+		for (int i = 0; i < mdtracks.size(); i++) {
+			try {
+				Mdt dbMDT = makePhiMdtFromMDTrack(mdtracks.get(i), users);
+				if (dbMDT.getUserInfo().getUser() == null) {
+					results.add(MDTrackResult.failed(i, "Unknown userId " + mdtracks.get(i).getUserId()));
+					continue;
+				}
+				MDTrack mdtrack = makeMDTrackFromPhiMdt(dbMDT);
+				MDTrackIndex.getInstance().update(mdtrack);
+				if(!MDTDeadbandFilter.getInstance().accept(mdtracks.get(i), dbMDT.getTime())) {
+					results.add(new MDTrackResult(i, true, "suppressed", mdtrack));
+					continue;
+				}
+				MDTrackResult result = new MDTrackResult(i, true, "ok", mdtrack);
+				dbMDTs.add(dbMDT);
+				published.add(result);
+				results.add(result);
+			} catch (Exception e) {
+				APILogger.getInstance().e(CNAME, "Unable to read MDT " + i + " of batch: " + e.getMessage());
+				results.add(MDTrackResult.failed(i, e.getMessage()));
+			}
+		}
+
+		if(!dbMDTs.isEmpty() && !publishMDTGML(dbMDTs)) {
+			for (MDTrackResult result : published) {
+				MDTDeadbandFilter.getInstance().forget(mdtracks.get(result.getIndex()));
+				result.setSuccess(false);
+				result.setMessage("Failed to publish MDT");
+				result.setMdtrack(null);
+			}
+		}
+		return results;
+	}
+	
 	/**
 	 * Publishes the MDT as NICS Compatible GML for publishing to
 	 * geodatafeed-consumer
@@ -148,20 +213,31 @@ public class MDTrackDAO extends BaseDAO {
 	 * @return
 	 */
 	private boolean publishMDTGML(Mdt phiMdt) {
-		boolean ret = false;
 		if(phiMdt == null) {
 			// TODO: log
 			return false;
 		}
-		
+		return publishMDTGML(Collections.singletonList(phiMdt));
+	}
+
+	/**
+	 * Publishes the MDTs as one NICS Compatible GML FeatureCollection, with a
+	 * featureMember per MDT
+	 * 
+	 * @param phiMdts
+	 * @return
+	 */
+	private boolean publishMDTGML(List<Mdt> phiMdts) {
+		boolean ret = false;
 		try {
-			JSONPLIEntry jsonPli = makeJSONPLIEntry(phiMdt);
+			List<JSONPLIEntry> jsonPlis = new ArrayList<JSONPLIEntry>(phiMdts.size());
+			for (Mdt phiMdt : phiMdts) {
+				jsonPlis.add(makeJSONPLIEntry(phiMdt));
+			}
 			
 			// TODO:LDDRS-1119 decide whether or not to only specify certain fields, and if
-			// the toGML honors it
-			// TODO: make topic configurable
-			this.getRabbitProducer().produce(gmlTopic, jsonPli.toGML(false));
-			ret = true;
+			// the encoder honors it
+			ret = RabbitPublisher.getInstance().publish(gmlTopic, gmlEncoder.encode(jsonPlis));
 		} catch(Exception e) {
 			// fail TODO: add logging
 		}
@@ -196,11 +272,7 @@ public class MDTrackDAO extends BaseDAO {
 		mdtPli.setSpeed(phiMdt.getSpeed()+"");
 		mdtPli.setSrsName(srsName); // EPSG:4327 or 3857?
 		
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-		Date date = new Date(phiMdt.getTime());
-		sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-		String strTime = sdf.format(date);
-		mdtPli.setTimestamp(strTime);
+		mdtPli.setTimestamp(GmlEncoder.formatTimestamp(phiMdt.getTime()));
 		
 		mdtPli.setTypeName(typeName);
 		mdtPli.setVersion("1.2.3"); // TODO: don't include in GML
@@ -298,6 +370,54 @@ public class MDTrackDAO extends BaseDAO {
 		return null;
 	}
 
+	/**
+	 * Reads the last known positions of MDT devices, as held by {@link MDTrackIndex}.
+	 * Only devices that posted to this node are known, see {@link MDTrackIndex}.
+	 * 
+	 * @param opts userId to only return that user's devices; bbox as
+	 * 	minLon,minLat,maxLon,maxLat to only return positions inside it; or near as
+	 * 	lat,lon to return the positions closest to it first. limit caps the result
+	 * 	at "...mdt.index.maxresults".
+	 * @return
+	 * @throws IllegalArgumentException if bbox or near can't be parsed
+	 */
+	public List<MDTrack> getLatestMDTracks(MDTOptionalParms opts) {
+		int maxResults = APIConfig.getInstance().getConfiguration().getInt(APIConfig.MDT_INDEX_MAXRESULTS,
+				DEFAULT_MAX_RESULTS);
+		int limit = (opts.getLimit() == null || opts.getLimit() < 0 || opts.getLimit() > maxResults) ?
+				maxResults : opts.getLimit();
+		int userId = (opts.getUserId() == null) ? -1 : opts.getUserId();
+
+		if(opts.getNear() != null) {
+			double[] near = parseDoubles("near", opts.getNear(), 2);
+			return MDTrackIndex.getInstance().getNearest(near[0], near[1], userId, limit);
+		}
+		if(opts.getBbox() != null) {
+			double[] bbox = parseDoubles("bbox", opts.getBbox(), 4);
+			if(bbox[0] > bbox[2] || bbox[1] > bbox[3]) {
+				throw new IllegalArgumentException("bbox must be minLon,minLat,maxLon,maxLat");
+			}
+			return MDTrackIndex.getInstance().getWithin(bbox[0], bbox[1], bbox[2], bbox[3], userId, limit);
+		}
+		return MDTrackIndex.getInstance().getAll(userId, limit);
+	}
+
+	private static double[] parseDoubles(String name, String value, int count) {
+		String[] parts = value.split(",");
+		if(parts.length != count) {
+			throw new IllegalArgumentException(name + " must hold " + count + " comma separated numbers");
+		}
+		double[] ret = new double[count];
+		for(int i = 0; i < count; i++) {
+			try {
+				ret[i] = Double.parseDouble(parts[i].trim());
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException(name + " must hold " + count + " comma separated numbers");
+			}
+		}
+		return ret;
+	}
+
 	/**
 	 * Deprecated: No longer read tracks from db, they'll be queried from WFS
 	 * 
@@ -337,11 +457,11 @@ public class MDTrackDAO extends BaseDAO {
 		return ret;
 	}
 
+	/**
+	 * @return The number of devices whose last known position is held
+	 */
 	public int getMDTrackCount() {
-		int count = -1;
-		// TODO: Insert implementation here.
-		APILogger.getInstance().w(CNAME, "Unimplemented call getMDTrackCount() was made. Ignored.");
-		return count;
+		return MDTrackIndex.getInstance().size();
 	}
 
 	private Geometry makeGeom(MDTrack mdtrack) {
@@ -360,11 +480,23 @@ public class MDTrackDAO extends BaseDAO {
 	 * This is going to the back-end.
 	 */
 	private Mdt makePhiMdtFromMDTrack(MDTrack mdtrack) throws ICSDatastoreException {
+		return makePhiMdtFromMDTrack(mdtrack, new HashMap<Integer, User>());
+	}
+
+	/**
+	 * @param users Users already read, by id. Filled in with the ones read here.
+	 */
+	private Mdt makePhiMdtFromMDTrack(MDTrack mdtrack, Map<Integer, User> users)
+			throws ICSDatastoreException {
 		UserInfo phiUserInfo = null;
 		try {
 			// TODO:refactor need username at the least for publishing of message, but need to factor out
 			// 	the use of PhiUserInfo entirely
-			User user = userDao.getUserById(mdtrack.getUserId());
+			User user = users.get(mdtrack.getUserId());
+			if(user == null) {
+				user = userDao.getUserById(mdtrack.getUserId());
+				users.put(mdtrack.getUserId(), user);
+			}
 			if(user != null) {
 				phiUserInfo = new UserInfo();
 				phiUserInfo.setUser(user);
@@ -537,20 +669,12 @@ public class MDTrackDAO extends BaseDAO {
 							"default: EPSG:4326");
 		}
 		
+		gmlEncoder = new GmlEncoder(nicsSchemaLocationURI, wfsServiceURI, wfsSchemaURI);
+		
 		validated = true;
 		return true;
 	}
 	
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (this.producer == null) {
-			this.producer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return producer;
-	}
 }
 
 
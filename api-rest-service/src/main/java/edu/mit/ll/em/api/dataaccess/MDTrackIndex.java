@@ -0,0 +1,393 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.configuration.Configuration;
+
+import edu.mit.ll.em.api.rs.MDTrack;
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Last known position of each MDT user and device, indexed for bbox and
+ * nearest-N queries.
+ * 
+ * Positions are bucketed in a grid of "...mdt.index.celldegrees" cells, and
+ * by user. At most "...mdt.index.maxentries" devices are held, the least
+ * recently updated evicted first, and a device not heard from for
+ * "...mdt.index.maxageminutes" is no longer returned and is evicted on the
+ * next update.
+ * 
+ * The index is only fed by the MDTracks posted to this node, not by the
+ * positions other nodes publish on "...mdt.topic", so with more than one API
+ * node behind a load balancer each node only knows the devices that posted to
+ * it, and GET /mdtracks and /mdtracks/count answer for those alone.
+ */
+public class MDTrackIndex {
+
+	private static final double DEFAULT_CELL_DEGREES = 0.05;
+	private static final int DEFAULT_MAX_ENTRIES = 50000;
+	private static final long DEFAULT_MAX_AGE_MINUTES = 60;
+
+	private static final double METERS_PER_DEGREE =
+			Math.PI * MDTDeadbandFilter.EARTH_RADIUS_METERS / 180;
+
+	private static final class Entry {
+		private final String key;
+		private final MDTrack mdtrack;
+		private final long cell;
+		private final long updated;
+
+		Entry(String key, MDTrack mdtrack, long cell, long updated) {
+			this.key = key;
+			this.mdtrack = mdtrack;
+			this.cell = cell;
+			this.updated = updated;
+		}
+	}
+
+	private final double cellDegrees;
+	private final long columns;
+	private final int maxEntries;
+	private final long maxAgeMillis;
+
+	// Least recently updated first
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private final Map<Long, Set<Entry>> cells = new HashMap<Long, Set<Entry>>();
+	private final Map<Integer, Set<Entry>> users = new HashMap<Integer, Set<Entry>>();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static MDTrackIndex instance = new MDTrackIndex();
+	}
+
+	public static MDTrackIndex getInstance() {
+		return Holder.instance;
+	}
+
+	// Hide the default constructor.
+	private MDTrackIndex() {
+		this(APIConfig.getInstance().getConfiguration());
+	}
+
+	MDTrackIndex(Configuration config) {
+		double degrees = config.getDouble(APIConfig.MDT_INDEX_CELLDEGREES, DEFAULT_CELL_DEGREES);
+		this.cellDegrees = degrees > 0 ? Math.min(degrees, 180) : DEFAULT_CELL_DEGREES;
+		this.columns = (long) Math.ceil(360 / cellDegrees) + 1;
+		this.maxEntries = Math.max(1, config.getInt(APIConfig.MDT_INDEX_MAXENTRIES, DEFAULT_MAX_ENTRIES));
+		this.maxAgeMillis = TimeUnit.MINUTES.toMillis(
+				config.getLong(APIConfig.MDT_INDEX_MAXAGEMINUTES, DEFAULT_MAX_AGE_MINUTES));
+	}
+
+	/**
+	 * Records the MDTrack as its device's last known position, unless one
+	 * taken later is already known
+	 * 
+	 * @param mdtrack
+	 */
+	public void update(MDTrack mdtrack) {
+		update(mdtrack, System.currentTimeMillis());
+	}
+
+	void update(MDTrack mdtrack, long now) {
+		String key = mdtrack.getUserId() + "/" + mdtrack.getDeviceId();
+		Entry entry = new Entry(key, mdtrack, cell(mdtrack.getLatitude(), mdtrack.getLongitude()), now);
+		lock.writeLock().lock();
+		try {
+			Entry last = entries.get(key);
+			if (last != null) {
+				if (mdtrack.getCreatedUTC() < last.mdtrack.getCreatedUTC()) {
+					return;
+				}
+				remove(last);
+			}
+			entries.put(key, entry);
+			bucket(cells, entry.cell).add(entry);
+			bucket(users, mdtrack.getUserId()).add(entry);
+			evict(now);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of devices held, including ones not yet evicted for age
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param userId Only positions of this user, or any user if negative
+	 * @param limit Most positions returned
+	 * @return The last known positions, in no particular order
+	 */
+	public List<MDTrack> getAll(int userId, int limit) {
+		return getWithin(-180, -90, 180, 90, userId, limit);
+	}
+
+	/**
+	 * @param userId Only positions of this user, or any user if negative
+	 * @param limit Most positions returned
+	 * @return The last known positions inside the box, in no particular order
+	 */
+	public List<MDTrack> getWithin(double minLon, double minLat, double maxLon, double maxLat,
+			int userId, int limit) {
+		return getWithin(minLon, minLat, maxLon, maxLat, userId, limit, System.currentTimeMillis());
+	}
+
+	List<MDTrack> getWithin(double minLon, double minLat, double maxLon, double maxLat,
+			int userId, int limit, long now) {
+		List<MDTrack> ret = new ArrayList<MDTrack>();
+		lock.readLock().lock();
+		try {
+			for (Entry entry : collect(minLon, minLat, maxLon, maxLat, userId, now)) {
+				if (ret.size() >= limit) {
+					break;
+				}
+				ret.add(entry.mdtrack);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return ret;
+	}
+
+	/**
+	 * @param userId Only positions of this user, or any user if negative
+	 * @param limit Most positions returned
+	 * @return The last known positions closest to the point, closest first
+	 */
+	public List<MDTrack> getNearest(double lat, double lon, int userId, int limit) {
+		return getNearest(lat, lon, userId, limit, System.currentTimeMillis());
+	}
+
+	List<MDTrack> getNearest(final double lat, final double lon, int userId, int limit, long now) {
+		List<Entry> candidates;
+		lock.readLock().lock();
+		try {
+			// Widen the search until it finds enough positions, or has looked everywhere
+			double radius = cellDegrees * METERS_PER_DEGREE;
+			double[] box = boxAround(lat, lon, radius);
+			candidates = collect(box[0], box[1], box[2], box[3], userId, now);
+			while (candidates.size() < limit && !isWorld(box)) {
+				radius *= 2;
+				box = boxAround(lat, lon, radius);
+				candidates = collect(box[0], box[1], box[2], box[3], userId, now);
+			}
+			// The box corners reach further than its sides, so a position
+			// outside the box may still beat the furthest one found in it
+			if (candidates.size() >= limit && limit > 0) {
+				double furthest = kthDistance(candidates, lat, lon, limit);
+				if (furthest > radius) {
+					box = boxAround(lat, lon, furthest);
+					candidates = collect(box[0], box[1], box[2], box[3], userId, now);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		final Map<Entry, Double> distances = new HashMap<Entry, Double>(candidates.size() * 2);
+		for (Entry entry : candidates) {
+			distances.put(entry, distance(entry, lat, lon));
+		}
+		Collections.sort(candidates, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return Double.compare(distances.get(a), distances.get(b));
+			}
+		});
+		List<MDTrack> ret = new ArrayList<MDTrack>(Math.min(limit, candidates.size()));
+		for (int i = 0; i < candidates.size() && i < limit; i++) {
+			ret.add(candidates.get(i).mdtrack);
+		}
+		return ret;
+	}
+
+	// Callers hold the lock.
+	private List<Entry> collect(double minLon, double minLat, double maxLon, double maxLat,
+			int userId, long now) {
+		List<Entry> ret = new ArrayList<Entry>();
+		if (minLon < -180) {
+			collectBox(minLon + 360, minLat, 180, maxLat, userId, now, ret);
+			minLon = -180;
+		}
+		if (maxLon > 180) {
+			collectBox(-180, minLat, maxLon - 360, maxLat, userId, now, ret);
+			maxLon = 180;
+		}
+		collectBox(minLon, minLat, maxLon, maxLat, userId, now, ret);
+		return ret;
+	}
+
+	private void collectBox(double minLon, double minLat, double maxLon, double maxLat,
+			int userId, long now, List<Entry> ret) {
+		if (userId >= 0) {
+			Set<Entry> entriesOfUser = users.get(userId);
+			if (entriesOfUser != null) {
+				addInside(entriesOfUser, minLon, minLat, maxLon, maxLat, now, ret);
+			}
+			return;
+		}
+
+		long minRow = row(minLat), maxRow = row(maxLat);
+		long minCol = column(minLon), maxCol = column(maxLon);
+		if ((maxRow - minRow + 1) * (maxCol - minCol + 1) > cells.size()) {
+			// Fewer occupied cells than the box covers, check them all
+			for (Set<Entry> cell : cells.values()) {
+				addInside(cell, minLon, minLat, maxLon, maxLat, now, ret);
+			}
+			return;
+		}
+		for (long row = minRow; row <= maxRow; row++) {
+			for (long col = minCol; col <= maxCol; col++) {
+				Set<Entry> cell = cells.get(row * columns + col);
+				if (cell != null) {
+					addInside(cell, minLon, minLat, maxLon, maxLat, now, ret);
+				}
+			}
+		}
+	}
+
+	private void addInside(Collection<Entry> scan, double minLon, double minLat, double maxLon,
+			double maxLat, long now, List<Entry> ret) {
+		for (Entry entry : scan) {
+			double lat = entry.mdtrack.getLatitude();
+			double lon = entry.mdtrack.getLongitude();
+			if (lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon
+					&& now - entry.updated <= maxAgeMillis) {
+				ret.add(entry);
+			}
+		}
+	}
+
+	// Callers hold the write lock.
+	private void evict(long now) {
+		Iterator<Entry> oldest = entries.values().iterator();
+		while (oldest.hasNext()) {
+			Entry entry = oldest.next();
+			if (entries.size() <= maxEntries && now - entry.updated <= maxAgeMillis) {
+				break;
+			}
+			oldest.remove();
+			unbucket(cells, entry.cell, entry);
+			unbucket(users, entry.mdtrack.getUserId(), entry);
+		}
+	}
+
+	private void remove(Entry entry) {
+		entries.remove(entry.key);
+		unbucket(cells, entry.cell, entry);
+		unbucket(users, entry.mdtrack.getUserId(), entry);
+	}
+
+	private static <K> Set<Entry> bucket(Map<K, Set<Entry>> buckets, K key) {
+		Set<Entry> bucket = buckets.get(key);
+		if (bucket == null) {
+			bucket = new LinkedHashSet<Entry>();
+			buckets.put(key, bucket);
+		}
+		return bucket;
+	}
+
+	private static <K> void unbucket(Map<K, Set<Entry>> buckets, K key, Entry entry) {
+		Set<Entry> bucket = buckets.get(key);
+		if (bucket != null && bucket.remove(entry) && bucket.isEmpty()) {
+			buckets.remove(key);
+		}
+	}
+
+	private long cell(double lat, double lon) {
+		return row(lat) * columns + column(lon);
+	}
+
+	private long row(double lat) {
+		return (long) Math.floor((Math.max(-90, Math.min(90, lat)) + 90) / cellDegrees);
+	}
+
+	private long column(double lon) {
+		return (long) Math.floor((Math.max(-180, Math.min(180, lon)) + 180) / cellDegrees);
+	}
+
+	/** minLon, minLat, maxLon, maxLat of a box holding every point within the radius */
+	private static double[] boxAround(double lat, double lon, double radiusMeters) {
+		double dLat = radiusMeters / METERS_PER_DEGREE;
+		double minLat = lat - dLat, maxLat = lat + dLat;
+		if (minLat <= -90 || maxLat >= 90) {
+			return new double[] { -180, Math.max(-90, minLat), 180, Math.min(90, maxLat) };
+		}
+		double widest = Math.cos(Math.toRadians(Math.max(Math.abs(minLat), Math.abs(maxLat))));
+		double dLon = radiusMeters / (METERS_PER_DEGREE * widest);
+		if (dLon >= 180) {
+			return new double[] { -180, minLat, 180, maxLat };
+		}
+		return new double[] { lon - dLon, minLat, lon + dLon, maxLat };
+	}
+
+	private static boolean isWorld(double[] box) {
+		return box[0] <= -180 && box[1] <= -90 && box[2] >= 180 && box[3] >= 90;
+	}
+
+	private static double distance(Entry entry, double lat, double lon) {
+		return MDTDeadbandFilter.distanceMeters(lat, lon,
+				entry.mdtrack.getLatitude(), entry.mdtrack.getLongitude());
+	}
+
+	/** Distance to the kth closest of the entries, k being at most their number */
+	private static double kthDistance(List<Entry> entries, double lat, double lon, int k) {
+		double[] distances = new double[entries.size()];
+		for (int i = 0; i < distances.length; i++) {
+			distances[i] = distance(entries.get(i), lat, lon);
+		}
+		Arrays.sort(distances);
+		return distances[k - 1];
+	}
+}
@@ -34,6 +34,7 @@ import java.util.Map;
 
 import edu.mit.ll.em.api.msgbus.MsgBusSubscriptionException;
 import edu.mit.ll.em.api.msgbus.MsgBusSubscriptionMgr;
+import edu.mit.ll.em.api.msgbus.MsgBusWaiter;
 import edu.mit.ll.em.api.rs.MsgEnvelope;
 
 
@@ -59,10 +60,22 @@ public class MessageBusAccess {
 		return MsgBusSubscriptionMgr.getInstance().getFromSubscription(userId);
 	}
 
+	public boolean awaitMessages(long userId, MsgBusWaiter waiter) throws MsgBusSubscriptionException {
+		return MsgBusSubscriptionMgr.getInstance().waitOnSubscription(userId, waiter);
+	}
+
+	public void cancelWait(long userId, MsgBusWaiter waiter) {
+		MsgBusSubscriptionMgr.getInstance().cancelWait(userId, waiter);
+	}
+
 	public void postMessages(long userId, Collection<MsgEnvelope> msgs) throws MsgBusSubscriptionException {
 		MsgBusSubscriptionMgr.getInstance().postToSubscription(userId, msgs);		
 	}
 
+	public Map<String, Object> getStats() {
+		return MsgBusSubscriptionMgr.getInstance().getStats();
+	}
+
 	public void subscribe(Map<String, String> attrs) throws MsgBusSubscriptionException {
 		MsgBusSubscriptionMgr.getInstance().beginSubscription(attrs);
 	}
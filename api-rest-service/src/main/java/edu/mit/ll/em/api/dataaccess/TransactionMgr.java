@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Runs a unit of work against the NICS database in one transaction.
+ * 
+ * The nics-dao DAOs read the same container DataSource through Spring's
+ * JdbcTemplate, so the calls they make within {@link #execute} join the
+ * transaction: it commits when the callback returns, and rolls back when it
+ * throws a RuntimeException.
+ */
+public class TransactionMgr {
+
+	private static final String NICS_DATASOURCE = "java:comp/env/jboss/sadisplayDatasource";
+
+	private final DataSource dataSource;
+	private final TransactionTemplate template;
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static TransactionMgr instance = new TransactionMgr();
+	}
+
+	public static TransactionMgr getInstance() {
+		return Holder.instance;
+	}
+
+	// Hide the default constructor.
+	private TransactionMgr() {
+		this(lookup(NICS_DATASOURCE));
+	}
+
+	TransactionMgr(DataSource dataSource) {
+		this.dataSource = dataSource;
+		this.template = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+	}
+
+	/**
+	 * @return The NICS database, for statements nics-dao doesn't offer
+	 */
+	public DataSource getDataSource() {
+		return dataSource;
+	}
+
+	private static DataSource lookup(String name) {
+		try {
+			return (DataSource) new InitialContext().lookup(name);
+		} catch (NamingException e) {
+			throw new IllegalStateException("No datasource bound to " + name, e);
+		}
+	}
+
+	/**
+	 * @return What the callback returns, once committed
+	 */
+	public <T> T execute(TransactionCallback<T> callback) {
+		return template.execute(callback);
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.Configuration;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.em.api.util.SADisplayConstants;
+
+/**
+ * Copies a user's features into a collab room with a single statement,
+ * rather than a round trip per feature.
+ * 
+ * The features, their collab room links and their document links are all
+ * inserted by one INSERT ... SELECT per table, chained in one statement so
+ * the copy is atomic. The copies are given new ids from the feature id's
+ * column default, and the current time as their last update. The feature
+ * columns are read from the database catalog on first use, so columns added
+ * to the schema are copied too.
+ * 
+ * Copy timings are logged every "...feature.copy.statsminutes"; see
+ * {@link #getStats()}. Each copy is logged by the service making it.
+ */
+public class WorkspaceCopyDAO {
+
+	private static final String CNAME = WorkspaceCopyDAO.class.getName();
+
+	private static final long DEFAULT_STATS_MINS = 60;
+
+	private static final String FEATURE_TABLE = SADisplayConstants.FEATURE.toLowerCase();
+	private static final String USER_FEATURE_TABLE = SADisplayConstants.USER_FEATURE.toLowerCase();
+	private static final String COLLABROOM_FEATURE_TABLE = SADisplayConstants.COLLABROOM_FEATURE.toLowerCase();
+	private static final String DOCUMENT_FEATURE_TABLE = SADisplayConstants.DOCUMENT_FEATURE_TABLE;
+	private static final String FEATURE_ID = SADisplayConstants.FEATURE_ID;
+
+	private static final String COLUMNS_SQL = "SELECT column_name, column_default"
+			+ " FROM information_schema.columns"
+			+ " WHERE table_schema = current_schema() AND table_name = :table"
+			+ " ORDER BY ordinal_position";
+
+	private final NamedParameterJdbcTemplate template;
+	// Built on first use, from the catalog.
+	private volatile String copySql;
+
+	private final AtomicLong copyCount = new AtomicLong();
+	private final AtomicLong featureCount = new AtomicLong();
+	private final AtomicLong totalMillis = new AtomicLong();
+	private final AtomicLong maxMillis = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static WorkspaceCopyDAO instance = new WorkspaceCopyDAO();
+	}
+
+	public static WorkspaceCopyDAO getInstance() {
+		return Holder.instance;
+	}
+
+	// Hide the default constructor.
+	private WorkspaceCopyDAO() {
+		this(APIConfig.getInstance().getConfiguration(),
+				new NamedParameterJdbcTemplate(TransactionMgr.getInstance().getDataSource()));
+	}
+
+	WorkspaceCopyDAO(Configuration config, NamedParameterJdbcTemplate template) {
+		this.template = template;
+		long statsMins = config.getLong(APIConfig.FEATURE_COPY_STATSMINUTES, DEFAULT_STATS_MINS);
+		if (statsMins > 0) {
+			new Timer("workspace-copy-stats", true).scheduleAtFixedRate(new TimerTask() {
+				public void run() {
+					if (copyCount.get() > 0 || failedCount.get() > 0) {
+						APILogger.getInstance().i(CNAME, "Workspace copy stats: " + getStats());
+					}
+				}
+			}, statsMins * 60 * 1000L, statsMins * 60 * 1000L);
+		}
+	}
+
+	/**
+	 * Copies the user's features, with their documents, into the collab room.
+	 * 
+	 * @return Ids of the copies
+	 * @throws org.springframework.dao.DataAccessException When the copy fails;
+	 * 	nothing is copied then
+	 */
+	public List<Long> copyFeatures(int userId, int collabroomId) {
+		long start = System.nanoTime();
+		try {
+			MapSqlParameterSource params = new MapSqlParameterSource()
+					.addValue("userId", userId)
+					.addValue("collabroomId", collabroomId);
+			List<Long> featureIds = template.queryForList(getCopySql(), params, Long.class);
+
+			record(featureIds.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			return featureIds;
+		} catch (RuntimeException e) {
+			failedCount.incrementAndGet();
+			throw e;
+		}
+	}
+
+	private void record(int features, long millis) {
+		copyCount.incrementAndGet();
+		featureCount.addAndGet(features);
+		totalMillis.addAndGet(millis);
+		long max;
+		while (millis > (max = maxMillis.get()) && !maxMillis.compareAndSet(max, millis)) {
+			// Lost a race to another copy, try again
+		}
+	}
+
+	private String getCopySql() {
+		String sql = copySql;
+		if (sql == null) {
+			sql = buildCopySql(template.queryForList(COLUMNS_SQL,
+					new MapSqlParameterSource("table", FEATURE_TABLE)));
+			copySql = sql;
+		}
+		return sql;
+	}
+
+	/**
+	 * @param columns The feature table's columns, as column_name and column_default
+	 * @return The statement copying a user's features, with :userId and
+	 * 	:collabroomId parameters, returning the new feature ids
+	 */
+	static String buildCopySql(List<Map<String, Object>> columns) {
+		String idDefault = null;
+		StringBuilder names = new StringBuilder();
+		StringBuilder values = new StringBuilder();
+		for (Map<String, Object> column : columns) {
+			String name = (String) column.get("column_name");
+			if (FEATURE_ID.equals(name)) {
+				idDefault = (String) column.get("column_default");
+				continue;
+			}
+			names.append(", \"").append(name).append('"');
+			values.append(", ").append(SADisplayConstants.LAST_UPDATE.equals(name)
+					? "now()" : "src.\"" + name + '"');
+		}
+		if (idDefault == null) {
+			throw new IllegalStateException("Can't copy features, " + FEATURE_TABLE + "." + FEATURE_ID
+					+ " has no default to number the copies with");
+		}
+
+		return "WITH src AS ("
+				+ " SELECT f.*, " + idDefault + " AS newfeatureid"
+				+ " FROM " + FEATURE_TABLE + " f"
+				+ " JOIN " + USER_FEATURE_TABLE + " uf ON uf.featureid = f.featureid"
+				+ " WHERE uf.userid = :userId AND uf.deleted = false"
+				+ "), features AS ("
+				+ " INSERT INTO " + FEATURE_TABLE + " (" + FEATURE_ID + names + ")"
+				+ " SELECT src.newfeatureid" + values + " FROM src"
+				+ "), rooms AS ("
+				+ " INSERT INTO " + COLLABROOM_FEATURE_TABLE + " (featureid, collabroomid, deleted)"
+				+ " SELECT src.newfeatureid, :collabroomId, false FROM src"
+				+ "), documents AS ("
+				+ " INSERT INTO " + DOCUMENT_FEATURE_TABLE + " (documentid, featureid)"
+				+ " SELECT df.documentid, src.newfeatureid"
+				+ " FROM " + DOCUMENT_FEATURE_TABLE + " df JOIN src ON df.featureid = src.featureid"
+				+ ") SELECT newfeatureid FROM src";
+	}
+
+	/**
+	 * @return Counters of the copies made so far
+	 */
+	public Map<String, Number> getStats() {
+		long copies = copyCount.get();
+		Map<String, Number> m = new LinkedHashMap<String, Number>();
+		m.put("copies", copies);
+		m.put("features", featureCount.get());
+		m.put("failed", failedCount.get());
+		m.put("avgMillis", copies == 0 ? 0 : totalMillis.get() / copies);
+		m.put("maxMillis", maxMillis.get());
+		return m;
+	}
+}
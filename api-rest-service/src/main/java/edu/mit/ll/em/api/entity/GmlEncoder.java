@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.entity;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Encodes {@link JSONPLIEntry} objects to the same unformatted GML FeatureCollection
+ * as {@link JSONPLIEntry#toFeatureCollection(List, boolean)}, without the per call
+ * overhead of it.
+ * 
+ * The escaped collection header and the footer are built once per set of schema URIs,
+ * the members are appended piecewise instead of through string concatenation, and the
+ * buffer is reused by each calling thread. An instance is immutable and safe to share.
+ *
+ */
+public class GmlEncoder {
+	private static Logger LOG = Logger.getLogger(GmlEncoder.class);
+
+	/** Timestamp format of the NICS:timestamp element, thread-safe unlike SimpleDateFormat */
+	private static final DateTimeFormatter TIMESTAMP_FORMAT =
+			DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZoneUTC();
+
+	/** Largest buffer, in chars, a thread keeps around between calls */
+	static final int MAX_RETAINED_CHARS = 256 * 1024;
+
+	private static final String FOOTER = "</wfs:FeatureCollection>";
+
+	private static final String B = "&lt;b&gt;";
+	private static final String BC = "&lt;/b&gt;";
+	private static final String BR = "&lt;br/&gt;";
+
+	private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(4096);
+		}
+	};
+
+	private final String nicsSchemaLocationURI;
+	private final String wfsServiceURI;
+	private final String wfsSchemasURI;
+
+	private final String header;
+
+	public GmlEncoder(String nicsSchemaLocationURI, String wfsServiceURI, String wfsSchemasURI) {
+		this.nicsSchemaLocationURI = nicsSchemaLocationURI;
+		this.wfsServiceURI = wfsServiceURI;
+		this.wfsSchemasURI = wfsSchemasURI;
+
+		StringBuilder sb = new StringBuilder(512);
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		sb.append("<wfs:FeatureCollection xsi:schemaLocation=\"");
+		sb.append(nicsSchemaLocationURI.replace("&", "&amp;")).append(' ');
+		sb.append(wfsServiceURI.replace("&", "&amp;")).append(" http://www.opengis.net/wfs  ");
+		sb.append(wfsSchemasURI).append("\" ");
+		sb.append("xmlns:gml=\"http://www.opengis.net/gml\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" ");
+		sb.append("xmlns:NICS=\"").append(nicsSchemaLocationURI).append("\" xmlns:wfs=\"http://www.opengis.net/wfs\">");
+		header = sb.toString();
+	}
+
+	/**
+	 * Formats epoch milliseconds the way the NICS:timestamp element expects them
+	 * 
+	 * @param millis
+	 * @return The UTC timestamp, i.e. 2018-01-31T13:45:00Z
+	 */
+	public static String formatTimestamp(long millis) {
+		return TIMESTAMP_FORMAT.print(millis);
+	}
+
+	/**
+	 * Encodes the entries as one FeatureCollection, with a featureMember per entry, in order
+	 * 
+	 * @param entries
+	 * @return The GML document
+	 */
+	public String encode(List<JSONPLIEntry> entries) {
+		StringBuilder sb = BUFFER.get();
+		sb.setLength(0);
+		try {
+			encodeTo(entries, sb);
+			return sb.toString();
+		} finally {
+			if(sb.capacity() > MAX_RETAINED_CHARS) {
+				// Don't pin the memory of an unusually large batch to the thread
+				BUFFER.remove();
+			}
+		}
+	}
+
+	/**
+	 * Appends the FeatureCollection for the entries to the given buffer
+	 * 
+	 * @param entries
+	 * @param sb
+	 */
+	public void encodeTo(List<JSONPLIEntry> entries, StringBuilder sb) {
+		sb.append(header);
+		for (JSONPLIEntry entry : entries) {
+			appendFeatureMember(entry, sb);
+		}
+		sb.append(FOOTER);
+		if(LOG.isDebugEnabled()) {
+			LOG.debug("Encoded " + entries.size() + " GML featureMember(s)");
+		}
+	}
+
+	private void appendFeatureMember(JSONPLIEntry entry, StringBuilder sb) {
+		sb.append("<gml:featureMember><NICS:").append(entry.typeName).append('>');
+		sb.append("<NICS:id>").append(entry.id).append("</NICS:id>");
+		sb.append("<NICS:name>").append(entry.name).append("</NICS:name>");
+		sb.append("<NICS:description>").append(entry.description);
+		if(entry.extended != null && !entry.extended.isEmpty()) {
+			sb.append(BR);
+			try {
+				JSONObject jsonObject = new JSONObject(entry.extended);
+				Iterator itr = jsonObject.keys();
+				while(itr.hasNext()) {
+					String key = (String) itr.next();
+					sb.append(B).append(key).append(": ").append(BC).append(jsonObject.getString(key)).append(BR);
+				}
+			} catch (JSONException e) {
+				LOG.error("Error parsing extended json string: " + entry.extended, e);
+			}
+		}
+		sb.append("</NICS:description>");
+		sb.append("<NICS:geom><gml:Point srsName=\"").append(entry.srsName).append("\">");
+		sb.append("<gml:coordinates>").append(entry.coordinates).append("</gml:coordinates>");
+		sb.append("</gml:Point></NICS:geom>");
+		sb.append("<NICS:speed>").append(entry.speed).append("</NICS:speed>");
+		sb.append("<NICS:course>").append(entry.course).append("</NICS:course>");
+		sb.append("<NICS:extended>").append(entry.extended).append("</NICS:extended>");
+		sb.append("<NICS:timestamp>").append(entry.timestamp).append("</NICS:timestamp>");
+		sb.append("<NICS:version>").append(entry.version).append("</NICS:version>");
+		sb.append("</NICS:").append(entry.typeName).append("></gml:featureMember>");
+	}
+
+	public String getNicsSchemaLocationURI() {
+		return nicsSchemaLocationURI;
+	}
+
+	public String getWfsServiceURI() {
+		return wfsServiceURI;
+	}
+
+	public String getWfsSchemasURI() {
+		return wfsSchemasURI;
+	}
+}
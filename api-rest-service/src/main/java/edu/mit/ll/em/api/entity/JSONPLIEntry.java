@@ -29,7 +29,9 @@
  */
 package edu.mit.ll.em.api.entity;
 
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.json.JSONException;
@@ -101,6 +103,42 @@ public class JSONPLIEntry {
 	 * @return
 	 */
 	public String toGML(String includeFields, boolean format) {
+		return toFeatureCollection(Collections.singletonList(this), format);
+	}
+
+	/**
+	 * Converts the entries to a single WFS FeatureCollection holding one
+	 * featureMember per entry, in order
+	 * 
+	 * @param entries The entries to convert, at least one
+	 * @param format Set to true to enable formatting
+	 * 
+	 * @return
+	 */
+	public static String toFeatureCollection(List<JSONPLIEntry> entries, boolean format) {
+		final String BR = format ? "\n" : "";
+
+		StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + BR);
+        stringBuilder.append("<wfs:FeatureCollection xsi:schemaLocation=\"");
+        stringBuilder.append(nicsSchemaLocationURI.replaceAll("&", "&amp;") + " ");
+        stringBuilder.append(wfsServiceURI.replaceAll("&", "&amp;") + " http://www.opengis.net/wfs  ");
+        stringBuilder.append(wfsSchemasURI + "\" ");
+        stringBuilder.append("xmlns:gml=\"http://www.opengis.net/gml\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" ");
+        stringBuilder.append("xmlns:NICS=\"" + nicsSchemaLocationURI + "\" xmlns:wfs=\"http://www.opengis.net/wfs\">");
+        LOG.debug("amp== "+wfsServiceURI);
+
+        for (JSONPLIEntry entry : entries) {
+            entry.appendFeatureMember(stringBuilder, format);
+        }
+        stringBuilder.append("</wfs:FeatureCollection>" + BR);
+
+        LOG.info("\nGML: \n" + stringBuilder.toString() + "\n");
+
+		return stringBuilder.toString();
+	}
+
+	private void appendFeatureMember(StringBuilder stringBuilder, boolean format) {
 		final String TAB = format ? "\t" : "";
 		final String BR = format ? "\n" : "";
 
@@ -114,16 +152,6 @@ public class JSONPLIEntry {
         final String bc = "&lt;/b&gt;";
         final String br = "&lt;br/&gt;";
 
-		StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + BR);
-        stringBuilder.append("<wfs:FeatureCollection xsi:schemaLocation=\"");
-        stringBuilder.append(nicsSchemaLocationURI.replaceAll("&", "&amp;") + " ");
-        stringBuilder.append(wfsServiceURI.replaceAll("&", "&amp;") + " http://www.opengis.net/wfs  ");
-        stringBuilder.append(wfsSchemasURI + "\" ");
-        stringBuilder.append("xmlns:gml=\"http://www.opengis.net/gml\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" ");
-        stringBuilder.append("xmlns:NICS=\"" + nicsSchemaLocationURI + "\" xmlns:wfs=\"http://www.opengis.net/wfs\">");
-        LOG.debug("amp== "+wfsServiceURI);
-
         stringBuilder.append("<gml:featureMember>");
         stringBuilder.append(ltn + typeName);
         stringBuilder.append(gtc);
@@ -180,11 +208,6 @@ public class JSONPLIEntry {
         stringBuilder.append(ltnc + "version" + gtc);
         stringBuilder.append(ltnc + typeName + gtc);
         stringBuilder.append(ltc + "gml:featureMember" + gtc);
-        stringBuilder.append(ltc + "wfs:FeatureCollection" + gtc);
-
-        LOG.info("\nGML: \n" + stringBuilder.toString() + "\n");
-
-		return stringBuilder.toString();
 	}
 
 	@Override
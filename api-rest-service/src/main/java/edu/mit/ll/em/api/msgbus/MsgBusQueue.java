@@ -29,9 +29,11 @@
  */
 package edu.mit.ll.em.api.msgbus;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.Iterator;
+import java.util.List;
 
 import edu.mit.ll.em.api.rs.MsgEnvelope;
 import edu.mit.ll.em.api.util.APILogger;
@@ -41,35 +43,205 @@ public class MsgBusQueue {
 
 	private static final String CNAME = MsgBusQueue.class.getName();
 
-	public MsgBusQueue() {
+	// Rough cost of an envelope and its strings, not counting their characters.
+	private static final int ENVELOPE_OVERHEAD_BYTES = 96;
+
+	/**
+	 * What happens to a message posted to a full queue.
+	 */
+	public enum OverflowPolicy {
+		/** The oldest queued message is discarded to make room. */
+		DROP_OLDEST,
+		/** The new message is refused. */
+		REJECT;
+
+		/**
+		 * @param policy "drop-oldest" or "reject"
+		 * @return The matching policy, DROP_OLDEST if there is none.
+		 */
+		public static OverflowPolicy parse(String policy) {
+			if (policy != null && policy.trim().equalsIgnoreCase("reject")) {
+				return REJECT;
+			}
+			return DROP_OLDEST;
+		}
+	}
+
+	private final ArrayDeque<MsgEnvelope> queue = new ArrayDeque<MsgEnvelope>();
 
+	private final int capacity;
+
+	private final OverflowPolicy overflowPolicy;
+
+	private final MsgBusUsage usage;
+
+	private long bytes = 0;
+
+	// Stands in for the messages dropped since the queue was last emptied.
+	private MsgEnvelope resync;
+
+	public MsgBusQueue() {
+		this(Integer.MAX_VALUE, OverflowPolicy.DROP_OLDEST, new MsgBusUsage());
 	}
 
-	private ConcurrentLinkedDeque<MsgEnvelope> queue = new ConcurrentLinkedDeque<MsgEnvelope>();
+	/**
+	 * @param capacity Most messages held at once.
+	 * @param overflowPolicy Applied to messages posted while the queue is full.
+	 * @param usage Totals across all queues, updated as messages come and go.
+	 */
+	public MsgBusQueue(int capacity, OverflowPolicy overflowPolicy, MsgBusUsage usage) {
+		this.capacity = Math.max(capacity, 1);
+		this.overflowPolicy = overflowPolicy;
+		this.usage = usage;
+	}
 
-	public void put(MsgEnvelope msg) {
+	/**
+	 * @return false if the queue is full and the message was rejected.
+	 */
+	public synchronized boolean put(MsgEnvelope msg) {
 		APILogger.getInstance().d(CNAME, "Message posted to subscription " + 
 				": Type: " + msg.getMsgType() + " Payload: " + msg.getMsgPayload());
-		queue.add(msg);
+		if (queue.size() >= capacity) {
+			if (overflowPolicy == OverflowPolicy.REJECT) {
+				usage.rejected(1);
+				return false;
+			}
+			removeOldest(queue.size() - capacity + 1);
+		}
+		add(msg, false);
+		return true;
 	}
 
-	public void put(Collection<MsgEnvelope> msgs) {
+	/**
+	 * @return How many of the messages were queued; the rest were rejected.
+	 */
+	public synchronized int put(Collection<MsgEnvelope> msgs) {
+		int accepted = 0;
 		for (MsgEnvelope me : msgs) {
-			APILogger.getInstance().d(CNAME, "Message posted to subscription " + 
-					": Type: " + me.getMsgType() + " Payload: " + me.getMsgPayload());
-		}		
-		queue.addAll(msgs);
+			if (put(me)) {
+				accepted++;
+			}
+		}
+		return accepted;
 	}
 
-	public Collection<MsgEnvelope> get() {
-		Collection<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>();
-		while (!queue.isEmpty()) {
-			msgs.add(queue.remove());
+	/**
+	 * Puts messages back at the head of the queue, ahead of anything posted
+	 * since they were taken. Under DROP_OLDEST they are the first to go if
+	 * the queue has filled up in the meantime.
+	 */
+	public synchronized void putFirst(Collection<MsgEnvelope> msgs) {
+		List<MsgEnvelope> ordered = new ArrayList<MsgEnvelope>(msgs);
+		for (int i = ordered.size() - 1; i >= 0; i--) {
+			MsgEnvelope msg = ordered.get(i);
+			if (MsgBusSubscriptionMgr.RESYNC_MSG_TYPE.equals(msg.getMsgType())) {
+				dropped(msg);
+			} else {
+				add(msg, true);
+			}
+		}
+		if (overflowPolicy == OverflowPolicy.DROP_OLDEST && queue.size() > capacity) {
+			removeOldest(queue.size() - capacity);
 		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return queue.isEmpty() && resync == null;
+	}
+
+	public synchronized int size() {
+		return queue.size() + (resync == null ? 0 : 1);
+	}
+
+	/**
+	 * @return Whether messages were dropped since the queue was last emptied.
+	 */
+	public synchronized boolean isOverflowed() {
+		return resync != null;
+	}
+
+	/**
+	 * @return Estimated size of the queued messages.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public Collection<MsgEnvelope> get() {
+		Collection<MsgEnvelope> msgs = clear();
 		for (MsgEnvelope me : msgs) {
 			APILogger.getInstance().d(CNAME, "Obtained msg from subscription " + 
 					": Type: " + me.getMsgType() + " Payload: " + me.getMsgPayload());
 		}	
 		return msgs;
 	}
+
+	/**
+	 * Empties the queue.
+	 * @return The messages that were queued, oldest first. If any were dropped,
+	 *         they are led by a {@link MsgBusSubscriptionMgr#RESYNC_MSG_TYPE}
+	 *         message numbered as the last one dropped.
+	 */
+	public synchronized Collection<MsgEnvelope> clear() {
+		Collection<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>(queue.size() + 1);
+		if (resync != null) {
+			msgs.add(resync);
+			resync = null;
+		}
+		msgs.addAll(queue);
+		usage.dequeued(queue.size(), bytes);
+		queue.clear();
+		bytes = 0;
+		return msgs;
+	}
+
+	private void add(MsgEnvelope msg, boolean first) {
+		if (first) {
+			queue.addFirst(msg);
+		} else {
+			queue.addLast(msg);
+		}
+		long size = sizeOf(msg);
+		bytes += size;
+		usage.queued(1, size);
+	}
+
+	private void removeOldest(int count) {
+		Iterator<MsgEnvelope> it = queue.iterator();
+		for (int i = 0; i < count && it.hasNext(); i++) {
+			MsgEnvelope msg = it.next();
+			long size = sizeOf(msg);
+			it.remove();
+			bytes -= size;
+			usage.dequeued(1, size);
+			dropped(msg);
+		}
+		usage.dropped(count);
+		APILogger.getInstance().d(CNAME, "Subscription queue full, dropped " + count + " oldest message(s)");
+	}
+
+	/**
+	 * Has the subscriber told to resync, as it won't be sent the message.
+	 */
+	private void dropped(MsgEnvelope msg) {
+		if (resync == null) {
+			resync = new MsgEnvelope();
+			resync.setMsgType(MsgBusSubscriptionMgr.RESYNC_MSG_TYPE);
+		}
+		if (msg.getMsgSeq() >= resync.getMsgSeq()) {
+			resync.setMsgSeq(msg.getMsgSeq());
+			resync.setMsgNode(msg.getMsgNode());
+			resync.setMsgPayload(String.valueOf(msg.getMsgSeq()));
+		}
+		resync.setMsgTimestamp(String.valueOf(System.currentTimeMillis()));
+	}
+
+	static long sizeOf(MsgEnvelope msg) {
+		return ENVELOPE_OVERHEAD_BYTES + 2L * (length(msg.getMsgType()) +
+				length(msg.getMsgPayload()) + length(msg.getMsgTimestamp()));
+	}
+
+	private static int length(String s) {
+		return (s == null) ? 0 : s.length();
+	}
 }
@@ -0,0 +1,306 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.configuration.Configuration;
+
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubConsumer;
+import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubMsg;
+
+/**
+ * Consumes the message bus once per node and hands each message to the
+ * registered {@link Listener}s.
+ * 
+ * Listeners added without bindings, e.g. the {@link MsgBusSubscriptionMgr}
+ * which fans messages out to the subscriptions whose topics match, get the
+ * traffic on "...msgbus.relay.bindings". Traffic between the nodes themselves,
+ * on the "...msgbus.relay.exclude" topics, is not for clients and is not
+ * relayed to them. Listeners added with their own bindings get only the
+ * messages matching those, excluded or not, even with "...msgbus.relay.enabled"
+ * off. The consumer is bound to all of them, and rebinds when a listener adds
+ * new ones.
+ */
+public class MsgBusRelay {
+
+	private static final String CNAME = MsgBusRelay.class.getName();
+
+	private static final String DEFAULT_BINDINGS = "iweb.NICS.#";
+	private static final String DEFAULT_CACHE_INVALIDATION_TOPIC = "iweb.NICS.cache.invalidate";
+	private static final String DEFAULT_PRESENCE_REPLICATION_TOPIC = "iweb.NICS.presence.replicate";
+	private static final long RECONNECT_MILLIS = 30000;
+
+	/**
+	 * Receives the messages consumed by the relay.
+	 */
+	public interface Listener {
+		void onMessage(String topic, String msg);
+	}
+
+	/**
+	 * A listener also told when the relay connects to and disconnects from the
+	 * message bus, as messages published in between are never seen.
+	 */
+	public interface ConnectionListener extends Listener {
+		void connected();
+
+		void disconnected();
+	}
+
+	interface ConsumerFactory {
+		RabbitPubSubConsumer create(String[] bindingKeys) throws IOException;
+	}
+
+	private static final class Registration {
+		// Null for the relayed topics
+		private final TopicIndex<Boolean> topics;
+		private final Listener listener;
+
+		Registration(TopicIndex<Boolean> topics, Listener listener) {
+			this.topics = topics;
+			this.listener = listener;
+		}
+	}
+
+	private final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+
+	private final ConsumerFactory consumerFactory;
+	private final long reconnectMillis;
+
+	// Topics relayed to the listeners added without bindings, and those not.
+	private final TopicIndex<Boolean> relayed = new TopicIndex<Boolean>();
+	private final TopicIndex<Boolean> excluded = new TopicIndex<Boolean>();
+
+	// What the consumer binds to, guarded by this.
+	private final Set<String> bindingKeys = new LinkedHashSet<String>();
+	// Set when bindingKeys grew since the consumer was bound to them.
+	private volatile boolean rebind;
+
+	private Thread consumerThread;
+	private RabbitPubSubConsumer consumer;
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static MsgBusRelay instance = new MsgBusRelay();
+	}
+
+	public static MsgBusRelay getInstance() {
+		return Holder.instance;
+	}
+
+	// Hide the default constructor.
+	private MsgBusRelay() {
+		this(APIConfig.getInstance().getConfiguration(), new ConsumerFactory() {
+			public RabbitPubSubConsumer create(String[] bindingKeys) throws IOException {
+				Configuration config = APIConfig.getInstance().getConfiguration();
+				return new RabbitPubSubConsumer(
+						config.getString(APIConfig.RABBIT_HOSTNAME_KEY),
+						config.getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
+						bindingKeys);
+			}
+		}, RECONNECT_MILLIS);
+	}
+
+	MsgBusRelay(Configuration config, ConsumerFactory consumerFactory, long reconnectMillis) {
+		this.consumerFactory = consumerFactory;
+		this.reconnectMillis = reconnectMillis;
+		if (config.getBoolean(APIConfig.MSGBUS_RELAY_ENABLED, true)) {
+			for (String binding : APIConfig.getList(config, APIConfig.MSGBUS_RELAY_BINDINGS, DEFAULT_BINDINGS)) {
+				relayed.add(binding, Boolean.TRUE);
+				bindingKeys.add(binding);
+			}
+		}
+		String[] exclude = APIConfig.getList(config, APIConfig.MSGBUS_RELAY_EXCLUDE,
+				config.getString(APIConfig.CACHE_INVALIDATION_TOPIC, DEFAULT_CACHE_INVALIDATION_TOPIC) + ".#," +
+				config.getString(APIConfig.COLLAB_PRESENCE_REPLICATION_TOPIC, DEFAULT_PRESENCE_REPLICATION_TOPIC) + ".#");
+		for (String pattern : exclude) {
+			excluded.add(pattern, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Relays messages to the listener from now on, starting to consume the
+	 * message bus if this is the first listener.
+	 */
+	public synchronized void addListener(Listener listener) {
+		registrations.add(new Registration(null, listener));
+		start();
+	}
+
+	/**
+	 * Hands the listener the messages matching the bindings from now on,
+	 * including those on excluded topics, rebinding the consumer if needed.
+	 */
+	public synchronized void addListener(String[] bindings, Listener listener) {
+		TopicIndex<Boolean> topics = new TopicIndex<Boolean>();
+		boolean added = false;
+		for (String binding : bindings) {
+			topics.add(binding, Boolean.TRUE);
+			added |= bindingKeys.add(binding);
+		}
+		registrations.add(new Registration(topics, listener));
+		if (added) {
+			rebind = true;
+			if (consumer != null) {
+				consumer.destroy();
+			}
+		}
+		start();
+	}
+
+	public void removeListener(Listener listener) {
+		for (Registration registration : registrations) {
+			if (registration.listener == listener) {
+				registrations.remove(registration);
+			}
+		}
+	}
+
+	/**
+	 * Stops consuming the message bus.
+	 */
+	public synchronized void shutdown() {
+		if (consumerThread != null) {
+			consumerThread.interrupt();
+		}
+		if (consumer != null) {
+			consumer.destroy();
+		}
+	}
+
+	private void start() {
+		if (consumerThread != null || bindingKeys.isEmpty()) {
+			return;
+		}
+		consumerThread = new Thread(new Runnable() {
+			public void run() {
+				consume();
+			}
+		}, "msgbus-relay");
+		consumerThread.setDaemon(true);
+		consumerThread.start();
+	}
+
+	private void consume() {
+		while (!Thread.currentThread().isInterrupted()) {
+			RabbitPubSubConsumer bound = null;
+			boolean connected = false;
+			try {
+				String[] keys;
+				synchronized (this) {
+					keys = bindingKeys.toArray(new String[bindingKeys.size()]);
+					rebind = false;
+				}
+				bound = consumerFactory.create(keys);
+				synchronized (this) {
+					if (rebind) {
+						continue;
+					}
+					consumer = bound;
+				}
+				APILogger.getInstance().i(CNAME, "Relaying message bus traffic on " + Arrays.toString(keys));
+				connected = true;
+				notifyConnection(true);
+				while (!Thread.currentThread().isInterrupted() && !rebind) {
+					RabbitPubSubMsg msg = bound.consume();
+					if (msg != null) {
+						relay(msg.getRoutingKey(), msg.getMsg());
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				// Destroyed on purpose to rebind or stop
+				if (!rebind && !Thread.currentThread().isInterrupted()) {
+					APILogger.getInstance().e(CNAME, "Message bus relay failed, reconnecting in " +
+							reconnectMillis / 1000 + "s", e);
+					try {
+						Thread.sleep(reconnectMillis);
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			} finally {
+				synchronized (this) {
+					if (consumer == bound) {
+						consumer = null;
+					}
+				}
+				if (bound != null) {
+					bound.destroy();
+				}
+				if (connected) {
+					notifyConnection(false);
+				}
+			}
+		}
+	}
+
+	private void notifyConnection(boolean connected) {
+		for (Registration registration : registrations) {
+			if (!(registration.listener instanceof ConnectionListener)) {
+				continue;
+			}
+			ConnectionListener listener = (ConnectionListener) registration.listener;
+			try {
+				if (connected) {
+					listener.connected();
+				} else {
+					listener.disconnected();
+				}
+			} catch (RuntimeException e) {
+				APILogger.getInstance().e(CNAME, "Message bus relay listener failed on " +
+						(connected ? "connect" : "disconnect"), e);
+			}
+		}
+	}
+
+	void relay(String topic, String msg) {
+		boolean relay = !relayed.match(topic).isEmpty() && excluded.match(topic).isEmpty();
+		for (Registration registration : registrations) {
+			if (registration.topics == null ? !relay : registration.topics.match(topic).isEmpty()) {
+				continue;
+			}
+			try {
+				registration.listener.onMessage(topic, msg);
+			} catch (RuntimeException e) {
+				APILogger.getInstance().e(CNAME, "Message bus relay listener failed on " + topic, e);
+			}
+		}
+	}
+}
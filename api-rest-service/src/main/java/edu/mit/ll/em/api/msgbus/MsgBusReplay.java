@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.mit.ll.em.api.rs.MsgEnvelope;
+
+/**
+ * Stamps the messages routed through the message bus with sequence numbers, and
+ * remembers the latest of them per topic so a reconnecting subscriber can be sent
+ * what it missed.
+ * 
+ * Sequence numbers only mean something to the process that handed them out,
+ * which is named by a node id of its own. A subscriber resumes with both the
+ * node id and the sequence number of its last seen message; one resuming on
+ * another node, or on this node after a restart, has missed messages nobody here
+ * knows of and has to resync. Each topic keeps its last "size" messages; the
+ * least recently published topics are forgotten beyond "maxTopics", or once the
+ * messages kept add up to more than "maxBytes". A subscriber whose last seen
+ * message is older than what has been forgotten has to resync too.
+ */
+public class MsgBusReplay {
+
+	private static final Comparator<MsgEnvelope> BY_SEQ = new Comparator<MsgEnvelope>() {
+		public int compare(MsgEnvelope a, MsgEnvelope b) {
+			return Long.compare(a.getMsgSeq(), b.getMsgSeq());
+		}
+	};
+
+	private final String nodeId = UUID.randomUUID().toString();
+
+	// Sequence numbers start from the current time in microseconds, so a restarted
+	// node doesn't hand out numbers its subscribers have already seen.
+	private final long startSeq = System.currentTimeMillis() * 1000;
+
+	private final AtomicLong seq = new AtomicLong(startSeq);
+
+	private final int size;
+	private final long maxTopics;
+	private final long maxBytes;
+
+	// Least recently published first.
+	private final LinkedHashMap<String, Ring> topics = new LinkedHashMap<String, Ring>(16, 0.75f, true);
+
+	// Estimated size of the messages kept across all topics.
+	private long bytes;
+
+	// Newest sequence number of any message dropped from a topic that was forgotten.
+	private long forgottenSeq;
+
+	/**
+	 * The last messages published on a topic, oldest first.
+	 */
+	private static class Ring {
+		private final ArrayDeque<MsgEnvelope> msgs = new ArrayDeque<MsgEnvelope>();
+		private long droppedSeq = 0;
+		private long bytes = 0;
+
+		/**
+		 * @return How many bytes the ring grew by.
+		 */
+		long add(MsgEnvelope msg, int size) {
+			long before = bytes;
+			if (msgs.size() >= size) {
+				MsgEnvelope dropped = msgs.removeFirst();
+				droppedSeq = dropped.getMsgSeq();
+				bytes -= MsgBusQueue.sizeOf(dropped);
+			}
+			msgs.addLast(msg);
+			bytes += MsgBusQueue.sizeOf(msg);
+			return bytes - before;
+		}
+
+		/**
+		 * @return false if messages after lastSeq have already been dropped.
+		 */
+		boolean since(long lastSeq, List<MsgEnvelope> out) {
+			if (droppedSeq > lastSeq) {
+				return false;
+			}
+			for (MsgEnvelope msg : msgs) {
+				if (msg.getMsgSeq() > lastSeq) {
+					out.add(msg);
+				}
+			}
+			return true;
+		}
+
+		long lastSeq() {
+			return msgs.isEmpty() ? droppedSeq : msgs.getLast().getMsgSeq();
+		}
+	}
+
+	public MsgBusReplay(int size, long maxTopics, long maxBytes) {
+		this.size = Math.max(size, 1);
+		this.maxTopics = Math.max(maxTopics, 1);
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return The id of this process, to be sent along with its sequence numbers.
+	 */
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @return The next sequence number.
+	 */
+	public long nextSeq() {
+		return seq.incrementAndGet();
+	}
+
+	/**
+	 * @return The sequence number of the latest message.
+	 */
+	public long currentSeq() {
+		return seq.get();
+	}
+
+	/**
+	 * @return Estimated size of the messages kept.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Remembers a message published on the topic. The message must already be stamped.
+	 */
+	public synchronized void record(String topic, MsgEnvelope msg) {
+		Ring ring = topics.get(topic);
+		if (ring == null) {
+			ring = new Ring();
+			topics.put(topic, ring);
+		}
+		bytes += ring.add(msg, size);
+
+		Iterator<Ring> leastRecent = topics.values().iterator();
+		while ((topics.size() > maxTopics || bytes > maxBytes) && leastRecent.hasNext()) {
+			Ring forgotten = leastRecent.next();
+			leastRecent.remove();
+			bytes -= forgotten.bytes;
+			forgottenSeq = Math.max(forgottenSeq, forgotten.lastSeq());
+		}
+	}
+
+	/**
+	 * Collects the messages published after lastSeq on topics matching the patterns.
+	 * @param lastNodeId Node id lastSeq was handed out with
+	 * @param out Receives the messages in sequence order.
+	 * @return false if some of them are no longer known, and the subscriber has to resync.
+	 */
+	public synchronized boolean since(String[] patterns, String lastNodeId, long lastSeq, List<MsgEnvelope> out) {
+		if (!nodeId.equals(lastNodeId) || lastSeq < startSeq || lastSeq > seq.get()) {
+			// Numbered by another node, or by this one before a restart.
+			return false;
+		}
+		if (forgottenSeq > lastSeq) {
+			// Possibly in a forgotten topic.
+			return false;
+		}
+		TopicIndex<Boolean> index = new TopicIndex<Boolean>();
+		for (String pattern : patterns) {
+			if (!pattern.isEmpty()) {
+				index.add(pattern, Boolean.TRUE);
+			}
+		}
+		List<MsgEnvelope> missed = new ArrayList<MsgEnvelope>();
+		// Iterating isn't an access, so the order is kept.
+		for (Map.Entry<String, Ring> entry : topics.entrySet()) {
+			if (!index.match(entry.getKey()).isEmpty() && !entry.getValue().since(lastSeq, missed)) {
+				return false;
+			}
+		}
+		Collections.sort(missed, BY_SEQ);
+		out.addAll(missed);
+		return true;
+	}
+}
@@ -29,12 +29,26 @@
  */
 package edu.mit.ll.em.api.msgbus;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.commons.configuration.Configuration;
+
+import edu.mit.ll.em.api.msgbus.MsgBusQueue.OverflowPolicy;
 import edu.mit.ll.em.api.rs.MsgEnvelope;
 import edu.mit.ll.em.api.rs.StringConstant;
+import edu.mit.ll.em.api.util.APIConfig;
 import edu.mit.ll.em.api.util.APILogger;
 import edu.mit.ll.em.api.util.MapUtil;
 
@@ -42,9 +56,48 @@ public class MsgBusSubscriptionMgr {
 
 	private static final String CNAME = MsgBusSubscriptionMgr.class.getName();
 
+	private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+	private static final int DEFAULT_REAP_SECS = 60;
+	private static final int DEFAULT_REPLAY_SIZE = 100;
+	private static final long DEFAULT_REPLAY_TOPICS = 10000;
+	private static final long DEFAULT_REPLAY_MEGABYTES = 64;
+
+	private static final Comparator<MsgEnvelope> BY_SEQ = new Comparator<MsgEnvelope>() {
+		public int compare(MsgEnvelope a, MsgEnvelope b) {
+			return Long.compare(a.getMsgSeq(), b.getMsgSeq());
+		}
+	};
+
+	/**
+	 * Type of the message a subscriber is sent instead of what it missed, when
+	 * that is no longer known or was dropped from its full queue. Its payload and
+	 * sequence number are those of the last message missed, to resume from once
+	 * the subscriber has re-fetched its state.
+	 */
+	public static final String RESYNC_MSG_TYPE = "msgbus.resync";
+
 	private ConcurrentHashMap<Long, SubscriptionSession> sessions =
 			new ConcurrentHashMap<Long, SubscriptionSession>(500);
 
+	// Sessions by the topic patterns they subscribed to.
+	private final TopicIndex<SubscriptionSession> topicIndex = new TopicIndex<SubscriptionSession>();
+
+	// Sequence numbers and recent messages per topic.
+	private MsgBusReplay replay;
+
+	// Keeps published messages from slipping between a subscription's replay and its first live message.
+	private final Object routingLock = new Object();
+
+	// Totals across all of the subscription queues.
+	private final MsgBusUsage usage = new MsgBusUsage();
+
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+	// Ends sessions whose subscribers have gone away.
+	TimerTask reaper;
+
 	// Lazy-initialization Holder class idiom.
 	private static class Holder {
 		public static MsgBusSubscriptionMgr instance = new MsgBusSubscriptionMgr();
@@ -56,7 +109,12 @@ public class MsgBusSubscriptionMgr {
 
 	/**
 	 * Starts temporary subscription.
-	 * @param attrs Must provide all attributes necessary for subscribing.
+	 * @param attrs Must provide all attributes necessary for subscribing. A subscriber
+	 *        resuming after a disconnect also provides the sequence number and node id
+	 *        of the last message it saw, and is first sent the messages it missed, or a
+	 *        {@link #RESYNC_MSG_TYPE} message if they are no longer known. That holds
+	 *        for a session still alive too, whose queue is rebuilt from the cursor:
+	 *        messages it was handed may have been lost on the way.
 	 * @return Subscription ID
 	 */
 	public void beginSubscription(Map<String, String> attrs) throws
@@ -72,11 +130,41 @@ public class MsgBusSubscriptionMgr {
 		String[] topics = topicsStr.split("[+]");
 		String timeoutSecsStr = MapUtil.getDefault(
 				StringConstant.URIOPT_TIMEOUT, attrs, "600");
+		String lastSeqStr = MapUtil.getDefault(
+				StringConstant.URIOPT_LAST_SEQ, attrs, null);
+		String lastNodeId = MapUtil.getDefault(
+				StringConstant.URIOPT_NODE_ID, attrs, null);
+		Long lastSeq = null;
+		if (lastSeqStr != null) {
+			try {
+				lastSeq = Long.parseLong(lastSeqStr);
+			} catch (NumberFormatException e) {
+				MsgBusSubscriptionException.handle(CNAME,
+						"Cannot create subscription due to last sequence value error: " +
+						e.getMessage(), e);
+			}
+		}
 
 		// Subscribe.		
 		SubscriptionSession ss = SubscriptionSession.create(
 				subscriberIdStr, topics, timeoutSecsStr);
-		sessions.putIfAbsent(ss.getSubscriberId(), ss);
+		ss.setMsgBusQueue(new MsgBusQueue(queueCapacity, overflowPolicy, usage));
+		SubscriptionSession existing = sessions.putIfAbsent(ss.getSubscriberId(), ss);
+		if (existing != null) {
+			existing.touch();
+			if (lastSeq != null) {
+				synchronized (routingLock) {
+					resume(existing, lastNodeId, lastSeq, existing.getMsgBusQueue().clear());
+				}
+			}
+		} else {
+			synchronized (routingLock) {
+				index(ss);
+				if (lastSeq != null) {
+					resume(ss, lastNodeId, lastSeq, Collections.<MsgEnvelope>emptyList());
+				}
+			}
+		}
 
 		APILogger.getInstance().d(CNAME, "beginSubscription() - End.");
 	}
@@ -85,6 +173,7 @@ public class MsgBusSubscriptionMgr {
 	MsgBusSubscriptionException {
 		SubscriptionSession ss = sessions.remove(sid);
 		if (ss != null) {
+			unindex(ss);
 			ss.terminate();
 			APILogger.getInstance().d(CNAME, "Subscription ID terminated: " + sid);
 		} else {
@@ -96,6 +185,7 @@ public class MsgBusSubscriptionMgr {
 	MsgBusSubscriptionException {
 		SubscriptionSession ss = sessions.get(sid);
 		if (ss != null) {
+			stamp(msg);
 			ss.post(msg);
 			APILogger.getInstance().d(CNAME, "Subscription ID " + sid + " posted messages.");
 		} else {
@@ -107,6 +197,9 @@ public class MsgBusSubscriptionMgr {
 	MsgBusSubscriptionException {
 		SubscriptionSession ss = sessions.get(sid);
 		if (ss != null) {
+			for (MsgEnvelope msg : msgs) {
+				stamp(msg);
+			}
 			ss.post(msgs);
 			APILogger.getInstance().d(CNAME, "Subscription ID " + sid + " posted messages.");
 		} else {
@@ -114,6 +207,93 @@ public class MsgBusSubscriptionMgr {
 		}		
 	}
 
+	/**
+	 * Stamps the message with the next sequence number, keeps it for replay, and
+	 * posts it to every subscription with a topic pattern matching the topic.
+	 * @return How many subscriptions the message was posted to.
+	 */
+	public int publish(String topic, MsgEnvelope msg) {
+		int posted = 0;
+		synchronized (routingLock) {
+			stamp(msg);
+			replay.record(topic, msg);
+			for (SubscriptionSession ss : topicIndex.match(topic)) {
+				if (sessions.get(ss.getSubscriberId()) != ss) {
+					// Ended while it was being subscribed.
+					unindex(ss);
+					continue;
+				}
+				try {
+					ss.post(msg);
+					posted++;
+				} catch (MsgBusSubscriptionException e) {
+					APILogger.getInstance().w(CNAME, e.getMessage());
+				}
+			}
+		}
+		return posted;
+	}
+
+	private void stamp(MsgEnvelope msg) {
+		msg.setMsgSeq(replay.nextSeq());
+		msg.setMsgNode(replay.getNodeId());
+	}
+
+	/**
+	 * Posts the messages published on the session's topics since lastSeq, or a
+	 * resync message if they are not all known or would not fit in its queue.
+	 * @param queued What the session had queued, of which the messages posted to it
+	 *        directly, and so not kept for replay, are posted again
+	 */
+	private void resume(SubscriptionSession ss, String lastNodeId, long lastSeq,
+			Collection<MsgEnvelope> queued) throws MsgBusSubscriptionException {
+		List<MsgEnvelope> missed = new ArrayList<MsgEnvelope>();
+		if (replay.since(ss.getTopicList(), lastNodeId, lastSeq, missed)) {
+			Set<Long> replayed = new HashSet<Long>();
+			for (MsgEnvelope msg : missed) {
+				replayed.add(msg.getMsgSeq());
+			}
+			for (MsgEnvelope msg : queued) {
+				if (msg.getMsgSeq() > lastSeq && !replayed.contains(msg.getMsgSeq())
+						&& !RESYNC_MSG_TYPE.equals(msg.getMsgType())) {
+					missed.add(msg);
+				}
+			}
+			Collections.sort(missed, BY_SEQ);
+		} else {
+			missed = null;
+		}
+		if (missed != null && missed.size() <= queueCapacity) {
+			ss.post(missed);
+			APILogger.getInstance().d(CNAME, "Subscription ID " + ss.getSubscriberId() +
+					" resumed with " + missed.size() + " missed messages.");
+		} else {
+			MsgEnvelope resync = new MsgEnvelope();
+			resync.setMsgType(RESYNC_MSG_TYPE);
+			resync.setMsgSeq(replay.currentSeq());
+			resync.setMsgNode(replay.getNodeId());
+			resync.setMsgPayload(String.valueOf(resync.getMsgSeq()));
+			resync.setMsgTimestamp(String.valueOf(System.currentTimeMillis()));
+			ss.post(resync);
+			APILogger.getInstance().i(CNAME, "Subscription ID " + ss.getSubscriberId() +
+					" missed too much since " + lastSeq + ", asked to resync.");
+		}
+	}
+
+	private void index(SubscriptionSession ss) {
+		for (String topic : ss.getTopicList()) {
+			if (!topic.isEmpty()) {
+				topicIndex.add(topic, ss);
+			}
+		}
+	}
+
+	private void unindex(SubscriptionSession ss) {
+		for (String topic : ss.getTopicList()) {
+			topicIndex.remove(topic, ss);
+		}
+	}
+
 	public Collection<MsgEnvelope> getFromSubscription(long sid) throws
 	MsgBusSubscriptionException {
 
@@ -129,7 +309,104 @@ public class MsgBusSubscriptionMgr {
 		return msgs;
 	}
 
+	/**
+	 * Registers a client to be handed the subscription's messages once any arrive.
+	 * @return false if there is no such subscription.
+	 */
+	public boolean waitOnSubscription(long sid, MsgBusWaiter waiter) throws
+	MsgBusSubscriptionException {
+		SubscriptionSession ss = sessions.get(sid);
+		if (ss == null) {
+			APILogger.getInstance().w(CNAME, "Wait failed. Subscription ID not found: " + sid);
+			return false;
+		}
+		ss.await(waiter);
+		return true;
+	}
+
+	public void cancelWait(long sid, MsgBusWaiter waiter) {
+		SubscriptionSession ss = sessions.get(sid);
+		if (ss != null) {
+			ss.cancel(waiter);
+		}
+	}
+
+	/**
+	 * Terminates every session that has expired.
+	 * @return How many sessions were terminated.
+	 */
+	public int reapExpiredSessions() {
+		long now = System.currentTimeMillis();
+		int reaped = 0;
+		Iterator<Map.Entry<Long, SubscriptionSession>> it = sessions.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, SubscriptionSession> entry = it.next();
+			SubscriptionSession ss = entry.getValue();
+			if (ss.isExpired(now) && sessions.remove(entry.getKey(), ss)) {
+				unindex(ss);
+				ss.terminate();
+				usage.expired();
+				reaped++;
+				APILogger.getInstance().i(CNAME, "Subscription ID expired: " + entry.getKey());
+			}
+		}
+		return reaped;
+	}
+
+	/**
+	 * @return Session count, queued messages and their estimated size, and
+	 *         how many messages and sessions have been dropped.
+	 */
+	public Map<String, Object> getStats() {
+		int waiters = 0;
+		for (SubscriptionSession ss : sessions.values()) {
+			waiters += ss.getWaiterCount();
+		}
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("sessions", sessions.size());
+		stats.put("waiters", waiters);
+		stats.put("queuedMessages", usage.getQueuedMessages());
+		stats.put("queuedBytes", usage.getQueuedBytes());
+		stats.put("droppedMessages", usage.getDroppedMessages());
+		stats.put("rejectedMessages", usage.getRejectedMessages());
+		stats.put("expiredSessions", usage.getExpiredSessions());
+		stats.put("queueCapacity", queueCapacity);
+		stats.put("overflowPolicy", overflowPolicy.name());
+		stats.put("seq", replay.currentSeq());
+		stats.put("replayBytes", replay.getBytes());
+		return stats;
+	}
+
 	// Hide the default constructor.
-	@SuppressWarnings("unused")
-	private void SubscritionMgr() {}
+	private MsgBusSubscriptionMgr() {
+		this(APIConfig.getInstance().getConfiguration());
+		MsgBusRelay.getInstance().addListener(new MsgBusRelay.Listener() {
+			public void onMessage(String topic, String msg) {
+				MsgEnvelope envelope = new MsgEnvelope();
+				envelope.setMsgType(topic);
+				envelope.setMsgPayload(msg);
+				envelope.setMsgTimestamp(String.valueOf(System.currentTimeMillis()));
+				publish(topic, envelope);
+			}
+		});
+	}
+
+	MsgBusSubscriptionMgr(Configuration config) {
+		queueCapacity = config.getInt(APIConfig.MSGBUS_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY);
+		overflowPolicy = OverflowPolicy.parse(config.getString(APIConfig.MSGBUS_QUEUE_OVERFLOW));
+		int reapSecs = config.getInt(APIConfig.MSGBUS_REAPSECONDS, DEFAULT_REAP_SECS);
+		replay = new MsgBusReplay(
+				config.getInt(APIConfig.MSGBUS_REPLAY_SIZE, DEFAULT_REPLAY_SIZE),
+				config.getLong(APIConfig.MSGBUS_REPLAY_TOPICS, DEFAULT_REPLAY_TOPICS),
+				config.getLong(APIConfig.MSGBUS_REPLAY_MEGABYTES, DEFAULT_REPLAY_MEGABYTES) * 1024 * 1024);
+
+		reaper = new TimerTask() {
+			public void run() {
+				reapExpiredSessions();
+			}
+		};
+		if (reapSecs > 0) {
+			new Timer(true).scheduleAtFixedRate(reaper, reapSecs * 1000L, reapSecs * 1000L);
+		}
+	}
 }
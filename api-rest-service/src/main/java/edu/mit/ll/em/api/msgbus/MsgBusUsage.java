@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals shared by all of the subscription queues, so the memory held
+ * by the message bus can be watched as a whole.
+ */
+public class MsgBusUsage {
+
+	private final AtomicLong queuedMessages = new AtomicLong();
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicLong droppedMessages = new AtomicLong();
+	private final AtomicLong rejectedMessages = new AtomicLong();
+	private final AtomicLong expiredSessions = new AtomicLong();
+
+	void queued(int msgs, long bytes) {
+		queuedMessages.addAndGet(msgs);
+		queuedBytes.addAndGet(bytes);
+	}
+
+	void dequeued(int msgs, long bytes) {
+		queuedMessages.addAndGet(-msgs);
+		queuedBytes.addAndGet(-bytes);
+	}
+
+	void dropped(int msgs) {
+		droppedMessages.addAndGet(msgs);
+	}
+
+	void rejected(int msgs) {
+		rejectedMessages.addAndGet(msgs);
+	}
+
+	void expired() {
+		expiredSessions.incrementAndGet();
+	}
+
+	public long getQueuedMessages() {
+		return queuedMessages.get();
+	}
+
+	/**
+	 * @return Estimated size of all queued messages.
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	public long getDroppedMessages() {
+		return droppedMessages.get();
+	}
+
+	public long getRejectedMessages() {
+		return rejectedMessages.get();
+	}
+
+	public long getExpiredSessions() {
+		return expiredSessions.get();
+	}
+}
@@ -29,7 +29,12 @@
  */
 package edu.mit.ll.em.api.msgbus;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 
 import edu.mit.ll.em.api.rs.MsgEnvelope;
 import edu.mit.ll.em.api.util.APILogger;
@@ -46,6 +51,12 @@ public class SubscriptionSession {
 	
 	private MsgBusQueue msgbusQueue = new MsgBusQueue();
 	
+	// When the subscriber last subscribed or asked for messages.
+	private volatile long lastAccessMillis = System.currentTimeMillis();
+	
+	// Clients blocked until messages arrive, oldest first.
+	private final Deque<MsgBusWaiter> waiters = new ArrayDeque<MsgBusWaiter>();
+	
 	public static SubscriptionSession create(String subscriberIdStr,
 				String[] topicList, String timeoutStr) throws
 				MsgBusSubscriptionException {
@@ -102,20 +113,118 @@ public class SubscriptionSession {
 		this.timeout = timeout;
 	}
 	
+	public MsgBusQueue getMsgBusQueue() {
+		return msgbusQueue;
+	}
+	
+	public void setMsgBusQueue(MsgBusQueue msgbusQueue) {
+		this.msgbusQueue = msgbusQueue;
+	}
+	
+	public long getLastAccessMillis() {
+		return lastAccessMillis;
+	}
+	
+	/**
+	 * Marks the subscriber as still around, postponing expiry.
+	 */
+	public void touch() {
+		lastAccessMillis = System.currentTimeMillis();
+	}
+	
+	/**
+	 * A session expires once its subscriber has neither asked for messages nor
+	 * been waiting on them for timeout seconds. A timeout of zero or less never expires.
+	 */
+	public synchronized boolean isExpired(long nowMillis) {
+		return timeout > 0 && waiters.isEmpty() &&
+				nowMillis - lastAccessMillis >= timeout * 1000L;
+	}
+	
+	public synchronized int getWaiterCount() {
+		return waiters.size();
+	}
+	
 	public void terminate() {
-		// TODO: Implementation.
+		// Release anyone still waiting on messages, and the messages themselves.
+		List<MsgBusWaiter> waiting;
+		synchronized (this) {
+			waiting = new ArrayList<MsgBusWaiter>(waiters);
+			waiters.clear();
+			msgbusQueue.clear();
+		}
+		for (MsgBusWaiter waiter : waiting) {
+			waiter.deliver(Collections.<MsgEnvelope>emptyList());
+		}
 		APILogger.getInstance().i(CNAME, "Subscription terminated: " + this.getSubscriberId());
 	}
 
-	public void post(MsgEnvelope msg) {
-		msgbusQueue.put(msg);
+	public void post(MsgEnvelope msg) throws MsgBusSubscriptionException {
+		boolean accepted = msgbusQueue.put(msg);
+		wake();
+		if (!accepted) {
+			throw new MsgBusSubscriptionException("Subscription " + subscriberId +
+					" is full, message rejected.");
+		}
 	}
 	
-	public void post(Collection<MsgEnvelope> msgs) {
-		msgbusQueue.put(msgs);
+	public void post(Collection<MsgEnvelope> msgs) throws MsgBusSubscriptionException {
+		int accepted = msgbusQueue.put(msgs);
+		wake();
+		if (accepted < msgs.size()) {
+			throw new MsgBusSubscriptionException("Subscription " + subscriberId +
+					" is full, " + (msgs.size() - accepted) + " of " + msgs.size() +
+					" messages rejected.");
+		}
 	}
 	
 	public Collection<MsgEnvelope> get() {
+		touch();
 		return msgbusQueue.get();
 	}	
+	
+	/**
+	 * Delivers the pending messages to the waiter as soon as there are any,
+	 * which may be right away.
+	 */
+	public void await(MsgBusWaiter waiter) {
+		touch();
+		synchronized (this) {
+			waiters.add(waiter);
+		}
+		wake();
+	}
+	
+	/**
+	 * Stops waiting, e.g. once the waiter has timed out.
+	 * @return false if the waiter was already handed messages.
+	 */
+	public synchronized boolean cancel(MsgBusWaiter waiter) {
+		return waiters.remove(waiter);
+	}
+	
+	/**
+	 * Hands everything queued to the longest waiting client. Messages a waiter
+	 * could no longer take are put back for the next one.
+	 */
+	private void wake() {
+		while (true) {
+			MsgBusWaiter waiter;
+			Collection<MsgEnvelope> msgs;
+			synchronized (this) {
+				if (waiters.isEmpty() || msgbusQueue.isEmpty()) {
+					return;
+				}
+				waiter = waiters.poll();
+				msgs = msgbusQueue.get();
+			}
+			if (waiter.deliver(msgs)) {
+				touch();
+			} else {
+				synchronized (this) {
+					msgbusQueue.putFirst(msgs);
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index of topic patterns, answering which values are subscribed to a given topic.
+ * 
+ * Topics and patterns are dot separated words, e.g. NICS.ws.1.incidents.8.collab.11.
+ * As with AMQP topic bindings, a "*" word in a pattern matches exactly one word and
+ * a "#" word matches zero or more words. Patterns are kept in a trie keyed by word,
+ * so matching a topic only visits the branches that can match it, however many
+ * values are subscribed.
+ */
+public class TopicIndex<T> {
+
+	public static final String ONE_WORD = "*";
+	public static final String ANY_WORDS = "#";
+
+	private final Node<T> root = new Node<T>();
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private static class Node<T> {
+		private final Map<String, Node<T>> children = new HashMap<String, Node<T>>();
+		private final Set<T> values = new HashSet<T>();
+
+		boolean isEmpty() {
+			return children.isEmpty() && values.isEmpty();
+		}
+	}
+
+	public void add(String pattern, T value) {
+		lock.writeLock().lock();
+		try {
+			Node<T> node = root;
+			for (String word : split(pattern)) {
+				Node<T> child = node.children.get(word);
+				if (child == null) {
+					child = new Node<T>();
+					node.children.put(word, child);
+				}
+				node = child;
+			}
+			node.values.add(value);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return false if the value was not subscribed to the pattern.
+	 */
+	public boolean remove(String pattern, T value) {
+		lock.writeLock().lock();
+		try {
+			return remove(root, split(pattern), 0, value);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Every value subscribed to a pattern matching the topic.
+	 */
+	public Set<T> match(String topic) {
+		Set<T> matches = new HashSet<T>();
+		lock.readLock().lock();
+		try {
+			collect(root, split(topic), 0, matches);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return matches;
+	}
+
+	private boolean remove(Node<T> node, String[] words, int i, T value) {
+		if (i == words.length) {
+			return node.values.remove(value);
+		}
+		Node<T> child = node.children.get(words[i]);
+		if (child == null) {
+			return false;
+		}
+		boolean removed = remove(child, words, i + 1, value);
+		if (child.isEmpty()) {
+			node.children.remove(words[i]);
+		}
+		return removed;
+	}
+
+	private void collect(Node<T> node, String[] words, int i, Set<T> matches) {
+		Node<T> anyWords = node.children.get(ANY_WORDS);
+		if (anyWords != null) {
+			// "#" may swallow any number of the remaining words, including none.
+			for (int j = i; j <= words.length; j++) {
+				collect(anyWords, words, j, matches);
+			}
+		}
+		if (i == words.length) {
+			matches.addAll(node.values);
+			return;
+		}
+		Node<T> exact = node.children.get(words[i]);
+		if (exact != null) {
+			collect(exact, words, i + 1, matches);
+		}
+		Node<T> oneWord = node.children.get(ONE_WORD);
+		if (oneWord != null) {
+			collect(oneWord, words, i + 1, matches);
+		}
+	}
+
+	private static String[] split(String topic) {
+		return topic.isEmpty() ? new String[0] : topic.split("\\.", -1);
+	}
+}
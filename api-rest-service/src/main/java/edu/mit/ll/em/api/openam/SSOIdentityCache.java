@@ -0,0 +1,328 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.openam;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.nics.sso.util.SSOUtil;
+
+/**
+ * Resolves SSO tokens to the identity, the uid, OpenAM holds for them.
+ * 
+ * Resolved identities are cached for "...sso.tokencache.seconds", keyed by a
+ * SHA-256 hash of the token so the tokens themselves are not kept. Keep that
+ * well below the OpenAM session lifetime: a token logged out or expired in
+ * OpenAM is still accepted until its entry expires. Tokens OpenAM has no uid
+ * for are not cached.
+ * 
+ * Lookups run on admin sessions borrowed from a pool of up to
+ * "...sso.adminpool.size", each logged in once and reused for
+ * "...sso.adminpool.maxageminutes" rather than logging in and out per call.
+ * A session that fails a lookup is discarded and the lookup retried once on a
+ * fresh one. Hit rate and OpenAM latency are logged every
+ * "...sso.tokencache.statsminutes"; see {@link #getStats()}.
+ */
+public class SSOIdentityCache {
+
+	private static final String CNAME = SSOIdentityCache.class.getName();
+
+	private static final String UID = "uid";
+
+	private static final long DEFAULT_CACHE_SECONDS = 300;
+	private static final long DEFAULT_CACHE_MAXSIZE = 10000;
+	private static final int DEFAULT_POOL_SIZE = 2;
+	private static final int DEFAULT_MAXAGE_MINUTES = 30;
+	private static final int DEFAULT_STATS_MINS = 15;
+	private static final long BORROW_TIMEOUT_SECONDS = 30;
+
+	/**
+	 * Creates the SSOUtil of a new admin session.
+	 */
+	interface SessionFactory {
+		SSOUtil create() throws Exception;
+	}
+
+	private static final class AdminSession {
+		private final SSOUtil ssoUtil;
+		private final long loginMillis = System.currentTimeMillis();
+
+		AdminSession(SSOUtil ssoUtil) {
+			this.ssoUtil = ssoUtil;
+		}
+	}
+
+	private final Cache<String, String> identities;
+	private final SessionFactory sessionFactory;
+	private final BlockingQueue<AdminSession> idle = new LinkedBlockingQueue<AdminSession>();
+	private final int poolSize;
+	private final long maxAgeMillis;
+	// Sessions logged in, idle or borrowed.
+	private final AtomicInteger open = new AtomicInteger();
+
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong lookupFailures = new AtomicLong();
+	private final AtomicLong lookupNanos = new AtomicLong();
+	private final AtomicLong maxLookupNanos = new AtomicLong();
+	private final AtomicLong logins = new AtomicLong();
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static SSOIdentityCache instance = new SSOIdentityCache();
+	}
+
+	public static SSOIdentityCache getInstance() {
+		return Holder.instance;
+	}
+
+	// Hide the default constructor.
+	private SSOIdentityCache() {
+		this(APIConfig.getInstance().getConfiguration(), new SessionFactory() {
+			public SSOUtil create() {
+				return new SSOUtil();
+			}
+		});
+
+		int statsMins = APIConfig.getInstance().getConfiguration().getInt(
+				APIConfig.SSO_TOKENCACHE_STATSMINUTES, DEFAULT_STATS_MINS);
+		if (statsMins > 0) {
+			new Timer("sso-identity-cache", true).scheduleAtFixedRate(new TimerTask() {
+				public void run() {
+					APILogger.getInstance().i(CNAME, "SSO identity cache stats: " + getStats());
+				}
+			}, statsMins * 60 * 1000L, statsMins * 60 * 1000L);
+		}
+	}
+
+	SSOIdentityCache(Configuration config, SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+		this.poolSize = Math.max(1, config.getInt(APIConfig.SSO_ADMINPOOL_SIZE, DEFAULT_POOL_SIZE));
+		this.maxAgeMillis = TimeUnit.MINUTES.toMillis(
+				config.getInt(APIConfig.SSO_ADMINPOOL_MAXAGEMINUTES, DEFAULT_MAXAGE_MINUTES));
+		this.identities = CacheBuilder.newBuilder()
+				.maximumSize(config.getLong(APIConfig.SSO_TOKENCACHE_MAXSIZE, DEFAULT_CACHE_MAXSIZE))
+				.expireAfterWrite(Math.max(0, config.getLong(APIConfig.SSO_TOKENCACHE_SECONDS,
+						DEFAULT_CACHE_SECONDS)), TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+	}
+
+	/**
+	 * @return The uid OpenAM holds for the token, null if it holds none.
+	 * @throws Exception if OpenAM could not be asked.
+	 */
+	public String getIdentity(final String token) throws Exception {
+		try {
+			return identities.get(hash(token), new Callable<String>() {
+				public String call() throws Exception {
+					String identity = lookup(token);
+					if (identity == null) {
+						throw new NoIdentityException();
+					}
+					return identity;
+				}
+			});
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof NoIdentityException) {
+				return null;
+			}
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		} catch (UncheckedExecutionException e) {
+			if (e.getCause() instanceof NoIdentityException) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Forgets the identity of the token, e.g. once it has been logged out.
+	 */
+	public void invalidate(String token) {
+		identities.invalidate(hash(token));
+	}
+
+	private static String hash(String token) {
+		return Hashing.sha256().hashUnencodedChars(token).toString();
+	}
+
+	private String lookup(String token) throws Exception {
+		try {
+			return lookupOnce(token);
+		} catch (Exception e) {
+			APILogger.getInstance().w(CNAME, "SSO lookup failed, retrying on a new admin session: " +
+					e.getMessage());
+			return lookupOnce(token);
+		}
+	}
+
+	private String lookupOnce(String token) throws Exception {
+		AdminSession session = borrow();
+		long start = System.nanoTime();
+		boolean healthy = false;
+		try {
+			Map<?, ?> attributes = session.ssoUtil.getUserAttributes(token);
+			healthy = true;
+			return getUid(attributes);
+		} catch (Exception e) {
+			lookupFailures.incrementAndGet();
+			throw e;
+		} finally {
+			long nanos = System.nanoTime() - start;
+			lookups.incrementAndGet();
+			lookupNanos.addAndGet(nanos);
+			long max;
+			while (nanos > (max = maxLookupNanos.get()) && !maxLookupNanos.compareAndSet(max, nanos)) {
+				// retry
+			}
+			if (healthy) {
+				release(session);
+			} else {
+				close(session);
+			}
+		}
+	}
+
+	/**
+	 * @return The last of the uids in the attributes, or null if there are none.
+	 */
+	private static String getUid(Map<?, ?> attributes) {
+		if (attributes == null || !attributes.containsKey(UID)) {
+			return null;
+		}
+		String uid = null;
+		for (Object value : (Collection<?>) attributes.get(UID)) {
+			uid = (String) value;
+		}
+		return uid;
+	}
+
+	private AdminSession borrow() throws Exception {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(BORROW_TIMEOUT_SECONDS);
+		AdminSession session = idle.poll();
+		while (true) {
+			if (session != null) {
+				if (System.currentTimeMillis() - session.loginMillis < maxAgeMillis) {
+					return session;
+				}
+				close(session);
+			} else if (open.incrementAndGet() <= poolSize) {
+				try {
+					return login();
+				} catch (Exception e) {
+					open.decrementAndGet();
+					throw e;
+				}
+			} else {
+				open.decrementAndGet();
+				long wait = deadline - System.nanoTime();
+				if (wait <= 0) {
+					throw new IllegalStateException("No SSO admin session free after " +
+							BORROW_TIMEOUT_SECONDS + "s");
+				}
+				// Wake up now and then in case a failed session freed a slot.
+				session = idle.poll(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(100)),
+						TimeUnit.NANOSECONDS);
+				continue;
+			}
+			session = idle.poll();
+		}
+	}
+
+	private AdminSession login() throws Exception {
+		SSOUtil ssoUtil = sessionFactory.create();
+		logins.incrementAndGet();
+		if (!ssoUtil.loginAsAdmin()) {
+			throw new IllegalStateException("Failed to log in as Administrator with SSOUtil");
+		}
+		return new AdminSession(ssoUtil);
+	}
+
+	private void release(AdminSession session) {
+		idle.offer(session);
+	}
+
+	private void close(AdminSession session) {
+		open.decrementAndGet();
+		try {
+			if (session.ssoUtil.getTokenIfExists() != null) {
+				session.ssoUtil.logout();
+			}
+		} catch (RuntimeException e) {
+			APILogger.getInstance().w(CNAME, "Failed to log out SSO admin session: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return Cache hit rate and size, OpenAM lookup counts and latency, and
+	 *         admin session counts.
+	 */
+	public Map<String, Number> getStats() {
+		CacheStats s = identities.stats();
+		long count = lookups.get();
+		Map<String, Number> m = new LinkedHashMap<String, Number>();
+		m.put("size", identities.size());
+		m.put("hitCount", s.hitCount());
+		m.put("missCount", s.missCount());
+		m.put("hitRate", s.hitRate());
+		m.put("lookupCount", count);
+		m.put("lookupFailureCount", lookupFailures.get());
+		m.put("averageLookupMillis", count == 0 ? 0d : lookupNanos.get() / (double) count / 1000000d);
+		m.put("maxLookupMillis", maxLookupNanos.get() / 1000000d);
+		m.put("adminLoginCount", logins.get());
+		m.put("adminSessionCount", open.get());
+		return m;
+	}
+
+	// Keeps tokens without an identity out of the cache.
+	private static final class NoIdentityException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+}
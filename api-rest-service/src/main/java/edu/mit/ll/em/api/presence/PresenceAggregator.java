@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.presence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.Configuration;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.mit.ll.em.api.rs.CollabPresenceDelta;
+import edu.mit.ll.em.api.rs.CollabPresenceStatus;
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.em.api.util.RabbitPublisher;
+
+/**
+ * Merges the presence changes of each collab room into one message per window.
+ * 
+ * The first change in a room opens a window of "...collab.presence.windowmillis";
+ * changes arriving before it closes only replace the member's pending status.
+ * When the window closes a single {@link CollabPresenceDelta} holding the latest
+ * status of each changed member is published to
+ * iweb.NICS.collabroom.{collabroomId}.presencedelta, so a change waits at most
+ * one window. Members who end the window in the status they started it in, or
+ * who joined and left within it, are left out. A window of 0, the default,
+ * disables merging and keeps publishing each change to the legacy
+ * iweb.NICS.collabroom.{collabroomId}.presence topic, see {@link #isEnabled()}.
+ * Clients only listening on that topic miss every change once a window is set.
+ */
+public class PresenceAggregator {
+
+	private static final String CNAME = PresenceAggregator.class.getName();
+
+	static final String TOPIC = "iweb.NICS.collabroom.%s.presencedelta";
+
+	private static final long DEFAULT_WINDOW_MILLIS = 0;
+
+	/** Receives the merged changes of a room once its window closes. */
+	interface Sink {
+		void publish(CollabPresenceDelta delta) throws IOException;
+	}
+
+	private final long windowMillis;
+	private final Sink sink;
+
+	// Single thread, so the deltas of a room are published in order.
+	private final ScheduledExecutorService scheduler;
+
+	private final ConcurrentHashMap<Integer, RoomWindow> windows =
+			new ConcurrentHashMap<Integer, RoomWindow>();
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static PresenceAggregator instance = new PresenceAggregator();
+	}
+
+	public static PresenceAggregator getInstance() {
+		return Holder.instance;
+	}
+
+	// Hide the default constructor.
+	private PresenceAggregator() {
+		this(APIConfig.getInstance().getConfiguration(), new Sink() {
+			private final ObjectMapper mapper = new ObjectMapper();
+
+			public void publish(CollabPresenceDelta delta) throws IOException {
+				String topic = String.format(TOPIC, delta.getCollabroomId());
+				RabbitPublisher.getInstance().publish(topic, mapper.writeValueAsString(delta));
+			}
+		});
+	}
+
+	PresenceAggregator(Configuration config, Sink sink) {
+		this.windowMillis = config.getLong(APIConfig.COLLAB_PRESENCE_WINDOWMILLIS,
+				DEFAULT_WINDOW_MILLIS);
+		this.sink = sink;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true)
+					.setNameFormat("presence-aggregator-%d").build());
+	}
+
+	/**
+	 * @return false when changes should be published one at a time instead.
+	 */
+	public boolean isEnabled() {
+		return windowMillis > 0;
+	}
+
+	/**
+	 * Adds a member's new status to the room's open window, opening one if needed.
+	 * 
+	 * @param previous The member's status before this change, or null if the
+	 *        member was not present.
+	 */
+	public void statusChanged(int incidentId, int collabroomId,
+			CollabPresenceStatus.Status previous, CollabPresenceStatus status) {
+		RoomWindow window = windows.get(collabroomId);
+		if (window == null) {
+			RoomWindow created = new RoomWindow(incidentId, collabroomId);
+			window = windows.putIfAbsent(collabroomId, created);
+			if (window == null) {
+				window = created;
+			}
+		}
+		if (window.add(previous, status)) {
+			scheduler.schedule(window, windowMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	private static class Change {
+		// Status when the window opened, null if the member was not present.
+		private final CollabPresenceStatus.Status before;
+		private CollabPresenceStatus latest;
+
+		Change(CollabPresenceStatus.Status before, CollabPresenceStatus latest) {
+			this.before = before;
+			this.latest = latest;
+		}
+
+		boolean isNetChange() {
+			if (before == null) {
+				return !CollabPresenceStatus.Status.LEAVING.equals(latest.getStatus());
+			}
+			return !before.equals(latest.getStatus());
+		}
+	}
+
+	private class RoomWindow implements Runnable {
+		private final int incidentId;
+		private final int collabroomId;
+		private Map<String, Change> changes = new LinkedHashMap<String, Change>();
+
+		RoomWindow(int incidentId, int collabroomId) {
+			this.incidentId = incidentId;
+			this.collabroomId = collabroomId;
+		}
+
+		/**
+		 * @return true if this change opened the window.
+		 */
+		synchronized boolean add(CollabPresenceStatus.Status previous, CollabPresenceStatus status) {
+			Change change = changes.get(status.getUsername());
+			if (change == null) {
+				changes.put(status.getUsername(), new Change(previous, status));
+				return changes.size() == 1;
+			}
+			change.latest = status;
+			return false;
+		}
+
+		private synchronized Map<String, Change> close() {
+			Map<String, Change> closed = changes;
+			changes = new LinkedHashMap<String, Change>();
+			return closed;
+		}
+
+		public void run() {
+			List<CollabPresenceStatus> statuses = new ArrayList<CollabPresenceStatus>();
+			for (Change change : close().values()) {
+				if (change.isNetChange()) {
+					statuses.add(change.latest);
+				}
+			}
+			if (statuses.isEmpty()) {
+				return;
+			}
+			try {
+				sink.publish(new CollabPresenceDelta(incidentId, collabroomId, statuses));
+			} catch (Exception e) {
+				APILogger.getInstance().e(CNAME, "Failed to publish presence delta for collabroom "
+						+ collabroomId, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.presence;
+
+import java.util.Date;
+import java.util.UUID;
+
+import org.apache.commons.configuration.Configuration;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.mit.ll.em.api.msgbus.MsgBusRelay;
+import edu.mit.ll.em.api.rs.CollabPresenceStatus;
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.em.api.util.RabbitPublisher;
+
+/**
+ * Shares the presence posted to each em-api node with the others.
+ * 
+ * Every status posted to a node's {@link PresenceStore} is published on the
+ * "...collab.presence.replication.topic" topic. Every node listens on that topic,
+ * through the {@link MsgBusRelay}, and records the statuses in its own store, ignoring the ones it published.
+ * On connecting a node asks the others to publish their members again, so it
+ * starts out with the presence of every room.
+ */
+public class PresenceReplicator {
+
+	private static final String CNAME = PresenceReplicator.class.getName();
+
+	private static final String TYPE = "type";
+	private static final String UPDATE = "update";
+	private static final String SYNC = "sync";
+	private static final String ORIGIN = "origin";
+	private static final String INCIDENT_ID = "incidentId";
+	private static final String COLLABROOM_ID = "collabroomId";
+	private static final String USERNAME = "username";
+	private static final String NICKNAME = "nickname";
+	private static final String ORGANIZATION = "organization";
+	private static final String STATUS = "status";
+	private static final String TIMESTAMP = "timestamp";
+
+	private static final String DEFAULT_TOPIC = "iweb.NICS.presence.replicate";
+
+	// Identifies the events published by this node.
+	private final String nodeId = UUID.randomUUID().toString();
+
+	private final String topic;
+	private final boolean enabled;
+
+	private boolean listening;
+
+	PresenceReplicator(Configuration config) {
+		topic = config.getString(APIConfig.COLLAB_PRESENCE_REPLICATION_TOPIC, DEFAULT_TOPIC);
+		enabled = config.getBoolean(APIConfig.COLLAB_PRESENCE_REPLICATION_ENABLED, true);
+	}
+
+	/**
+	 * Starts recording the statuses published by the other nodes in the given
+	 * store. Subsequent calls have no effect.
+	 */
+	synchronized void listen(final PresenceStore store) {
+		if (!enabled || listening) {
+			return;
+		}
+		listening = true;
+		MsgBusRelay.getInstance().addListener(new String[] { topic + ".#" }, new MsgBusRelay.ConnectionListener() {
+			public void onMessage(String routingKey, String msg) {
+				apply(store, msg);
+			}
+
+			public void connected() {
+				// Catch up on anything posted elsewhere before or while disconnected.
+				requestSync();
+			}
+
+			public void disconnected() {
+			}
+		});
+	}
+
+	void publish(int incidentId, int collabroomId, CollabPresenceStatus status) {
+		if (!enabled) {
+			return;
+		}
+		try {
+			JSONObject message = new JSONObject();
+			message.put(TYPE, UPDATE);
+			message.put(ORIGIN, nodeId);
+			message.put(INCIDENT_ID, incidentId);
+			message.put(COLLABROOM_ID, collabroomId);
+			message.put(USERNAME, status.getUsername());
+			message.put(NICKNAME, status.getNickname());
+			message.put(ORGANIZATION, status.getOrganization());
+			message.put(STATUS, status.getStatus().name());
+			message.put(TIMESTAMP, status.getTimestamp().getTime());
+			RabbitPublisher.getInstance().publish(String.format("%s.%s", topic, collabroomId),
+					message.toString());
+		} catch (Exception e) {
+			APILogger.getInstance().e(CNAME, "Failed to replicate presence of " +
+					status.getUsername() + " in collabroom " + collabroomId, e);
+		}
+	}
+
+	private void requestSync() {
+		try {
+			JSONObject message = new JSONObject();
+			message.put(TYPE, SYNC);
+			message.put(ORIGIN, nodeId);
+			RabbitPublisher.getInstance().publish(topic + "." + SYNC, message.toString());
+		} catch (JSONException e) {
+			APILogger.getInstance().e(CNAME, "Failed to request presence sync", e);
+		}
+	}
+
+	void apply(PresenceStore store, String message) {
+		try {
+			JSONObject event = new JSONObject(message);
+			if (nodeId.equals(event.optString(ORIGIN))) {
+				return;
+			}
+			String type = event.getString(TYPE);
+			if (SYNC.equals(type)) {
+				store.republish();
+			} else if (UPDATE.equals(type)) {
+				CollabPresenceStatus status = new CollabPresenceStatus();
+				status.setUsername(event.getString(USERNAME));
+				status.setNickname(event.optString(NICKNAME, null));
+				status.setOrganization(event.optString(ORGANIZATION, null));
+				status.setStatus(CollabPresenceStatus.Status.valueOf(event.getString(STATUS)));
+				status.setTimestamp(new Date(event.getLong(TIMESTAMP)));
+				store.applyRemote(event.getInt(INCIDENT_ID), event.getInt(COLLABROOM_ID), status);
+			} else {
+				APILogger.getInstance().w(CNAME, "Ignoring presence event of unknown type " + type);
+			}
+		} catch (JSONException e) {
+			APILogger.getInstance().w(CNAME, "Ignoring malformed presence event: " + message);
+		} catch (IllegalArgumentException e) {
+			APILogger.getInstance().w(CNAME, "Ignoring presence event with unknown status: " + message);
+		}
+	}
+}
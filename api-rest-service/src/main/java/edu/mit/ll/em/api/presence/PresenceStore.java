@@ -0,0 +1,321 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.presence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.Configuration;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.mit.ll.em.api.rs.CollabPresenceStatus;
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.em.api.util.RabbitPublisher;
+
+/**
+ * Holds the presence of the members of every collab room.
+ * 
+ * Members posting their status are kept until they leave. A member who has not
+ * posted for "...collab.presence.idleminutes" turns idle, and one who has not
+ * posted for "...collab.presence.missingminutes" is dropped. Both deadlines are
+ * kept on a {@link TimingWheel} turned every "...collab.presence.tickmillis", so
+ * reading a room only copies out its members.
+ * 
+ * Updates are shared with the other nodes through the {@link PresenceReplicator},
+ * and each node expires the replicated members on its own. Clients are only told
+ * about a change by the node the member posted to.
+ */
+public class PresenceStore {
+
+	private static final String CNAME = PresenceStore.class.getName();
+
+	private static final int DEFAULT_IDLE_MINUTES = 5;
+	private static final int DEFAULT_MISSING_MINUTES = 15;
+	private static final long DEFAULT_TICK_MILLIS = 1000;
+	private static final int WHEEL_SIZE = 1024;
+
+	private static final String TOPIC = "iweb.NICS.collabroom.%s.presence";
+
+	/** Told about the presence changes the clients should hear about. */
+	public interface Listener {
+		void presenceChanged(int incidentId, int collabroomId,
+				CollabPresenceStatus.Status previous, CollabPresenceStatus status);
+	}
+
+	private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, Member>> rooms =
+			new ConcurrentHashMap<Integer, ConcurrentHashMap<String, Member>>();
+
+	private final long idleMillis;
+	private final long missingMillis;
+	private final TimingWheel<Expiry> wheel;
+	private final Listener listener;
+	private final PresenceReplicator replicator;
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static PresenceStore instance = new PresenceStore();
+	}
+
+	public static PresenceStore getInstance() {
+		return Holder.instance;
+	}
+
+	// Hide the default constructor.
+	private PresenceStore() {
+		this(APIConfig.getInstance().getConfiguration(), new Listener() {
+			private final ObjectMapper mapper = new ObjectMapper();
+
+			public void presenceChanged(int incidentId, int collabroomId,
+					CollabPresenceStatus.Status previous, CollabPresenceStatus status) {
+				PresenceAggregator aggregator = PresenceAggregator.getInstance();
+				if (aggregator.isEnabled()) {
+					aggregator.statusChanged(incidentId, collabroomId, previous, status);
+					return;
+				}
+				try {
+					RabbitPublisher.getInstance().publish(String.format(TOPIC, collabroomId),
+							mapper.writeValueAsString(status));
+				} catch (IOException e) {
+					APILogger.getInstance().e(CNAME, "Failed to publish presence event", e);
+				}
+			}
+		}, new PresenceReplicator(APIConfig.getInstance().getConfiguration()),
+				System.currentTimeMillis());
+
+		long tickMillis = wheelTickMillis(APIConfig.getInstance().getConfiguration());
+		ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true)
+					.setNameFormat("presence-expiry-%d").build());
+		ticker.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					expire(System.currentTimeMillis());
+				} catch (RuntimeException e) {
+					APILogger.getInstance().e(CNAME, "Failed to expire presence", e);
+				}
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+		replicator.listen(this);
+	}
+
+	/**
+	 * @param replicator null to keep the presence to this node.
+	 */
+	PresenceStore(Configuration config, Listener listener, PresenceReplicator replicator,
+			long startMillis) {
+		this.idleMillis = TimeUnit.MINUTES.toMillis(
+				config.getInt(APIConfig.COLLAB_PRESENCE_IDLEMINUTES, DEFAULT_IDLE_MINUTES));
+		this.missingMillis = TimeUnit.MINUTES.toMillis(
+				config.getInt(APIConfig.COLLAB_PRESENCE_MISSINGMINUTES, DEFAULT_MISSING_MINUTES));
+		this.wheel = new TimingWheel<Expiry>(wheelTickMillis(config), WHEEL_SIZE, startMillis);
+		this.listener = listener;
+		this.replicator = replicator;
+	}
+
+	private static long wheelTickMillis(Configuration config) {
+		return config.getLong(APIConfig.COLLAB_PRESENCE_TICKMILLIS, DEFAULT_TICK_MILLIS);
+	}
+
+	/**
+	 * @return The members of the room, empty if it has none.
+	 */
+	public List<CollabPresenceStatus> getRoom(int collabroomId) {
+		Map<String, Member> members = rooms.get(collabroomId);
+		if (members == null) {
+			return Collections.<CollabPresenceStatus>emptyList();
+		}
+		List<CollabPresenceStatus> statuses = new ArrayList<CollabPresenceStatus>(members.size());
+		for (Member member : members.values()) {
+			statuses.add(member.status);
+		}
+		return statuses;
+	}
+
+	/**
+	 * Records a status posted to this node, shares it with the other nodes and
+	 * tells the clients if the member is new or changed status.
+	 * 
+	 * @return The member's previous status, null if the member was not present.
+	 */
+	public CollabPresenceStatus.Status update(int incidentId, int collabroomId,
+			CollabPresenceStatus status) {
+		CollabPresenceStatus.Status previous = apply(incidentId, collabroomId, status, true);
+		if (replicator != null) {
+			replicator.publish(incidentId, collabroomId, status);
+		}
+		if (previous == null || !previous.equals(status.getStatus())) {
+			listener.presenceChanged(incidentId, collabroomId, previous, status);
+		}
+		return previous;
+	}
+
+	/**
+	 * Records a status posted to another node, unless a later one is known.
+	 */
+	void applyRemote(int incidentId, int collabroomId, CollabPresenceStatus status) {
+		apply(incidentId, collabroomId, status, false);
+	}
+
+	/**
+	 * Shares the statuses posted to this node again, for nodes catching up.
+	 */
+	void republish() {
+		if (replicator == null) {
+			return;
+		}
+		for (Map.Entry<Integer, ConcurrentHashMap<String, Member>> room : rooms.entrySet()) {
+			for (Member member : room.getValue().values()) {
+				if (member.local) {
+					replicator.publish(member.incidentId, room.getKey(), member.status);
+				}
+			}
+		}
+	}
+
+	private synchronized CollabPresenceStatus.Status apply(int incidentId, int collabroomId,
+			CollabPresenceStatus status, boolean local) {
+		ConcurrentHashMap<String, Member> members = rooms.get(collabroomId);
+		if (members == null) {
+			members = new ConcurrentHashMap<String, Member>();
+			rooms.put(collabroomId, members);
+		}
+
+		Member old = members.get(status.getUsername());
+		if (old != null) {
+			if (!local && old.status.getTimestamp().after(status.getTimestamp())) {
+				return old.status.getStatus();
+			}
+			wheel.cancel(old.idle);
+			wheel.cancel(old.missing);
+		}
+
+		if (CollabPresenceStatus.Status.LEAVING.equals(status.getStatus())) {
+			members.remove(status.getUsername());
+			if (members.isEmpty()) {
+				rooms.remove(collabroomId);
+			}
+		} else {
+			Member member = new Member(incidentId, collabroomId, status, local);
+			long posted = status.getTimestamp().getTime();
+			if (CollabPresenceStatus.Status.ACTIVE.equals(status.getStatus())) {
+				member.idle = wheel.schedule(new Expiry(member, false), posted + idleMillis);
+			}
+			member.missing = wheel.schedule(new Expiry(member, true), posted + missingMillis);
+			members.put(status.getUsername(), member);
+		}
+		return old == null ? null : old.status.getStatus();
+	}
+
+	/**
+	 * Turns idle and drops the members whose deadlines have passed.
+	 */
+	void expire(long nowMillis) {
+		List<Expiry> expired = new ArrayList<Expiry>();
+		synchronized (this) {
+			for (Expiry expiry : wheel.advance(nowMillis)) {
+				Member member = expiry.member;
+				CollabPresenceStatus before = member.status;
+				CollabPresenceStatus after = copy(before, expiry.missing ?
+						CollabPresenceStatus.Status.LEAVING : CollabPresenceStatus.Status.IDLE);
+				if (expiry.missing) {
+					wheel.cancel(member.idle);
+					Map<String, Member> members = rooms.get(member.collabroomId);
+					if (members == null || !members.remove(before.getUsername(), member)) {
+						continue;
+					}
+					if (members.isEmpty()) {
+						rooms.remove(member.collabroomId);
+					}
+				} else {
+					member.status = after;
+				}
+				if (member.local) {
+					expiry.before = before.getStatus();
+					expiry.after = after;
+					expired.add(expiry);
+				}
+			}
+		}
+		for (Expiry expiry : expired) {
+			listener.presenceChanged(expiry.member.incidentId, expiry.member.collabroomId,
+					expiry.before, expiry.after);
+		}
+	}
+
+	private static CollabPresenceStatus copy(CollabPresenceStatus status,
+			CollabPresenceStatus.Status newStatus) {
+		CollabPresenceStatus copy = new CollabPresenceStatus(status.getUsername(), status.getNickname());
+		copy.setOrganization(status.getOrganization());
+		copy.setTimestamp(status.getTimestamp());
+		copy.setStatus(newStatus);
+		return copy;
+	}
+
+	private static class Member {
+		private final int incidentId;
+		private final int collabroomId;
+		// Whether the member posted to this node.
+		private final boolean local;
+		private volatile CollabPresenceStatus status;
+		private TimingWheel.Timeout<Expiry> idle;
+		private TimingWheel.Timeout<Expiry> missing;
+
+		Member(int incidentId, int collabroomId, CollabPresenceStatus status, boolean local) {
+			this.incidentId = incidentId;
+			this.collabroomId = collabroomId;
+			this.status = status;
+			this.local = local;
+		}
+	}
+
+	private static class Expiry {
+		private final Member member;
+		// Dropping the member rather than turning it idle.
+		private final boolean missing;
+		// The change made once expired.
+		private CollabPresenceStatus.Status before;
+		private CollabPresenceStatus after;
+
+		Expiry(Member member, boolean missing) {
+			this.member = member;
+			this.missing = missing;
+		}
+	}
+}
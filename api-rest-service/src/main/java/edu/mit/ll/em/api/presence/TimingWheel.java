@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.presence;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hashed timing wheel: schedules items to expire at a deadline, with constant
+ * time scheduling and cancellation.
+ * 
+ * Time is cut into ticks of tickMillis. An item lands in the slot of its
+ * deadline tick modulo the wheel size, and {@link #advance(long)} only visits
+ * the slots of the ticks that have passed since the last call, taking out the
+ * items whose deadline tick has been reached. Items further out than one turn
+ * of the wheel stay in their slot until a later turn. Deadlines are rounded up
+ * to the next tick.
+ * 
+ * Not thread safe; callers synchronize.
+ */
+public class TimingWheel<T> {
+
+	/** A scheduled item, used to cancel it. */
+	public static class Timeout<T> {
+		private final T item;
+		private final long deadlineTick;
+		private Set<Timeout<T>> slot;
+
+		private Timeout(T item, long deadlineTick) {
+			this.item = item;
+			this.deadlineTick = deadlineTick;
+		}
+
+		public T getItem() {
+			return item;
+		}
+	}
+
+	private final long tickMillis;
+	private final long startMillis;
+	private final List<Set<Timeout<T>>> slots;
+	private final int mask;
+
+	// The next tick to be processed.
+	private long tick;
+	private int size;
+
+	/**
+	 * @param wheelSize Number of slots, rounded up to a power of two.
+	 */
+	public TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+		if (tickMillis <= 0 || wheelSize <= 0) {
+			throw new IllegalArgumentException("tickMillis and wheelSize must be positive");
+		}
+		int n = Integer.highestOneBit(wheelSize);
+		if (n < wheelSize) {
+			n <<= 1;
+		}
+		this.tickMillis = tickMillis;
+		this.startMillis = startMillis;
+		this.mask = n - 1;
+		this.slots = new ArrayList<Set<Timeout<T>>>(n);
+		for (int i = 0; i < n; i++) {
+			slots.add(new LinkedHashSet<Timeout<T>>());
+		}
+	}
+
+	public Timeout<T> schedule(T item, long deadlineMillis) {
+		long deadlineTick = (deadlineMillis - startMillis + tickMillis - 1) / tickMillis;
+		Timeout<T> timeout = new Timeout<T>(item, Math.max(deadlineTick, tick));
+		timeout.slot = slots.get((int) (timeout.deadlineTick & mask));
+		timeout.slot.add(timeout);
+		size++;
+		return timeout;
+	}
+
+	/**
+	 * @return false if the item had already expired or been cancelled.
+	 */
+	public boolean cancel(Timeout<T> timeout) {
+		if (timeout == null || timeout.slot == null) {
+			return false;
+		}
+		timeout.slot.remove(timeout);
+		timeout.slot = null;
+		size--;
+		return true;
+	}
+
+	/**
+	 * Moves the wheel up to the given time.
+	 * @return The items whose deadline has passed, in deadline order.
+	 */
+	public List<T> advance(long nowMillis) {
+		List<T> expired = new ArrayList<T>();
+		long lastTick = (nowMillis - startMillis) / tickMillis;
+		// Nothing scheduled, just catch up.
+		if (size == 0 && lastTick >= tick) {
+			tick = lastTick + 1;
+			return expired;
+		}
+		for (; tick <= lastTick && size > 0; tick++) {
+			Iterator<Timeout<T>> i = slots.get((int) (tick & mask)).iterator();
+			while (i.hasNext()) {
+				Timeout<T> timeout = i.next();
+				if (timeout.deadlineTick <= tick) {
+					i.remove();
+					timeout.slot = null;
+					size--;
+					expired.add(timeout.item);
+				}
+			}
+		}
+		if (size == 0 && tick <= lastTick) {
+			tick = lastTick + 1;
+		}
+		return expired;
+	}
+
+	public int size() {
+		return size;
+	}
+}
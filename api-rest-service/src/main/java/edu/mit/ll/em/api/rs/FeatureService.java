@@ -78,6 +78,16 @@ public interface FeatureService {
 			@PathParam("featureId") long featureId,
 			@HeaderParam("CUSTOM-uid") String username);
 	
+	@POST
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	@Path(value = "/collabroom/{collabRoomId}/batch")
+	public Response postCollabRoomFeatures(
+			@PathParam("collabRoomId") int collabRoomId,
+			@DefaultValue("3857") @QueryParam("geoType") int geoType,
+			String batch,
+			@HeaderParam("CUSTOM-uid") String username);
+	
 	@POST
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
@@ -111,6 +121,11 @@ public interface FeatureService {
 			@QueryParam("userId") long userId,
 			@QueryParam("") QueryConstraintParms optionalParams, 
 			@DefaultValue("3857") @QueryParam("geoType") int geoType,
+			@QueryParam("since") Long since,
+			@QueryParam("bbox") String bbox,
+			@QueryParam("zoom") Integer zoom,
+			@QueryParam("resolution") Double resolution,
+			@HeaderParam("If-None-Match") String ifNoneMatch,
 			@HeaderParam("CUSTOM-uid") String username);
 	
 	@GET
@@ -118,6 +133,8 @@ public interface FeatureService {
 	@Path(value = "/user/{userId}")
 	public Response getUserFeatures(
 			@PathParam("userId") int userId,
+			@QueryParam("zoom") Integer zoom,
+			@QueryParam("resolution") Double resolution,
 			@HeaderParam("CUSTOM-uid") String username);
 
 	@POST
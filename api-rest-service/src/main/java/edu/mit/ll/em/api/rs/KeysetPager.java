@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.rs;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Pages through entities sorted by a time column. Each page after the first
+ * starts at the time of the last entity streamed, rather than at an offset,
+ * so rows added or removed while streaming neither skip entities nor repeat
+ * them. Entities of the same time as the last one, which the database may
+ * return in any order, are told apart by id.
+ * 
+ * The column's date range bounds are inclusive, as the DAOs read them.
+ */
+public abstract class KeysetPager<T> implements StreamingListOutput.Pager<T> {
+
+	private final boolean descending;
+	private final Long fromDate;
+	private final Long toDate;
+	private final int firstRow;
+
+	private Long lastKey;
+	private final Set<Long> idsAtLastKey = new HashSet<Long>();
+
+	/**
+	 * @param opts Sorted by the time column; their date range, if any, on it as well
+	 */
+	public KeysetPager(QueryConstraintParms opts) {
+		this.descending = "DESC".equalsIgnoreCase(opts.getSortOrder());
+		this.fromDate = opts.getFromDate();
+		this.toDate = opts.getFromDate() == null ? null : opts.getToDate();
+		this.firstRow = opts.getOffset() == null ? 0 : opts.getOffset();
+	}
+
+	/**
+	 * @return Whether the options sort by the column and range over no other
+	 */
+	public static boolean isKeyset(QueryConstraintParms opts, String column) {
+		return column.equalsIgnoreCase(opts.getSortByColumn())
+				&& (opts.getDateColumn() == null || column.equalsIgnoreCase(opts.getDateColumn()));
+	}
+
+	/**
+	 * Reads the entities in the range of the time column, sorted by it
+	 * 
+	 * @param fromDate Start of the range, or null for no range
+	 * @param toDate End of the range, or null for no end
+	 */
+	protected abstract List<T> read(Long fromDate, Long toDate, int offset, int limit) throws Exception;
+
+	/**
+	 * @return The column's value of the entity, in milliseconds
+	 */
+	protected abstract long key(T entity);
+
+	protected abstract long id(T entity);
+
+	public List<T> getPage(int offset, int limit) throws Exception {
+		List<T> page;
+		if (lastKey == null) {
+			page = read(fromDate, toDate, firstRow, limit);
+		} else {
+			// Those already streamed at the last key come back too, at most that many more
+			int rowLimit = limit + idsAtLastKey.size();
+			List<T> rows = descending
+					? read(fromDate == null ? 0L : fromDate, lastKey, 0, rowLimit)
+					: read(lastKey, toDate, 0, rowLimit);
+			page = new ArrayList<T>(limit);
+			for (T entity : rows) {
+				if (page.size() == limit) {
+					break;
+				}
+				if (key(entity) != lastKey || !idsAtLastKey.contains(id(entity))) {
+					page.add(entity);
+				}
+			}
+		}
+		for (T entity : page) {
+			long key = key(entity);
+			if (lastKey == null || key != lastKey) {
+				lastKey = key;
+				idsAtLastKey.clear();
+			}
+			idsAtLastKey.add(id(entity));
+		}
+		return page;
+	}
+}
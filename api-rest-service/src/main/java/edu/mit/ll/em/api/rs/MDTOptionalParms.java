@@ -33,6 +33,14 @@ package edu.mit.ll.em.api.rs;
 public class MDTOptionalParms extends QueryConstraintParms {
 	private Integer userId = -1;   // Need a default here.
 	private String userIdList = null;
+	/*
+	 * Constrain the last known positions to a box, as minLon,minLat,maxLon,maxLat
+	 */
+	private String bbox = null;
+	/*
+	 * Return the last known positions closest to lat,lon, up to the limit
+	 */
+	private String near = null;
 
 	public Integer getUserId() {
 		return userId;
@@ -49,4 +57,20 @@ public class MDTOptionalParms extends QueryConstraintParms {
 	public void setUserIdList(String userIdList) {
 		this.userIdList = userIdList;
 	}
+
+	public String getBbox() {
+		return bbox;
+	}
+
+	public void setBbox(String bbox) {
+		this.bbox = bbox;
+	}
+
+	public String getNear() {
+		return near;
+	}
+
+	public void setNear(String near) {
+		this.near = near;
+	}
 }
@@ -35,6 +35,7 @@ import javax.ws.rs.Consumes;
 import javax.ws.rs.CookieParam;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
@@ -57,7 +58,8 @@ public interface MDTrackService {
 
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response getMDTracks(@QueryParam("") MDTOptionalParms optionalParms);
+	public Response getMDTracks(@QueryParam("") MDTOptionalParms optionalParms,
+			@HeaderParam("CUSTOM-uid") String requestingUser);
 	
 	@DELETE
 	@Produces(MediaType.APPLICATION_JSON)
@@ -73,10 +75,26 @@ public interface MDTrackService {
 	@Produces(MediaType.APPLICATION_JSON)
 	public Response postMDTrack(@CookieParam("iPlanetDirectoryPro") Cookie cookie, MDTrack mdtrack);
 
+	@POST
+	@Path(value = "/batch")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response postMDTracks(@CookieParam("iPlanetDirectoryPro") Cookie cookie, Collection<MDTrack> mdtracks);
+
 	@GET
 	@Path(value = "/count")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response getMDTrackCount();
+	public Response getMDTrackCount(@HeaderParam("CUSTOM-uid") String requestingUser);
+
+	/**
+	 * Reports how many MDTracks were published, and how many the dead-band
+	 * filter suppressed.
+	 * @return Map of counters embedded in the Response.
+	 */
+	@GET
+	@Path(value = "/stats")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getMDTrackStats(@HeaderParam("CUSTOM-uid") String requestingUser);
 
 	@GET
 	@Path(value = "/search")
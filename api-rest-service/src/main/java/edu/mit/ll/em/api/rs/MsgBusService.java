@@ -34,11 +34,15 @@ import java.util.Map;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -49,12 +53,28 @@ public interface MsgBusService {
 	/**
 	 * Get all messages in the user's bus.
 	 * @param userId Identifies the user
-	 * @return List of messages embedded in the Response. Each message is wrapped in a MsgEnvelope.
+	 * @param waitSecs If the bus is empty, how long to wait for messages to arrive
+	 *        before answering with none. Capped at "em.api.msgbus.maxwaitseconds".
+	 *        By default the response is immediate.
+	 * @param asyncResponse Resumed with the list of messages embedded in the Response.
+	 *        Each message is wrapped in a MsgEnvelope.
 	 */
 	@GET
 	@Path(value = "/{userId}/")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response getMsgs(@PathParam("userId") long userId);
+	public void getMsgs(@PathParam("userId") long userId,
+			@DefaultValue("0") @QueryParam("wait") int waitSecs,
+			@Suspended AsyncResponse asyncResponse);
+
+	/**
+	 * Reports how many subscriptions are open, how much they hold, and how
+	 * many messages and sessions have been dropped.
+	 * @return Map of counters embedded in the Response.
+	 */
+	@GET
+	@Path(value = "/stats")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getStats();
 
 	/**
 	 * Post messages to the user's bus.
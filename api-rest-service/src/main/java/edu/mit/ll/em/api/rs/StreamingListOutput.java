@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.rs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.commons.configuration.Configuration;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+
+/**
+ * Writes a service response holding a list of entities a page at a time,
+ * reading each page from the DAO just before writing it, so only one page is
+ * held in memory however many entities there are.
+ * 
+ * The JSON is that of the response bean, with its list and count filled in;
+ * the count is written after the list, once it is known.
+ */
+public class StreamingListOutput<T> implements StreamingOutput {
+
+	private static final String CNAME = StreamingListOutput.class.getName();
+
+	private static final int DEFAULT_PAGE_SIZE = 200;
+	private static final String COUNT = "count";
+
+	// Left at the defaults, as the JacksonJsonProvider's, so entities look the same
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * Reads a page of the entities.
+	 */
+	public interface Pager<T> {
+		/**
+		 * @param offset Entities to skip, from the first one streamed
+		 * @return Up to limit entities; fewer only once there are no more
+		 */
+		List<T> getPage(int offset, int limit) throws Exception;
+	}
+
+	private final Object response;
+	private final String listField;
+	private final Pager<T> pager;
+	private final int pageSize;
+	private final Integer maxRows;
+	private List<T> firstPage;
+
+	/**
+	 * @param response The response bean, whose list is left empty
+	 * @param listField Name of the list in the response's JSON
+	 * @param maxRows Most entities to stream, or null for all of them
+	 */
+	public StreamingListOutput(Object response, String listField, Pager<T> pager, Integer maxRows) {
+		this(response, listField, pager, maxRows, APIConfig.getInstance().getConfiguration());
+	}
+
+	StreamingListOutput(Object response, String listField, Pager<T> pager, Integer maxRows,
+			Configuration config) {
+		this.response = response;
+		this.listField = listField;
+		this.pager = pager;
+		this.maxRows = maxRows;
+		this.pageSize = Math.max(1, config.getInt(APIConfig.STREAMING_PAGESIZE, DEFAULT_PAGE_SIZE));
+	}
+
+	/**
+	 * @return Whether list responses are to be streamed
+	 */
+	public static boolean isEnabled() {
+		return APIConfig.getInstance().getConfiguration().getBoolean(APIConfig.STREAMING_ENABLED, true);
+	}
+
+	/**
+	 * @return A pager over a list already read
+	 */
+	public static <T> Pager<T> pagerOf(final List<T> entities) {
+		return new Pager<T>() {
+			public List<T> getPage(int offset, int limit) {
+				return entities.subList(Math.min(offset, entities.size()),
+						Math.min(offset + limit, entities.size()));
+			}
+		};
+	}
+
+	/**
+	 * Reads the first page, so failing to read the entities at all can still
+	 * be answered with an error status. Later failures cut the response short.
+	 * 
+	 * @return This output
+	 */
+	public StreamingListOutput<T> prefetch() throws Exception {
+		firstPage = pager.getPage(0, nextLimit(0));
+		return this;
+	}
+
+	private int nextLimit(int count) {
+		return maxRows == null ? pageSize : Math.max(0, Math.min(pageSize, maxRows - count));
+	}
+
+	@SuppressWarnings("unchecked")
+	public void write(OutputStream out) throws IOException, WebApplicationException {
+		JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+		generator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+
+		generator.writeStartObject();
+		Map<String, Object> fields = mapper.convertValue(response, Map.class);
+		for (Map.Entry<String, Object> field : fields.entrySet()) {
+			if (!listField.equals(field.getKey()) && !COUNT.equals(field.getKey())) {
+				generator.writeObjectField(field.getKey(), field.getValue());
+			}
+		}
+
+		generator.writeArrayFieldStart(listField);
+		int count = 0;
+		try {
+			List<T> page = firstPage;
+			firstPage = null;
+			int limit = nextLimit(0);
+			if (page == null && limit > 0) {
+				page = pager.getPage(0, limit);
+			}
+			while (page != null) {
+				for (T entity : page) {
+					generator.writeObject(entity);
+				}
+				count += page.size();
+				generator.flush();
+
+				int nextLimit = nextLimit(count);
+				page = page.size() < limit || nextLimit == 0 ? null : pager.getPage(count, nextLimit);
+				limit = nextLimit;
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			// The status is already sent, leave the JSON unterminated so clients see the failure
+			APILogger.getInstance().e(CNAME, "Failed reading " + listField + " after " + count
+					+ " while streaming them", e);
+			generator.flush();
+			throw new WebApplicationException(e);
+		}
+		generator.writeEndArray();
+		generator.writeNumberField(COUNT, count);
+		generator.writeEndObject();
+		generator.flush();
+	}
+}
@@ -34,27 +34,28 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.RabbitPublisher;
 import edu.mit.ll.em.api.util.SADisplayConstants;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.codehaus.jackson.map.ObjectMapper;
 
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
 import edu.mit.ll.em.api.rs.ChatMsgService;
 import edu.mit.ll.em.api.rs.ChatMsgServiceResponse;
 import edu.mit.ll.em.api.rs.ChatOptionalParams;
+import edu.mit.ll.em.api.rs.KeysetPager;
 import edu.mit.ll.em.api.rs.QueryConstraintHelper;
+import edu.mit.ll.em.api.rs.StreamingListOutput;
 import edu.mit.ll.nics.common.entity.Chat;
 import edu.mit.ll.nics.nicsdao.ChatDAO;
 import edu.mit.ll.nics.nicsdao.impl.ChatDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.CollabRoomDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
 import edu.mit.ll.nics.nicsdao.query.QueryConstraint.OrderBy;
 import edu.mit.ll.nics.nicsdao.query.QueryConstraint.ResultSetPage;
 import edu.mit.ll.nics.nicsdao.query.QueryConstraint.UTCRange;
@@ -69,15 +70,10 @@ public class ChatMsgServiceImpl implements ChatMsgService {
 	/** Chat DAO */
 	private static final ChatDAO chatDao = new ChatDAOImpl();
 	
-	/** CollabRoom DAO */
-	private static final CollabRoomDAOImpl collabDao = new CollabRoomDAOImpl();
-	
-	/** CollabRoom DAO */
-	private static final UserDAOImpl userDao = new UserDAOImpl();
-	
 	private static final Log logger = LogFactory.getLog(ChatMsgServiceImpl.class);
 	
-	private RabbitPubSubProducer rabbitProducer;
+	/** Column of the time a chat was sent, the default order */
+	private static final String CREATED = "created";
 	
 	
 	/**
@@ -89,18 +85,50 @@ public class ChatMsgServiceImpl implements ChatMsgService {
 	 * @return Response ChatMsgServiceResponse containing chat messages
 	 * @See ChatMsgServiceResponse
 	 */
-	public Response getChatMsgs(int collabroomId, ChatOptionalParams optionalParams, String requestingUser) {
+	public Response getChatMsgs(final int collabroomId, ChatOptionalParams optionalParams, String requestingUser) {
 		String incidentMap = APIConfig.getInstance().getConfiguration().getString(
 				APIConfig.INCIDENT_MAP, SADisplayConstants.INCIDENT_MAP);
 		
-		if(!collabDao.hasPermissions(userDao.getUserId(requestingUser), collabroomId, incidentMap)){
+		if(!EntityCacheMgr.getInstance().hasCollabRoomPermission(EntityCacheMgr.getInstance().getUserId(requestingUser), collabroomId, incidentMap)){
 			return getInvalidResponse();
 		}
 		
+		if(optionalParams.getSortByColumn() == null){
+			optionalParams.setSortByColumn(CREATED);
+		}
 		UTCRange dateRange = QueryConstraintHelper.makeDateRange(optionalParams);
-		OrderBy orderBy = QueryConstraintHelper.makeOrderBy(optionalParams);
-		ResultSetPage pageRange = QueryConstraintHelper.makeResultSetRange(optionalParams);
+		final OrderBy orderBy = QueryConstraintHelper.makeOrderBy(optionalParams);
 		
+		//Streamed a page at a time when the pages can follow on from the time of the last chat
+		if(StreamingListOutput.isEnabled() && KeysetPager.isKeyset(optionalParams, CREATED)){
+			ChatMsgServiceResponse chatMsgResponse = new ChatMsgServiceResponse();
+			chatMsgResponse.setMessage(Status.OK.getReasonPhrase());
+			StreamingListOutput<Chat> output = new StreamingListOutput<Chat>(chatMsgResponse, "chats",
+					new KeysetPager<Chat>(optionalParams){
+				protected List<Chat> read(Long fromDate, Long toDate, int offset, int limit){
+					UTCRange range = fromDate == null ? null : new UTCRange(CREATED, fromDate, toDate);
+					return chatDao.getChatMessages(collabroomId, range, orderBy, new ResultSetPage(offset, limit));
+				}
+				
+				protected long key(Chat chat){
+					return chat.getCreated().getTime();
+				}
+				
+				protected long id(Chat chat){
+					return chat.getChatid();
+				}
+			}, optionalParams.getLimit());
+			try{
+				output.prefetch();
+			}catch(Exception e){
+				logger.error("Failed to read chat messages", e);
+				chatMsgResponse.setMessage("Failed to read chat messages: " + e.getMessage());
+				return Response.ok(chatMsgResponse).status(Status.INTERNAL_SERVER_ERROR).build();
+			}
+			return Response.ok(output, MediaType.APPLICATION_JSON).status(Status.OK).build();
+		}
+		
+		ResultSetPage pageRange = QueryConstraintHelper.makeResultSetRange(optionalParams);
 		List<Chat> chats = chatDao.getChatMessages(collabroomId, dateRange, orderBy, pageRange);
 		
 		ChatMsgServiceResponse chatMsgResponse = new ChatMsgServiceResponse();
@@ -122,7 +150,7 @@ public class ChatMsgServiceImpl implements ChatMsgService {
 	 */
 	public Response postChatMsg(int collabroomId, Chat chat, String requestingUser) {
 		
-		if(!collabDao.hasPermissions(userDao.getUserId(requestingUser), collabroomId)){
+		if(!EntityCacheMgr.getInstance().hasCollabRoomPermission(EntityCacheMgr.getInstance().getUserId(requestingUser), collabroomId)){
 			return getInvalidResponse();
 		}
 
@@ -164,20 +192,10 @@ public class ChatMsgServiceImpl implements ChatMsgService {
 			String topic = String.format("iweb.NICS.collabroom.%s.chat", chat.getCollabroomid());
 			ObjectMapper mapper = new ObjectMapper();
 			String message = mapper.writeValueAsString(chat);
-			getRabbitProducer().produce(topic, message);
+			RabbitPublisher.getInstance().publish(topic, message);
 		}
 	}
 	
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (rabbitProducer == null) {
-			rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return rabbitProducer;
-	}
 	
 	private Response getInvalidResponse(){
 		return Response.status(Status.BAD_REQUEST).entity(
@@ -32,15 +32,10 @@ package edu.mit.ll.em.api.rs.impl;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PathParam;
@@ -48,15 +43,17 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import edu.mit.ll.em.api.util.APIConfig;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
+import edu.mit.ll.em.api.util.RabbitPublisher;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.springframework.dao.DataAccessException;
 
+import edu.mit.ll.em.api.dataaccess.EntityCacheInvalidator;
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
 import edu.mit.ll.em.api.exception.DuplicateCollabRoomException;
+import edu.mit.ll.em.api.presence.PresenceStore;
 import edu.mit.ll.em.api.rs.CollabRoomPermissionResponse;
 import edu.mit.ll.em.api.rs.CollabService;
 import edu.mit.ll.em.api.rs.CollabServiceResponse;
@@ -85,13 +82,7 @@ public class CollabServiceImpl implements CollabService {
 	
 	private static final Log logger = LogFactory.getLog(CollabServiceImpl.class);
 	
-	private RabbitPubSubProducer rabbitProducer;
-	
-	private static final int EXPECTED_ROOMS = 20;
-	private static final int EXPECTED_PARTICIPANTS = 20;
 	private static final String SECURE_ROOMS_ERROR = "One or more users failed to be added to the collaboration room";
-	private ConcurrentMap<Integer, ConcurrentMap<String, CollabPresenceStatus>> statuses =
-			new ConcurrentHashMap<Integer, ConcurrentMap<String, CollabPresenceStatus>>(EXPECTED_ROOMS);
 	
 	
 	
@@ -260,25 +251,7 @@ public class CollabServiceImpl implements CollabService {
 	public Response getCollabRoomPresence(int incidentId, int collabroomId) {
 		CollabServiceResponse collabResponse = new CollabServiceResponse();
 		
-		Date idleTime = getIdleTime();
-		Date missingTime = getMissingTime();
-		
-		ConcurrentMap<String, CollabPresenceStatus> members = statuses.get(collabroomId);
-		
-		Collection<CollabPresenceStatus> userStatuses = Collections.<CollabPresenceStatus>emptyList();
-		if (members != null) {
-			userStatuses = members.values(); 
-		}
-		
-		Iterator<CollabPresenceStatus> i = userStatuses.iterator();
-		while(i.hasNext()) {
-			CollabPresenceStatus status = i.next();
-			if (status.getTimestamp().before(missingTime)) {
-				i.remove();
-			} else if (status.getTimestamp().before(idleTime)) {
-				status.setStatus(CollabPresenceStatus.Status.IDLE);
-			}
-		}
+		List<CollabPresenceStatus> userStatuses = PresenceStore.getInstance().getRoom(collabroomId);
 		
 		collabResponse.setResults(userStatuses);
 		collabResponse.setCount(userStatuses.size());
@@ -295,32 +268,8 @@ public class CollabServiceImpl implements CollabService {
 		}
 		status.setTimestamp(new Date());
 		
-		
-		ConcurrentMap<String, CollabPresenceStatus> members = statuses.get(collabroomId);
-		if (members == null) {
-			members = new ConcurrentHashMap<String, CollabPresenceStatus>(EXPECTED_PARTICIPANTS);
-			
-			ConcurrentMap<String, CollabPresenceStatus> previous = statuses.putIfAbsent(collabroomId, members);
-			if (previous != null) {
-				members = previous;
-			}
-		}
-		
-		CollabPresenceStatus oldStatus = null;
-		if (CollabPresenceStatus.Status.LEAVING.equals(status.getStatus())) {
-			oldStatus = members.remove(status.getUsername());
-		} else {
-			oldStatus = members.put(status.getUsername(), status);
-		}
-		
-		//fire presence change on new users and changes
-		if (oldStatus == null || !status.getStatus().equals(oldStatus.getStatus()) ) {
-			try {
-				notifyChange(incidentId, collabroomId, status);
-			} catch (IOException e) {
-				logger.error("Failed to publish CollabServiceImpl presence event", e);
-			}
-		}
+		//records the status, firing presence change on new users and changes
+		PresenceStore.getInstance().update(incidentId, collabroomId, status);
 		
 		return getCollabRoomPresence(incidentId, collabroomId);
 	}
@@ -331,10 +280,10 @@ public class CollabServiceImpl implements CollabService {
 		
 		Response response = null;
 		CollabRoomPermissionResponse collabResponse = new CollabRoomPermissionResponse();
-		long userId = userDao.getUserId(username);
+		long userId = EntityCacheMgr.getInstance().getUserId(username);
 		
 		//verify the user has permissions
-		if(collabDao.hasPermissions(userId, collabRoomId, incidentMap)){ //Everyone can susbscribe to the incidentmap
+		if(EntityCacheMgr.getInstance().hasCollabRoomPermission(userId, collabRoomId, incidentMap)){ //Everyone can susbscribe to the incidentmap
 			response = Response.ok(collabResponse).status(Status.OK).build();
 		}else{
 			response = Response.status(Status.BAD_REQUEST).entity(Status.FORBIDDEN.getReasonPhrase()).build();
@@ -345,7 +294,7 @@ public class CollabServiceImpl implements CollabService {
 	
 	public Response updateCollabRoomPermission(FieldMapResponse secureUsers, int collabRoomId, long userId, 
 			int orgId, int workspaceId, String username){
-		if(userDao.getUserId(username) != userId){
+		if(EntityCacheMgr.getInstance().getUserId(username) != userId){
 			return Response.status(Status.BAD_REQUEST).entity(Status.FORBIDDEN.getReasonPhrase()).build();
 		}
 		
@@ -381,13 +330,14 @@ public class CollabServiceImpl implements CollabService {
 		Response response = null;
 		CollabRoomPermissionResponse collabResponse = new CollabRoomPermissionResponse();
 		
-		if(userDao.getUserId(username) != userId){
+		if(EntityCacheMgr.getInstance().getUserId(username) != userId){
 			return Response.status(Status.BAD_REQUEST).entity(Status.FORBIDDEN.getReasonPhrase()).build();
 		}
 		
 		//verify the user has permissions
 		if(collabDao.hasPermissions(userId, collabRoomId)){
 			if(collabDao.unsecureRoom(collabRoomId)){
+				EntityCacheInvalidator.getInstance().invalidateCollabRoom((int) collabRoomId);
 				collabResponse.setMessage(Status.OK.getReasonPhrase());
 				response = Response.ok(collabResponse).status(Status.OK).build();
 			}else{
@@ -450,13 +400,14 @@ public class CollabServiceImpl implements CollabService {
 		}catch(Exception e){
 			collabResponse.setMessage("Unhandled exception: " + e.getMessage());
 		}
+		EntityCacheInvalidator.getInstance().invalidateCollabRoom(collabRoomId);
 		return collabResponse;
 	}
 	
 	public Response getCollabRoomSecureUsers(int collabRoomId, String username){
 		Response response = null;
 		
-		if(collabDao.hasPermissions(userDao.getUserId(username), collabRoomId)){
+		if(collabDao.hasPermissions(EntityCacheMgr.getInstance().getUserId(username), collabRoomId)){
 			FieldMapResponse dataResponse = new FieldMapResponse();
 	        dataResponse.setData(collabDao.getCollabRoomSecureUsers(collabRoomId));
 			
@@ -474,7 +425,7 @@ public class CollabServiceImpl implements CollabService {
 		Response response = null;
 		FieldMapResponse dataResponse = new FieldMapResponse();
         
-		if(collabRoomId != -1 && collabDao.hasPermissions(userDao.getUserId(username), collabRoomId)){
+		if(collabRoomId != -1 && collabDao.hasPermissions(EntityCacheMgr.getInstance().getUserId(username), collabRoomId)){
 			dataResponse.setData(collabDao.getUsersWithoutPermission(collabRoomId, orgId, workspaceId));
 			
 			dataResponse.setMessage(Status.OK.getReasonPhrase());
@@ -504,24 +455,12 @@ public class CollabServiceImpl implements CollabService {
 		return collabDao.getCollabRoomById(newCollabId);
 	}
 	
-	private Date getIdleTime() {
-		Calendar cal = Calendar.getInstance();
-		cal.add(Calendar.MINUTE, -5);
-		return cal.getTime();
-	}
-	
-	private Date getMissingTime() {
-		Calendar cal = Calendar.getInstance();
-		cal.add(Calendar.MINUTE, -15);
-		return cal.getTime();
-	}
-	
 	private void notifyChange(CollabRoom collabroom) throws IOException {
 		if (collabroom != null) {
 			String topic = String.format("iweb.NICS.incident.%s.newcollabroom", collabroom.getIncidentid());
 			ObjectMapper mapper = new ObjectMapper();
 			String message = mapper.writeValueAsString(collabroom);
-			getRabbitProducer().produce(topic, message);
+			RabbitPublisher.getInstance().publish(topic, message);
 		}
 	}
 	
@@ -530,28 +469,9 @@ public class CollabServiceImpl implements CollabService {
 			String topic = String.format("iweb.NICS.incident.%s.updatedcollabroom", collabroom.getIncidentid());
 			ObjectMapper mapper = new ObjectMapper();
 			String message = mapper.writeValueAsString(collabroom);
-			getRabbitProducer().produce(topic, message);
-		}
-	}
-
-	private void notifyChange(int incidentId, int collabroomId, CollabPresenceStatus status) throws IOException {
-		if (status != null) {
-			String topic = String.format("iweb.NICS.collabroom.%s.presence", collabroomId);
-			ObjectMapper mapper = new ObjectMapper();
-			String message = mapper.writeValueAsString(status);
-			getRabbitProducer().produce(topic, message);
+			RabbitPublisher.getInstance().publish(topic, message);
 		}
 	}
 	
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (rabbitProducer == null) {
-			rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-							APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return rabbitProducer;
-	}
 }
 
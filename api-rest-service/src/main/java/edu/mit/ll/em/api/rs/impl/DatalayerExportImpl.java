@@ -38,6 +38,7 @@ import java.util.Set;
 
 import com.vividsolutions.jts.geom.Envelope;
 
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
 import edu.mit.ll.em.api.rs.DatalayerExport;
 import edu.mit.ll.em.api.rs.export.DatalayerExportFile;
 import edu.mit.ll.em.api.rs.export.GetCapabilitiesExportFile;
@@ -53,7 +54,6 @@ import edu.mit.ll.nics.common.entity.IncidentIncidentType;
 import edu.mit.ll.nics.common.geoserver.api.GeoServer;
 import edu.mit.ll.nics.nicsdao.impl.CollabRoomDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.IncidentDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
@@ -88,7 +88,6 @@ public class DatalayerExportImpl implements DatalayerExport{
 	
     private static final IncidentDAOImpl incidentDao = new IncidentDAOImpl();
     private static final CollabRoomDAOImpl collabDao = new CollabRoomDAOImpl();
-    private static final UserDAOImpl userDao = new UserDAOImpl();
     
     
 	public DatalayerExportImpl(){
@@ -109,7 +108,7 @@ public class DatalayerExportImpl implements DatalayerExport{
 		
 		File response = null;
 		
-		if(userDao.getUserId(requestingUser) != userId){
+		if(EntityCacheMgr.getInstance().getUserId(requestingUser) != userId){
 			//Export Error
 			response = this.getErrorReport(PERMISSION_ERROR).getTextFile();
 		}
@@ -347,7 +346,7 @@ public class DatalayerExportImpl implements DatalayerExport{
 			}*/
 			
 			//Allows users to export the Incident Map
-			return collabDao.hasPermissions(userId, collabRoomId, incidentMap);
+			return EntityCacheMgr.getInstance().hasCollabRoomPermission(userId, collabRoomId, incidentMap);
 			
 		}catch(Exception e){
 			return false;
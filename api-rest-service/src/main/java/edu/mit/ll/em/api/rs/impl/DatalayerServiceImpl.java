@@ -79,6 +79,7 @@ import edu.mit.ll.em.api.rs.DatalayerServiceResponse;
 import edu.mit.ll.em.api.rs.FieldMapResponse;
 import edu.mit.ll.em.api.util.APIConfig;
 import edu.mit.ll.em.api.util.FileUtil;
+import edu.mit.ll.em.api.util.RabbitPublisher;
 import edu.mit.ll.em.api.util.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.User;
 import edu.mit.ll.nics.common.entity.UserOrg;
@@ -89,8 +90,6 @@ import edu.mit.ll.nics.common.entity.datalayer.Datasource;
 import edu.mit.ll.nics.common.entity.datalayer.Document;
 import edu.mit.ll.nics.common.entity.datalayer.Rootfolder;
 import edu.mit.ll.nics.common.geoserver.api.GeoServer;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.nicsdao.DatalayerDAO;
 import edu.mit.ll.nics.nicsdao.DocumentDAO;
 import edu.mit.ll.nics.nicsdao.FolderDAO;
@@ -132,11 +131,11 @@ public class DatalayerServiceImpl implements DatalayerService {
 	private String geoServerDatastore;
 	private String webServerURL;
 
-	private RabbitPubSubProducer rabbitProducer;
+	private RabbitPublisher rabbitPublisher;
 
 	private Client jerseyClient;
 
-    public DatalayerServiceImpl(Configuration emApiConfiguration, DatalayerDAO datalayerDao, FolderDAO folderDao, DocumentDAO documentDao, UserDAO userDao, UserOrgDAOImpl userOrgDao, UserSessionDAOImpl userSessionDao, RabbitPubSubProducer rabbitProducer, Client jerseyClient) {
+    public DatalayerServiceImpl(Configuration emApiConfiguration, DatalayerDAO datalayerDao, FolderDAO folderDao, DocumentDAO documentDao, UserDAO userDao, UserOrgDAOImpl userOrgDao, UserSessionDAOImpl userSessionDao, RabbitPublisher rabbitPublisher, Client jerseyClient) {
         this.emApiConfiguration = emApiConfiguration;
         this.datalayerDao = datalayerDao;
         this.folderDao = folderDao;
@@ -144,7 +143,7 @@ public class DatalayerServiceImpl implements DatalayerService {
         this.userDao = userDao;
         this.userOrgDao = userOrgDao;
         this.userSessionDao = userSessionDao;
-        this.rabbitProducer = rabbitProducer;
+        this.rabbitPublisher = rabbitPublisher;
         this.jerseyClient = jerseyClient;
         this.initializeConfigProperties();
     }
@@ -948,7 +947,7 @@ public class DatalayerServiceImpl implements DatalayerService {
 			String topic = String.format("iweb.NICS.%s.datalayer.new", workspaceId);
 			ObjectMapper mapper = new ObjectMapper();
 			String message = mapper.writeValueAsString(datalayerfolder);
-			getRabbitProducer().produce(topic, message);
+			getRabbitPublisher().publish(topic, message);
 		}
 	}
 	
@@ -957,7 +956,7 @@ public class DatalayerServiceImpl implements DatalayerService {
 			String topic = String.format("iweb.NICS.datalayer.delete");
 			ObjectMapper mapper = new ObjectMapper();
 			String message = mapper.writeValueAsString(dataSourceId);
-			getRabbitProducer().produce(topic, message);
+			getRabbitPublisher().publish(topic, message);
 		}
 	}
 	
@@ -966,19 +965,15 @@ public class DatalayerServiceImpl implements DatalayerService {
 			String topic = String.format("iweb.NICS.datalayer.update");
 			ObjectMapper mapper = new ObjectMapper();
 			String message = mapper.writeValueAsString(datalayer);
-			getRabbitProducer().produce(topic, message);
+			getRabbitPublisher().publish(topic, message);
 		}
 	}
 	
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (rabbitProducer == null) {
-			rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return rabbitProducer;
+	private RabbitPublisher getRabbitPublisher() {
+		if (rabbitPublisher == null) {
+			rabbitPublisher = RabbitPublisher.getInstance();
+		}
+		return rabbitPublisher;
 	}
 
 	private Response getInvalidResponse(){
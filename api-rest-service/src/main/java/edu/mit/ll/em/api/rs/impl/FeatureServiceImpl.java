@@ -40,48 +40,64 @@ import java.nio.file.StandardCopyOption;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriBuilder;
 
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.cxf.jaxrs.ext.multipart.Attachment;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import org.springframework.beans.BeanUtils;
+import org.springframework.dao.DataAccessException;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import edu.mit.ll.em.api.dataaccess.CollabroomFeatureDAO;
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.dataaccess.FeatureChangeLog;
+import edu.mit.ll.em.api.dataaccess.FeatureIndex;
+import edu.mit.ll.em.api.dataaccess.TransactionMgr;
+import edu.mit.ll.em.api.dataaccess.WorkspaceCopyDAO;
 import edu.mit.ll.em.api.rs.FeatureService;
 import edu.mit.ll.em.api.rs.FeatureServiceResponse;
 import edu.mit.ll.em.api.rs.MultipartFeatureResponse;
 import edu.mit.ll.em.api.rs.QueryConstraintHelper;
 import edu.mit.ll.em.api.rs.QueryConstraintParms;
+import edu.mit.ll.em.api.rs.StreamingListOutput;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.FeatureSimplifier;
+import edu.mit.ll.em.api.util.RabbitPublisher;
 import edu.mit.ll.em.api.util.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.CollabroomFeature;
 import edu.mit.ll.nics.common.entity.Feature;
 import edu.mit.ll.nics.common.entity.UserFeature;
 import edu.mit.ll.nics.common.entity.datalayer.Document;
-import edu.mit.ll.nics.nicsdao.CollabRoomDAO;
 import edu.mit.ll.nics.nicsdao.DocumentDAO;
 import edu.mit.ll.nics.nicsdao.FeatureDAO;
-import edu.mit.ll.nics.nicsdao.UserDAO;
-import edu.mit.ll.nics.nicsdao.impl.CollabRoomDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.DocumentDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.FeatureDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
 import edu.mit.ll.nics.nicsdao.query.QueryConstraint.UTCRange;
 
 /**
@@ -93,13 +109,9 @@ public class FeatureServiceImpl implements FeatureService {
 
 	private static final String FEATURES_SUBPATH = "features";
 	/** Feature DAO */
-	private static final FeatureDAO featureDao = new FeatureDAOImpl();
-	/** User CollabRoom DAO */
-	private static final CollabRoomDAO collabRoomDao = new CollabRoomDAOImpl();
+	private final FeatureDAO featureDao;
 	/** User Document DAO */
-	private static final DocumentDAO documentDao = new DocumentDAOImpl();
-	/** User DAO */
-	private static final UserDAO userDao = new UserDAOImpl();
+	private final DocumentDAO documentDao;
 	
 	private static final Log logger = LogFactory.getLog(FeatureServiceImpl.class);
 	
@@ -110,14 +122,55 @@ public class FeatureServiceImpl implements FeatureService {
 	//The property for the collabroom topic - telling users this feature has been deleted
 	private static final String DELETED_FEATURE_ID = "deletedFeatureId";
 	
-	private RabbitPubSubProducer rabbitProducer;
+	//The properties of a batch of features to create and delete
+	private static final String FEATURES = "features";
+	private static final String DELETED_FEATURE_IDS = "deletedFeatureIds";
+	
+	private static final int DEFAULT_BATCH_MAX = 1000;
+	
+	private static final long DEFAULT_CHANGELOG_SKEW_SECONDS = 60;
+	
+	private static final int DEFAULT_INDEX_MAX_RESULTS = 10000;
+	
+	//User features are read in the default projection
+	private static final int USER_FEATURE_GEOTYPE = 3857;
+	
+	private final Configuration config;
+	private final EntityCacheMgr entityCacheMgr;
+	private final FeatureChangeLog changeLog;
+	private final FeatureIndex featureIndex;
+	private final TransactionMgr transactionMgr;
+	private final RabbitPublisher rabbitPublisher;
+	private final FeatureSimplifier simplifier;
+	private final WorkspaceCopyDAO workspaceCopyDao;
+	private final CollabroomFeatureDAO collabroomFeatureDao;
 	
 	private final String fileUploadPath;
 	private final String fileUploadUrl;
 	
 	
 	public FeatureServiceImpl() {
-		Configuration config = APIConfig.getInstance().getConfiguration();
+		this(APIConfig.getInstance().getConfiguration(), new FeatureDAOImpl(), new DocumentDAOImpl(),
+				EntityCacheMgr.getInstance(), FeatureChangeLog.getInstance(), FeatureIndex.getInstance(),
+				TransactionMgr.getInstance(), RabbitPublisher.getInstance(), FeatureSimplifier.getInstance(),
+				WorkspaceCopyDAO.getInstance(), CollabroomFeatureDAO.getInstance());
+	}
+	
+	FeatureServiceImpl(Configuration config, FeatureDAO featureDao, DocumentDAO documentDao,
+			EntityCacheMgr entityCacheMgr, FeatureChangeLog changeLog, FeatureIndex featureIndex,
+			TransactionMgr transactionMgr, RabbitPublisher rabbitPublisher, FeatureSimplifier simplifier,
+			WorkspaceCopyDAO workspaceCopyDao, CollabroomFeatureDAO collabroomFeatureDao) {
+		this.config = config;
+		this.featureDao = featureDao;
+		this.documentDao = documentDao;
+		this.entityCacheMgr = entityCacheMgr;
+		this.changeLog = changeLog;
+		this.featureIndex = featureIndex;
+		this.transactionMgr = transactionMgr;
+		this.rabbitPublisher = rabbitPublisher;
+		this.simplifier = simplifier;
+		this.workspaceCopyDao = workspaceCopyDao;
+		this.collabroomFeatureDao = collabroomFeatureDao;
 		fileUploadPath = config.getString(APIConfig.FILE_UPLOAD_PATH, "/opt/data/nics/upload");
 		fileUploadUrl = config.getString(APIConfig.FILE_UPLOAD_URL, "/static/");
 	}
@@ -125,33 +178,77 @@ public class FeatureServiceImpl implements FeatureService {
 	/**
 	 * Retrieve features for a collaboration room
 	 * 
+	 * Every response carries the room's change version, as version and as the
+	 * ETag. Passing it back as since returns only the features added, changed
+	 * and deleted since, or 304 Not Modified when nothing changed; passing it
+	 * as If-None-Match returns 304 when nothing changed, the full state otherwise.
+	 * 
+	 * With bbox, only the features intersecting the box are returned, up to the
+	 * limit, from the in-memory {@link FeatureIndex}; since and date ranges
+	 * don't apply.
+	 * 
+	 * With zoom or resolution, geometries are simplified to one pixel at that
+	 * scale; the ETag then names the scale as well as the version.
+	 * 
 	 * @param collabroomId
 	 * @param optionalParams
+	 * @param since Version of the room's features the client holds
+	 * @param bbox minX,minY,maxX,maxY in the coordinates of the geoType
+	 * @param zoom Web map zoom level the features are displayed at
+	 * @param resolution Units of the geoType per pixel the features are displayed at
+	 * @param ifNoneMatch ETag of the features the client holds
 	 * 
 	 * @return Response FeatureServiceResponse containing features
 	 * @See FeatureServiceResponse
 	 */
 	public Response getCollabroomFeatures(int collabroomId, long userId, 
-			QueryConstraintParms optionalParams, int geoType, String requestingUser) {
+			QueryConstraintParms optionalParams, int geoType, Long since, String bbox,
+			Integer zoom, Double resolution, String ifNoneMatch, String requestingUser) {
 		
-		String incidentMap = APIConfig.getInstance().getConfiguration().getString(
+		String incidentMap = config.getString(
 				APIConfig.INCIDENT_MAP, SADisplayConstants.INCIDENT_MAP);
 		
 		UTCRange dateRange = QueryConstraintHelper.makeDateRange(optionalParams);
 		
-		if(userDao.getUserId(requestingUser) == userId && 
-				collabRoomDao.hasPermissions(userId, collabroomId, incidentMap)){
+		Double tolerance;
+		try{
+			tolerance = FeatureSimplifier.getTolerance(zoom, resolution, geoType);
+		}catch(IllegalArgumentException e){
+			return getBadRequestResponse(e.getMessage());
+		}
+		
+		if(entityCacheMgr.getUserId(requestingUser) == userId && 
+				entityCacheMgr.hasCollabRoomPermission(userId, collabroomId, incidentMap)){
+			if(bbox != null){
+				return this.buildBoundingBoxResponse(collabroomId, geoType, bbox,
+						optionalParams == null ? null : optionalParams.getLimit(), tolerance);
+			}
+			
+			if(since != null && dateRange == null){
+				FeatureChangeLog.Delta delta = changeLog.getChangesSince(collabroomId, since);
+				if(delta != null){
+					return this.buildDeltaResponse(collabroomId, geoType, delta, tolerance);
+				}
+			}
+			
+			// Read before the features, so a change made meanwhile is in the next delta
+			long version = changeLog.getVersion(collabroomId);
+			EntityTag tag = entityTag(version, tolerance);
+			//Unless changes made elsewhere may be missing from the version
+			if(dateRange == null && changeLog.isCurrent() && matches(ifNoneMatch, tag)){
+				return Response.notModified(tag).build();
+			}
+			
 			List<Feature> features = featureDao.getFeatureState(collabroomId, dateRange, geoType);
 			buildDocumentUrls(features);
+			simplifyGeometries(features, geoType, tolerance, false);
 			
+			FeatureServiceResponse featureResponse = new FeatureServiceResponse();
 			if(dateRange != null){
-				System.out.println("Get deleted features");
-				
-				return this.buildGetResponse(features,
-						featureDao.getDeletedFeatures(collabroomId, dateRange));
-			}else{
-				return this.buildGetResponse(features);
+				featureResponse.setDeletedFeature(featureDao.getDeletedFeatures(collabroomId, dateRange));
 			}
+			featureResponse.setVersion(version);
+			return this.buildFeaturesResponse(featureResponse, features).tag(tag).status(Status.OK).build();
 		}else{
 			FeatureServiceResponse featureResponse = new FeatureServiceResponse();
 			featureResponse.setMessage("Permission denied to view this room");
@@ -163,14 +260,24 @@ public class FeatureServiceImpl implements FeatureService {
 	 * Retrieve features for a user
 	 * 
 	 * @param userId
+	 * @param zoom Web map zoom level the features are displayed at
+	 * @param resolution Meters per pixel the features are displayed at
 	 * 
 	 * @return Response FeatureServiceResponse containing features
 	 * @See FeatureServiceResponse
 	 */
-	public Response getUserFeatures(int userId, String requestingUser) {
-		if(userDao.getUserId(requestingUser) == userId){
+	public Response getUserFeatures(int userId, Integer zoom, Double resolution, String requestingUser) {
+		Double tolerance;
+		try{
+			tolerance = FeatureSimplifier.getTolerance(zoom, resolution, USER_FEATURE_GEOTYPE);
+		}catch(IllegalArgumentException e){
+			return getBadRequestResponse(e.getMessage());
+		}
+		
+		if(entityCacheMgr.getUserId(requestingUser) == userId){
 			List<Feature> features = featureDao.getUserFeatureState(userId);
 			this.buildDocumentUrls(features);
+			simplifyGeometries(features, USER_FEATURE_GEOTYPE, tolerance, false);
 			return this.buildGetResponse(features);
 		}else{
 			return getAccessDeniedResponse();
@@ -190,7 +297,7 @@ public class FeatureServiceImpl implements FeatureService {
 		Long featureId = null;
 		FeatureServiceResponse featureResponse = new FeatureServiceResponse();
 		
-		if(!collabRoomDao.hasPermissions(userDao.getUserId(requestingUser), collabRoomId)){
+		if(!entityCacheMgr.hasCollabRoomPermission(entityCacheMgr.getUserId(requestingUser), collabRoomId)){
 			return getAccessDeniedResponse();
 		}
 		
@@ -254,7 +361,7 @@ public class FeatureServiceImpl implements FeatureService {
 	 */
 	public Response postCollabRoomFeature(int collabRoomId, int geoType , String feature , String requestingUser) {
 		
-		if(!collabRoomDao.hasPermissions(userDao.getUserId(requestingUser), collabRoomId)){
+		if(!entityCacheMgr.hasCollabRoomPermission(entityCacheMgr.getUserId(requestingUser), collabRoomId)){
 			return getAccessDeniedResponse();
 		}
 		
@@ -305,7 +412,7 @@ public class FeatureServiceImpl implements FeatureService {
 	 */
 	public Response postUserFeature(long userId, String feature, String requestingUser) {
 		
-		if(userDao.getUserId(requestingUser) != userId){
+		if(entityCacheMgr.getUserId(requestingUser) != userId){
 			return getAccessDeniedResponse();
 		}
 		
@@ -365,7 +472,7 @@ public class FeatureServiceImpl implements FeatureService {
 	 */
 	public Response deleteCollabRoomFeature(int collabRoomId, long featureId, String requestingUser){
 		
-		if(!collabRoomDao.hasPermissions(userDao.getUserId(requestingUser), collabRoomId)){
+		if(!entityCacheMgr.hasCollabRoomPermission(entityCacheMgr.getUserId(requestingUser), collabRoomId)){
 			return getAccessDeniedResponse();
 		}
 		
@@ -397,6 +504,141 @@ public class FeatureServiceImpl implements FeatureService {
 		return response;
 	}
 	
+	/**
+	 * Creates and deletes features of a collaboration room in one transaction
+	 * 
+	 * The batch is a JSON object holding "features", the features to create,
+	 * and "deletedFeatureIds", the ids of the features to delete; either may be
+	 * left out, and the deleted ids must be features of the room. Nothing is
+	 * kept if any of it fails. The room is sent the whole batch as one
+	 * featurebatch message, rather than a message per feature.
+	 * 
+	 * @param collabRoomId
+	 * @param geoType
+	 * @param batch
+	 * 
+	 * @return Response A FeatureServiceResponse with the created features and the deleted ids
+	 */
+	public Response postCollabRoomFeatures(final int collabRoomId, final int geoType, String batch,
+			String requestingUser) {
+		
+		if(!entityCacheMgr.hasCollabRoomPermission(entityCacheMgr.getUserId(requestingUser), collabRoomId)){
+			return getAccessDeniedResponse();
+		}
+		
+		final JSONArray features;
+		final List<Long> deletedIds = new ArrayList<Long>();
+		try{
+			JSONObject properties = new JSONObject(batch);
+			features = properties.has(FEATURES) ? properties.getJSONArray(FEATURES) : new JSONArray();
+			if(properties.has(DELETED_FEATURE_IDS)){
+				JSONArray deleted = properties.getJSONArray(DELETED_FEATURE_IDS);
+				for(int i = 0; i < deleted.length(); i++){
+					deletedIds.add(deleted.getLong(i));
+				}
+			}
+		}catch(JSONException e){
+			return getBadRequestResponse("Expected an object of features and deletedFeatureIds arrays: " + e.getMessage());
+		}
+		
+		int batchMax = config.getInt(
+				APIConfig.FEATURE_BATCH_MAX, DEFAULT_BATCH_MAX);
+		int size = features.length() + deletedIds.size();
+		if(size == 0 || size > batchMax){
+			return getBadRequestResponse("A batch holds 1 to " + batchMax + " features and deletions");
+		}
+		
+		Response response;
+		List<Feature> newFeatures = null;
+		FeatureServiceResponse featureResponse;
+		try {
+			newFeatures = transactionMgr.execute(new TransactionCallback<List<Feature>>(){
+				public List<Feature> doInTransaction(TransactionStatus status){
+					try{
+						return persistBatch(collabRoomId, geoType, features, deletedIds);
+					}catch(RuntimeException e){
+						throw e;
+					}catch(Exception e){
+						//Rolls the transaction back
+						throw new IllegalStateException(e.getMessage(), e);
+					}
+				}
+			});
+			this.buildDocumentUrls(newFeatures);
+			
+			featureResponse = this.buildFeatureServiceResponse(newFeatures);
+			featureResponse.setDeletedFeature(deletedIds);
+			response = Response.ok(featureResponse).status(Status.OK).build();
+		} catch (NotInCollabRoomException e) {
+			return getBadRequestResponse(e.getMessage());
+		} catch (Exception e) {
+			featureResponse = new FeatureServiceResponse();
+			featureResponse.setMessage("Unhandled exception while persisting CollabRoom Feature batch: " + e.getMessage());
+			response = Response.ok(featureResponse).status(Status.INTERNAL_SERVER_ERROR).build();
+		}
+		
+		if(Status.OK.getStatusCode() == response.getStatus()){
+			try {
+				notifyFeatureBatch(newFeatures, deletedIds,
+						String.format("iweb.NICS.collabroom.%s.featurebatch", collabRoomId));
+			} catch (Exception e) {
+				String errorMessage = "Failed to publish a CollabRoom Feature batch message event";
+				featureResponse.setMessage(errorMessage);
+	
+				logger.error(errorMessage, e);
+			}
+		}
+		
+		return response;
+	}
+	
+	/**
+	 * Thrown when a batch deletes a feature that isn't in its collaboration room
+	 */
+	private static class NotInCollabRoomException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		NotInCollabRoomException(String message) {
+			super(message);
+		}
+	}
+	
+	/**
+	 * Add the features of a batch to a collaboration room, and delete its deleted ids
+	 * @return The new features
+	 * @throws NotInCollabRoomException When a deleted id is not in the collaboration
+	 * 	room; nothing is persisted then
+	 */
+	private List<Feature> persistBatch(int collabRoomId, int geoType, JSONArray features,
+			List<Long> deletedIds) throws Exception {
+		//Only the room's own features can be deleted through it. Their links are
+		//locked, so they are still in the room when deleted below
+		Set<Long> inRoom = collabroomFeatureDao.lockRoomFeatures(collabRoomId, deletedIds);
+		for(Long featureId : deletedIds){
+			if(!inRoom.contains(featureId)){
+				throw new NotInCollabRoomException("Feature " + featureId + " is not in collab room " + collabRoomId);
+			}
+		}
+		
+		List<Feature> newFeatures = new ArrayList<Feature>();
+		for(int i = 0; i < features.length(); i++){
+			Feature newFeature = this.addNewFeature(features.getJSONObject(i), geoType);
+			if(newFeature == null){
+				throw new Exception("Feature " + i + " of the batch was not persisted");
+			}
+			CollabroomFeature collabroomFeature = new CollabroomFeature();
+			collabroomFeature.setFeatureId(newFeature.getFeatureId());
+			collabroomFeature.setCollabroomid(collabRoomId);
+			
+			featureDao.addCollabroomFeature(collabroomFeature);
+			newFeatures.add(newFeature);
+		}
+		for(Long featureId : deletedIds){
+			featureDao.setCollabroomFeatureDeleted(featureId, true);
+		}
+		return newFeatures;
+	}
+	
 	/**
 	 * Add a new feature to the database
 	 * @param feature
@@ -409,7 +651,16 @@ public class FeatureServiceImpl implements FeatureService {
 		/*JsonNode node = mapper.readTree(featureProperties);
 		Feature feature = mapper.treeToValue(node, Feature.class);*/
 		
-		JSONObject feature = new JSONObject(featureProperties);
+		return this.addNewFeature(new JSONObject(featureProperties), geoType);
+	}
+	
+	/**
+	 * Add a new feature to the database
+	 * @param feature JSON object of feature properties
+	 * @return
+	 * @throws Exception
+	 */
+	private Feature addNewFeature(JSONObject feature, int geoType) throws Exception {
 		ObjectMapper mapper = new ObjectMapper();
 		
 		List<String> fields = mapper.readValue(
@@ -451,7 +702,7 @@ public class FeatureServiceImpl implements FeatureService {
 	 * @param collabRoomId The id of the collaboration room to share the feature to 
 	 */
 	public Response shareWorkspace(int userId, int collabRoomId, String username) {
-		if(userDao.getUserId(username) != userId){
+		if(entityCacheMgr.getUserId(username) != userId){
 			return getAccessDeniedResponse();
 		}
 		
@@ -480,7 +731,7 @@ public class FeatureServiceImpl implements FeatureService {
 	 * @param collabRoomId The id of the collaboration room to stop sharing with 
 	 */
 	public Response unshareWorkspace(int userId, int collabRoomId, String username) {
-		if(userDao.getUserId(username) != userId){
+		if(entityCacheMgr.getUserId(username) != userId){
 			return getAccessDeniedResponse();
 		}
 		
@@ -500,20 +751,30 @@ public class FeatureServiceImpl implements FeatureService {
 	/**
 	 * Copy all of the user's features to the specified collaboration room.
 	 * 
+	 * The room is sent a feature message per copy, unless
+	 * "...feature.copy.perfeaturemessages" is turned off; it is then sent the
+	 * copies as one featurebatch message, which clients have to subscribe to.
+	 * 
 	 * @param userId The id of the user whose features to copy
 	 * @param collabRoomId The id of the collaboration room to copy to
 	 */
 	@Override
 	public Response copyWorkspace(int userId, int collabRoomId, String username) {
-		if(userDao.getUserId(username) != userId){
+		if(entityCacheMgr.getUserId(username) != userId){
 			return getAccessDeniedResponse();
 		}
 		
-		String topic = String.format("iweb.NICS.collabroom.%s.feature", collabRoomId);
-		
+		long start = System.currentTimeMillis();
 		List<Feature> userFeatures = Collections.emptyList();
 		try {
-			List<Long> newFeatureIds = featureDao.copyFeatures(userId, collabRoomId);
+			List<Long> newFeatureIds;
+			try {
+				newFeatureIds = workspaceCopyDao.copyFeatures(userId, collabRoomId);
+			} catch (DataAccessException | IllegalStateException e) {
+				// Nothing was copied, copy a feature at a time instead
+				logger.warn("Set-based workspace copy failed, copying features one at a time", e);
+				newFeatureIds = featureDao.copyFeatures(userId, collabRoomId);
+			}
 			if (newFeatureIds.size() > 0) {
 				userFeatures = featureDao.getFeatures(newFeatureIds);
 			}
@@ -524,12 +785,26 @@ public class FeatureServiceImpl implements FeatureService {
 			//we hijack topic to flag this feature not to be ignored
 			//otherwise a client ignores new features from the current user
 			userFeature.setTopic("share");
+		}
+		if (config.getBoolean(APIConfig.FEATURE_COPY_PERFEATUREMESSAGES, true)) {
+			String topic = String.format("iweb.NICS.collabroom.%s.feature", collabRoomId);
+			for (Feature userFeature : userFeatures) {
+				try {
+					notifyNewFeature(userFeature, topic);
+				} catch (Exception e) {
+					logger.error("Failed to publish new feature message", e);
+				}
+			}
+		} else if (!userFeatures.isEmpty()) {
 			try {
-				notifyNewFeature(userFeature, topic);
+				notifyFeatureBatch(userFeatures, Collections.<Long>emptyList(),
+						String.format("iweb.NICS.collabroom.%s.featurebatch", collabRoomId));
 			} catch (Exception e) {
-				logger.error("Failed to publish new feature message", e);
+				logger.error("Failed to publish feature batch message", e);
 			}
 		}
+		logger.info(String.format("Copied workspace of user %d to collab room %d, %d features in %d ms",
+				userId, collabRoomId, userFeatures.size(), System.currentTimeMillis() - start));
 		
 		FeatureServiceResponse response = new FeatureServiceResponse();
 		response.setMessage(Status.OK.getReasonPhrase());
@@ -720,29 +995,165 @@ public class FeatureServiceImpl implements FeatureService {
 		return featureResponse;
 	}
 	
+	/**
+	 * Create Response object for a get with bbox, holding the features of the
+	 * room's spatial index that intersect the box, up to the limit
+	 * @param bbox minX,minY,maxX,maxY
+	 * @return
+	 */
+	private Response buildBoundingBoxResponse(int collabroomId, int geoType, String bbox, Integer limit,
+			Double tolerance){
+		Envelope envelope = parseBoundingBox(bbox);
+		if(envelope == null){
+			return getBadRequestResponse("bbox must be minX,minY,maxX,maxY");
+		}
+		
+		int maxResults = config.getInt(
+				APIConfig.FEATURE_INDEX_MAXRESULTS, DEFAULT_INDEX_MAX_RESULTS);
+		FeatureIndex.Result result = featureIndex.query(collabroomId, geoType, envelope,
+				limit == null ? maxResults : Math.min(limit, maxResults), new FeatureIndex.Loader(){
+			public List<Feature> load(int collabroomId, int geoType, Long changedSince){
+				UTCRange changedRange = changedSince == null ? null :
+						new UTCRange(SADisplayConstants.LAST_UPDATE, changedSince, null);
+				List<Feature> features = featureDao.getFeatureState(collabroomId, changedRange, geoType);
+				buildDocumentUrls(features);
+				return features;
+			}
+		});
+		
+		// The index hands out the features it holds, so they are copied to simplify
+		List<Feature> features = result.getFeatures();
+		simplifyGeometries(features, geoType, tolerance, true);
+		
+		FeatureServiceResponse featureResponse = this.buildFeatureServiceResponse(features);
+		featureResponse.setVersion(result.getVersion());
+		return Response.ok(featureResponse).status(Status.OK).build();
+	}
+	
+	/**
+	 * @return The envelope of a minX,minY,maxX,maxY box, or null if it isn't one
+	 */
+	private static Envelope parseBoundingBox(String bbox){
+		String[] parts = bbox.split(",");
+		if(parts.length != 4){
+			return null;
+		}
+		try{
+			double minX = Double.parseDouble(parts[0].trim());
+			double minY = Double.parseDouble(parts[1].trim());
+			double maxX = Double.parseDouble(parts[2].trim());
+			double maxY = Double.parseDouble(parts[3].trim());
+			// Also turns away NaN
+			if(!(minX <= maxX && minY <= maxY)){
+				return null;
+			}
+			return new Envelope(minX, maxX, minY, maxY);
+		}catch(NumberFormatException e){
+			return null;
+		}
+	}
+	
+	private Response buildDeltaResponse(int collabroomId, int geoType, FeatureChangeLog.Delta delta,
+			Double tolerance){
+		EntityTag tag = entityTag(delta.getVersion(), tolerance);
+		if(delta.isEmpty()){
+			return Response.notModified(tag).build();
+		}
+		
+		List<Feature> features = Collections.emptyList();
+		if(!delta.getChanged().isEmpty()){
+			// Every feature updated since the earliest change; deleted ones aren't returned
+			long skewMillis = 1000L * config.getLong(
+					APIConfig.FEATURE_CHANGELOG_SKEWSECONDS, DEFAULT_CHANGELOG_SKEW_SECONDS);
+			UTCRange changedRange = new UTCRange(SADisplayConstants.LAST_UPDATE,
+					delta.getChangedSince() - skewMillis, null);
+			features = featureDao.getFeatureState(collabroomId, changedRange, geoType);
+			buildDocumentUrls(features);
+			simplifyGeometries(features, geoType, tolerance, false);
+		}
+		
+		FeatureServiceResponse featureResponse = this.buildFeatureServiceResponse(features);
+		featureResponse.setDeletedFeature(new ArrayList<Long>(delta.getDeleted()));
+		featureResponse.setVersion(delta.getVersion());
+		featureResponse.setDelta(true);
+		return Response.ok(featureResponse).tag(tag).status(Status.OK).build();
+	}
+	
+	/**
+	 * @return ETag of the features at the version, simplified to the tolerance
+	 */
+	private static EntityTag entityTag(long version, Double tolerance){
+		return new EntityTag(tolerance == null ? String.valueOf(version) : version + "@" + tolerance);
+	}
+	
+	/**
+	 * @return True if the If-None-Match header names the tag
+	 */
+	private static boolean matches(String ifNoneMatch, EntityTag tag){
+		return ifNoneMatch != null && ifNoneMatch.contains("\"" + tag.getValue() + "\"");
+	}
+	
+	/**
+	 * Simplify the features' geometries to the tolerance, if any
+	 * @param shared Whether the features are held elsewhere, and are to be copied
+	 * 	rather than changed
+	 */
+	private void simplifyGeometries(List<Feature> features, int geoType, Double tolerance, boolean shared){
+		if(tolerance == null){
+			return;
+		}
+		for(int i = 0; i < features.size(); i++){
+			Feature feature = features.get(i);
+			String geometry = feature.getGeometry();
+			String simplified = simplifier.simplify(feature.getFeatureId(), geoType, geometry, tolerance);
+			if(simplified != geometry){
+				if(shared){
+					//Shallow, only the geometry of the copy is replaced
+					Feature copy = new Feature();
+					BeanUtils.copyProperties(feature, copy);
+					feature = copy;
+					features.set(i, feature);
+				}
+				feature.setGeometry(simplified);
+			}
+		}
+	}
+	
+	private Response getBadRequestResponse(String message){
+		FeatureServiceResponse featureResponse = new FeatureServiceResponse();
+		featureResponse.setMessage(message);
+		return Response.ok(featureResponse).status(Status.BAD_REQUEST).build();
+	}
+	
 	/**
 	 * Create Response object for a get
 	 * @param features
 	 * @return
 	 */
 	private Response buildGetResponse(List<Feature> features){
-		return Response.ok(
-				this.buildFeatureServiceResponse(features))
+		return this.buildFeaturesResponse(new FeatureServiceResponse(), features)
 				.status(Status.OK).build();
 	}
 	
 	/**
-	 * Create Response object for a get
+	 * Create a response holding the features, written as they are serialized
+	 * when streaming is enabled. The features are already read whole, as
+	 * nics-dao reads no less, so this spares only the serialized copy
+	 * @param featureResponse The rest of the response
 	 * @param features
 	 * @return
 	 */
-	private Response buildGetResponse(
-			List<Feature> features, 
-			List<Long> deletedFeatures){
-		FeatureServiceResponse featureResponse = this.buildFeatureServiceResponse(features);
-		featureResponse.setDeletedFeature(deletedFeatures);
-		return Response.ok(featureResponse).status(Status.OK).build();
+	private ResponseBuilder buildFeaturesResponse(FeatureServiceResponse featureResponse, List<Feature> features){
+		featureResponse.setMessage(Status.OK.getReasonPhrase());
+		if(StreamingListOutput.isEnabled()){
+			return Response.ok(new StreamingListOutput<Feature>(featureResponse, "features",
+					StreamingListOutput.pagerOf(features), null), MediaType.APPLICATION_JSON);
+		}
+		featureResponse.setFeatures(features);
+		featureResponse.setCount(features.size());
+		return Response.ok(featureResponse);
 	}
+	
  
 	/**
 	 * Notify users of a new feature in a collaboration room
@@ -754,38 +1165,42 @@ public class FeatureServiceImpl implements FeatureService {
 		if (topic != null && feature != null) {
 			ObjectMapper mapper = new ObjectMapper();
 			String message = mapper.writeValueAsString(feature);
-			getRabbitProducer().produce(topic, message);
+			rabbitPublisher.publish(topic, message);
+			changeLog.published(topic, message);
 		}else{
 			throw new Exception("Could not notify user of a new feature. Feature/Topic was null.");
 		}
 	}
 	
 	/**
-	 * Notify users of a new feature in a collaboration room
-	 * @param feature
+	 * Notify users of features created and deleted together in a collaboration room
+	 * @param features
+	 * @param deletedIds
 	 * @param topic
 	 * @throws IOException
 	 */
-	private void notifyDeletedFeature(long featureId, String topic) throws IOException, JSONException {
-		JSONObject message = new JSONObject();
-		message.put(DELETED_FEATURE_ID, featureId);
-		getRabbitProducer().produce(topic, message.toString());
+	private void notifyFeatureBatch(List<Feature> features, List<Long> deletedIds, String topic) throws IOException {
+		Map<String, Object> batch = new LinkedHashMap<String, Object>();
+		batch.put(FEATURES, features);
+		batch.put(DELETED_FEATURE_IDS, deletedIds);
+		
+		ObjectMapper mapper = new ObjectMapper();
+		String message = mapper.writeValueAsString(batch);
+		rabbitPublisher.publish(topic, message);
+		changeLog.published(topic, message);
 	}
 	
 	/**
-	 * Get Rabbit producer to send message
-	 * @return
+	 * Notify users of a new feature in a collaboration room
+	 * @param feature
+	 * @param topic
 	 * @throws IOException
 	 */
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (rabbitProducer == null) {
-			rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return rabbitProducer;
+	private void notifyDeletedFeature(long featureId, String topic) throws IOException, JSONException {
+		JSONObject message = new JSONObject();
+		message.put(DELETED_FEATURE_ID, featureId);
+		rabbitPublisher.publish(topic, message.toString());
+		changeLog.published(topic, message.toString());
 	}
 	
 	private Response getAccessDeniedResponse(){
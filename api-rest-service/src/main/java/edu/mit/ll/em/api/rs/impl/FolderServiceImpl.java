@@ -43,8 +43,7 @@ import edu.mit.ll.em.api.rs.FolderDataServiceResponse;
 import edu.mit.ll.em.api.rs.FolderService;
 import edu.mit.ll.em.api.util.APIConfig;
 import edu.mit.ll.em.api.util.APILogger;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
+import edu.mit.ll.em.api.util.RabbitPublisher;
 import edu.mit.ll.nics.common.entity.Feature;
 import edu.mit.ll.nics.common.entity.Incident;
 import edu.mit.ll.nics.common.entity.datalayer.Datalayerfolder;
@@ -72,8 +71,6 @@ public class FolderServiceImpl implements FolderService {
 	
 	/** Datalayer DAO */
 	private static final DatalayerDAO datalayerDao = new DatalayerDAOImpl();
-
-	private RabbitPubSubProducer rabbitProducer;
 	
 	/**
 	 * Return Folder items
@@ -343,25 +340,9 @@ public class FolderServiceImpl implements FolderService {
 		if (folder != null) {
 			ObjectMapper mapper = new ObjectMapper();
 			String message = mapper.writeValueAsString(folder);
-			getRabbitProducer().produce(topic, message);
+			RabbitPublisher.getInstance().publish(topic, message);
 		}
 	}
 	
-	/**
-	 * Get Rabbit producer to send message
-	 * @return
-	 * @throws IOException
-	 */
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (rabbitProducer == null) {
-			rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return rabbitProducer;
-	}
-
 }
 
@@ -41,16 +41,16 @@ import com.fasterxml.jackson.databind.module.SimpleModule;
 import edu.mit.ll.em.api.json.deserializer.ROCMessageDeserializer;
 import edu.mit.ll.em.api.rs.model.ROCMessage;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.RabbitPublisher;
 import edu.mit.ll.em.api.util.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.*;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.cxf.jaxrs.utils.ExceptionUtils;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.springframework.dao.DataAccessException;
 
+import edu.mit.ll.em.api.dataaccess.EntityCacheInvalidator;
 import edu.mit.ll.em.api.exception.DuplicateCollabRoomException;
 import edu.mit.ll.em.api.rs.CollabService;
 import edu.mit.ll.em.api.rs.FieldMapResponse;
@@ -94,8 +94,6 @@ public class IncidentServiceImpl implements IncidentService {
 	/** The User DAO */
 	private static final WorkspaceDAOImpl workspaceDao = new WorkspaceDAOImpl();
 	
-	private RabbitPubSubProducer rabbitProducer;
-	
 
 	/**
 	 * Read and return all Incident items.
@@ -152,6 +150,7 @@ public class IncidentServiceImpl implements IncidentService {
 		
 			boolean ret = incidentDao.setIncidentActive(incidentId, true);
 			if(ret){
+				EntityCacheInvalidator.getInstance().invalidateIncident(incidentId);
 				String topic = String.format("iweb.NICS.ws.%s.newIncident", workspaceId);
 				try{
 					this.notifyIncident(incidentDao.getIncident(incidentId), topic);
@@ -172,6 +171,7 @@ public class IncidentServiceImpl implements IncidentService {
 				incidentDao.isAdmin(workspaceId, incidentId, username)){
 			boolean ret = incidentDao.setIncidentActive(incidentId, false);
 			if(ret){
+				EntityCacheInvalidator.getInstance().invalidateIncident(incidentId);
 				String topic = String.format("iweb.NICS.ws.%s.removeIncident", workspaceId);
 				try{
 					this.notifyIncident(incidentId, topic);
@@ -290,6 +290,7 @@ public class IncidentServiceImpl implements IncidentService {
 		
 		
 		if (Status.OK.getStatusCode() == response.getStatus()) {
+			EntityCacheInvalidator.getInstance().invalidateIncident(updatedIncident.getIncidentid());
 			try {
 				String topic = String.format("iweb.NICS.ws.%s.updateIncident", workspaceId);
 				notifyIncident(updatedIncident, topic);
@@ -729,17 +730,17 @@ public class IncidentServiceImpl implements IncidentService {
 		if (newIncident != null) {
 			ObjectMapper mapper = new ObjectMapper();
 			String message = mapper.writeValueAsString(newIncident);
-			getRabbitProducer().produce(topic, message);
+			RabbitPublisher.getInstance().publish(topic, message);
 		}
 	}
 	
 	private void notifyIncident(int incidentId, String topic) throws IOException {
-		getRabbitProducer().produce(topic, (new Integer(incidentId).toString()));
+		RabbitPublisher.getInstance().publish(topic, (new Integer(incidentId).toString()));
 	}
 	
 	private void notifyNewIncidentEmail(String email, String topic) throws IOException {
 		if (email != null) {
-			getRabbitProducer().produce(topic, email);
+			RabbitPublisher.getInstance().publish(topic, email);
 		}
 	}
 
@@ -1039,20 +1040,5 @@ public class IncidentServiceImpl implements IncidentService {
 		return response;
 	}
 	
-	/**
-	 * Get Rabbit producer to send message
-	 * @return
-	 * @throws IOException
-	 */
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (rabbitProducer == null) {
-			rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return rabbitProducer;
-	}
 }
 
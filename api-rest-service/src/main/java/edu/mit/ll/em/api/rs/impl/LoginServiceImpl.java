@@ -45,6 +45,7 @@ import org.apache.commons.collections.CollectionUtils;
 import org.eclipse.jetty.util.StringUtil;
 import org.springframework.dao.DataAccessException;
 
+import edu.mit.ll.em.api.openam.SSOIdentityCache;
 import edu.mit.ll.em.api.rs.Login;
 import edu.mit.ll.em.api.rs.LoginResponse;
 import edu.mit.ll.em.api.rs.LoginService;
@@ -361,6 +362,7 @@ public class LoginServiceImpl implements LoginService {
 			
 			if(ssoUtil != null) {
 				ssoUtil.destroyToken(token);
+				SSOIdentityCache.getInstance().invalidate(token);
 				status = true;
 			} else {
 				APILogger.getInstance().i("LoginServiceImpl", 
@@ -29,9 +29,13 @@
  */
 package edu.mit.ll.em.api.rs.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -45,16 +49,21 @@ import org.json.JSONObject;
 
 import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
 import edu.mit.ll.em.api.dataaccess.ICSDatastoreException;
+import edu.mit.ll.em.api.dataaccess.MDTDeadbandFilter;
 import edu.mit.ll.em.api.dataaccess.MDTrackDAO;
+import edu.mit.ll.em.api.openam.SSOIdentityCache;
 import edu.mit.ll.em.api.rs.MDTOptionalParms;
 import edu.mit.ll.em.api.rs.MDTrack;
+import edu.mit.ll.em.api.rs.MDTrackBatchResponse;
+import edu.mit.ll.em.api.rs.MDTrackResult;
 import edu.mit.ll.em.api.rs.MDTrackService;
 import edu.mit.ll.em.api.rs.MDTrackServiceResponse;
 import edu.mit.ll.em.api.util.APIConfig;
 import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.em.api.util.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.User;
 import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
-import edu.mit.ll.nics.sso.util.SSOUtil;
+import edu.mit.ll.nics.nicsdao.impl.UserOrgDAOImpl;
 import edu.mit.ll.soa.sso.exception.InitializationException;
 
 /**
@@ -66,38 +75,41 @@ public class MDTrackServiceImpl implements MDTrackService {
 
 	private static final String CNAME = MDTrackServiceImpl.class.getName();
 	
+	private static final int DEFAULT_MAX_BATCH = 1000;
+
+	private static final UserOrgDAOImpl userOrgDao = new UserOrgDAOImpl();
+	
 	/**
-	 * Read and return all MDTrack items.
+	 * Read the last known position of each MDT device.
+	 * Optionally constrained by userId, bbox (minLon,minLat,maxLon,maxLat)
+	 * or near (lat,lon, closest first), and limit. Only admins see every
+	 * user's devices, anyone else only sees their own.
 	 * @return Response
 	 * @see MDTrackResponse
 	 */
-	public Response getMDTracks(MDTOptionalParms optionalParms) {
-		//if(true) {
-			return makeUnsupportedOpRequestResponse();
-		//}
-		/*
-		Response response = null;
+	public Response getMDTracks(MDTOptionalParms optionalParms, String requestingUser) {
 		MDTrackServiceResponse mdtrackResponse = new MDTrackServiceResponse();
 
-        Set<MDTrack> mdtracks = null;
-        try {
-			mdtracks = MDTrackDAO.getInstance().getAllMDTracks(optionalParms);
-		//} catch (ICSDatastoreException e) {
-        } catch (Exception e) {
-			PAPILogger.getInstance().e(CNAME, e.getMessage());
-			mdtrackResponse.setMessage("Failure. " + e.getMessage());
-			response = Response.ok(mdtrackResponse).status(Status.INTERNAL_SERVER_ERROR).build();
-			return response;
+		if(!isAdmin(requestingUser)) {
+			long userId = EntityCacheMgr.getInstance().getUserId(requestingUser);
+			Integer requested = optionalParms.getUserId();
+			if(userId <= 0 || (requested != null && requested >= 0 && requested != userId)) {
+				return makeForbiddenResponse();
+			}
+			optionalParms.setUserId((int) userId);
 		}
-        
-		for (MDTrack mdtrack : mdtracks) {
-			mdtrackResponse.getMDTracks().add(mdtrack);
+
+		List<MDTrack> mdtracks = null;
+		try {
+			mdtracks = MDTrackDAO.getInstance().getLatestMDTracks(optionalParms);
+		} catch (IllegalArgumentException e) {
+			mdtrackResponse.setMessage(e.getMessage());
+			return Response.ok(mdtrackResponse).status(Status.BAD_REQUEST).build();
 		}
-		mdtrackResponse.setMessage("ok");
-		mdtrackResponse.setCount(mdtracks.size());
-		response = Response.ok(mdtrackResponse).status(Status.OK).build();
 
-		return response;*/
+		mdtrackResponse.setMDTracks(mdtracks);
+		mdtrackResponse.setMessage("ok");
+		return Response.ok(mdtrackResponse).status(Status.OK).build();
 	}
 
 	/**
@@ -216,89 +228,179 @@ public class MDTrackServiceImpl implements MDTrackService {
 
 		return response;	
 	}
+
+	/**
+	 *  Creation of a batch of MDTrack items, published together as one
+	 *  FeatureCollection.
+	 *  
+	 *  The sender's identity is looked up once for the whole batch. Items
+	 *  whose userId does not match it are not published. Every item gets a
+	 *  result, by its position in the batch.
+	 *  
+	 *  Response
+	 *  MDTrackBatchResponse
+	 */
+	public Response postMDTracks(Cookie cookie, Collection<MDTrack> mdtracks) {
+		MDTrackBatchResponse mdtrackResponse = new MDTrackBatchResponse();
+		if(mdtracks == null || mdtracks.isEmpty()) {
+			mdtrackResponse.setMessage("Invalid MDTracks sent");
+			mdtrackResponse.setCount(0);
+			return Response.ok(mdtrackResponse).status(Status.EXPECTATION_FAILED).build();
+		}
+		
+		int maxBatch = APIConfig.getInstance().getConfiguration().getInt(APIConfig.MDT_BATCH_MAX,
+				DEFAULT_MAX_BATCH);
+		if(mdtracks.size() > maxBatch) {
+			mdtrackResponse.setMessage("Too many MDTracks sent, at most " + maxBatch + " are accepted at once");
+			mdtrackResponse.setCount(0);
+			return Response.ok(mdtrackResponse).status(Status.BAD_REQUEST).build();
+		}
+		
+		List<MDTrack> batch = new ArrayList<MDTrack>(mdtracks);
+		Set<Integer> userIds = new HashSet<Integer>();
+		for(MDTrack mdtrack : batch) {
+			if(mdtrack != null) {
+				userIds.add(mdtrack.getUserId());
+			}
+		}
+		
+		Map<Integer, JSONObject> verified = null;
+		try {
+			verified = verifySender(cookie, userIds);
+		} catch (JSONException e) {
+			mdtrackResponse.setMessage("Error processing Identity: " + e.getMessage());
+			mdtrackResponse.setCount(0);
+			return Response.ok(mdtrackResponse).status(Status.INTERNAL_SERVER_ERROR).build();
+		}
+		
+		MDTrackResult[] results = new MDTrackResult[batch.size()];
+		List<MDTrack> accepted = new ArrayList<MDTrack>(batch.size());
+		List<Integer> acceptedIndexes = new ArrayList<Integer>(batch.size());
+		for(int i = 0; i < batch.size(); i++) {
+			MDTrack mdtrack = batch.get(i);
+			if(mdtrack == null) {
+				results[i] = MDTrackResult.failed(i, "Invalid MDTrack sent");
+				continue;
+			}
+			JSONObject verifyJson = verified.get(mdtrack.getUserId());
+			if("success".equals(verifyJson.optString("status"))) {
+				accepted.add(mdtrack);
+				acceptedIndexes.add(i);
+			} else {
+				results[i] = MDTrackResult.failed(i, verifyJson.optString("message"));
+			}
+		}
+		
+		if(!accepted.isEmpty()) {
+			List<MDTrackResult> published = MDTrackDAO.getInstance().createMDTracks(accepted);
+			for(int j = 0; j < published.size(); j++) {
+				MDTrackResult result = published.get(j);
+				result.setIndex(acceptedIndexes.get(j));
+				results[result.getIndex()] = result;
+				if(result.isSuccess()) {
+					mdtrackResponse.getMDTracks().add(result.getMdtrack());
+				}
+			}
+		}
+		
+		int count = mdtrackResponse.getMDTracks().size();
+		mdtrackResponse.setResults(Arrays.asList(results));
+		mdtrackResponse.setCount(count);
+		APILogger.getInstance().i(CNAME, "Published " + count + " out of " + batch.size() + " MDTracks");
+		if(count == batch.size()) {
+			mdtrackResponse.setMessage("ok");
+			return Response.ok(mdtrackResponse).status(Status.OK).build();
+		}
+		mdtrackResponse.setMessage("Failures. " + (batch.size() - count) + " out of " + batch.size() +
+				" were not published.");
+		return Response.ok(mdtrackResponse).status(count == 0 ? Status.EXPECTATION_FAILED : Status.OK).build();
+	}
 		
 		
 	private String verifySender(Cookie cookie, int userId) throws JSONException {
-		JSONObject ret = new JSONObject();
+		return verifySender(cookie, Collections.singleton(userId)).get(userId).toString();
+	}
+	
+	/**
+	 * Checks the token in the cookie against each of the users, reading the
+	 * token's identity only once.
+	 * 
+	 * @return The status, success or fail, and message for each user id
+	 */
+	private Map<Integer, JSONObject> verifySender(Cookie cookie, Set<Integer> userIds) throws JSONException {
+		Map<Integer, JSONObject> ret = new HashMap<Integer, JSONObject>();
 				
 		if(cookie == null) {
-			ret.put("message", "Error receiving cookie. Cookie was null");
-			ret.put("status", "fail");			
-			return ret.toString();
+			return verification(ret, userIds, "fail", "Error receiving cookie. Cookie was null");
 		}
 		
 		String token = cookie.getValue();
 		if(token == null || token.isEmpty()) {
-			ret.put("message", "Error reading token. Cookie value was null/empty");
-			ret.put("status", "fail");			
-			return ret.toString();
+			return verification(ret, userIds, "fail", "Error reading token. Cookie value was null/empty");
 		}
 		
-		User user = null;
-		try {
-			user = EntityCacheMgr.getInstance().getUserEntity(userId);
-		} catch (ICSDatastoreException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}
-		String username = null;
-		if(user != null && user.getUsername() != null) {
-			username = user.getUsername();
-		} else {
-			ret.put("message", "Error getting user information from userId: " + userId);
-			ret.put("status", "fail");
-			return ret.toString();
+		Map<Integer, String> usernames = new HashMap<Integer, String>();
+		for(Integer userId : userIds) {
+			User user = null;
+			try {
+				user = EntityCacheMgr.getInstance().getUserEntity(userId);
+			} catch (ICSDatastoreException e) {
+				APILogger.getInstance().e(CNAME, "Unable to read user " + userId + " to verify the sender", e);
+				verification(ret, Collections.singleton(userId), "fail",
+						"Error reading user information for userId: " + userId);
+				continue;
+			}
+			if(user != null && user.getUsername() != null) {
+				usernames.put(userId, user.getUsername());
+			} else {
+				verification(ret, Collections.singleton(userId), "fail",
+						"Error getting user information from userId: " + userId);
+			}
+		}
+		if(usernames.isEmpty()) {
+			return ret;
 		}
 		
-		SSOUtil ssoUtil = null;
 		try {
-			ssoUtil = new SSOUtil();
-			ssoUtil.loginAsAdmin();
-						
-			Map map = ssoUtil.getUserAttributes(token);
-			StringBuilder sb = new StringBuilder();
+			String email = SSOIdentityCache.getInstance().getIdentity(token);
 			
-			if(map != null && map.containsKey("uid")) {
-				//String email = (String)map.get("uid");
-				String email = null;
-				
-				HashSet emailSet = (HashSet)map.get("uid");
-				Iterator<String> emailSetIter = emailSet.iterator();
-				while(emailSetIter.hasNext()) {
-					email = (String) emailSetIter.next();
-					APILogger.getInstance().i("MDTrackService:verifySender", "found email in email hash set: " + email);
-				}
-				
-				if(email != null && !email.isEmpty() && email.contains(username)) {
-					// matches
-					ret.put("message", "User's ID matches Identity");
-					ret.put("status", "success");
-				} else {
-					ret.put("message", String.format("User's ID does not match identity. Sent token belongs to %s, but"
-							+ " the userId maps to %s", email, username));
-					ret.put("status", "fail");
+			if(email != null) {
+				for(Map.Entry<Integer, String> entry : usernames.entrySet()) {
+					String username = entry.getValue();
+					if(email != null && !email.isEmpty() && email.contains(username)) {
+						// matches
+						verification(ret, Collections.singleton(entry.getKey()), "success",
+								"User's ID matches Identity");
+					} else {
+						verification(ret, Collections.singleton(entry.getKey()), "fail",
+								String.format("User's ID does not match identity. Sent token belongs to %s, but"
+								+ " the userId maps to %s", email, username));
+					}
 				}
 				
 			} else {
-				ret.put("message", "Error reading uid from user attributes");
-				ret.put("status", "fail");
+				verification(ret, usernames.keySet(), "fail", "Error reading uid from user attributes");
 			}
 			
-			return ret.toString();
+			return ret;
 		
 		} catch(Exception e) {
-			ret.put("message", "Unhanlded exception verifying identity: " + e.getMessage());
-			ret.put("status", "fail");
-		} finally {
-			if(ssoUtil != null) {
-				String adminToken = ssoUtil.getTokenIfExists();
-				if(token != null && !token.isEmpty()) {
-					boolean destroyed = ssoUtil.logout(); 
-				}
-			}
+			verification(ret, usernames.keySet(), "fail",
+					"Unhanlded exception verifying identity: " + e.getMessage());
 		}
 		
-		return ret.toString();
+		return ret;
+	}
+	
+	private static Map<Integer, JSONObject> verification(Map<Integer, JSONObject> ret,
+			Collection<Integer> userIds, String status, String message) throws JSONException {
+		for(Integer userId : userIds) {
+			JSONObject verification = new JSONObject();
+			verification.put("message", message);
+			verification.put("status", status);
+			ret.put(userId, verification);
+		}
+		return ret;
 	}
 
 
@@ -432,16 +534,29 @@ public class MDTrackServiceImpl implements MDTrackService {
 	 *  Response
 	 *  MDTrackResponse
 	 */		
-	public Response getMDTrackCount() {
-		/*
+	public Response getMDTrackCount(String requestingUser) {
+		if(!isAdmin(requestingUser)) {
+			return makeForbiddenResponse();
+		}
 		MDTrackServiceResponse mdtrackResponse = new MDTrackServiceResponse();
 		mdtrackResponse.setMessage("ok");
 		mdtrackResponse.setCount(MDTrackDAO.getInstance().getMDTrackCount());
 		mdtrackResponse.setMDTracks(null);
 		Response response = Response.ok(mdtrackResponse).status(Status.OK).build();		
 		return response;
-		*/
-		return makeUnsupportedOpRequestResponse();		
+	}
+
+	/**
+	 *  Return how many MDTracks the dead-band filter published and suppressed.
+	 *  Admins only.
+	 *  Response
+	 *  Map of counters
+	 */
+	public Response getMDTrackStats(String requestingUser) {
+		if(!isAdmin(requestingUser)) {
+			return makeForbiddenResponse();
+		}
+		return Response.ok(MDTDeadbandFilter.getInstance().getStats()).status(Status.OK).build();
 	}
 
 
@@ -454,6 +569,28 @@ public class MDTrackServiceImpl implements MDTrackService {
 		return makeUnsupportedOpRequestResponse();
 	}
 	
+	/**
+	 * @return true if the user holds the super or admin role in any of their orgs
+	 */
+	private boolean isAdmin(String username) {
+		if(username == null) {
+			return false;
+		}
+		try {
+			return userOrgDao.isUserRole(username, SADisplayConstants.SUPER_ROLE_ID) ||
+					userOrgDao.isUserRole(username, SADisplayConstants.ADMIN_ROLE_ID);
+		} catch(Exception e) {
+			APILogger.getInstance().e(CNAME, "Unable to read the roles of " + username, e);
+			return false;
+		}
+	}
+
+	private Response makeForbiddenResponse() {
+		MDTrackServiceResponse mdtrackResponse = new MDTrackServiceResponse();
+		mdtrackResponse.setMessage(Status.FORBIDDEN.getReasonPhrase());
+		return Response.ok(mdtrackResponse).status(Status.FORBIDDEN).build();
+	}
+
 	private Response makeIllegalOpRequestResponse() {
 		MDTrackServiceResponse mdtrackResponse = new MDTrackServiceResponse();
 		mdtrackResponse.setMessage("Request ignored.") ;
@@ -30,34 +30,84 @@
 package edu.mit.ll.em.api.rs.impl;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import edu.mit.ll.em.api.dataaccess.MessageBusAccess;
 import edu.mit.ll.em.api.msgbus.MsgBusSubscriptionException;
+import edu.mit.ll.em.api.msgbus.MsgBusWaiter;
 import edu.mit.ll.em.api.rs.MsgBusResponse;
 import edu.mit.ll.em.api.rs.MsgBusService;
 import edu.mit.ll.em.api.rs.MsgEnvelope;
+import edu.mit.ll.em.api.util.APIConfig;
 
 public class MsgBusServiceImpl implements MsgBusService {
 
-	public Response getMsgs(long userId) {
-		Response response = null;
+	private static final int DEFAULT_MAX_WAIT_SECS = 60;
+
+	public void getMsgs(final long userId, int waitSecs, final AsyncResponse asyncResponse) {
+		int maxWaitSecs = APIConfig.getInstance().getConfiguration().getInt(
+				APIConfig.MSGBUS_MAXWAITSECONDS, DEFAULT_MAX_WAIT_SECS);
+		waitSecs = Math.min(waitSecs, maxWaitSecs);
+		if (waitSecs <= 0) {
+			asyncResponse.resume(getMsgs(userId));
+			return;
+		}
+
+		final MsgBusWaiter waiter = new MsgBusWaiter() {
+			public boolean deliver(Collection<MsgEnvelope> msgs) {
+				return asyncResponse.resume(getMsgsResponse(msgs));
+			}
+		};
+		asyncResponse.setTimeout(waitSecs, TimeUnit.SECONDS);
+		asyncResponse.setTimeoutHandler(new TimeoutHandler() {
+			public void handleTimeout(AsyncResponse ar) {
+				MessageBusAccess.getInstance().cancelWait(userId, waiter);
+				ar.resume(getMsgsResponse(Collections.<MsgEnvelope>emptyList()));
+			}
+		});
+
+		try {
+			if (!MessageBusAccess.getInstance().awaitMessages(userId, waiter)) {
+				asyncResponse.resume(getMsgs(userId));
+			}
+		} catch (MsgBusSubscriptionException e) {
+			MsgBusResponse msgbusResponse = new MsgBusResponse();
+			msgbusResponse.setMessage("failure. " + e.getMessage());
+			asyncResponse.resume(Response.ok(msgbusResponse).status(Status.OK).build());
+		}
+	}
+
+	private Response getMsgs(long userId) {
 		MsgBusResponse msgbusResponse = new MsgBusResponse();
 
 		try {
-			for (MsgEnvelope e : MessageBusAccess.getInstance().getAllMessages(userId)) {
-				msgbusResponse.getBusMsgs().add(e);
+			Collection<MsgEnvelope> msgs = MessageBusAccess.getInstance().getAllMessages(userId);
+			if (msgs != null) {
+				return getMsgsResponse(msgs);
 			}
-			msgbusResponse.setMessage("ok");
+			msgbusResponse.setMessage("failure. Subscription ID not found: " + userId);
 		} catch (MsgBusSubscriptionException e) {
 			msgbusResponse.setMessage("failure. " + e.getMessage());
 		}
-		response = Response.ok(msgbusResponse).status(Status.OK).build();			
+		return Response.ok(msgbusResponse).status(Status.OK).build();
+	}
+
+	private Response getMsgsResponse(Collection<MsgEnvelope> msgs) {
+		MsgBusResponse msgbusResponse = new MsgBusResponse();
+		msgbusResponse.getBusMsgs().addAll(msgs);
+		msgbusResponse.setMessage("ok");
+		return Response.ok(msgbusResponse).status(Status.OK).build();
+	}
 
-		return response;
+	public Response getStats() {
+		return Response.ok(MessageBusAccess.getInstance().getStats()).status(Status.OK).build();
 	}
 
 	public Response postMsgs(long userId, Collection<MsgEnvelope> msgs) {
@@ -47,10 +47,9 @@ import edu.mit.ll.nics.common.email.JsonEmail;
 import edu.mit.ll.nics.common.entity.*;
 import edu.mit.ll.nics.common.entity.Incident;
 import edu.mit.ll.nics.common.entity.User;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.nicsdao.UxoreportDAO;
 import edu.mit.ll.nics.nicsdao.impl.*;
+import edu.mit.ll.nics.nicsdao.query.QueryConstraint;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.cxf.jaxrs.ext.multipart.Attachment;
@@ -69,6 +68,7 @@ import edu.mit.ll.em.api.dataaccess.ICSDatastoreException;
 import edu.mit.ll.em.api.exception.BadContentException;
 import edu.mit.ll.em.api.util.APIConfig;
 import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.em.api.util.RabbitPublisher;
 
 /**
  *
@@ -78,25 +78,26 @@ import edu.mit.ll.em.api.util.APILogger;
 public class ReportServiceImpl implements ReportService {
 
     private static final String CNAME = ReportServiceImpl.class.getName();
+    private static final String SEQ_TIME = "seqtime";
     private IncidentDAOImpl incidentDao = null;
     private UserDAOImpl userDao = null;
     private FormDAOImpl formDao = null;
     private UserSessionDAOImpl userSessionDao = null;
     private UxoreportDAO uxoReportDao = null;
     private IncidentService incidentService = null;
-    private RabbitPubSubProducer rabbitProducer = null;
+    private RabbitPublisher rabbitPublisher = null;
     private ReportValidator reportValidator = null;
 
     public ReportServiceImpl(IncidentDAOImpl incidentDao, UserDAOImpl userDao, FormDAOImpl formDao, UserSessionDAOImpl userSessionDao,
                              UxoreportDAO uxoReportDao, IncidentService incidentService,
-                             RabbitPubSubProducer rabbitProducer, ReportValidator reportValidator) {
+                             RabbitPublisher rabbitPublisher, ReportValidator reportValidator) {
         this.incidentDao = incidentDao;
         this.userDao = userDao;
         this.formDao = formDao;
         this.userSessionDao = userSessionDao;
         this.uxoReportDao = uxoReportDao;
         this.incidentService = incidentService;
-        this.rabbitProducer = rabbitProducer;
+        this.rabbitPublisher = rabbitPublisher;
         this.reportValidator = reportValidator;
     }
     /**
@@ -112,10 +113,10 @@ public class ReportServiceImpl implements ReportService {
 
         // Provide some reasonable defaults where needed.
         if (optParms.getDateColumn() == null) {
-            optParms.setDateColumn("seqtime");
+            optParms.setDateColumn(SEQ_TIME);
         }
         if (optParms.getSortByColumn() == null) {
-            optParms.setSortByColumn("seqtime");
+            optParms.setSortByColumn(SEQ_TIME);
         }
         if (optParms.getSortOrder() == null) {
             optParms.setSortOrder("DESC");
@@ -171,6 +172,13 @@ public class ReportServiceImpl implements ReportService {
             //reports = ReportDAO.getInstance().getReports(formTypeId, userName, queryConstraints);
             Set<Integer> formTypeIds = new HashSet<Integer>();
             formTypeIds.add(formTypeId);
+            // Streamed a page at a time when the pages can follow on from the seqtime of the last form
+            if (StreamingListOutput.isEnabled() && KeysetPager.isKeyset(optParms, SEQ_TIME)) {
+                reportResponse.setMessage("ok");
+                StreamingListOutput<Form> output = new StreamingListOutput<Form>(reportResponse, "reports",
+                        readFormPages(formTypeIds, queryConstraints, optParms), optParms.getLimit());
+                return Response.ok(output.prefetch(), MediaType.APPLICATION_JSON).status(Status.OK).build();
+            }
             List<Form> forms = formDao.readForms(formTypeIds, queryConstraints);
 			
 			/*User u = null;
@@ -216,6 +224,31 @@ public class ReportServiceImpl implements ReportService {
         return response;
     }
 
+    /**
+     * Reads the forms a page at a time, each from the seqtime of the last one on
+     */
+    private StreamingListOutput.Pager<Form> readFormPages(final Set<Integer> formTypeIds,
+            final Map<String, Object> queryConstraints, ReportOptParms optParms) {
+        return new KeysetPager<Form>(optParms) {
+            protected List<Form> read(Long fromDate, Long toDate, int offset, int limit) throws Exception {
+                Map<String, Object> pageConstraints = new HashMap<String, Object>(queryConstraints);
+                pageConstraints.put(QueryConstraint.KEY_DATE_RANGE, fromDate == null ? null
+                        : new QueryConstraint.UTCRange(SEQ_TIME, fromDate, toDate));
+                pageConstraints.put(QueryConstraint.KEY_RESULTSET_RANGE,
+                        new QueryConstraint.ResultSetPage(offset, limit));
+                return formDao.readForms(formTypeIds, pageConstraints);
+            }
+
+            protected long key(Form form) {
+                return form.getSeqtime();
+            }
+
+            protected long id(Form form) {
+                return form.getFormId();
+            }
+        };
+    }
+
     /**
      * Delete all Report items.
      * This is an unsupported operation.
@@ -787,7 +820,7 @@ public class ReportServiceImpl implements ReportService {
 
     private void notifyNewIncidentEmail(String email, String topic) throws IOException {
         if (email != null) {
-            getRabbitProducer().produce(topic, email);
+            getRabbitPublisher().publish(topic, email);
         }
     }
 
@@ -1617,7 +1650,7 @@ public class ReportServiceImpl implements ReportService {
             ObjectMapper mapper = new ObjectMapper();
             String message = mapper.writeValueAsString(form);
             // notifyReportCreation(form);
-            getRabbitProducer().produce(topic, message);
+            getRabbitPublisher().publish(topic, message);
         }
     }
 
@@ -1630,19 +1663,14 @@ public class ReportServiceImpl implements ReportService {
 
 
     /**
-     * Get Rabbit producer to send message
-     * @return
-     * @throws java.io.IOException
+     * Get Rabbit publisher to send message
+     * @return the injected publisher, or the shared one
      */
-    private RabbitPubSubProducer getRabbitProducer() throws IOException {
-        if (rabbitProducer == null) {
-            rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-                    APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
+    private RabbitPublisher getRabbitPublisher() {
+        if (rabbitPublisher == null) {
+            rabbitPublisher = RabbitPublisher.getInstance();
         }
-        return rabbitProducer;
+        return rabbitPublisher;
     }
 
     @Override
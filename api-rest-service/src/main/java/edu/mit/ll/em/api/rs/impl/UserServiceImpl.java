@@ -38,11 +38,11 @@ import javax.validation.*;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
+import edu.mit.ll.em.api.dataaccess.EntityCacheInvalidator;
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
 import edu.mit.ll.em.api.rs.*;
 import edu.mit.ll.em.api.service.UserRegistrationService;
 import edu.mit.ll.em.api.util.*;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 
 import edu.mit.ll.nics.nicsdao.WorkspaceDAO;
 import org.apache.commons.lang.StringUtils;
@@ -82,7 +82,7 @@ public class UserServiceImpl implements UserService {
 	private UserSessionDAOImpl userSessDao = new UserSessionDAOImpl();
 	private OrgDAOImpl orgDao = new OrgDAOImpl();
     private WorkspaceDAO workspaceDAO = null;
-	private RabbitPubSubProducer rabbitProducer;
+	private RabbitPublisher rabbitPublisher;
     private UserRegistrationService userRegistrationService;
     private Validator validator;
 
@@ -93,13 +93,13 @@ public class UserServiceImpl implements UserService {
     }
 
     public UserServiceImpl(UserDAOImpl userDao, UserOrgDAOImpl userOrgDao, UserSessionDAOImpl userSessionDao, OrgDAOImpl orgDao, WorkspaceDAO workspaceDAO,
-                           RabbitPubSubProducer rabbitProducer, UserRegistrationService userRegistrationService, Validator validator) {
+                           RabbitPublisher rabbitPublisher, UserRegistrationService userRegistrationService, Validator validator) {
         this.userDao = userDao;
         this.userOrgDao = userOrgDao;
         this.userSessDao = userSessionDao;
         this.orgDao = orgDao;
         this.workspaceDAO = workspaceDAO;
-        this.rabbitProducer = rabbitProducer;
+        this.rabbitPublisher = rabbitPublisher;
         this.userRegistrationService = userRegistrationService;
         this.validator = validator;
     }
@@ -393,6 +393,7 @@ public class UserServiceImpl implements UserService {
 				userOrgDao.isUserRole(requestingUser, SADisplayConstants.SUPER_ROLE_ID)) {
 
 			userDao.setUserActive(userId, active);
+			EntityCacheInvalidator.getInstance().invalidateUser(userId);
 
 			User responseUser = userDao.getUserById(userId);
 			userResponse.setUsers(Arrays.asList(responseUser));
@@ -512,8 +513,10 @@ public class UserServiceImpl implements UserService {
 				userResponse.setOrgCount(userOrgDao.hasEnabledOrgs(userId, workspaceId));
 				if(!enabled && userResponse.getOrgCount() == 0){
 					userDao.setUserEnabled(userId, false);
+					EntityCacheInvalidator.getInstance().invalidateUser(userId);
 				}else if(enabled){
 					userDao.setUserEnabled(userId, true);
+					EntityCacheInvalidator.getInstance().invalidateUser(userId);
 					
 					try {
 						String fromEmail = APIConfig.getInstance().getConfiguration().getString(APIConfig.NEW_USER_ENABLED_EMAIL);
@@ -955,7 +958,7 @@ public class UserServiceImpl implements UserService {
 		Response response = null;
 		UserResponse  userResponse = new UserResponse();
 
-		if(userDao.getUserId(requestingUser) != userId){
+		if(EntityCacheMgr.getInstance().getUserId(requestingUser) != userId){
             return Response.status(Status.BAD_REQUEST).entity(
                     Status.FORBIDDEN.getReasonPhrase()).build();
         }
@@ -1009,7 +1012,7 @@ public class UserServiceImpl implements UserService {
 		Response response = null;
 		UserResponse  userResponse = new UserResponse();
 
-		if(userDao.getUserId(requestingUser) != userId){
+		if(EntityCacheMgr.getInstance().getUserId(requestingUser) != userId){
             return Response.status(Status.BAD_REQUEST).entity(
                     Status.FORBIDDEN.getReasonPhrase()).build();
         }
@@ -1175,30 +1178,26 @@ public class UserServiceImpl implements UserService {
 			String topic = String.format("iweb.NICS.%d.login", workspaceId);
 			ObjectMapper mapper = new ObjectMapper();
 			String message = mapper.writeValueAsString(user);
-			getRabbitProducer().produce(topic, message);
+			getRabbitPublisher().publish(topic, message);
 		}
 	}
 	
 	private void notifyLogout(int workspaceId, long currentUserSessionId) throws IOException {
 		String topic = String.format("iweb.NICS.%d.logout", workspaceId);
-		getRabbitProducer().produce(topic, Long.toString(currentUserSessionId));
+		getRabbitPublisher().publish(topic, Long.toString(currentUserSessionId));
 	}
 	
 	private void notifyNewUserEmail(String email, String topic) throws IOException {
 		if (email != null) {
-			getRabbitProducer().produce(topic, email);
+			getRabbitPublisher().publish(topic, email);
 		}
 	}
 	
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (rabbitProducer == null) {
-			rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
+	private RabbitPublisher getRabbitPublisher() {
+		if (rabbitPublisher == null) {
+			rabbitPublisher = RabbitPublisher.getInstance();
 		}
-		return rabbitProducer;
+		return rabbitPublisher;
 	}
 	
 	public Response removeUserSession(int workspaceId, long currentUserSessionId){
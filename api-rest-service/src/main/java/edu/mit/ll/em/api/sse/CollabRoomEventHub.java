@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.sse;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.servlet.AsyncContext;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.mit.ll.em.api.dataaccess.EntityCacheInvalidator;
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.msgbus.MsgBusRelay;
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.em.api.util.SADisplayConstants;
+
+/**
+ * Pushes collab room events to the clients streaming them.
+ * 
+ * Listens to the message bus through the {@link MsgBusRelay} for the topics the
+ * services publish per room, iweb.NICS.collabroom.{collabRoomId}.{event}, i.e. the
+ * chat, feature, changefeature, deletefeature, presence and presencedelta events,
+ * and sends each one to every {@link SseConnection} open on that room, named after
+ * the last word of the topic. A comment line is sent every "...sse.heartbeatseconds" so proxies
+ * keep idle streams open and dead ones are noticed.
+ * 
+ * Users are let in on the same terms as the collab room GETs. Whenever a collab
+ * room, incident or user is invalidated on any node, the affected streams are
+ * checked again and those of users no longer permitted are closed.
+ */
+public class CollabRoomEventHub implements MsgBusRelay.Listener, EntityCacheInvalidator.Listener {
+
+	private static final String CNAME = CollabRoomEventHub.class.getName();
+
+	private static final String TOPIC_PREFIX = "iweb.NICS.collabroom.";
+
+	private static final int DEFAULT_BUFFER_SIZE = 256;
+	private static final int DEFAULT_HEARTBEAT_SECS = 20;
+
+	private static final String HEARTBEAT = ":\n\n";
+
+	private final ConcurrentHashMap<Integer, Set<SseConnection>> connections =
+			new ConcurrentHashMap<Integer, Set<SseConnection>>();
+
+	private final int bufferSize;
+
+	// Room everyone has access to.
+	private final String incidentMap;
+
+	// Checks permissions again, off of the message bus thread.
+	private final ExecutorService checker = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder().setDaemon(true).setNameFormat("collabroom-events-check-%d").build());
+
+	TimerTask heartbeat;
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static CollabRoomEventHub instance = new CollabRoomEventHub();
+	}
+
+	public static CollabRoomEventHub getInstance() {
+		return Holder.instance;
+	}
+
+	// Hide the default constructor.
+	private CollabRoomEventHub() {
+		this(APIConfig.getInstance().getConfiguration());
+		MsgBusRelay.getInstance().addListener(this);
+		EntityCacheInvalidator.getInstance().addListener(this);
+	}
+
+	CollabRoomEventHub(Configuration config) {
+		bufferSize = config.getInt(APIConfig.SSE_BUFFERSIZE, DEFAULT_BUFFER_SIZE);
+		int heartbeatSecs = config.getInt(APIConfig.SSE_HEARTBEATSECONDS, DEFAULT_HEARTBEAT_SECS);
+		incidentMap = config.getString(APIConfig.INCIDENT_MAP, SADisplayConstants.INCIDENT_MAP);
+
+		heartbeat = new TimerTask() {
+			public void run() {
+				broadcast(HEARTBEAT);
+			}
+		};
+		if (heartbeatSecs > 0) {
+			new Timer(true).scheduleAtFixedRate(heartbeat, heartbeatSecs * 1000L,
+					heartbeatSecs * 1000L);
+		}
+	}
+
+	/**
+	 * @return Whether the user may stream the room's events.
+	 */
+	public boolean isPermitted(long userId, int collabRoomId) {
+		return EntityCacheMgr.getInstance().hasCollabRoomPermission(userId, collabRoomId, incidentMap);
+	}
+
+	/**
+	 * Starts streaming the room's events to the client.
+	 * @return The connection, to be passed to {@link #disconnect(int, SseConnection)}
+	 *         once the client goes away.
+	 */
+	public SseConnection connect(int collabRoomId, long userId, AsyncContext asyncContext) throws IOException {
+		SseConnection connection = new SseConnection(asyncContext, userId, bufferSize);
+		connection.start();
+		Set<SseConnection> room = connections.get(collabRoomId);
+		if (room == null) {
+			Set<SseConnection> created = new CopyOnWriteArraySet<SseConnection>();
+			room = connections.putIfAbsent(collabRoomId, created);
+			if (room == null) {
+				room = created;
+			}
+		}
+		room.add(connection);
+		return connection;
+	}
+
+	public void disconnect(int collabRoomId, SseConnection connection) {
+		connection.close();
+		Set<SseConnection> room = connections.get(collabRoomId);
+		if (room != null) {
+			room.remove(connection);
+			if (room.isEmpty()) {
+				connections.remove(collabRoomId, room);
+			}
+		}
+	}
+
+	public void onMessage(String topic, String msg) {
+		if (!topic.startsWith(TOPIC_PREFIX)) {
+			return;
+		}
+		String[] words = topic.substring(TOPIC_PREFIX.length()).split("\\.");
+		if (words.length != 2) {
+			return;
+		}
+		int collabRoomId;
+		try {
+			collabRoomId = Integer.parseInt(words[0]);
+		} catch (NumberFormatException e) {
+			return;
+		}
+		Set<SseConnection> room = connections.get(collabRoomId);
+		if (room != null) {
+			send(room, SseConnection.frame(words[1], msg));
+		}
+	}
+
+	public void invalidated(final String entity, final int id) {
+		if (connections.isEmpty()) {
+			return;
+		}
+		checker.execute(new Runnable() {
+			public void run() {
+				recheck(entity, id);
+			}
+		});
+	}
+
+	/**
+	 * Closes the streams affected by the invalidation whose users are no longer
+	 * permitted in their room.
+	 */
+	void recheck(String entity, int id) {
+		for (Map.Entry<Integer, Set<SseConnection>> room : connections.entrySet()) {
+			int collabRoomId = room.getKey();
+			if (EntityCacheInvalidator.COLLABROOM.equals(entity) && collabRoomId != id) {
+				continue;
+			}
+			for (SseConnection connection : room.getValue()) {
+				if (EntityCacheInvalidator.USER.equals(entity) && connection.getUserId() != id) {
+					continue;
+				}
+				try {
+					if (!isPermitted(connection.getUserId(), collabRoomId)) {
+						APILogger.getInstance().i(CNAME, "User " + connection.getUserId() +
+								" no longer permitted in collab room " + collabRoomId + ", closing its event stream");
+						disconnect(collabRoomId, connection);
+					}
+				} catch (RuntimeException e) {
+					APILogger.getInstance().e(CNAME, "Failed to check collab room " + collabRoomId +
+							" permission for user " + connection.getUserId(), e);
+				}
+			}
+		}
+	}
+
+	private void broadcast(String frame) {
+		for (Set<SseConnection> room : connections.values()) {
+			send(room, frame);
+		}
+	}
+
+	private void send(Set<SseConnection> room, String frame) {
+		for (SseConnection connection : room) {
+			if (!connection.send(frame)) {
+				room.remove(connection);
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.sse;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.util.APILogger;
+
+/**
+ * Streams a collab room's events to the requesting user as Server-Sent Events.
+ * 
+ * GET .../events/collabroom/{collabRoomId} with the CUSTOM-uid header of a user
+ * permitted in the room. The request is kept open asynchronously, so streams do
+ * not hold container threads; see {@link CollabRoomEventHub}.
+ */
+public class CollabRoomEventServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final String CNAME = CollabRoomEventServlet.class.getName();
+
+	// How long the client waits before reconnecting a dropped stream.
+	private static final int RETRY_MILLIS = 5000;
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		final int collabRoomId;
+		try {
+			collabRoomId = Integer.parseInt(request.getPathInfo().replaceAll("^/|/$", ""));
+		} catch (NumberFormatException | NullPointerException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Expected a collab room id");
+			return;
+		}
+
+		String username = request.getHeader("CUSTOM-uid");
+		final CollabRoomEventHub hub = CollabRoomEventHub.getInstance();
+		long userId = (username == null) ? -1 : EntityCacheMgr.getInstance().getUserId(username);
+		if (username == null || !hub.isPermitted(userId, collabRoomId)) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		response.setContentType("text/event-stream");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		// Keep reverse proxies from buffering the stream.
+		response.setHeader("X-Accel-Buffering", "no");
+
+		AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(0);
+		final SseConnection connection;
+		try {
+			connection = hub.connect(collabRoomId, userId, asyncContext);
+		} catch (IOException e) {
+			APILogger.getInstance().d(CNAME, "Event stream closed before it started: " + e.getMessage());
+			asyncContext.complete();
+			return;
+		}
+		asyncContext.addListener(new AsyncListener() {
+			public void onComplete(AsyncEvent event) {
+				hub.disconnect(collabRoomId, connection);
+			}
+
+			public void onTimeout(AsyncEvent event) {
+				hub.disconnect(collabRoomId, connection);
+			}
+
+			public void onError(AsyncEvent event) {
+				hub.disconnect(collabRoomId, connection);
+			}
+
+			public void onStartAsync(AsyncEvent event) {
+			}
+		});
+		connection.send("retry: " + RETRY_MILLIS + "\n\n");
+	}
+}
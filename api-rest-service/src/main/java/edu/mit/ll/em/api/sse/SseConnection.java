@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.sse;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import edu.mit.ll.em.api.util.APILogger;
+
+/**
+ * One Server-Sent Events stream held open by a client.
+ * 
+ * Events are buffered per connection and written without blocking: as much as
+ * the client takes is written, and the rest when the container reports the
+ * stream writable again. A slow client never holds up a thread or the others.
+ * A client that falls more than the buffer size behind is disconnected, and is
+ * expected to reconnect.
+ */
+public class SseConnection implements WriteListener {
+
+	private static final String CNAME = SseConnection.class.getName();
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final AsyncContext asyncContext;
+
+	private final long userId;
+
+	private final int capacity;
+
+	// Frames not yet written, guarded by itself along with out.
+	private final ArrayDeque<byte[]> buffer = new ArrayDeque<byte[]>();
+
+	// Set once the stream is in non-blocking mode.
+	private ServletOutputStream out;
+
+	// Written frames are pushed to the client once the buffer is drained.
+	private boolean unflushed = false;
+
+	private volatile boolean closed = false;
+
+	public SseConnection(AsyncContext asyncContext, long userId, int capacity) {
+		this.asyncContext = asyncContext;
+		this.userId = userId;
+		this.capacity = Math.max(capacity, 1);
+	}
+
+	/**
+	 * Formats an event in the text/event-stream format.
+	 * @param event Event name, or null for the default "message" event.
+	 * @param data Event payload; each of its lines is sent as a data line.
+	 */
+	public static String frame(String event, String data) {
+		StringBuilder sb = new StringBuilder();
+		if (event != null) {
+			sb.append("event: ").append(event).append('\n');
+		}
+		for (String line : data.split("\r\n|\r|\n", -1)) {
+			sb.append("data: ").append(line).append('\n');
+		}
+		return sb.append('\n').toString();
+	}
+
+	/**
+	 * Puts the response stream in non-blocking mode. Frames sent before are
+	 * written once the container reports it writable.
+	 */
+	public void start() throws IOException {
+		ServletOutputStream stream = asyncContext.getResponse().getOutputStream();
+		synchronized (buffer) {
+			out = stream;
+		}
+		stream.setWriteListener(this);
+	}
+
+	/**
+	 * @return The user the stream was opened for.
+	 */
+	public long getUserId() {
+		return userId;
+	}
+
+	/**
+	 * Queues a preformatted frame for the client, writing what it takes right away.
+	 * @return false if the connection is closed, or was just closed because
+	 *         its buffer overflowed.
+	 */
+	public boolean send(String frame) {
+		synchronized (buffer) {
+			if (closed) {
+				return false;
+			}
+			if (buffer.size() >= capacity) {
+				APILogger.getInstance().w(CNAME, "Event stream fell " + capacity +
+						" events behind, disconnecting");
+			} else {
+				buffer.add(frame.getBytes(UTF8));
+				if (write()) {
+					return true;
+				}
+			}
+		}
+		close();
+		return false;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Ends the stream. Frames not yet written are discarded.
+	 */
+	public void close() {
+		synchronized (buffer) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			buffer.clear();
+		}
+		try {
+			asyncContext.complete();
+		} catch (IllegalStateException e) {
+			// Already completed by the container.
+		}
+	}
+
+	/**
+	 * Called by the container once the client has taken what was last written.
+	 */
+	public void onWritePossible() {
+		synchronized (buffer) {
+			if (write()) {
+				return;
+			}
+		}
+		close();
+	}
+
+	public void onError(Throwable t) {
+		APILogger.getInstance().d(CNAME, "Event stream closed by client: " + t.getMessage());
+		close();
+	}
+
+	/**
+	 * Writes buffered frames for as long as the stream takes them without blocking.
+	 * Called holding the buffer lock.
+	 * @return false if the stream failed and the connection has to be closed.
+	 */
+	private boolean write() {
+		if (closed || out == null) {
+			return true;
+		}
+		try {
+			while (out.isReady()) {
+				byte[] frame = buffer.poll();
+				if (frame != null) {
+					out.write(frame);
+					unflushed = true;
+				} else if (unflushed) {
+					unflushed = false;
+					out.flush();
+				} else {
+					return true;
+				}
+			}
+			// Not ready: the container calls onWritePossible once it is.
+			return true;
+		} catch (IOException | IllegalStateException e) {
+			APILogger.getInstance().d(CNAME, "Event stream closed by client: " + e.getMessage());
+			return false;
+		}
+	}
+}
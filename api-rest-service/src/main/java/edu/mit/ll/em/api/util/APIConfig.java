@@ -30,6 +30,8 @@
 package edu.mit.ll.em.api.util;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
@@ -44,6 +46,33 @@ public class APIConfig {
 	public static final String API_PROPS_FILE = "em-api.properties";
 	
 	public static final String CACHE_USER_REFRESHMINUTES = "em.api.cache.user.refreshminutes";
+	public static final String CACHE_ENTITY_MAXSIZE = "em.api.cache.entity.maxsize";
+	public static final String CACHE_ENTITY_EXPIREMINUTES = "em.api.cache.entity.expireminutes";
+	public static final String CACHE_ENTITY_REFRESHMINUTES = "em.api.cache.entity.refreshminutes";
+	public static final String CACHE_ENTITY_STATSMINUTES = "em.api.cache.entity.statsminutes";
+	public static final String CACHE_ENTITY_NEGATIVESECONDS = "em.api.cache.entity.negativeseconds";
+	public static final String CACHE_PERMISSION_MAXSIZE = "em.api.cache.permission.maxsize";
+	public static final String CACHE_PERMISSION_SECONDS = "em.api.cache.permission.seconds";
+	public static final String CACHE_INVALIDATION_ENABLED = "em.api.cache.invalidation.enabled";
+	public static final String CACHE_INVALIDATION_TOPIC = "em.api.cache.invalidation.topic";
+	public static final String MSGBUS_MAXWAITSECONDS = "em.api.msgbus.maxwaitseconds";
+	public static final String MSGBUS_QUEUE_CAPACITY = "em.api.msgbus.queue.capacity";
+	public static final String MSGBUS_QUEUE_OVERFLOW = "em.api.msgbus.queue.overflow";
+	public static final String MSGBUS_REAPSECONDS = "em.api.msgbus.reapseconds";
+	public static final String MSGBUS_RELAY_ENABLED = "em.api.msgbus.relay.enabled";
+	public static final String MSGBUS_RELAY_BINDINGS = "em.api.msgbus.relay.bindings";
+	public static final String MSGBUS_RELAY_EXCLUDE = "em.api.msgbus.relay.exclude";
+	public static final String MSGBUS_REPLAY_SIZE = "em.api.msgbus.replay.size";
+	public static final String MSGBUS_REPLAY_TOPICS = "em.api.msgbus.replay.topics";
+	public static final String MSGBUS_REPLAY_MEGABYTES = "em.api.msgbus.replay.megabytes";
+	public static final String SSE_BUFFERSIZE = "em.api.sse.buffersize";
+	public static final String SSE_HEARTBEATSECONDS = "em.api.sse.heartbeatseconds";
+	public static final String COLLAB_PRESENCE_WINDOWMILLIS = "em.api.collab.presence.windowmillis";
+	public static final String COLLAB_PRESENCE_IDLEMINUTES = "em.api.collab.presence.idleminutes";
+	public static final String COLLAB_PRESENCE_MISSINGMINUTES = "em.api.collab.presence.missingminutes";
+	public static final String COLLAB_PRESENCE_TICKMILLIS = "em.api.collab.presence.tickmillis";
+	public static final String COLLAB_PRESENCE_REPLICATION_ENABLED = "em.api.collab.presence.replication.enabled";
+	public static final String COLLAB_PRESENCE_REPLICATION_TOPIC = "em.api.collab.presence.replication.topic";
 	
 	public static final String NEW_USER_ALERT_EMAIL = "em.api.user.alert.email";
 	public static final String NEW_USER_ENABLED_EMAIL = "em.api.newuser.enabled.email";
@@ -63,6 +92,15 @@ public class APIConfig {
 	public static final String RABBIT_FAILOVER_HOSTNAME = "em.api.rabbitmq.failover.hostname";
 	public static final String RABBIT_BINDING_KEYS = "em.api.rabbitmq.bindingkeys";
 	public static final String RABBIT_MSG_VERSION = "em.api.rabbitmq.msgver";
+	public static final String RABBIT_PUBLISHER_CAPACITY = "em.api.rabbitmq.publisher.capacity";
+	public static final String RABBIT_PUBLISHER_THREADS = "em.api.rabbitmq.publisher.threads";
+	public static final String RABBIT_PUBLISHER_BATCHSIZE = "em.api.rabbitmq.publisher.batchsize";
+	public static final String RABBIT_PUBLISHER_RETRIES = "em.api.rabbitmq.publisher.retries";
+	public static final String RABBIT_PUBLISHER_STATSMINUTES = "em.api.rabbitmq.publisher.statsminutes";
+	public static final String RABBIT_OUTBOX_DIR = "em.api.rabbitmq.outbox.dir";
+	public static final String RABBIT_OUTBOX_SEGMENTMB = "em.api.rabbitmq.outbox.segmentmb";
+	public static final String RABBIT_OUTBOX_SYNCMILLIS = "em.api.rabbitmq.outbox.syncmillis";
+	public static final String RABBIT_OUTBOX_TOPICS = "em.api.rabbitmq.outbox.topics";
 	
 	public static final String CHAT_STALEMSG_FACTOR_STRING = "em.api.resource.chat.stalemsg.factor.string";
 	public static final String CHAT_STALEMSG_FACTOR_MINS = "em.api.resource.chat.stalemsg.factor.mins";
@@ -73,6 +111,37 @@ public class APIConfig {
 	public static final String MDT_SRS_NAME = "em.api.service.mdt.srsName";
 	public static final String MDT_WFS_SCHEMA_URI = "em.api.service.mdt.wfsSchemaURI";
 	public static final String MDT_WFS_SERVICE_URI = "em.api.service.mdt.wfsServiceURI";
+	public static final String MDT_BATCH_MAX = "em.api.service.mdt.batch.max";
+	public static final String MDT_DEADBAND_METERS = "em.api.service.mdt.deadband.meters";
+	public static final String MDT_DEADBAND_DEGREES = "em.api.service.mdt.deadband.degrees";
+	public static final String MDT_DEADBAND_SPEED = "em.api.service.mdt.deadband.speed";
+	public static final String MDT_DEADBAND_MAXSILENCESECONDS = "em.api.service.mdt.deadband.maxsilenceseconds";
+	public static final String MDT_DEADBAND_MAXDEVICES = "em.api.service.mdt.deadband.maxdevices";
+	public static final String MDT_DEADBAND_STATSMINUTES = "em.api.service.mdt.deadband.statsminutes";
+	public static final String MDT_INDEX_CELLDEGREES = "em.api.service.mdt.index.celldegrees";
+	public static final String MDT_INDEX_MAXENTRIES = "em.api.service.mdt.index.maxentries";
+	public static final String MDT_INDEX_MAXAGEMINUTES = "em.api.service.mdt.index.maxageminutes";
+	public static final String MDT_INDEX_MAXRESULTS = "em.api.service.mdt.index.maxresults";
+	public static final String FEATURE_CHANGELOG_SIZE = "em.api.feature.changelog.size";
+	public static final String FEATURE_CHANGELOG_MAXROOMS = "em.api.feature.changelog.maxrooms";
+	public static final String FEATURE_CHANGELOG_IDLEHOURS = "em.api.feature.changelog.idlehours";
+	public static final String FEATURE_CHANGELOG_LISTEN = "em.api.feature.changelog.listen";
+	public static final String FEATURE_CHANGELOG_SKEWSECONDS = "em.api.feature.changelog.skewseconds";
+	public static final String FEATURE_INDEX_MAXROOMS = "em.api.feature.index.maxrooms";
+	public static final String FEATURE_INDEX_IDLEMINUTES = "em.api.feature.index.idleminutes";
+	public static final String FEATURE_INDEX_MAXRESULTS = "em.api.feature.index.maxresults";
+	public static final String FEATURE_SIMPLIFY_MINVERTICES = "em.api.feature.simplify.minvertices";
+	public static final String FEATURE_SIMPLIFY_MEGABYTES = "em.api.feature.simplify.megabytes";
+	public static final String FEATURE_BATCH_MAX = "em.api.feature.batch.max";
+	public static final String FEATURE_COPY_STATSMINUTES = "em.api.feature.copy.statsminutes";
+	public static final String FEATURE_COPY_PERFEATUREMESSAGES = "em.api.feature.copy.perfeaturemessages";
+	public static final String STREAMING_ENABLED = "em.api.streaming.enabled";
+	public static final String STREAMING_PAGESIZE = "em.api.streaming.pagesize";
+	public static final String SSO_TOKENCACHE_SECONDS = "em.api.sso.tokencache.seconds";
+	public static final String SSO_TOKENCACHE_MAXSIZE = "em.api.sso.tokencache.maxsize";
+	public static final String SSO_TOKENCACHE_STATSMINUTES = "em.api.sso.tokencache.statsminutes";
+	public static final String SSO_ADMINPOOL_SIZE = "em.api.sso.adminpool.size";
+	public static final String SSO_ADMINPOOL_MAXAGEMINUTES = "em.api.sso.adminpool.maxageminutes";
 	
 	public final static String DB_MAX_ROWS = "em.api.db.get.maxrows";
 	
@@ -137,6 +206,28 @@ public class APIConfig {
 	public Configuration getConfiguration() {
 		return config;
 	}
+
+	/**
+	 * Reads a comma separated setting. The configuration splits such values into
+	 * lists itself, so {@link Configuration#getString(String)} only returns the first.
+	 * 
+	 * @return The trimmed, non-empty values of the key, or of defaultValue if the key is not set
+	 */
+	public static String[] getList(Configuration config, String key, String defaultValue) {
+		String[] values = config.getStringArray(key);
+		if (values.length == 0) {
+			values = new String[] { defaultValue };
+		}
+		List<String> list = new ArrayList<String>();
+		for (String value : values) {
+			for (String item : value.split(",")) {
+				if (!item.trim().isEmpty()) {
+					list.add(item.trim());
+				}
+			}
+		}
+		return list.toArray(new String[list.size()]);
+	}
 	
 	protected APIConfig() {
 		loadConfig();
@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+import com.vividsolutions.jts.io.WKTWriter;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+/**
+ * Simplifies feature geometries for display at a map resolution, dropping the
+ * vertices closer together than a pixel while keeping rings valid and
+ * non-crossing.
+ * 
+ * Tolerances are rounded down to a power of two, so a handful of simplified
+ * versions are kept per feature whatever resolutions clients ask for. Each is
+ * cached along with a hash of the geometry it was made from, and made again
+ * once the feature's geometry changes. The cache is bounded by the size of
+ * the geometries it holds, "...feature.simplify.megabytes".
+ */
+public class FeatureSimplifier {
+
+	private static final String CNAME = FeatureSimplifier.class.getName();
+
+	private static final int DEFAULT_MIN_VERTICES = 100;
+	private static final long DEFAULT_CACHE_MEGABYTES = 64;
+
+	/** Meters per pixel of a 256 pixel EPSG:3857 tile at zoom 0 */
+	private static final double MERCATOR_ZOOM0_RESOLUTION = 2 * Math.PI * 6378137 / 256;
+	/** Degrees per pixel of a 256 pixel EPSG:4326 tile at zoom 0 */
+	private static final double DEGREES_ZOOM0_RESOLUTION = 360.0 / 256;
+	private static final int MAX_ZOOM = 30;
+	private static final int GEOGRAPHIC_GEOTYPE = 4326;
+
+	private static final class Simplified {
+		// Hash of the geometry it was made from
+		final long source;
+		// Null when simplifying didn't make the geometry smaller
+		final String geometry;
+
+		Simplified(long source, String geometry) {
+			this.source = source;
+			this.geometry = geometry;
+		}
+	}
+
+	private static final HashFunction SOURCE_HASH = Hashing.murmur3_128();
+
+	private final int minVertices;
+	private final Cache<String, Simplified> cache;
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static FeatureSimplifier instance = new FeatureSimplifier();
+	}
+
+	public static FeatureSimplifier getInstance() {
+		return Holder.instance;
+	}
+
+	// Hide the default constructor.
+	private FeatureSimplifier() {
+		this(APIConfig.getInstance().getConfiguration());
+	}
+
+	FeatureSimplifier(Configuration config) {
+		this.minVertices = config.getInt(APIConfig.FEATURE_SIMPLIFY_MINVERTICES, DEFAULT_MIN_VERTICES);
+		this.cache = CacheBuilder.newBuilder()
+				.maximumWeight(config.getLong(APIConfig.FEATURE_SIMPLIFY_MEGABYTES, DEFAULT_CACHE_MEGABYTES)
+						* 1024 * 1024)
+				.weigher(new Weigher<String, Simplified>() {
+					public int weigh(String key, Simplified simplified) {
+						// Two bytes a char
+						int chars = key.length() + (simplified.geometry == null ? 0 : simplified.geometry.length());
+						return 2 * chars;
+					}
+				})
+				.build();
+	}
+
+	/**
+	 * Tolerance to simplify to for a zoom level or a resolution, rounded down
+	 * to a power of two.
+	 * 
+	 * @param zoom Web map zoom level, 0 to 30
+	 * @param resolution Units of the geoType per pixel; used over zoom when both are given
+	 * @param geoType EPSG code of the geometries' coordinates
+	 * @return The tolerance, or null when neither zoom nor resolution is given
+	 * @throws IllegalArgumentException When the zoom or resolution is out of range
+	 */
+	public static Double getTolerance(Integer zoom, Double resolution, int geoType) {
+		double units;
+		if (resolution != null) {
+			// Also turns away NaN
+			if (!(resolution > 0) || resolution.isInfinite()) {
+				throw new IllegalArgumentException("resolution must be positive");
+			}
+			units = resolution;
+		} else if (zoom != null) {
+			if (zoom < 0 || zoom > MAX_ZOOM) {
+				throw new IllegalArgumentException("zoom must be 0 to " + MAX_ZOOM);
+			}
+			units = (geoType == GEOGRAPHIC_GEOTYPE ? DEGREES_ZOOM0_RESOLUTION : MERCATOR_ZOOM0_RESOLUTION)
+					/ (1L << zoom);
+		} else {
+			return null;
+		}
+		return Math.pow(2, Math.floor(Math.log(units) / Math.log(2)));
+	}
+
+	/**
+	 * @param featureId Id of the feature the geometry belongs to
+	 * @param geoType EPSG code of the geometry's coordinates
+	 * @param wkt Geometry of the feature
+	 * @param tolerance As returned by {@link #getTolerance(Integer, Double, int)}
+	 * @return The simplified geometry, or wkt itself when simplifying
+	 * 	doesn't make it smaller
+	 */
+	public String simplify(long featureId, int geoType, String wkt, double tolerance) {
+		if (wkt == null || countVertices(wkt) < minVertices) {
+			return wkt;
+		}
+		String key = featureId + ":" + geoType + ":" + tolerance;
+		long source = SOURCE_HASH.hashUnencodedChars(wkt).asLong();
+		Simplified simplified = cache.getIfPresent(key);
+		if (simplified == null || simplified.source != source) {
+			simplified = new Simplified(source, simplify(wkt, tolerance));
+			cache.put(key, simplified);
+		}
+		return simplified.geometry == null ? wkt : simplified.geometry;
+	}
+
+	/** @return The simplified geometry, or null when it isn't smaller */
+	private String simplify(String wkt, double tolerance) {
+		try {
+			Geometry geometry = new WKTReader().read(wkt);
+			Geometry simplified = TopologyPreservingSimplifier.simplify(geometry, tolerance);
+			if (simplified.getNumPoints() >= geometry.getNumPoints()) {
+				return null;
+			}
+			return new WKTWriter().write(simplified);
+		} catch (ParseException e) {
+			APILogger.getInstance().w(CNAME, "Unreadable geometry left unsimplified: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/** @return Number of vertices in the WKT */
+	static int countVertices(String wkt) {
+		int vertices = 1;
+		for (int i = 0; i < wkt.length(); i++) {
+			if (wkt.charAt(i) == ',') {
+				vertices++;
+			}
+		}
+		return vertices;
+	}
+}
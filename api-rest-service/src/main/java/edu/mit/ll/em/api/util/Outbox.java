@@ -0,0 +1,430 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of messages waiting to be published, so notifications
+ * survive broker outages and restarts.
+ * 
+ * Each message gets an increasing id and is appended to the current segment
+ * file before it is handed to a publishing thread. Once the broker has taken it
+ * the id is appended to the segment's ack file; {@link #claim(int)} only hands
+ * out messages that are neither acknowledged nor already in flight, so a
+ * message is never queued twice and is never resent once acknowledged, even
+ * after a restart. A message sent just before a crash whose ack did not reach
+ * the disk is sent again on startup.
+ * 
+ * Segments roll over at a configured size and are deleted once every message in
+ * them is acknowledged. Writes go to the OS without waiting for the disk;
+ * {@link #sync()} forces them out and is expected to be called periodically.
+ */
+public class Outbox {
+
+	private static final String CNAME = Outbox.class.getName();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String LOG_SUFFIX = ".log";
+	private static final String ACK_SUFFIX = ".ack";
+	// length and checksum ahead of each record
+	private static final int HEADER_BYTES = 8;
+
+	/**
+	 * A journaled message.
+	 */
+	public static final class Entry {
+		private final long id;
+		private final String topic;
+		private final String message;
+
+		Entry(long id, String topic, String message) {
+			this.id = id;
+			this.topic = topic;
+			this.message = message;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public String getTopic() {
+			return topic;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	private final File dir;
+	private final long segmentBytes;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private Segment active;
+	private long nextId = 1;
+	private int unacked;
+
+	/**
+	 * Opens the journal in dir, recovering any messages left unacknowledged by a
+	 * previous run.
+	 * 
+	 * @param dir directory holding the segment files, created if missing
+	 * @param segmentBytes size at which a new segment is started
+	 */
+	public Outbox(File dir, long segmentBytes) throws IOException {
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create outbox directory " + dir);
+		}
+		recover();
+	}
+
+	/**
+	 * Journals a message. The message is returned as in flight and is not handed
+	 * out by {@link #claim(int)} until it is {@link #release(long) released}.
+	 * 
+	 * @return the message id
+	 */
+	public synchronized long append(String topic, String message) throws IOException {
+		if (active == null || active.size >= segmentBytes) {
+			roll();
+		}
+		long id = nextId++;
+		active.append(encode(id, topic, message));
+		active.busy.set(active.index(id));
+		unacked++;
+		return id;
+	}
+
+	/**
+	 * Records that the broker has taken the message.
+	 */
+	public synchronized void ack(long id) throws IOException {
+		Segment s = find(id);
+		if (s == null || s.acked.get(s.index(id))) {
+			return;
+		}
+		s.ack(id);
+		unacked--;
+		if (s != active && s.isDone()) {
+			s.delete();
+			segments.remove(s);
+		}
+	}
+
+	/**
+	 * Makes an unacknowledged message available to {@link #claim(int)} again.
+	 */
+	public synchronized void release(long id) {
+		Segment s = find(id);
+		if (s != null && !s.acked.get(s.index(id))) {
+			s.busy.clear(s.index(id));
+		}
+	}
+
+	/**
+	 * Reads back the oldest messages that are neither acknowledged nor in flight,
+	 * and marks them in flight.
+	 * 
+	 * @param max most messages to return
+	 */
+	public synchronized List<Entry> claim(int max) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (Segment s : segments) {
+			int i = s.busy.nextClearBit(0);
+			while (i < s.count && entries.size() < max) {
+				entries.add(s.read(i));
+				s.busy.set(i);
+				i = s.busy.nextClearBit(i + 1);
+			}
+			if (entries.size() >= max) {
+				break;
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * @return number of journaled messages not yet acknowledged.
+	 */
+	public synchronized int getPendingCount() {
+		return unacked;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Forces journaled messages and acks out to the disk.
+	 */
+	public synchronized void sync() throws IOException {
+		for (Segment s : segments) {
+			s.sync();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		sync();
+		for (Segment s : segments) {
+			s.close();
+		}
+	}
+
+	private void roll() throws IOException {
+		if (active != null && active.isDone()) {
+			active.delete();
+			segments.remove(active);
+		}
+		active = new Segment(new File(dir, String.format("%020d", nextId) + LOG_SUFFIX), nextId);
+		active.open();
+		segments.add(active);
+	}
+
+	private Segment find(long id) {
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			Segment s = segments.get(i);
+			if (id >= s.firstId) {
+				return id < s.firstId + s.count ? s : null;
+			}
+		}
+		return null;
+	}
+
+	private void recover() throws IOException {
+		File[] logs = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return name.endsWith(LOG_SUFFIX);
+			}
+		});
+		if (logs == null) {
+			return;
+		}
+		// Zero padded names sort by first id.
+		Arrays.sort(logs);
+		for (File log : logs) {
+			long firstId;
+			try {
+				firstId = Long.parseLong(log.getName().substring(0, log.getName().length() - LOG_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				APILogger.getInstance().w(CNAME, "Ignoring unexpected outbox file " + log);
+				continue;
+			}
+			Segment s = new Segment(log, firstId);
+			s.open();
+			s.load();
+			if (s.isDone()) {
+				s.delete();
+				continue;
+			}
+			segments.add(s);
+			unacked += s.count - s.acked.cardinality();
+			nextId = Math.max(nextId, s.firstId + s.count);
+		}
+		if (unacked > 0) {
+			APILogger.getInstance().i(CNAME, "Recovered " + unacked + " unpublished messages from " + dir);
+		}
+	}
+
+	private static ByteBuffer encode(long id, String topic, String message) {
+		byte[] t = topic.getBytes(UTF8);
+		byte[] m = message.getBytes(UTF8);
+		int bodyBytes = 8 + 4 + t.length + 4 + m.length;
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + bodyBytes);
+		buf.putInt(bodyBytes);
+		buf.putInt(0);
+		buf.putLong(id);
+		buf.putInt(t.length).put(t);
+		buf.putInt(m.length).put(m);
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), HEADER_BYTES, bodyBytes);
+		buf.putInt(4, (int) crc.getValue());
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * A log file of consecutive message ids and the ack file beside it.
+	 */
+	private static final class Segment {
+		private final File log;
+		private final File ackLog;
+		private final long firstId;
+		private FileChannel logChannel;
+		private FileChannel ackChannel;
+		private long[] offsets = new long[1024];
+		private int count;
+		private long size;
+		// acknowledged
+		private final BitSet acked = new BitSet();
+		// acknowledged or in flight
+		private final BitSet busy = new BitSet();
+
+		Segment(File log, long firstId) {
+			this.log = log;
+			this.ackLog = new File(log.getParentFile(),
+					log.getName().replace(LOG_SUFFIX, ACK_SUFFIX));
+			this.firstId = firstId;
+		}
+
+		int index(long id) {
+			return (int) (id - firstId);
+		}
+
+		boolean isDone() {
+			return acked.cardinality() == count;
+		}
+
+		void open() throws IOException {
+			logChannel = new RandomAccessFile(log, "rw").getChannel();
+			ackChannel = new RandomAccessFile(ackLog, "rw").getChannel();
+		}
+
+		void append(ByteBuffer record) throws IOException {
+			long position = size;
+			while (record.hasRemaining()) {
+				size += logChannel.write(record, size);
+			}
+			if (count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, count * 2);
+			}
+			offsets[count++] = position;
+		}
+
+		void ack(long id) throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate(8);
+			buf.putLong(id).flip();
+			long position = ackChannel.size();
+			while (buf.hasRemaining()) {
+				position += ackChannel.write(buf, position);
+			}
+			acked.set(index(id));
+			busy.set(index(id));
+		}
+
+		Entry read(int index) throws IOException {
+			long position = offsets[index];
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			readFully(logChannel, header, position);
+			ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+			readFully(logChannel, body, position + HEADER_BYTES);
+			body.flip();
+			long id = body.getLong();
+			byte[] t = new byte[body.getInt()];
+			body.get(t);
+			byte[] m = new byte[body.getInt()];
+			body.get(m);
+			return new Entry(id, new String(t, UTF8), new String(m, UTF8));
+		}
+
+		/**
+		 * Indexes the records written by a previous run, truncating a record left
+		 * partially written by a crash, and applies the recorded acks.
+		 */
+		void load() throws IOException {
+			long length = logChannel.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while (size + HEADER_BYTES <= length) {
+				header.clear();
+				readFully(logChannel, header, size);
+				int bodyBytes = header.getInt(0);
+				if (bodyBytes < 16 || size + HEADER_BYTES + bodyBytes > length) {
+					break;
+				}
+				ByteBuffer body = ByteBuffer.allocate(bodyBytes);
+				readFully(logChannel, body, size + HEADER_BYTES);
+				CRC32 crc = new CRC32();
+				crc.update(body.array(), 0, bodyBytes);
+				if ((int) crc.getValue() != header.getInt(4) || body.getLong(0) != firstId + count) {
+					break;
+				}
+				if (count == offsets.length) {
+					offsets = Arrays.copyOf(offsets, count * 2);
+				}
+				offsets[count++] = size;
+				size += HEADER_BYTES + bodyBytes;
+			}
+			if (size < length) {
+				APILogger.getInstance().w(CNAME, "Truncating " + (length - size) +
+						" unreadable bytes from " + log);
+				logChannel.truncate(size);
+			}
+
+			ByteBuffer ids = ByteBuffer.allocate((int) (ackChannel.size() / 8 * 8));
+			readFully(ackChannel, ids, 0);
+			ids.flip();
+			while (ids.remaining() >= 8) {
+				long id = ids.getLong();
+				if (id >= firstId && id < firstId + count) {
+					acked.set(index(id));
+					busy.set(index(id));
+				}
+			}
+		}
+
+		void sync() throws IOException {
+			logChannel.force(false);
+			ackChannel.force(false);
+		}
+
+		void close() throws IOException {
+			logChannel.close();
+			ackChannel.close();
+		}
+
+		void delete() throws IOException {
+			close();
+			if (!log.delete() || !ackLog.delete()) {
+				APILogger.getInstance().w(CNAME, "Unable to delete outbox segment " + log);
+			}
+		}
+
+		private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+			while (buf.hasRemaining()) {
+				int n = channel.read(buf, position);
+				if (n < 0) {
+					throw new IOException("Unexpected end of outbox file");
+				}
+				position += n;
+			}
+		}
+	}
+}
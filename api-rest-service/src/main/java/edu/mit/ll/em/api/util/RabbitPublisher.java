@@ -0,0 +1,534 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.Configuration;
+
+import edu.mit.ll.em.api.msgbus.TopicIndex;
+import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
+import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
+
+/**
+ * Publishes messages to the Rabbit exchange off of the request threads.
+ * 
+ * {@link #publish(String, String)} only places the message on a bounded queue
+ * and returns. Dedicated daemon threads each drain their queue over their own
+ * connection, taking up to "...rabbitmq.publisher.batchsize" messages at a time
+ * off of it; the messages are still produced one by one. Topics are spread over
+ * the "...rabbitmq.publisher.threads" publishing threads by hash, so the messages
+ * for a topic reach the broker in the order they were published. Once
+ * "...rabbitmq.publisher.capacity" messages are waiting, new messages are
+ * dropped and counted rather than holding up the caller.
+ * 
+ * A message counts as delivered once the producer accepts it. When the broker
+ * cannot be reached the connection is reopened and the message retried up to
+ * "...rabbitmq.publisher.retries" times before it is counted as failed.
+ * Queue depth, latency and failure counters are logged every
+ * "...rabbitmq.publisher.statsminutes"; see {@link #getStats()}.
+ * 
+ * When "...rabbitmq.outbox.dir" is set, each message on one of the
+ * "...rabbitmq.outbox.topics" is first journaled to an {@link Outbox} in that
+ * directory and acknowledged there once sent. A journaled JSON object is given a
+ * unique "messageId" field before it is journaled, so a copy sent again after a
+ * crash between the send and its acknowledgment can be told apart by consumers. Messages
+ * that do not fit in the queue stay in the journal instead of being dropped. A
+ * journaled message is never failed: once out of retries its thread keeps
+ * retrying it, so nothing queued behind it overtakes it. A replay thread feeds them back
+ * onto the queues in id order as room frees up, starting with whatever a
+ * previous run left behind. While such a backlog exists new messages go to the
+ * journal only, so they do not overtake older ones.
+ */
+public class RabbitPublisher {
+
+	private static final String CNAME = RabbitPublisher.class.getName();
+
+	private static final int DEFAULT_CAPACITY = 10000;
+	private static final int DEFAULT_THREADS = 1;
+	private static final int DEFAULT_BATCH_SIZE = 100;
+	private static final int DEFAULT_RETRIES = 3;
+	private static final int DEFAULT_STATS_MINS = 15;
+	private static final long RECONNECT_MILLIS = 5000;
+	private static final long DEFAULT_OUTBOX_SEGMENT_MB = 16;
+	private static final long DEFAULT_OUTBOX_SYNC_MILLIS = 1000;
+	private static final String DEFAULT_OUTBOX_TOPICS = "iweb.NICS.collabroom.*.feature," +
+			"iweb.NICS.collabroom.*.changefeature,iweb.NICS.collabroom.*.deletefeature," +
+			"iweb.NICS.collabroom.*.featurebatch,iweb.NICS.collabroom.*.chat," +
+			"iweb.NICS.incident.#,iweb.NICS.ws.#";
+
+	/**
+	 * Field added to journaled JSON messages, unique to each message.
+	 */
+	public static final String MESSAGE_ID = "messageId";
+
+	/**
+	 * Opens a producer for one of the publishing threads.
+	 */
+	interface ProducerFactory {
+		RabbitPubSubProducer create() throws IOException;
+	}
+
+	private static final class Pending {
+		// outbox id, 0 when the message is not journaled
+		private final long id;
+		private final String topic;
+		private final String message;
+		private final long enqueuedNanos = System.nanoTime();
+		private int attempts;
+
+		Pending(long id, String topic, String message) {
+			this.id = id;
+			this.topic = topic;
+			this.message = message;
+		}
+	}
+
+	private final ProducerFactory producerFactory;
+	private final Lane[] lanes;
+	private final int batchSize;
+	private final int retries;
+	private final long reconnectMillis;
+	private final Outbox outbox;
+	// Topics journaled to the outbox.
+	private final TopicIndex<Boolean> outboxTopics = new TopicIndex<Boolean>();
+
+	// Guards backlog, so the order messages are journaled in is the order they
+	// are queued in.
+	private final Object outboxLock = new Object();
+	// Set while journaled messages are waiting outside of the queues.
+	private boolean backlog;
+	private Thread replayer;
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong reconnects = new AtomicLong();
+	private final AtomicLong publishNanos = new AtomicLong();
+	private final AtomicLong maxBatchNanos = new AtomicLong();
+	private final AtomicLong queuedNanos = new AtomicLong();
+	private final AtomicLong deferred = new AtomicLong();
+
+	private final Timer timer = new Timer("rabbit-publisher", true);
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static RabbitPublisher instance = new RabbitPublisher();
+	}
+
+	public static RabbitPublisher getInstance() {
+		return Holder.instance;
+	}
+
+	// Hide the default constructor.
+	private RabbitPublisher() {
+		this(APIConfig.getInstance().getConfiguration(), new ProducerFactory() {
+			public RabbitPubSubProducer create() throws IOException {
+				Configuration config = APIConfig.getInstance().getConfiguration();
+				return RabbitFactory.makeRabbitPubSubProducer(
+						config.getString(APIConfig.RABBIT_HOSTNAME_KEY),
+						config.getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
+						config.getString(APIConfig.RABBIT_USERNAME_KEY),
+						config.getString(APIConfig.RABBIT_USERPWD_KEY));
+			}
+		}, openOutbox(APIConfig.getInstance().getConfiguration()), RECONNECT_MILLIS);
+
+		int statsMins = APIConfig.getInstance().getConfiguration().getInt(
+				APIConfig.RABBIT_PUBLISHER_STATSMINUTES, DEFAULT_STATS_MINS);
+		if (statsMins > 0) {
+			timer.scheduleAtFixedRate(new TimerTask() {
+				public void run() {
+					APILogger.getInstance().i(CNAME, "Rabbit publisher stats: " + getStats());
+				}
+			}, statsMins * 60 * 1000L, statsMins * 60 * 1000L);
+		}
+	}
+
+	RabbitPublisher(Configuration config, ProducerFactory producerFactory, long reconnectMillis) {
+		this(config, producerFactory, null, reconnectMillis);
+	}
+
+	RabbitPublisher(Configuration config, ProducerFactory producerFactory, Outbox outbox,
+			long reconnectMillis) {
+		this.producerFactory = producerFactory;
+		this.outbox = outbox;
+		this.reconnectMillis = reconnectMillis;
+		this.batchSize = Math.max(1, config.getInt(APIConfig.RABBIT_PUBLISHER_BATCHSIZE, DEFAULT_BATCH_SIZE));
+		this.retries = Math.max(0, config.getInt(APIConfig.RABBIT_PUBLISHER_RETRIES, DEFAULT_RETRIES));
+		int threads = Math.max(1, config.getInt(APIConfig.RABBIT_PUBLISHER_THREADS, DEFAULT_THREADS));
+		int capacity = Math.max(threads, config.getInt(APIConfig.RABBIT_PUBLISHER_CAPACITY, DEFAULT_CAPACITY));
+
+		lanes = new Lane[threads];
+		for (int i = 0; i < threads; i++) {
+			lanes[i] = new Lane(capacity / threads);
+			Thread t = new Thread(lanes[i], "rabbit-publisher-" + i);
+			t.setDaemon(true);
+			lanes[i].thread = t;
+			t.start();
+		}
+
+		if (outbox != null) {
+			for (String pattern : APIConfig.getList(config, APIConfig.RABBIT_OUTBOX_TOPICS, DEFAULT_OUTBOX_TOPICS)) {
+				outboxTopics.add(pattern, Boolean.TRUE);
+			}
+
+			// Resend whatever a previous run left in the journal.
+			backlog = outbox.getPendingCount() > 0;
+			replayer = new Thread(new Runnable() {
+				public void run() {
+					replayOutbox();
+				}
+			}, "rabbit-publisher-replay");
+			replayer.setDaemon(true);
+			replayer.start();
+
+			long syncMillis = config.getLong(APIConfig.RABBIT_OUTBOX_SYNCMILLIS, DEFAULT_OUTBOX_SYNC_MILLIS);
+			if (syncMillis > 0) {
+				timer.schedule(new TimerTask() {
+					public void run() {
+						syncOutbox();
+					}
+				}, syncMillis, syncMillis);
+			}
+		}
+	}
+
+	private static Outbox openOutbox(Configuration config) {
+		String dir = config.getString(APIConfig.RABBIT_OUTBOX_DIR, null);
+		if (dir == null || dir.trim().isEmpty()) {
+			return null;
+		}
+		try {
+			return new Outbox(new File(dir.trim()), config.getLong(APIConfig.RABBIT_OUTBOX_SEGMENTMB,
+					DEFAULT_OUTBOX_SEGMENT_MB) * 1024 * 1024);
+		} catch (IOException e) {
+			APILogger.getInstance().e(CNAME, "Unable to open the outbox in " + dir +
+					", publishing without it", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Queues a message for the exchange and returns without waiting on the broker.
+	 * 
+	 * @param topic routing key
+	 * @param message message body
+	 * @return false if the message was dropped because the queue is full or the
+	 *         publisher has been shut down. Journaled messages are never dropped.
+	 */
+	public boolean publish(String topic, String message) {
+		if (topic == null || message == null) {
+			return false;
+		}
+		if (outbox != null && !outboxTopics.match(topic).isEmpty()) {
+			message = withMessageId(message);
+			synchronized (outboxLock) {
+				long id;
+				try {
+					id = outbox.append(topic, message);
+				} catch (IOException e) {
+					APILogger.getInstance().e(CNAME, "Unable to journal message for " + topic, e);
+					id = 0;
+				}
+				if (id != 0) {
+					if (backlog || !offer(new Pending(id, topic, message))) {
+						defer(id);
+					}
+					return true;
+				}
+			}
+		}
+		if (!offer(new Pending(0, topic, message))) {
+			if (dropped.incrementAndGet() % 1000 == 1) {
+				APILogger.getInstance().w(CNAME, "Publish queue full, dropped message for " +
+						topic + " (" + dropped.get() + " dropped so far)");
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The message with a unique {@link #MESSAGE_ID} field, if it is a JSON object.
+	 */
+	static String withMessageId(String message) {
+		String trimmed = message.trim();
+		if (!trimmed.startsWith("{")) {
+			return message;
+		}
+		String rest = trimmed.substring(1).trim();
+		return "{\"" + MESSAGE_ID + "\":\"" + UUID.randomUUID() + "\"" +
+				(rest.startsWith("}") ? "" : ",") + rest;
+	}
+
+	private boolean offer(Pending p) {
+		Lane lane = lanes[(p.topic.hashCode() & 0x7fffffff) % lanes.length];
+		return !lane.stopped && lane.queue.offer(p);
+	}
+
+	/**
+	 * Leaves a journaled message for the replay thread to queue.
+	 */
+	private void defer(long id) {
+		synchronized (outboxLock) {
+			outbox.release(id);
+			deferred.incrementAndGet();
+			backlog = true;
+			outboxLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Moves journaled messages that are not queued yet onto the queues, oldest
+	 * first, waiting for room as needed. The backlog is only cleared once the
+	 * journal has nothing left to hand out.
+	 */
+	private void replayOutbox() {
+		int chunk = batchSize * lanes.length;
+		try {
+			while (true) {
+				List<Outbox.Entry> entries;
+				synchronized (outboxLock) {
+					while (!backlog) {
+						outboxLock.wait();
+					}
+					try {
+						entries = outbox.claim(chunk);
+					} catch (IOException e) {
+						APILogger.getInstance().e(CNAME, "Unable to read back the outbox", e);
+						outboxLock.wait(reconnectMillis + 1000);
+						continue;
+					}
+					if (entries.isEmpty()) {
+						backlog = false;
+						continue;
+					}
+				}
+				for (Outbox.Entry e : entries) {
+					Lane lane = lanes[(e.getTopic().hashCode() & 0x7fffffff) % lanes.length];
+					lane.queue.put(new Pending(e.getId(), e.getTopic(), e.getMessage()));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void syncOutbox() {
+		try {
+			outbox.sync();
+		} catch (IOException e) {
+			APILogger.getInstance().e(CNAME, "Unable to sync the outbox", e);
+		}
+	}
+
+	/**
+	 * @return number of messages waiting to be published.
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (Lane lane : lanes) {
+			depth += lane.queue.size();
+		}
+		return depth;
+	}
+
+	/**
+	 * @return queue depth, latency and outcome counters.
+	 */
+	public Map<String, Number> getStats() {
+		long sent = published.get();
+		long attempted = sent + failed.get();
+		long batchCount = batches.get();
+		Map<String, Number> m = new LinkedHashMap<String, Number>();
+		m.put("queueDepth", getQueueDepth());
+		m.put("publishedCount", sent);
+		m.put("failedCount", failed.get());
+		m.put("droppedCount", dropped.get());
+		m.put("reconnectCount", reconnects.get());
+		m.put("batchCount", batchCount);
+		m.put("averageBatchSize", batchCount == 0 ? 0d : (double) attempted / batchCount);
+		m.put("averageQueueMillis", attempted == 0 ? 0d : queuedNanos.get() / 1000000d / attempted);
+		m.put("averagePublishMillis", attempted == 0 ? 0d : publishNanos.get() / 1000000d / attempted);
+		m.put("maxBatchMillis", maxBatchNanos.get() / 1000000d);
+		if (outbox != null) {
+			m.put("outboxPendingCount", outbox.getPendingCount());
+			m.put("outboxSegmentCount", outbox.getSegmentCount());
+			m.put("deferredCount", deferred.get());
+		}
+		return m;
+	}
+
+	/**
+	 * Stops the publishing threads. Messages still queued are not sent, though
+	 * journaled ones are sent by the next run.
+	 */
+	public void shutdown() {
+		timer.cancel();
+		if (replayer != null) {
+			replayer.interrupt();
+		}
+		for (Lane lane : lanes) {
+			lane.stopped = true;
+			lane.thread.interrupt();
+		}
+		if (outbox != null) {
+			for (Lane lane : lanes) {
+				try {
+					lane.thread.join(1000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			try {
+				outbox.close();
+			} catch (IOException e) {
+				APILogger.getInstance().e(CNAME, "Unable to close the outbox", e);
+			}
+		}
+	}
+
+	/**
+	 * A queue drained by a single thread over its own producer.
+	 */
+	private class Lane implements Runnable {
+		private final BlockingQueue<Pending> queue;
+		private RabbitPubSubProducer producer;
+		private Thread thread;
+		private volatile boolean stopped;
+
+		Lane(int capacity) {
+			queue = new LinkedBlockingQueue<Pending>(capacity);
+		}
+
+		public void run() {
+			List<Pending> batch = new ArrayList<Pending>(batchSize);
+			try {
+				while (!stopped) {
+					batch.add(queue.take());
+					queue.drainTo(batch, batchSize - 1);
+					send(batch);
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				disconnect();
+			}
+		}
+
+		private void send(List<Pending> batch) throws InterruptedException {
+			long start = System.nanoTime();
+			for (Pending p : batch) {
+				queuedNanos.addAndGet(start - p.enqueuedNanos);
+			}
+
+			int i = 0;
+			while (i < batch.size() && !stopped) {
+				Pending p = batch.get(i);
+				try {
+					if (producer == null) {
+						producer = producerFactory.create();
+						if (producer == null) {
+							throw new IOException("Unable to create the RabbitPubSubProducer");
+						}
+					}
+					producer.produce(p.topic, p.message);
+					published.incrementAndGet();
+					if (p.id != 0) {
+						acknowledge(p.id);
+					}
+					i++;
+				} catch (IOException | RuntimeException e) {
+					disconnect();
+					if (++p.attempts <= retries) {
+						reconnects.incrementAndGet();
+						Thread.sleep(reconnectMillis);
+					} else if (p.id != 0) {
+						// Held at the head of the lane until the broker is back, so
+						// the messages behind it for its topic stay behind it.
+						if (p.attempts == retries + 1) {
+							APILogger.getInstance().w(CNAME, "Unable to publish message for " + p.topic +
+									" after " + p.attempts + " attempts, retrying until it is sent: " +
+									e.getMessage());
+						}
+						reconnects.incrementAndGet();
+						Thread.sleep(reconnectMillis);
+					} else {
+						failed.incrementAndGet();
+						APILogger.getInstance().e(CNAME, "Failed to publish message for " + p.topic +
+								" after " + p.attempts + " attempts: " + e.getMessage());
+						i++;
+					}
+				}
+			}
+
+			long elapsed = System.nanoTime() - start;
+			batches.incrementAndGet();
+			publishNanos.addAndGet(elapsed);
+			long max = maxBatchNanos.get();
+			while (elapsed > max && !maxBatchNanos.compareAndSet(max, elapsed)) {
+				max = maxBatchNanos.get();
+			}
+		}
+
+		private void acknowledge(long id) {
+			try {
+				outbox.ack(id);
+			} catch (IOException e) {
+				APILogger.getInstance().w(CNAME, "Unable to record outbox ack for message " + id +
+						", it may be sent again after a restart: " + e.getMessage());
+			}
+		}
+
+		private void disconnect() {
+			if (producer != null) {
+				try {
+					producer.destroy();
+				} catch (Exception e) {
+					APILogger.getInstance().w(CNAME, "Error closing producer: " + e.getMessage());
+				}
+				producer = null;
+			}
+		}
+	}
+}
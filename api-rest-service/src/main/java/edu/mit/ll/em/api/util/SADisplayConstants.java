@@ -238,6 +238,7 @@ public final class SADisplayConstants {
 	public static final String SEQ_NUM = "seqnum";
 	public static final String DOCUMENT_TABLE = "document";
 	public static final String DOCUMENT_INCIDENT_TABLE = "document_incident";
+	public static final String DOCUMENT_FEATURE_TABLE = "document_feature";
 	public static final String DOCUMENT_ID = "documentid";
 	public static final String FILENAME = "filename";
 	public static final String FILETYPE = "filetype";
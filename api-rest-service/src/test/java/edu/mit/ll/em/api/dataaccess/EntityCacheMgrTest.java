@@ -0,0 +1,284 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import edu.mit.ll.nics.common.entity.CollabRoom;
+import edu.mit.ll.nics.common.entity.Incident;
+import edu.mit.ll.nics.nicsdao.impl.CollabRoomDAOImpl;
+import edu.mit.ll.nics.nicsdao.impl.FormDAOImpl;
+import edu.mit.ll.nics.nicsdao.impl.IncidentDAOImpl;
+import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
+import edu.mit.ll.nics.nicsdao.impl.UserSessionDAOImpl;
+import com.google.common.base.Ticker;
+import edu.mit.ll.em.api.util.APIConfig;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.dao.DataRetrievalFailureException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.*;
+
+public class EntityCacheMgrTest {
+
+    private CollabRoomDAOImpl collabRoomDao = mock(CollabRoomDAOImpl.class);
+    private IncidentDAOImpl incidentDao = mock(IncidentDAOImpl.class);
+    private UserDAOImpl userDao = mock(UserDAOImpl.class);
+    private UserSessionDAOImpl userSessionDao = mock(UserSessionDAOImpl.class);
+    private FormDAOImpl formDao = mock(FormDAOImpl.class);
+
+    private EntityCacheMgr entityCacheMgr;
+
+    @Before
+    public void setup() {
+        entityCacheMgr = new EntityCacheMgr(collabRoomDao, incidentDao, userDao, userSessionDao, formDao,
+                new BaseConfiguration());
+    }
+
+    @Test
+    public void getIncidentEntityLoadsOnceForConcurrentMisses() throws Exception {
+        final Incident incident = new Incident();
+        final CountDownLatch release = new CountDownLatch(1);
+        when(incidentDao.getIncident(1)).thenAnswer(new Answer<Incident>() {
+            @Override
+            public Incident answer(InvocationOnMock invocation) throws Throwable {
+                release.await(5, TimeUnit.SECONDS);
+                return incident;
+            }
+        });
+
+        int callers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        List<Future<Incident>> results = new ArrayList<Future<Incident>>();
+        for (int i = 0; i < callers; i++) {
+            results.add(executor.submit(new Callable<Incident>() {
+                @Override
+                public Incident call() throws Exception {
+                    return entityCacheMgr.getIncidentEntity(1);
+                }
+            }));
+        }
+        Thread.sleep(200);
+        release.countDown();
+
+        for (Future<Incident> result : results) {
+            assertSame(incident, result.get(5, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        verify(incidentDao, times(1)).getIncident(1);
+    }
+
+    @Test
+    public void getCollabRoomEntityRemembersMissingIds() throws Exception {
+        when(collabRoomDao.getCollabRoomById(42)).thenReturn(null);
+
+        assertNull(entityCacheMgr.getCollabRoomEntity(42));
+        assertNull(entityCacheMgr.getCollabRoomEntity(42));
+
+        verify(collabRoomDao, times(1)).getCollabRoomById(42);
+    }
+
+    @Test
+    public void getCollabRoomEntityCachesFoundEntities() throws Exception {
+        CollabRoom collabRoom = new CollabRoom();
+        when(collabRoomDao.getCollabRoomById(7)).thenReturn(collabRoom);
+
+        assertSame(collabRoom, entityCacheMgr.getCollabRoomEntity(7));
+        assertSame(collabRoom, entityCacheMgr.getCollabRoomEntity(7));
+
+        verify(collabRoomDao, times(1)).getCollabRoomById(7);
+    }
+
+    @Test
+    public void hasCollabRoomPermissionCachesDecisionUntilRoomIsInvalidated() throws Exception {
+        when(collabRoomDao.hasPermissions(5L, 9L)).thenReturn(true, false);
+
+        assertTrue(entityCacheMgr.hasCollabRoomPermission(5L, 9));
+        assertTrue(entityCacheMgr.hasCollabRoomPermission(5L, 9));
+        verify(collabRoomDao, times(1)).hasPermissions(5L, 9L);
+
+        entityCacheMgr.invalidateCollabRoom(9);
+
+        assertFalse(entityCacheMgr.hasCollabRoomPermission(5L, 9));
+        verify(collabRoomDao, times(2)).hasPermissions(5L, 9L);
+    }
+
+    @Test
+    public void getUserIdCachesUsernameUntilUserIsInvalidated() throws Exception {
+        when(userDao.getUserId("user@example.com")).thenReturn(12L);
+
+        assertEquals(12L, entityCacheMgr.getUserId("user@example.com"));
+        assertEquals(12L, entityCacheMgr.getUserId("user@example.com"));
+        verify(userDao, times(1)).getUserId("user@example.com");
+
+        entityCacheMgr.invalidateUser(12);
+
+        assertEquals(12L, entityCacheMgr.getUserId("user@example.com"));
+        verify(userDao, times(2)).getUserId("user@example.com");
+    }
+
+    @Test
+    public void getUserIdDoesNotCacheUnknownUsernames() throws Exception {
+        when(userDao.getUserId("nobody")).thenReturn(-1L);
+
+        assertEquals(-1L, entityCacheMgr.getUserId("nobody"));
+        assertEquals(-1L, entityCacheMgr.getUserId("nobody"));
+
+        verify(userDao, times(2)).getUserId("nobody");
+    }
+
+    @Test(expected = ICSDatastoreException.class)
+    public void getUserEntityThrowsICSDatastoreExceptionGivenDataAccessFailure() throws Exception {
+        when(userDao.getUserById(3)).thenThrow(new DataRetrievalFailureException("Test"));
+
+        entityCacheMgr.getUserEntity(3);
+    }
+
+    /** A clock the test moves forward by hand */
+    private static class FakeTicker extends Ticker {
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        void advance(long duration, TimeUnit unit) {
+            nanos.addAndGet(unit.toNanos(duration));
+        }
+    }
+
+    private EntityCacheMgr entityCacheMgr(BaseConfiguration config, Ticker ticker) {
+        return new EntityCacheMgr(collabRoomDao, incidentDao, userDao, userSessionDao, formDao, config, ticker);
+    }
+
+    @Test
+    public void entitiesAreBoundedBySize() throws Exception {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.CACHE_ENTITY_MAXSIZE, 2);
+        entityCacheMgr = entityCacheMgr(config, Ticker.systemTicker());
+        for (int id = 1; id <= 10; id++) {
+            when(incidentDao.getIncident(id)).thenReturn(new Incident());
+            entityCacheMgr.getIncidentEntity(id);
+        }
+
+        Map<String, Number> stats = entityCacheMgr.getStats().get("incident");
+        assertTrue(stats.get("size").longValue() <= 2);
+        assertTrue(stats.get("evictionCount").longValue() >= 8);
+    }
+
+    @Test
+    public void entitiesExpireOneByOneAfterLoading() throws Exception {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.CACHE_ENTITY_EXPIREMINUTES, 60);
+        config.setProperty(APIConfig.CACHE_ENTITY_REFRESHMINUTES, 0);
+        FakeTicker ticker = new FakeTicker();
+        entityCacheMgr = entityCacheMgr(config, ticker);
+        when(collabRoomDao.getCollabRoomById(anyInt())).thenReturn(new CollabRoom());
+
+        entityCacheMgr.getCollabRoomEntity(1);
+        ticker.advance(30, TimeUnit.MINUTES);
+        entityCacheMgr.getCollabRoomEntity(2);
+        ticker.advance(31, TimeUnit.MINUTES);
+        entityCacheMgr.getCollabRoomEntity(1);
+        entityCacheMgr.getCollabRoomEntity(2);
+
+        verify(collabRoomDao, times(2)).getCollabRoomById(1);
+        verify(collabRoomDao, times(1)).getCollabRoomById(2);
+    }
+
+    @Test
+    public void staleEntitiesAreServedWhileRefreshedInTheBackground() throws Exception {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.CACHE_ENTITY_EXPIREMINUTES, 60);
+        config.setProperty(APIConfig.CACHE_ENTITY_REFRESHMINUTES, 10);
+        FakeTicker ticker = new FakeTicker();
+        entityCacheMgr = entityCacheMgr(config, ticker);
+        Incident stale = new Incident();
+        Incident fresh = new Incident();
+        when(incidentDao.getIncident(1)).thenReturn(stale, fresh);
+
+        assertSame(stale, entityCacheMgr.getIncidentEntity(1));
+        ticker.advance(11, TimeUnit.MINUTES);
+
+        assertSame(stale, entityCacheMgr.getIncidentEntity(1));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (entityCacheMgr.getIncidentEntity(1) != fresh && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertSame(fresh, entityCacheMgr.getIncidentEntity(1));
+        verify(incidentDao, times(2)).getIncident(1);
+    }
+
+    @Test
+    public void statsCountHitsMissesLoadsAndMissingIds() throws Exception {
+        when(collabRoomDao.getCollabRoomById(7)).thenReturn(new CollabRoom());
+        when(collabRoomDao.getCollabRoomById(42)).thenReturn(null);
+
+        entityCacheMgr.getCollabRoomEntity(7);
+        entityCacheMgr.getCollabRoomEntity(7);
+        entityCacheMgr.getCollabRoomEntity(42);
+        entityCacheMgr.getCollabRoomEntity(42);
+
+        Map<String, Number> stats = entityCacheMgr.getStats().get("collabroom");
+        assertEquals(1L, stats.get("size"));
+        assertEquals(1L, stats.get("hitCount"));
+        assertEquals(2L, stats.get("missCount"));
+        assertEquals(1L, stats.get("loadSuccessCount"));
+        assertEquals(1L, stats.get("negativeSize"));
+        assertEquals(1L, stats.get("negativeHitCount"));
+    }
+
+    @Test
+    public void statsLoggingCanBeTurnedOff() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.CACHE_ENTITY_STATSMINUTES, 0);
+
+        entityCacheMgr(config, Ticker.systemTicker());
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.mit.ll.em.api.util.APIConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FeatureChangeLogTest {
+
+    private FeatureChangeLog log;
+
+    @Before
+    public void setup() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.FEATURE_CHANGELOG_SIZE, 3);
+        config.setProperty(APIConfig.FEATURE_CHANGELOG_LISTEN, false);
+        log = new FeatureChangeLog(config);
+    }
+
+    @Test
+    public void nothingChangedSinceTheCurrentVersion() {
+        long version = log.getVersion(1);
+
+        FeatureChangeLog.Delta delta = log.getChangesSince(1, version);
+        assertTrue(delta.isEmpty());
+        assertEquals(version, delta.getVersion());
+    }
+
+    @Test
+    public void returnsTheLatestChangeOfEachFeature() {
+        long version = log.getVersion(1);
+        log.published("iweb.NICS.collabroom.1.feature", "{\"featureId\":10,\"lastupdate\":5000}");
+        log.published("iweb.NICS.collabroom.1.changefeature", "{\"featureId\":11,\"lastupdate\":7000}");
+        log.published("iweb.NICS.collabroom.1.deletefeature", "{\"deletedFeatureId\":11}");
+        log.published("iweb.NICS.collabroom.2.feature", "{\"featureId\":12,\"lastupdate\":1000}");
+
+        FeatureChangeLog.Delta delta = log.getChangesSince(1, version);
+        assertEquals(Collections.singleton(10L), delta.getChanged());
+        assertEquals(Collections.singleton(11L), delta.getDeleted());
+        assertEquals(5000L, delta.getChangedSince());
+        assertEquals(log.getVersion(1), delta.getVersion());
+        assertTrue(delta.getVersion() > version);
+    }
+
+    @Test
+    public void onlyReturnsChangesAfterTheVersion() {
+        log.published("iweb.NICS.collabroom.1.feature", "{\"featureId\":10,\"lastupdate\":5000}");
+        long version = log.getVersion(1);
+        log.published("iweb.NICS.collabroom.1.changefeature", "{\"featureId\":11,\"lastupdate\":7000}");
+
+        assertEquals(Collections.singleton(11L), log.getChangesSince(1, version).getChanged());
+    }
+
+    @Test
+    public void journalsEachFeatureOfABatch() {
+        long version = log.getVersion(1);
+        log.published("iweb.NICS.collabroom.1.featurebatch",
+                "{\"features\":[{\"featureId\":10,\"lastupdate\":5000},{\"featureId\":11,\"lastupdate\":4000}],"
+                + "\"deletedFeatureIds\":[12]}");
+
+        FeatureChangeLog.Delta delta = log.getChangesSince(1, version);
+        assertEquals(new HashSet<Long>(Arrays.asList(10L, 11L)), delta.getChanged());
+        assertEquals(Collections.singleton(12L), delta.getDeleted());
+        assertEquals(4000L, delta.getChangedSince());
+    }
+
+    @Test
+    public void needsTheFullStateOnceTheVersionLeftTheJournal() {
+        long version = log.getVersion(1);
+        for (int i = 0; i < 3; i++) {
+            log.published("iweb.NICS.collabroom.1.feature", "{\"featureId\":" + i + ",\"lastupdate\":1}");
+        }
+        assertEquals(3, log.getChangesSince(1, version).getChanged().size());
+
+        log.published("iweb.NICS.collabroom.1.feature", "{\"featureId\":3,\"lastupdate\":1}");
+        assertNull(log.getChangesSince(1, version));
+    }
+
+    @Test
+    public void needsTheFullStateUntilTheRelayIsConnected() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.FEATURE_CHANGELOG_LISTEN, true);
+        FeatureChangeLog listening = new FeatureChangeLog(config);
+
+        assertFalse(listening.isCurrent());
+        assertNull(listening.getChangesSince(1, listening.getVersion(1)));
+        assertTrue(log.isCurrent());
+    }
+
+    @Test
+    public void needsTheFullStateForUnknownVersions() {
+        long version = log.getVersion(1);
+
+        assertNull(log.getChangesSince(1, version + 1));
+        assertNull(log.getChangesSince(1, version + (1 << 16)));
+        assertNull(log.getChangesSince(1, 42));
+    }
+
+    @Test
+    public void needsTheFullStateWhenAChangedFeatureHasNoLastUpdate() {
+        long version = log.getVersion(1);
+        log.published("iweb.NICS.collabroom.1.feature", "{\"featureId\":10}");
+
+        assertNull(log.getChangesSince(1, version));
+    }
+
+    @Test
+    public void ignoresOtherTopicsAndMalformedMessages() {
+        long version = log.getVersion(1);
+        log.published("iweb.NICS.collabroom.1.presence", "{\"featureId\":10,\"lastupdate\":1}");
+        log.published("iweb.NICS.collabroom.1.feature", "not json");
+
+        assertEquals(version, log.getVersion(1));
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.nics.common.entity.Feature;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FeatureIndexTest {
+
+    private static final Envelope WORLD = new Envelope(-1000, 1000, -1000, 1000);
+
+    private FeatureChangeLog log;
+    private FeatureIndex index;
+    private FakeLoader loader;
+
+    /** Features in the room, and when they were last updated */
+    private static class FakeLoader implements FeatureIndex.Loader {
+        final Map<Long, Feature> features = new LinkedHashMap<Long, Feature>();
+        final Map<Long, Long> updated = new LinkedHashMap<Long, Long>();
+        final List<Long> calls = new ArrayList<Long>();
+
+        void put(long featureId, String geometry, long lastUpdate) {
+            Feature feature = new Feature();
+            feature.setFeatureId(featureId);
+            feature.setGeometry(geometry);
+            features.put(featureId, feature);
+            updated.put(featureId, lastUpdate);
+        }
+
+        public List<Feature> load(int collabroomId, int geoType, Long changedSince) {
+            calls.add(changedSince);
+            List<Feature> result = new ArrayList<Feature>();
+            for (Feature feature : features.values()) {
+                if (changedSince == null || updated.get(feature.getFeatureId()) >= changedSince) {
+                    result.add(feature);
+                }
+            }
+            return result;
+        }
+    }
+
+    @Before
+    public void setup() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.FEATURE_CHANGELOG_LISTEN, false);
+        config.setProperty(APIConfig.FEATURE_CHANGELOG_SKEWSECONDS, 0);
+        log = new FeatureChangeLog(config);
+        index = new FeatureIndex(config, log);
+        loader = new FakeLoader();
+        loader.put(1, "POINT (10 10)", 1000);
+        loader.put(2, "LINESTRING (100 100, 200 200)", 1000);
+        loader.put(3, "POLYGON ((-50 -50, -50 50, 50 50, 50 -50, -50 -50))", 1000);
+    }
+
+    private Set<Long> ids(FeatureIndex.Result result) {
+        Set<Long> ids = new HashSet<Long>();
+        for (Feature feature : result.getFeatures()) {
+            ids.add(feature.getFeatureId());
+        }
+        return ids;
+    }
+
+    private static Set<Long> set(Long... ids) {
+        Set<Long> set = new HashSet<Long>();
+        for (Long id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+
+    @Test
+    public void returnsTheFeaturesIntersectingTheBox() {
+        assertEquals(set(1L, 3L), ids(index.query(1, 3857, new Envelope(0, 20, 0, 20), 10, loader)));
+        assertEquals(set(2L), ids(index.query(1, 3857, new Envelope(150, 160, 0, 1000), 10, loader)));
+        assertEquals(set(), ids(index.query(1, 3857, new Envelope(500, 600, 500, 600), 10, loader)));
+    }
+
+    @Test
+    public void readsTheRoomOnlyOnceWhileNothingChanges() {
+        index.query(1, 3857, WORLD, 10, loader);
+        index.query(1, 3857, WORLD, 10, loader);
+
+        assertEquals(1, loader.calls.size());
+    }
+
+    @Test
+    public void stopsAtTheLimit() {
+        assertEquals(2, index.query(1, 3857, WORLD, 2, loader).getFeatures().size());
+        assertEquals(0, index.query(1, 3857, WORLD, 0, loader).getFeatures().size());
+    }
+
+    @Test
+    public void appliesChangesReadingBackOnlyTheChangedFeatures() {
+        index.query(1, 3857, WORLD, 10, loader);
+
+        loader.put(1, "POINT (500 500)", 5000);
+        loader.put(4, "POINT (0 0)", 6000);
+        loader.features.remove(2L);
+        log.published("iweb.NICS.collabroom.1.changefeature", "{\"featureId\":1,\"lastupdate\":5000}");
+        log.published("iweb.NICS.collabroom.1.feature", "{\"featureId\":4,\"lastupdate\":6000}");
+        log.published("iweb.NICS.collabroom.1.deletefeature", "{\"deletedFeatureId\":2}");
+
+        FeatureIndex.Result result = index.query(1, 3857, new Envelope(-10, 10, -10, 10), 10, loader);
+        assertEquals(set(3L, 4L), ids(result));
+        assertEquals(set(1L), ids(index.query(1, 3857, new Envelope(490, 510, 490, 510), 10, loader)));
+        assertEquals(set(1L, 3L, 4L), ids(index.query(1, 3857, WORLD, 10, loader)));
+        assertEquals(Long.valueOf(5000), loader.calls.get(1));
+        assertEquals(2, loader.calls.size());
+        assertEquals(log.getVersion(1), result.getVersion());
+    }
+
+    @Test
+    public void readsTheRoomAgainWhenTheChangesAreUnknown() {
+        index.query(1, 3857, WORLD, 10, loader);
+
+        loader.put(4, "POINT (0 0)", 6000);
+        log.published("iweb.NICS.collabroom.1.feature", "{\"featureId\":4}");
+
+        assertEquals(set(1L, 3L, 4L), ids(index.query(1, 3857, new Envelope(-10, 10, -10, 10), 10, loader)));
+        assertEquals(null, loader.calls.get(1));
+    }
+
+    @Test
+    public void indexesEachGeoTypeSeparately() {
+        index.query(1, 3857, WORLD, 10, loader);
+        index.query(1, 4326, WORLD, 10, loader);
+        index.query(2, 3857, WORLD, 10, loader);
+
+        assertEquals(3, loader.calls.size());
+    }
+
+    @Test
+    public void leavesOutUnreadableGeometries() {
+        loader.put(5, "not a geometry", 1000);
+        loader.put(6, null, 1000);
+
+        assertTrue(!ids(index.query(1, 3857, WORLD, 10, loader)).contains(5L));
+        assertEquals(3, index.query(1, 3857, WORLD, 10, loader).getFeatures().size());
+    }
+
+    @Test
+    public void queriesAreNotHeldUpByAnotherQueryLoadingTheRoom() throws Exception {
+        index.query(1, 3857, WORLD, 10, loader);
+        loader.put(4, "POINT (0 0)", 6000);
+        log.published("iweb.NICS.collabroom.1.feature", "{\"featureId\":4}");
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread slow = new Thread(new Runnable() {
+            public void run() {
+                index.query(1, 3857, WORLD, 10, new FeatureIndex.Loader() {
+                    public List<Feature> load(int collabroomId, int geoType, Long changedSince) {
+                        loading.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return loader.load(collabroomId, geoType, changedSince);
+                    }
+                });
+            }
+        });
+        slow.start();
+        assertTrue(loading.await(1, TimeUnit.SECONDS));
+
+        assertEquals(set(1L, 2L, 3L, 4L), ids(index.query(1, 3857, WORLD, 10, loader)));
+        release.countDown();
+        slow.join(1000);
+        assertEquals(set(1L, 2L, 3L, 4L), ids(index.query(1, 3857, WORLD, 10, loader)));
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.mit.ll.em.api.rs.MDTrack;
+import edu.mit.ll.em.api.util.APIConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MDTDeadbandFilterTest {
+
+    // About 11 meters north, at any longitude
+    private static final double TEN_METERS_NORTH = 0.0001;
+
+    private MDTDeadbandFilter filter;
+
+    @Before
+    public void setup() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.MDT_DEADBAND_METERS, 10);
+        config.setProperty(APIConfig.MDT_DEADBAND_DEGREES, 15);
+        config.setProperty(APIConfig.MDT_DEADBAND_SPEED, 1);
+        config.setProperty(APIConfig.MDT_DEADBAND_MAXSILENCESECONDS, 60);
+        filter = new MDTDeadbandFilter(config);
+    }
+
+    @Test
+    public void suppressesAStationaryDeviceUntilItsMaxSilence() {
+        assertTrue(filter.accept(track(1, "a", 42, 0, 0), 0));
+        assertFalse(filter.accept(track(1, "a", 42, 0, 0), 30000));
+        assertFalse(filter.accept(track(1, "a", 42, 0, 0), 59999));
+        assertTrue(filter.accept(track(1, "a", 42, 0, 0), 60000));
+
+        assertEquals(2L, filter.getStats().get("publishedCount"));
+        assertEquals(1L, filter.getStats().get("heartbeatCount"));
+        assertEquals(2L, filter.getStats().get("suppressedCount"));
+    }
+
+    @Test
+    public void publishesMovesTurnsAndSpeedChanges() {
+        assertTrue(filter.accept(track(1, "a", 42, 0, 0), 0));
+        assertFalse(filter.accept(track(1, "a", 42 + TEN_METERS_NORTH / 2, 0, 0), 1000));
+        assertTrue(filter.accept(track(1, "a", 42 + TEN_METERS_NORTH, 0, 0), 2000));
+        assertTrue(filter.accept(track(1, "a", 42 + TEN_METERS_NORTH, 20, 0), 3000));
+        assertTrue(filter.accept(track(1, "a", 42 + TEN_METERS_NORTH, 20, 1.5), 4000));
+    }
+
+    @Test
+    public void measuresTurnsTheShortWayRound() {
+        assertTrue(filter.accept(track(1, "a", 42, 355, 0), 0));
+        assertFalse(filter.accept(track(1, "a", 42, 5, 0), 1000));
+        assertEquals(10d, MDTDeadbandFilter.courseChange(355, 5), 0.0001);
+    }
+
+    @Test
+    public void tracksEachDeviceSeparately() {
+        assertTrue(filter.accept(track(1, "a", 42, 0, 0), 0));
+        assertTrue(filter.accept(track(1, "b", 42, 0, 0), 0));
+        assertTrue(filter.accept(track(2, "a", 42, 0, 0), 0));
+        assertEquals(3, filter.getStats().get("deviceCount"));
+    }
+
+    @Test
+    public void suppressesPositionsOlderThanTheLastPublished() {
+        assertTrue(filter.accept(track(1, "a", 42, 0, 0), 5000));
+        assertFalse(filter.accept(track(1, "a", 43, 0, 0), 4000));
+        assertEquals(1L, filter.getStats().get("staleCount"));
+    }
+
+    @Test
+    public void forgettingADevicePublishesItsNextPosition() {
+        assertTrue(filter.accept(track(1, "a", 42, 0, 0), 0));
+        filter.forget(track(1, "a", 42, 0, 0));
+        assertTrue(filter.accept(track(1, "a", 42, 0, 0), 1000));
+    }
+
+    @Test
+    public void publishesEverythingWhenDisabled() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.MDT_DEADBAND_METERS, 0);
+        filter = new MDTDeadbandFilter(config);
+
+        assertTrue(filter.accept(track(1, "a", 42, 0, 0), 0));
+        assertTrue(filter.accept(track(1, "a", 42, 0, 0), 0));
+    }
+
+    private static MDTrack track(int userId, String deviceId, double latitude, double course, double speed) {
+        MDTrack track = new MDTrack();
+        track.setUserId(userId);
+        track.setDeviceId(deviceId);
+        track.setLatitude(latitude);
+        track.setLongitude(-71);
+        track.setCourse(course);
+        track.setSpeed(speed);
+        return track;
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.mit.ll.em.api.rs.MDTrack;
+import edu.mit.ll.em.api.util.APIConfig;
+
+import static org.junit.Assert.assertEquals;
+
+public class MDTrackIndexTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    private MDTrackIndex index;
+
+    @Before
+    public void setup() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.MDT_INDEX_CELLDEGREES, 0.05);
+        config.setProperty(APIConfig.MDT_INDEX_MAXENTRIES, 100);
+        config.setProperty(APIConfig.MDT_INDEX_MAXAGEMINUTES, 60);
+        index = new MDTrackIndex(config);
+    }
+
+    @Test
+    public void keepsOnlyTheLatestPositionOfEachDevice() {
+        index.update(track(1, "a", 42, -71, 1000), 0);
+        index.update(track(1, "a", 43, -72, 2000), 0);
+        index.update(track(1, "a", 44, -73, 1500), 0);
+        index.update(track(2, "a", 42, -71, 1000), 0);
+
+        assertEquals(2, index.size());
+        List<MDTrack> user1 = index.getWithin(-180, -90, 180, 90, 1, 10, 0);
+        assertEquals(1, user1.size());
+        assertEquals(43d, user1.get(0).getLatitude(), 0);
+    }
+
+    @Test
+    public void returnsOnlyPositionsInsideTheBox() {
+        index.update(track(1, "a", 42.00, -71.00, 0), 0);
+        index.update(track(2, "a", 42.30, -71.30, 0), 0);
+        index.update(track(3, "a", 45.00, -71.00, 0), 0);
+
+        assertEquals(list(1, 2), sortedIds(index.getWithin(-71.5, 41.9, -70.9, 42.5, -1, 10, 0)));
+        assertEquals(list(2), ids(index.getWithin(-71.5, 41.9, -70.9, 42.5, 2, 10, 0)));
+        assertEquals(1, index.getWithin(-71.5, 41.9, -70.9, 42.5, -1, 1, 0).size());
+    }
+
+    @Test
+    public void returnsTheNearestPositionsClosestFirst() {
+        index.update(track(1, "a", 42.00, -71.00, 0), 0);
+        index.update(track(2, "a", 42.01, -71.00, 0), 0);
+        index.update(track(3, "a", 43.00, -71.00, 0), 0);
+        index.update(track(4, "a", -33.00, 151.00, 0), 0);
+
+        assertEquals(list(2, 1), ids(index.getNearest(42.02, -71, -1, 2, 0)));
+        assertEquals(list(2, 1, 3, 4), ids(index.getNearest(42.02, -71, -1, 10, 0)));
+    }
+
+    @Test
+    public void findsTheNearestAcrossTheAntimeridian() {
+        index.update(track(1, "a", 0, 179.99, 0), 0);
+        index.update(track(2, "a", 0, 179.00, 0), 0);
+
+        assertEquals(list(1), ids(index.getNearest(0, -179.99, -1, 1, 0)));
+    }
+
+    @Test
+    public void dropsPositionsPastTheirMaxAge() {
+        index.update(track(1, "a", 42, -71, 0), 0);
+        index.update(track(2, "a", 42, -71, 0), 30 * MINUTE);
+
+        assertEquals(list(2), ids(index.getWithin(-180, -90, 180, 90, -1, 10, 61 * MINUTE)));
+
+        index.update(track(3, "a", 42, -71, 0), 61 * MINUTE);
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUpdatedOverMaxEntries() {
+        for (int i = 0; i < 101; i++) {
+            index.update(track(i, "a", 42, -71, 0), i);
+        }
+        index.update(track(1, "a", 42, -71, 1), 200);
+        index.update(track(200, "a", 42, -71, 0), 201);
+
+        assertEquals(100, index.size());
+        List<Integer> ids = ids(index.getWithin(-180, -90, 180, 90, -1, 1000, 201));
+        assertEquals(false, ids.contains(0));
+        assertEquals(false, ids.contains(2));
+        assertEquals(true, ids.contains(1));
+    }
+
+    private static MDTrack track(int userId, String deviceId, double latitude, double longitude, long time) {
+        MDTrack track = new MDTrack();
+        track.setUserId(userId);
+        track.setDeviceId(deviceId);
+        track.setLatitude(latitude);
+        track.setLongitude(longitude);
+        track.setCreatedUTC(time);
+        return track;
+    }
+
+    private static List<Integer> ids(List<MDTrack> tracks) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (MDTrack track : tracks) {
+            ids.add(track.getUserId());
+        }
+        return ids;
+    }
+
+    private static List<Integer> sortedIds(List<MDTrack> tracks) {
+        List<Integer> ids = ids(tracks);
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static List<Integer> list(Integer... ids) {
+        List<Integer> list = new ArrayList<Integer>();
+        Collections.addAll(list, ids);
+        return list;
+    }
+}
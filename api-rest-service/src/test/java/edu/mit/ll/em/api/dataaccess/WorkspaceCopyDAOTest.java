@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+
+import edu.mit.ll.em.api.util.APIConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WorkspaceCopyDAOTest {
+
+    private NamedParameterJdbcTemplate template = mock(NamedParameterJdbcTemplate.class);
+    private WorkspaceCopyDAO dao;
+
+    @Before
+    public void setup() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.FEATURE_COPY_STATSMINUTES, 0);
+        dao = new WorkspaceCopyDAO(config, template);
+        when(template.queryForList(contains("information_schema.columns"), any(SqlParameterSource.class)))
+                .thenReturn(columns(true));
+    }
+
+    private static Map<String, Object> column(String name, String def) {
+        Map<String, Object> column = new LinkedHashMap<String, Object>();
+        column.put("column_name", name);
+        column.put("column_default", def);
+        return column;
+    }
+
+    private static List<Map<String, Object>> columns(boolean withIdDefault) {
+        List<Map<String, Object>> columns = new ArrayList<Map<String, Object>>();
+        columns.add(column("featureid", withIdDefault ? "nextval('feature_seq'::regclass)" : null));
+        columns.add(column("type", null));
+        columns.add(column("lastupdate", null));
+        columns.add(column("geometry", null));
+        return columns;
+    }
+
+    @Test
+    public void copiesEveryColumnWithNewIdsAndTimes() {
+        String sql = WorkspaceCopyDAO.buildCopySql(columns(true));
+
+        assertTrue(sql, sql.contains("nextval('feature_seq'::regclass) AS newfeatureid"));
+        assertTrue(sql, sql.contains("INSERT INTO feature (featureid, \"type\", \"lastupdate\", \"geometry\")"));
+        assertTrue(sql, sql.contains("SELECT src.newfeatureid, src.\"type\", now(), src.\"geometry\" FROM src"));
+        assertFalse(sql, sql.contains("src.\"featureid\""));
+        assertFalse(sql, sql.contains("src.\"lastupdate\""));
+    }
+
+    @Test
+    public void linksCopiesToTheRoomAndDocuments() {
+        String sql = WorkspaceCopyDAO.buildCopySql(columns(true));
+
+        assertTrue(sql, sql.contains("uf.userid = :userId AND uf.deleted = false"));
+        assertTrue(sql, sql.contains("INSERT INTO collabroomfeature (featureid, collabroomid, deleted)"
+                + " SELECT src.newfeatureid, :collabroomId, false FROM src"));
+        assertTrue(sql, sql.contains("df.featureid = src.featureid"));
+        assertTrue(sql, sql.endsWith("SELECT newfeatureid FROM src"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void refusesWithoutAnIdDefault() {
+        WorkspaceCopyDAO.buildCopySql(columns(false));
+    }
+
+    @Test
+    public void copiesTheUsersFeaturesToTheRoomInOneStatement() {
+        when(template.queryForList(contains("WITH src AS"), any(SqlParameterSource.class), eq(Long.class)))
+                .thenReturn(Arrays.asList(21L, 22L));
+
+        assertEquals(Arrays.asList(21L, 22L), dao.copyFeatures(5, 1));
+
+        ArgumentCaptor<SqlParameterSource> catalog = ArgumentCaptor.forClass(SqlParameterSource.class);
+        verify(template).queryForList(contains("information_schema.columns"), catalog.capture());
+        assertEquals("feature", catalog.getValue().getValue("table"));
+
+        ArgumentCaptor<SqlParameterSource> params = ArgumentCaptor.forClass(SqlParameterSource.class);
+        verify(template).queryForList(eq(WorkspaceCopyDAO.buildCopySql(columns(true))), params.capture(),
+                eq(Long.class));
+        assertEquals(5, params.getValue().getValue("userId"));
+        assertEquals(1, params.getValue().getValue("collabroomId"));
+    }
+
+    @Test
+    public void readsTheColumnsOnceAndCountsTheCopies() {
+        when(template.queryForList(contains("WITH src AS"), any(SqlParameterSource.class), eq(Long.class)))
+                .thenReturn(Arrays.asList(21L, 22L), Arrays.asList(23L));
+
+        dao.copyFeatures(5, 1);
+        dao.copyFeatures(6, 2);
+
+        verify(template, times(1)).queryForList(contains("information_schema.columns"),
+                any(SqlParameterSource.class));
+        Map<String, Number> stats = dao.getStats();
+        assertEquals(2L, stats.get("copies"));
+        assertEquals(3L, stats.get("features"));
+        assertEquals(0L, stats.get("failed"));
+    }
+
+    @Test
+    public void failedCopyIsCountedAndThrown() {
+        when(template.queryForList(contains("WITH src AS"), any(SqlParameterSource.class), eq(Long.class)))
+                .thenThrow(new DataIntegrityViolationException("no default for featureid"));
+
+        try {
+            dao.copyFeatures(5, 1);
+            fail("Expected the copy to fail");
+        } catch (DataIntegrityViolationException e) {
+            // Nothing was copied
+        }
+
+        assertEquals(0L, dao.getStats().get("copies"));
+        assertEquals(1L, dao.getStats().get("failed"));
+    }
+}
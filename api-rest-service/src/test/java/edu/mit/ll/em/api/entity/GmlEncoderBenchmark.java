@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.entity;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares publishing a batch of MDTs as GML the way MDTrackDAO used to, a
+ * SimpleDateFormat per track and JSONPLIEntry.toFeatureCollection, against
+ * the cached timestamp format and {@link GmlEncoder}.
+ * 
+ * Not run by surefire. After test-compile, run with:
+ * 
+ *   mvn -pl api-rest-service exec:java -Dexec.classpathScope=test
+ *       -Dexec.mainClass=edu.mit.ll.em.api.entity.GmlEncoderBenchmark
+ *
+ * and compare the ops/ms, and with -prof gc the allocation rate, of the two.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GmlEncoderBenchmark {
+
+    private static final String NICS = "http://mapserver/NICS";
+    private static final String SERVICE = "http://mapserver/wfs?service=WFS&version=1.1.0&request=DescribeFeatureType";
+    private static final String SCHEMAS = "http://schemas.opengis.net/wfs/1.1.0/wfs.xsd";
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    private long[] times;
+
+    private GmlEncoder encoder;
+
+    @Setup
+    public void setup() {
+        encoder = new GmlEncoder(NICS, SERVICE, SCHEMAS);
+        times = new long[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            times[i] = 1517406307000L + i * 1000L;
+        }
+    }
+
+    @Benchmark
+    public String legacy() {
+        List<JSONPLIEntry> entries = new ArrayList<JSONPLIEntry>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+            entries.add(entry(i, sdf.format(new Date(times[i]))));
+        }
+        return JSONPLIEntry.toFeatureCollection(entries, false);
+    }
+
+    @Benchmark
+    public String encoder() {
+        List<JSONPLIEntry> entries = new ArrayList<JSONPLIEntry>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            entries.add(entry(i, GmlEncoder.formatTimestamp(times[i])));
+        }
+        return encoder.encode(entries);
+    }
+
+    private static JSONPLIEntry entry(int i, String timestamp) {
+        JSONPLIEntry entry = new JSONPLIEntry();
+        entry.setId("user" + i + "@example.com");
+        entry.setName("user" + i + "@example.com");
+        entry.setDescription("");
+        entry.setExtended("");
+        entry.setCoordinates("42.1,-71.2");
+        entry.setSpeed("3.5");
+        entry.setCourse("270.0");
+        entry.setSrsName("EPSG:4326");
+        entry.setTimestamp(timestamp);
+        entry.setTypeName("mdt");
+        entry.setVersion("1.2.3");
+        entry.setNicsSchemaLocationURI(NICS);
+        entry.setWfsServiceURI(SERVICE);
+        entry.setWfsSchemasURI(SCHEMAS);
+        return entry;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(GmlEncoderBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.entity;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class GmlEncoderTest {
+
+    private static final String NICS = "http://mapserver/NICS";
+    private static final String SERVICE = "http://mapserver/wfs?service=WFS&version=1.1.0&request=DescribeFeatureType";
+    private static final String SCHEMAS = "http://schemas.opengis.net/wfs/1.1.0/wfs.xsd";
+
+    private GmlEncoder encoder = new GmlEncoder(NICS, SERVICE, SCHEMAS);
+
+    @Test
+    public void encodesASingleEntryLikeToGML() {
+        JSONPLIEntry entry = entry("user1@example.com", "");
+
+        assertEquals(entry.toGML(false), encoder.encode(Collections.singletonList(entry)));
+    }
+
+    @Test
+    public void encodesABatchLikeToFeatureCollection() {
+        List<JSONPLIEntry> entries = new ArrayList<JSONPLIEntry>();
+        for (int i = 0; i < 5; i++) {
+            entries.add(entry("user" + i + "@example.com", i % 2 == 0 ? "" : "{\"unit\":\"E" + i + "\"}"));
+        }
+
+        assertEquals(JSONPLIEntry.toFeatureCollection(entries, false), encoder.encode(entries));
+    }
+
+    @Test
+    public void reusesTheBufferAcrossCalls() {
+        List<JSONPLIEntry> big = Arrays.asList(entry("first", ""), entry("second", ""));
+        List<JSONPLIEntry> small = Collections.singletonList(entry("third", ""));
+
+        encoder.encode(big);
+
+        assertEquals(JSONPLIEntry.toFeatureCollection(small, false), encoder.encode(small));
+    }
+
+    @Test
+    public void formatsTimestampsInUTC() {
+        assertEquals("1970-01-01T00:00:00Z", GmlEncoder.formatTimestamp(0L));
+        assertEquals("2018-01-31T13:45:07Z", GmlEncoder.formatTimestamp(1517406307000L));
+    }
+
+    private static JSONPLIEntry entry(String username, String extended) {
+        JSONPLIEntry entry = new JSONPLIEntry();
+        entry.setId(username);
+        entry.setName(username);
+        entry.setDescription("");
+        entry.setExtended(extended);
+        entry.setCoordinates("42.1,-71.2");
+        entry.setSpeed("3.5");
+        entry.setCourse("270.0");
+        entry.setSrsName("EPSG:4326");
+        entry.setTimestamp(GmlEncoder.formatTimestamp(1517406307000L));
+        entry.setTypeName("mdt");
+        entry.setVersion("1.2.3");
+        entry.setNicsSchemaLocationURI(NICS);
+        entry.setWfsServiceURI(SERVICE);
+        entry.setWfsSchemasURI(SCHEMAS);
+        return entry;
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import edu.mit.ll.em.api.msgbus.MsgBusQueue.OverflowPolicy;
+import edu.mit.ll.em.api.rs.MsgEnvelope;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MsgBusQueueTest {
+
+    private MsgBusUsage usage = new MsgBusUsage();
+
+    @Test
+    public void dropOldestKeepsNewestMessagesBehindAResync() {
+        MsgBusQueue queue = new MsgBusQueue(2, OverflowPolicy.DROP_OLDEST, usage);
+        MsgEnvelope first = envelope("1");
+        first.setMsgSeq(1);
+        first.setMsgNode("node");
+        MsgEnvelope second = envelope("2");
+        MsgEnvelope third = envelope("3");
+
+        assertTrue(queue.put(first));
+        assertTrue(queue.put(second));
+        assertTrue(queue.put(third));
+        assertTrue(queue.isOverflowed());
+
+        List<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>(queue.get());
+        assertEquals(3, msgs.size());
+        assertEquals(MsgBusSubscriptionMgr.RESYNC_MSG_TYPE, msgs.get(0).getMsgType());
+        assertEquals(1, msgs.get(0).getMsgSeq());
+        assertEquals("node", msgs.get(0).getMsgNode());
+        assertEquals(second, msgs.get(1));
+        assertEquals(third, msgs.get(2));
+        assertEquals(1, usage.getDroppedMessages());
+        assertEquals(0, usage.getQueuedMessages());
+        assertFalse(queue.isOverflowed());
+    }
+
+    @Test
+    public void resyncPutBackStaysAtTheHead() {
+        MsgBusQueue queue = new MsgBusQueue(1, OverflowPolicy.DROP_OLDEST, usage);
+        queue.put(envelope("1"));
+        queue.put(envelope("2"));
+        List<MsgEnvelope> taken = new ArrayList<MsgEnvelope>(queue.get());
+        queue.put(envelope("3"));
+
+        queue.putFirst(taken);
+
+        List<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>(queue.get());
+        assertEquals(MsgBusSubscriptionMgr.RESYNC_MSG_TYPE, msgs.get(0).getMsgType());
+        assertEquals("3", msgs.get(msgs.size() - 1).getMsgPayload());
+    }
+
+    @Test
+    public void rejectRefusesMessagesOnceFull() {
+        MsgBusQueue queue = new MsgBusQueue(1, OverflowPolicy.REJECT, usage);
+
+        assertTrue(queue.put(envelope("1")));
+        assertFalse(queue.put(envelope("2")));
+
+        assertEquals(1, queue.size());
+        assertEquals(1, usage.getRejectedMessages());
+    }
+
+    @Test
+    public void usageTracksQueuedMessagesAcrossQueues() {
+        MsgBusQueue one = new MsgBusQueue(10, OverflowPolicy.DROP_OLDEST, usage);
+        MsgBusQueue two = new MsgBusQueue(10, OverflowPolicy.DROP_OLDEST, usage);
+        one.put(envelope("payload"));
+        two.put(envelope("payload"));
+
+        assertEquals(2, usage.getQueuedMessages());
+        assertEquals(one.getBytes() + two.getBytes(), usage.getQueuedBytes());
+
+        one.get();
+        two.clear();
+
+        assertEquals(0, usage.getQueuedMessages());
+        assertEquals(0, usage.getQueuedBytes());
+    }
+
+    @Test
+    public void parsesOverflowPolicy() {
+        assertEquals(OverflowPolicy.REJECT, OverflowPolicy.parse("reject"));
+        assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.parse("drop-oldest"));
+        assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.parse(null));
+    }
+
+    private static MsgEnvelope envelope(String payload) {
+        MsgEnvelope msg = new MsgEnvelope();
+        msg.setMsgType("test");
+        msg.setMsgPayload(payload);
+        return msg;
+    }
+}
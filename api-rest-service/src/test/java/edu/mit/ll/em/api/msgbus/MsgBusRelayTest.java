@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubConsumer;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class MsgBusRelayTest {
+
+    private BaseConfiguration config;
+    private final BlockingQueue<List<String>> bound = new LinkedBlockingQueue<List<String>>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private MsgBusRelay relay;
+
+    // Records the bindings asked for and blocks until the test ends
+    private final MsgBusRelay.ConsumerFactory blockingFactory = new MsgBusRelay.ConsumerFactory() {
+        public RabbitPubSubConsumer create(String[] bindingKeys) throws IOException {
+            bound.add(Arrays.asList(bindingKeys));
+            try {
+                stopped.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("Test");
+        }
+    };
+
+    @Before
+    public void setup() {
+        config = new BaseConfiguration();
+        config.setProperty("em.api.msgbus.relay.bindings", "iweb.NICS.#");
+    }
+
+    @After
+    public void tearDown() {
+        if (relay != null) {
+            relay.shutdown();
+        }
+        stopped.countDown();
+    }
+
+    private MsgBusRelay.Listener recorder(final List<String> topics) {
+        return new MsgBusRelay.Listener() {
+            public void onMessage(String topic, String msg) {
+                topics.add(topic);
+            }
+        };
+    }
+
+    @Test
+    public void nodeTopicsAreNotRelayed() {
+        relay = new MsgBusRelay(config, blockingFactory, 0);
+        final List<String> relayed = new ArrayList<String>();
+        relay.addListener(recorder(relayed));
+
+        relay.relay("iweb.NICS.cache.invalidate.user.1", "{}");
+        relay.relay("iweb.NICS.presence.replicate.11", "{}");
+        relay.relay("iweb.NICS.collabroom.11.feature", "{}");
+
+        assertEquals(1, relayed.size());
+        assertEquals("iweb.NICS.collabroom.11.feature", relayed.get(0));
+    }
+
+    @Test
+    public void listenersWithBindingsOnlyGetTheirTopicsExcludedOrNot() {
+        relay = new MsgBusRelay(config, blockingFactory, 0);
+        List<String> received = new ArrayList<String>();
+        relay.addListener(new String[] { "iweb.NICS.cache.invalidate.#" }, recorder(received));
+
+        relay.relay("iweb.NICS.cache.invalidate.user.1", "{}");
+        relay.relay("iweb.NICS.collabroom.11.feature", "{}");
+
+        assertEquals(Arrays.asList("iweb.NICS.cache.invalidate.user.1"), received);
+    }
+
+    @Test
+    public void listenersWithBindingsAreServedWithTheRelayDisabled() throws Exception {
+        config.setProperty("em.api.msgbus.relay.enabled", "false");
+        relay = new MsgBusRelay(config, blockingFactory, 0);
+        List<String> relayed = new ArrayList<String>();
+        List<String> received = new ArrayList<String>();
+        relay.addListener(recorder(relayed));
+        relay.addListener(new String[] { "iweb.NICS.collabroom.*.feature" }, recorder(received));
+
+        assertEquals(Arrays.asList("iweb.NICS.collabroom.*.feature"), bound.poll(1, TimeUnit.SECONDS));
+        relay.relay("iweb.NICS.collabroom.11.feature", "{}");
+
+        assertEquals(1, received.size());
+        assertTrue(relayed.isEmpty());
+    }
+
+    @Test
+    public void rebindsAndTellsConnectionListenersWhenBindingsAreAdded() throws Exception {
+        final RabbitPubSubConsumer consumer = mock(RabbitPubSubConsumer.class);
+        final CountDownLatch destroyed = new CountDownLatch(1);
+        when(consumer.consume()).thenAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                destroyed.await(10, TimeUnit.MILLISECONDS);
+                return null;
+            }
+        });
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                destroyed.countDown();
+                return null;
+            }
+        }).when(consumer).destroy();
+        relay = new MsgBusRelay(config, new MsgBusRelay.ConsumerFactory() {
+            public RabbitPubSubConsumer create(String[] bindingKeys) {
+                bound.add(Arrays.asList(bindingKeys));
+                return consumer;
+            }
+        }, 0);
+        final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        MsgBusRelay.ConnectionListener listener = new MsgBusRelay.ConnectionListener() {
+            public void onMessage(String topic, String msg) {
+            }
+
+            public void connected() {
+                events.add("connected");
+            }
+
+            public void disconnected() {
+                events.add("disconnected");
+            }
+        };
+
+        relay.addListener(listener);
+        assertEquals(Arrays.asList("iweb.NICS.#"), bound.poll(1, TimeUnit.SECONDS));
+        assertEquals("connected", events.poll(1, TimeUnit.SECONDS));
+
+        relay.addListener(new String[] { "iweb.NICS.cache.invalidate.#" }, recorder(new ArrayList<String>()));
+        assertEquals(Arrays.asList("iweb.NICS.#", "iweb.NICS.cache.invalidate.#"), bound.poll(1, TimeUnit.SECONDS));
+        assertEquals("disconnected", events.poll(1, TimeUnit.SECONDS));
+        assertEquals("connected", events.poll(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import edu.mit.ll.em.api.rs.MsgEnvelope;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MsgBusReplayTest {
+
+    private static final String[] ROOM_11 = { "iweb.NICS.collabroom.11.#" };
+
+    private MsgEnvelope record(MsgBusReplay replay, String topic, String payload) {
+        MsgEnvelope msg = new MsgEnvelope();
+        msg.setMsgPayload(payload);
+        msg.setMsgSeq(replay.nextSeq());
+        replay.record(topic, msg);
+        return msg;
+    }
+
+    private static String payload(int chars) {
+        return new String(new char[chars]).replace('\0', 'x');
+    }
+
+    @Test
+    public void leastRecentlyPublishedTopicsAreForgottenBeyondMaxBytes() {
+        MsgBusReplay replay = new MsgBusReplay(100, 100, 5000);
+        MsgEnvelope seen = record(replay, "iweb.NICS.collabroom.11.feature", payload(100));
+        record(replay, "iweb.NICS.collabroom.11.feature", payload(1000));
+        record(replay, "iweb.NICS.collabroom.12.feature", payload(1000));
+        assertTrue(replay.getBytes() <= 5000);
+
+        // Room 12 is large enough to push room 11 out
+        record(replay, "iweb.NICS.collabroom.12.feature", payload(1000));
+        assertTrue(replay.getBytes() <= 5000);
+
+        List<MsgEnvelope> missed = new ArrayList<MsgEnvelope>();
+        assertFalse(replay.since(ROOM_11, replay.getNodeId(), seen.getMsgSeq(), missed));
+    }
+
+    @Test
+    public void keptMessagesAreReplayedWithinMaxBytes() {
+        MsgBusReplay replay = new MsgBusReplay(100, 100, 5000);
+        MsgEnvelope seen = record(replay, "iweb.NICS.collabroom.11.feature", payload(100));
+        MsgEnvelope missed = record(replay, "iweb.NICS.collabroom.11.feature", payload(100));
+
+        List<MsgEnvelope> out = new ArrayList<MsgEnvelope>();
+        assertTrue(replay.since(ROOM_11, replay.getNodeId(), seen.getMsgSeq(), out));
+        assertEquals(1, out.size());
+        assertEquals(missed.getMsgSeq(), out.get(0).getMsgSeq());
+    }
+}
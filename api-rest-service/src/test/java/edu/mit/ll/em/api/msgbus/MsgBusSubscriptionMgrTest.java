@@ -0,0 +1,242 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import edu.mit.ll.em.api.rs.MsgEnvelope;
+import edu.mit.ll.em.api.rs.StringConstant;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MsgBusSubscriptionMgrTest {
+
+    private MsgBusSubscriptionMgr subscriptionMgr;
+
+    @Before
+    public void setup() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty("em.api.msgbus.reapseconds", "0");
+        config.setProperty("em.api.msgbus.replay.size", "2");
+        subscriptionMgr = new MsgBusSubscriptionMgr(config);
+    }
+
+    @Test
+    public void publishFansOutToMatchingSubscriptions() throws Exception {
+        subscribe(1, "iweb.NICS.collabroom.11.#");
+        subscribe(2, "iweb.NICS.collabroom.*.chat+iweb.NICS.ws.1.updateIncident");
+        subscribe(3, "iweb.NICS.collabroom.12.#");
+
+        MsgEnvelope msg = new MsgEnvelope();
+        assertEquals(2, subscriptionMgr.publish("iweb.NICS.collabroom.11.chat", msg));
+
+        assertEquals(1, subscriptionMgr.getFromSubscription(1).size());
+        assertEquals(1, subscriptionMgr.getFromSubscription(2).size());
+        assertTrue(subscriptionMgr.getFromSubscription(3).isEmpty());
+    }
+
+    @Test
+    public void endedSubscriptionsNoLongerReceive() throws Exception {
+        subscribe(1, "iweb.NICS.#");
+        subscriptionMgr.endSubscription(1);
+
+        assertEquals(0, subscriptionMgr.publish("iweb.NICS.collabroom.11.chat", new MsgEnvelope()));
+    }
+
+    @Test
+    public void publishedMessagesHaveIncreasingSequenceNumbers() throws Exception {
+        MsgEnvelope first = new MsgEnvelope();
+        MsgEnvelope second = new MsgEnvelope();
+        subscriptionMgr.publish("iweb.NICS.collabroom.11.chat", first);
+        subscriptionMgr.publish("iweb.NICS.collabroom.12.chat", second);
+
+        assertTrue(second.getMsgSeq() > first.getMsgSeq());
+    }
+
+    @Test
+    public void resumingSubscriberIsSentWhatItMissed() throws Exception {
+        MsgEnvelope seen = publish("iweb.NICS.collabroom.11.chat");
+        MsgEnvelope missed = publish("iweb.NICS.collabroom.11.chat");
+        publish("iweb.NICS.collabroom.12.chat");
+
+        subscribe(1, "iweb.NICS.collabroom.11.#", seen);
+
+        List<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>(subscriptionMgr.getFromSubscription(1));
+        assertEquals(1, msgs.size());
+        assertSame(missed, msgs.get(0));
+    }
+
+    @Test
+    public void resumingSubscriberIsToldToResyncWhenMessagesAreGone() throws Exception {
+        MsgEnvelope seen = publish("iweb.NICS.collabroom.11.chat");
+        publish("iweb.NICS.collabroom.11.chat");
+        publish("iweb.NICS.collabroom.11.chat");
+        MsgEnvelope latest = publish("iweb.NICS.collabroom.11.chat");
+
+        subscribe(1, "iweb.NICS.collabroom.11.#", seen);
+
+        List<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>(subscriptionMgr.getFromSubscription(1));
+        assertEquals(1, msgs.size());
+        assertEquals(MsgBusSubscriptionMgr.RESYNC_MSG_TYPE, msgs.get(0).getMsgType());
+        assertEquals(latest.getMsgSeq(), msgs.get(0).getMsgSeq());
+    }
+
+    @Test
+    public void resumingSubscriberIsToldToResyncAfterARestart() throws Exception {
+        MsgEnvelope seen = publish("iweb.NICS.collabroom.11.chat");
+
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty("em.api.msgbus.reapseconds", "0");
+        subscriptionMgr = new MsgBusSubscriptionMgr(config);
+        MsgEnvelope latest = publish("iweb.NICS.collabroom.11.chat");
+        assertNotEquals(seen.getMsgNode(), latest.getMsgNode());
+
+        subscribe(1, "iweb.NICS.collabroom.11.#", seen);
+
+        List<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>(subscriptionMgr.getFromSubscription(1));
+        assertEquals(1, msgs.size());
+        assertEquals(MsgBusSubscriptionMgr.RESYNC_MSG_TYPE, msgs.get(0).getMsgType());
+        assertEquals(latest.getMsgSeq(), msgs.get(0).getMsgSeq());
+        assertEquals(latest.getMsgNode(), msgs.get(0).getMsgNode());
+    }
+
+    @Test
+    public void resumingSubscriberWithoutANodeIdIsToldToResync() throws Exception {
+        MsgEnvelope seen = publish("iweb.NICS.collabroom.11.chat");
+        publish("iweb.NICS.collabroom.11.chat");
+        seen.setMsgNode(null);
+
+        subscribe(1, "iweb.NICS.collabroom.11.#", seen);
+
+        List<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>(subscriptionMgr.getFromSubscription(1));
+        assertEquals(1, msgs.size());
+        assertEquals(MsgBusSubscriptionMgr.RESYNC_MSG_TYPE, msgs.get(0).getMsgType());
+    }
+
+    @Test
+    public void resumingOnALiveSessionIsResentWhatItLost() throws Exception {
+        subscribe(1, "iweb.NICS.collabroom.11.#");
+        MsgEnvelope seen = publish("iweb.NICS.collabroom.11.chat");
+        MsgEnvelope lost = publish("iweb.NICS.collabroom.11.chat");
+        // Drained, but never made it to the subscriber
+        subscriptionMgr.getFromSubscription(1);
+        MsgEnvelope queued = publish("iweb.NICS.collabroom.11.chat");
+
+        subscribe(1, "iweb.NICS.collabroom.11.#", seen);
+
+        List<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>(subscriptionMgr.getFromSubscription(1));
+        assertEquals(2, msgs.size());
+        assertSame(lost, msgs.get(0));
+        assertSame(queued, msgs.get(1));
+    }
+
+    @Test
+    public void resumingOnALiveSessionKeepsMessagesPostedToIt() throws Exception {
+        subscribe(1, "iweb.NICS.collabroom.11.#");
+        MsgEnvelope seen = publish("iweb.NICS.collabroom.11.chat");
+        subscriptionMgr.getFromSubscription(1);
+        MsgEnvelope posted = new MsgEnvelope();
+        subscriptionMgr.postToSubscription(1, posted);
+        MsgEnvelope published = publish("iweb.NICS.collabroom.11.chat");
+
+        subscribe(1, "iweb.NICS.collabroom.11.#", seen);
+
+        List<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>(subscriptionMgr.getFromSubscription(1));
+        assertEquals(2, msgs.size());
+        assertSame(posted, msgs.get(0));
+        assertSame(published, msgs.get(1));
+    }
+
+    @Test
+    public void resumingOnALiveSessionIsToldToResyncWhenMessagesAreGone() throws Exception {
+        subscribe(1, "iweb.NICS.collabroom.11.#");
+        MsgEnvelope seen = publish("iweb.NICS.collabroom.11.chat");
+        subscriptionMgr.getFromSubscription(1);
+        publish("iweb.NICS.collabroom.11.chat");
+        publish("iweb.NICS.collabroom.11.chat");
+        MsgEnvelope latest = publish("iweb.NICS.collabroom.11.chat");
+
+        subscribe(1, "iweb.NICS.collabroom.11.#", seen);
+
+        List<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>(subscriptionMgr.getFromSubscription(1));
+        assertEquals(1, msgs.size());
+        assertEquals(MsgBusSubscriptionMgr.RESYNC_MSG_TYPE, msgs.get(0).getMsgType());
+        assertEquals(latest.getMsgSeq(), msgs.get(0).getMsgSeq());
+    }
+
+    @Test
+    public void fullQueueDroppingMessagesTellsTheSubscriberToResync() throws Exception {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty("em.api.msgbus.reapseconds", "0");
+        config.setProperty("em.api.msgbus.queue.capacity", "1");
+        subscriptionMgr = new MsgBusSubscriptionMgr(config);
+        subscribe(1, "iweb.NICS.collabroom.11.#");
+        MsgEnvelope dropped = publish("iweb.NICS.collabroom.11.chat");
+        MsgEnvelope kept = publish("iweb.NICS.collabroom.11.chat");
+
+        List<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>(subscriptionMgr.getFromSubscription(1));
+        assertEquals(2, msgs.size());
+        assertEquals(MsgBusSubscriptionMgr.RESYNC_MSG_TYPE, msgs.get(0).getMsgType());
+        assertEquals(dropped.getMsgSeq(), msgs.get(0).getMsgSeq());
+        assertSame(kept, msgs.get(1));
+    }
+
+    private MsgEnvelope publish(String topic) {
+        MsgEnvelope msg = new MsgEnvelope();
+        subscriptionMgr.publish(topic, msg);
+        return msg;
+    }
+
+    private void subscribe(long sid, String topics) throws Exception {
+        subscribe(sid, topics, null);
+    }
+
+    private void subscribe(long sid, String topics, MsgEnvelope lastSeen) throws Exception {
+        Map<String, String> attrs = new HashMap<String, String>();
+        attrs.put(StringConstant.URIOPT_SUBSCRIBER_ID, String.valueOf(sid));
+        attrs.put(StringConstant.URIOPT_TOPICS, topics);
+        if (lastSeen != null) {
+            attrs.put(StringConstant.URIOPT_LAST_SEQ, String.valueOf(lastSeen.getMsgSeq()));
+            if (lastSeen.getMsgNode() != null) {
+                attrs.put(StringConstant.URIOPT_NODE_ID, lastSeen.getMsgNode());
+            }
+        }
+        subscriptionMgr.beginSubscription(attrs);
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import edu.mit.ll.em.api.rs.MsgEnvelope;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionSessionTest {
+
+    private SubscriptionSession session;
+
+    @Before
+    public void setup() throws Exception {
+        session = SubscriptionSession.create("1", new String[] { "topic" }, "600");
+    }
+
+    @Test
+    public void awaitDeliversQueuedMessagesRightAway() throws Exception {
+        MsgEnvelope msg = new MsgEnvelope();
+        session.post(msg);
+
+        RecordingWaiter waiter = new RecordingWaiter(true);
+        session.await(waiter);
+
+        assertEquals(1, waiter.delivered.size());
+        assertTrue(waiter.delivered.get(0).contains(msg));
+        assertTrue(session.get().isEmpty());
+    }
+
+    @Test
+    public void postWakesWaiter() throws Exception {
+        RecordingWaiter waiter = new RecordingWaiter(true);
+        session.await(waiter);
+        assertTrue(waiter.delivered.isEmpty());
+
+        MsgEnvelope msg = new MsgEnvelope();
+        session.post(msg);
+
+        assertEquals(1, waiter.delivered.size());
+        assertTrue(waiter.delivered.get(0).contains(msg));
+        assertFalse(session.cancel(waiter));
+    }
+
+    @Test
+    public void messagesAreKeptWhenWaiterIsGone() throws Exception {
+        RecordingWaiter gone = new RecordingWaiter(false);
+        session.await(gone);
+
+        MsgEnvelope first = new MsgEnvelope();
+        MsgEnvelope second = new MsgEnvelope();
+        List<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>();
+        msgs.add(first);
+        msgs.add(second);
+        session.post(msgs);
+
+        List<MsgEnvelope> remaining = new ArrayList<MsgEnvelope>(session.get());
+        assertEquals(2, remaining.size());
+        assertEquals(first, remaining.get(0));
+        assertEquals(second, remaining.get(1));
+    }
+
+    @Test
+    public void cancelledWaiterIsNotWoken() throws Exception {
+        RecordingWaiter waiter = new RecordingWaiter(true);
+        session.await(waiter);
+        assertTrue(session.cancel(waiter));
+
+        session.post(new MsgEnvelope());
+
+        assertTrue(waiter.delivered.isEmpty());
+        assertEquals(1, session.get().size());
+    }
+
+    @Test
+    public void terminateReleasesWaiters() throws Exception {
+        RecordingWaiter waiter = new RecordingWaiter(true);
+        session.await(waiter);
+
+        session.terminate();
+
+        assertEquals(1, waiter.delivered.size());
+        assertTrue(waiter.delivered.get(0).isEmpty());
+    }
+
+    @Test
+    public void expiresOnlyAfterTimeoutWithoutWaiters() throws Exception {
+        long now = session.getLastAccessMillis();
+        assertFalse(session.isExpired(now + 599 * 1000L));
+        assertTrue(session.isExpired(now + 600 * 1000L));
+
+        RecordingWaiter waiter = new RecordingWaiter(true);
+        session.await(waiter);
+        assertFalse(session.isExpired(session.getLastAccessMillis() + 601 * 1000L));
+    }
+
+    @Test
+    public void neverExpiresWithoutTimeout() throws Exception {
+        session.setTimeout(-1);
+        assertFalse(session.isExpired(Long.MAX_VALUE));
+    }
+
+    @Test(expected = MsgBusSubscriptionException.class)
+    public void postThrowsWhenQueueRejects() throws Exception {
+        session.setMsgBusQueue(new MsgBusQueue(1, MsgBusQueue.OverflowPolicy.REJECT, new MsgBusUsage()));
+        session.post(new MsgEnvelope());
+        session.post(new MsgEnvelope());
+    }
+
+    private static class RecordingWaiter implements MsgBusWaiter {
+        private final boolean accept;
+        private final List<Collection<MsgEnvelope>> delivered = new ArrayList<Collection<MsgEnvelope>>();
+
+        RecordingWaiter(boolean accept) {
+            this.accept = accept;
+        }
+
+        @Override
+        public boolean deliver(Collection<MsgEnvelope> msgs) {
+            if (accept) {
+                delivered.add(msgs);
+            }
+            return accept;
+        }
+    }
+}
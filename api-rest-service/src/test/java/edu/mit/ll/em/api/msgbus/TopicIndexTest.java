@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TopicIndexTest {
+
+    private TopicIndex<String> index = new TopicIndex<String>();
+
+    @Test
+    public void matchesExactTopics() {
+        index.add("NICS.ws.1.incidents.8.collab.11", "a");
+        index.add("NICS.ws.1.incidents.8.collab.12", "b");
+
+        assertEquals(set("a"), index.match("NICS.ws.1.incidents.8.collab.11"));
+        assertTrue(index.match("NICS.ws.1.incidents.8").isEmpty());
+    }
+
+    @Test
+    public void starMatchesExactlyOneWord() {
+        index.add("NICS.ws.1.incidents.*.collab.11", "a");
+
+        assertEquals(set("a"), index.match("NICS.ws.1.incidents.8.collab.11"));
+        assertTrue(index.match("NICS.ws.1.incidents.collab.11").isEmpty());
+        assertTrue(index.match("NICS.ws.1.incidents.8.9.collab.11").isEmpty());
+    }
+
+    @Test
+    public void hashMatchesZeroOrMoreWords() {
+        index.add("NICS.ws.1.#", "a");
+        index.add("NICS.#.collab.11", "b");
+        index.add("#", "c");
+
+        assertEquals(set("a", "b", "c"), index.match("NICS.ws.1.incidents.8.collab.11"));
+        assertEquals(set("a", "c"), index.match("NICS.ws.1"));
+        assertEquals(set("b", "c"), index.match("NICS.collab.11"));
+    }
+
+    @Test
+    public void removeStopsMatching() {
+        index.add("NICS.ws.*.incidents", "a");
+        index.add("NICS.ws.*.incidents", "b");
+
+        assertTrue(index.remove("NICS.ws.*.incidents", "a"));
+        assertFalse(index.remove("NICS.ws.*.incidents", "a"));
+
+        assertEquals(set("b"), index.match("NICS.ws.1.incidents"));
+    }
+
+    private static HashSet<String> set(String... values) {
+        return new HashSet<String>(Arrays.asList(values));
+    }
+}
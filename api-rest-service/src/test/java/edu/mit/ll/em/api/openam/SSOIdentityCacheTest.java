@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.openam;
+
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.nics.sso.util.SSOUtil;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.*;
+
+public class SSOIdentityCacheTest {
+
+    private SSOUtil ssoUtil;
+    private SSOIdentityCache cache;
+
+    @Before
+    public void setUp() {
+        ssoUtil = mock(SSOUtil.class);
+        when(ssoUtil.loginAsAdmin()).thenReturn(true);
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.SSO_ADMINPOOL_SIZE, 1);
+        cache = new SSOIdentityCache(config, new SSOIdentityCache.SessionFactory() {
+            public SSOUtil create() {
+                return ssoUtil;
+            }
+        });
+    }
+
+    @Test
+    public void resolvesEachTokenOnceOnASingleAdminLogin() throws Exception {
+        when(ssoUtil.getUserAttributes("token1")).thenReturn(uid("one@example.com"));
+        when(ssoUtil.getUserAttributes("token2")).thenReturn(uid("two@example.com"));
+
+        assertEquals("one@example.com", cache.getIdentity("token1"));
+        assertEquals("one@example.com", cache.getIdentity("token1"));
+        assertEquals("two@example.com", cache.getIdentity("token2"));
+
+        verify(ssoUtil, times(1)).getUserAttributes("token1");
+        verify(ssoUtil, times(1)).loginAsAdmin();
+        verify(ssoUtil, never()).logout();
+        assertEquals(1, cache.getStats().get("hitCount").intValue());
+    }
+
+    @Test
+    public void tokensWithoutAnIdentityAreNotCached() throws Exception {
+        when(ssoUtil.getUserAttributes("token")).thenReturn(new HashMap<String, Object>());
+
+        assertNull(cache.getIdentity("token"));
+        assertNull(cache.getIdentity("token"));
+
+        verify(ssoUtil, times(2)).getUserAttributes("token");
+    }
+
+    @Test
+    public void failedLookupIsRetriedOnANewSession() throws Exception {
+        when(ssoUtil.getUserAttributes("token"))
+                .thenThrow(new RuntimeException("session expired"))
+                .thenReturn(uid("one@example.com"));
+
+        assertEquals("one@example.com", cache.getIdentity("token"));
+
+        verify(ssoUtil, times(2)).loginAsAdmin();
+    }
+
+    @Test
+    public void invalidatedTokensAreLookedUpAgain() throws Exception {
+        when(ssoUtil.getUserAttributes("token")).thenReturn(uid("one@example.com"));
+
+        cache.getIdentity("token");
+        cache.invalidate("token");
+        cache.getIdentity("token");
+
+        verify(ssoUtil, times(2)).getUserAttributes("token");
+    }
+
+    private static Map<String, Object> uid(String uid) {
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("uid", new HashSet<String>(Collections.singleton(uid)));
+        return attributes;
+    }
+}
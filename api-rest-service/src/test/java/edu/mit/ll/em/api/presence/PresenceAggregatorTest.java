@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.presence;
+
+import edu.mit.ll.em.api.rs.CollabPresenceDelta;
+import edu.mit.ll.em.api.rs.CollabPresenceStatus;
+import edu.mit.ll.em.api.rs.CollabPresenceStatus.Status;
+import edu.mit.ll.em.api.util.APIConfig;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PresenceAggregatorTest {
+
+    private BlockingQueue<CollabPresenceDelta> published = new LinkedBlockingQueue<CollabPresenceDelta>();
+    private PresenceAggregator aggregator;
+
+    @Before
+    public void setup() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.COLLAB_PRESENCE_WINDOWMILLIS, 50);
+        aggregator = new PresenceAggregator(config, new PresenceAggregator.Sink() {
+            public void publish(CollabPresenceDelta delta) {
+                published.add(delta);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        aggregator.shutdown();
+    }
+
+    @Test
+    public void mergesChangesOfARoomIntoOneDelta() throws Exception {
+        aggregator.statusChanged(1, 10, null, status("alice", Status.ACTIVE));
+        aggregator.statusChanged(1, 10, null, status("bob", Status.ACTIVE));
+        aggregator.statusChanged(1, 10, Status.ACTIVE, status("alice", Status.IDLE));
+
+        CollabPresenceDelta delta = published.poll(1, TimeUnit.SECONDS);
+        assertEquals(10, delta.getCollabroomId());
+        assertEquals(2, delta.getStatuses().size());
+        assertEquals("alice", delta.getStatuses().get(0).getUsername());
+        assertEquals(Status.IDLE, delta.getStatuses().get(0).getStatus());
+        assertEquals("bob", delta.getStatuses().get(1).getUsername());
+        assertNull(published.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void leavesOutMembersWithNoNetChange() throws Exception {
+        aggregator.statusChanged(1, 10, Status.ACTIVE, status("alice", Status.IDLE));
+        aggregator.statusChanged(1, 10, Status.IDLE, status("alice", Status.ACTIVE));
+        aggregator.statusChanged(1, 10, null, status("bob", Status.ACTIVE));
+        aggregator.statusChanged(1, 10, Status.ACTIVE, status("bob", Status.LEAVING));
+
+        assertNull(published.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void publishesEachRoomSeparately() throws Exception {
+        aggregator.statusChanged(1, 10, null, status("alice", Status.ACTIVE));
+        aggregator.statusChanged(1, 11, null, status("alice", Status.ACTIVE));
+
+        CollabPresenceDelta first = published.poll(1, TimeUnit.SECONDS);
+        CollabPresenceDelta second = published.poll(1, TimeUnit.SECONDS);
+        assertTrue(first.getCollabroomId() != second.getCollabroomId());
+    }
+
+    @Test
+    public void opensANewWindowAfterPublishing() throws Exception {
+        aggregator.statusChanged(1, 10, null, status("alice", Status.ACTIVE));
+        assertEquals(1, published.poll(1, TimeUnit.SECONDS).getStatuses().size());
+
+        aggregator.statusChanged(1, 10, Status.ACTIVE, status("alice", Status.LEAVING));
+        CollabPresenceDelta delta = published.poll(1, TimeUnit.SECONDS);
+        assertEquals(Status.LEAVING, delta.getStatuses().get(0).getStatus());
+    }
+
+    @Test
+    public void zeroWindowDisablesMerging() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.COLLAB_PRESENCE_WINDOWMILLIS, 0);
+        PresenceAggregator disabled = new PresenceAggregator(config, null);
+        assertFalse(disabled.isEnabled());
+        disabled.shutdown();
+    }
+
+    private static CollabPresenceStatus status(String username, Status status) {
+        CollabPresenceStatus presence = new CollabPresenceStatus(username, username);
+        presence.setStatus(status);
+        return presence;
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.presence;
+
+import edu.mit.ll.em.api.rs.CollabPresenceStatus;
+import edu.mit.ll.em.api.rs.CollabPresenceStatus.Status;
+import edu.mit.ll.em.api.util.APIConfig;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PresenceStoreTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    private List<CollabPresenceStatus> changes = new ArrayList<CollabPresenceStatus>();
+    private PresenceStore store;
+
+    @Before
+    public void setup() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.COLLAB_PRESENCE_IDLEMINUTES, 5);
+        config.setProperty(APIConfig.COLLAB_PRESENCE_MISSINGMINUTES, 15);
+        store = new PresenceStore(config, new PresenceStore.Listener() {
+            public void presenceChanged(int incidentId, int collabroomId, Status previous,
+                    CollabPresenceStatus status) {
+                changes.add(status);
+            }
+        }, null, 0);
+    }
+
+    @Test
+    public void updateNotifiesNewMembersAndStatusChangesOnly() {
+        assertNull(store.update(1, 10, status("alice", Status.ACTIVE, 0)));
+        assertEquals(Status.ACTIVE, store.update(1, 10, status("alice", Status.ACTIVE, 1000)));
+        assertEquals(Status.ACTIVE, store.update(1, 10, status("alice", Status.LEAVING, 2000)));
+
+        assertEquals(2, changes.size());
+        assertTrue(store.getRoom(10).isEmpty());
+    }
+
+    @Test
+    public void membersTurnIdleThenAreDropped() {
+        store.update(1, 10, status("alice", Status.ACTIVE, 0));
+        changes.clear();
+
+        store.expire(5 * MINUTE - 1000);
+        assertEquals(Status.ACTIVE, store.getRoom(10).get(0).getStatus());
+
+        store.expire(5 * MINUTE);
+        assertEquals(Status.IDLE, store.getRoom(10).get(0).getStatus());
+        assertEquals(Status.IDLE, changes.get(0).getStatus());
+
+        store.expire(15 * MINUTE);
+        assertTrue(store.getRoom(10).isEmpty());
+        assertEquals(Status.LEAVING, changes.get(1).getStatus());
+    }
+
+    @Test
+    public void postingAgainPushesBackTheDeadlines() {
+        store.update(1, 10, status("alice", Status.ACTIVE, 0));
+        store.update(1, 10, status("alice", Status.ACTIVE, 4 * MINUTE));
+
+        store.expire(8 * MINUTE);
+        assertEquals(Status.ACTIVE, store.getRoom(10).get(0).getStatus());
+    }
+
+    @Test
+    public void replicatedMembersExpireWithoutNotifying() {
+        store.applyRemote(1, 10, status("bob", Status.ACTIVE, 0));
+        assertEquals(1, store.getRoom(10).size());
+
+        store.expire(15 * MINUTE);
+        assertTrue(store.getRoom(10).isEmpty());
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void olderReplicatedStatusesAreIgnored() {
+        store.update(1, 10, status("alice", Status.ACTIVE, 2000));
+        store.applyRemote(1, 10, status("alice", Status.LEAVING, 1000));
+
+        assertEquals(1, store.getRoom(10).size());
+    }
+
+    private static CollabPresenceStatus status(String username, Status status, long timestamp) {
+        CollabPresenceStatus presence = new CollabPresenceStatus(username, username);
+        presence.setStatus(status);
+        presence.setTimestamp(new Date(timestamp));
+        return presence;
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.presence;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private TimingWheel<String> wheel = new TimingWheel<String>(100, 8, 0);
+
+    @Test
+    public void expiresItemsOnceTheirDeadlinePasses() {
+        wheel.schedule("a", 250);
+        wheel.schedule("b", 120);
+
+        assertEquals(Collections.emptyList(), wheel.advance(100));
+        assertEquals(Arrays.asList("b"), wheel.advance(200));
+        assertEquals(Arrays.asList("a"), wheel.advance(300));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void keepsItemsBeyondOneTurnUntilTheirTurn() {
+        wheel.schedule("far", 1000);
+        wheel.schedule("near", 200);
+
+        assertEquals(Arrays.asList("near"), wheel.advance(999));
+        assertEquals(Arrays.asList("far"), wheel.advance(1000));
+    }
+
+    @Test
+    public void cancelledItemsNeverExpire() {
+        TimingWheel.Timeout<String> timeout = wheel.schedule("a", 100);
+
+        assertTrue(wheel.cancel(timeout));
+        assertFalse(wheel.cancel(timeout));
+        assertEquals(Collections.emptyList(), wheel.advance(500));
+    }
+
+    @Test
+    public void pastDeadlinesExpireOnTheNextTick() {
+        wheel.advance(1000);
+        wheel.schedule("late", 500);
+
+        assertEquals(Collections.emptyList(), wheel.advance(1000));
+        assertEquals(Arrays.asList("late"), wheel.advance(1100));
+    }
+}
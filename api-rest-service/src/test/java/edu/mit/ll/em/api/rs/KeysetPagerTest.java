@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.rs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeysetPagerTest {
+
+    private QueryConstraintParms opts;
+
+    /** A row of the table, its time and id */
+    private static class Row {
+        final long time;
+        final long id;
+
+        Row(long time, long id) {
+            this.time = time;
+            this.id = id;
+        }
+
+        public String toString() {
+            return time + ":" + id;
+        }
+    }
+
+    /** Reads a table of rows as the DAOs would, returning those of the same time in any order */
+    private static class TablePager extends KeysetPager<Row> {
+        final List<Row> table = new ArrayList<Row>();
+        final boolean descending;
+
+        TablePager(QueryConstraintParms opts, Row... rows) {
+            super(opts);
+            this.descending = "DESC".equalsIgnoreCase(opts.getSortOrder());
+            table.addAll(Arrays.asList(rows));
+        }
+
+        protected List<Row> read(Long fromDate, Long toDate, int offset, int limit) {
+            List<Row> rows = new ArrayList<Row>();
+            for (Row row : table) {
+                if (fromDate == null || (row.time >= fromDate && (toDate == null || row.time <= toDate))) {
+                    rows.add(row);
+                }
+            }
+            // Ties come back in a different order each read
+            Collections.shuffle(rows);
+            Collections.sort(rows, new Comparator<Row>() {
+                public int compare(Row a, Row b) {
+                    return descending ? Long.compare(b.time, a.time) : Long.compare(a.time, b.time);
+                }
+            });
+            return new ArrayList<Row>(rows.subList(Math.min(offset, rows.size()),
+                    Math.min(offset + limit, rows.size())));
+        }
+
+        protected long key(Row row) {
+            return row.time;
+        }
+
+        protected long id(Row row) {
+            return row.id;
+        }
+    }
+
+    @Before
+    public void setup() {
+        opts = new QueryConstraintParms();
+        opts.setSortByColumn("created");
+    }
+
+    private static List<String> ids(List<Row> rows) {
+        List<String> ids = new ArrayList<String>();
+        for (Row row : rows) {
+            ids.add(Long.toString(row.id));
+        }
+        return ids;
+    }
+
+    @Test
+    public void rowsSharingATimeAcrossPagesAreStreamedOnce() throws Exception {
+        TablePager pager = new TablePager(opts, new Row(1, 1), new Row(2, 2), new Row(2, 3), new Row(2, 4),
+                new Row(2, 5), new Row(3, 6));
+
+        List<String> streamed = new ArrayList<String>();
+        for (List<Row> page = pager.getPage(0, 2); !page.isEmpty(); page = pager.getPage(streamed.size(), 2)) {
+            streamed.addAll(ids(page));
+        }
+
+        Collections.sort(streamed);
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6"), streamed);
+    }
+
+    @Test
+    public void rowsDeletedWhileStreamingDoNotSkipOthers() throws Exception {
+        Row first = new Row(1, 1);
+        TablePager pager = new TablePager(opts, first, new Row(2, 2), new Row(3, 3), new Row(4, 4));
+
+        assertEquals(Arrays.asList("1", "2"), ids(pager.getPage(0, 2)));
+        pager.table.remove(first);
+
+        assertEquals(Arrays.asList("3", "4"), ids(pager.getPage(2, 2)));
+    }
+
+    @Test
+    public void rowsAddedWhileStreamingAreNotRepeated() throws Exception {
+        TablePager pager = new TablePager(opts, new Row(2, 2), new Row(3, 3), new Row(4, 4));
+
+        assertEquals(Arrays.asList("2", "3"), ids(pager.getPage(0, 2)));
+        pager.table.add(0, new Row(1, 1));
+
+        assertEquals(Arrays.asList("4"), ids(pager.getPage(2, 2)));
+    }
+
+    @Test
+    public void descendingPagesFollowOnDownToTheStartOfTheRange() throws Exception {
+        opts.setSortOrder("desc");
+        opts.setFromDate(2L);
+        opts.setToDate(4L);
+        opts.setOffset(1);
+        TablePager pager = new TablePager(opts, new Row(1, 1), new Row(2, 2), new Row(3, 3), new Row(4, 4),
+                new Row(5, 5));
+
+        assertEquals(Arrays.asList("3"), ids(pager.getPage(0, 1)));
+        assertEquals(Arrays.asList("2"), ids(pager.getPage(1, 1)));
+        assertTrue(pager.getPage(2, 1).isEmpty());
+    }
+
+    @Test
+    public void onlySortingByTheColumnIsPagedByIt() {
+        assertTrue(KeysetPager.isKeyset(opts, "created"));
+
+        opts.setDateColumn("lastupdated");
+        assertFalse(KeysetPager.isKeyset(opts, "created"));
+
+        opts.setDateColumn("created");
+        opts.setSortByColumn("message");
+        assertFalse(KeysetPager.isKeyset(opts, "created"));
+    }
+}
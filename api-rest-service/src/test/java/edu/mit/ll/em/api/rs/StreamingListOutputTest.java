@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.rs;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.mit.ll.em.api.util.APIConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class StreamingListOutputTest {
+
+    private BaseConfiguration config;
+
+    public static class ItemResponse {
+        private String message;
+        private List<Integer> items = new ArrayList<Integer>();
+        private int count;
+
+        public String getMessage() {
+            return message;
+        }
+
+        public void setMessage(String message) {
+            this.message = message;
+        }
+
+        public List<Integer> getItems() {
+            return items;
+        }
+
+        public int getCount() {
+            return count;
+        }
+    }
+
+    /** Pages over 0 to size - 1, recording the pages asked for */
+    private static class CountingPager implements StreamingListOutput.Pager<Integer> {
+        final int size;
+        final List<String> pages = new ArrayList<String>();
+
+        CountingPager(int size) {
+            this.size = size;
+        }
+
+        public List<Integer> getPage(int offset, int limit) {
+            pages.add(offset + "+" + limit);
+            List<Integer> page = new ArrayList<Integer>();
+            for (int i = offset; i < Math.min(size, offset + limit); i++) {
+                page.add(i);
+            }
+            return page;
+        }
+    }
+
+    @Before
+    public void setup() {
+        config = new BaseConfiguration();
+        config.setProperty(APIConfig.STREAMING_PAGESIZE, 3);
+    }
+
+    private JSONObject write(CountingPager pager, Integer maxRows, boolean prefetch) throws Exception {
+        ItemResponse response = new ItemResponse();
+        response.setMessage("OK");
+        StreamingListOutput<Integer> output =
+                new StreamingListOutput<Integer>(response, "items", pager, maxRows, config);
+        if (prefetch) {
+            output.prefetch();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        output.write(out);
+        return new JSONObject(out.toString("UTF-8"));
+    }
+
+    @Test
+    public void writesTheResponseWithEveryEntityAndTheCount() throws Exception {
+        CountingPager pager = new CountingPager(7);
+        JSONObject json = write(pager, null, false);
+
+        assertEquals("OK", json.getString("message"));
+        assertEquals(7, json.getInt("count"));
+        JSONArray items = json.getJSONArray("items");
+        assertEquals(7, items.length());
+        for (int i = 0; i < 7; i++) {
+            assertEquals(i, items.getLong(i));
+        }
+        assertEquals(Arrays.asList("0+3", "3+3", "6+3"), pager.pages);
+    }
+
+    @Test
+    public void readsAFullLastPageOnlyOnce() throws Exception {
+        CountingPager pager = new CountingPager(6);
+        assertEquals(6, write(pager, null, false).getInt("count"));
+        assertEquals(Arrays.asList("0+3", "3+3", "6+3"), pager.pages);
+    }
+
+    @Test
+    public void stopsAtMaxRows() throws Exception {
+        CountingPager pager = new CountingPager(100);
+        assertEquals(5, write(pager, 5, false).getInt("count"));
+        assertEquals(Arrays.asList("0+3", "3+2"), pager.pages);
+
+        pager = new CountingPager(100);
+        assertEquals(0, write(pager, 0, false).getJSONArray("items").length());
+        assertEquals(Collections.<String>emptyList(), pager.pages);
+    }
+
+    @Test
+    public void writesThePrefetchedPageFirst() throws Exception {
+        CountingPager pager = new CountingPager(4);
+        assertEquals(4, write(pager, null, true).getInt("count"));
+        assertEquals(Arrays.asList("0+3", "3+3"), pager.pages);
+    }
+
+    @Test
+    public void pagesOverAListAlreadyRead() throws Exception {
+        StreamingListOutput.Pager<Integer> pager = StreamingListOutput.pagerOf(Arrays.asList(1, 2, 3, 4));
+        assertEquals(Arrays.asList(3, 4), pager.getPage(2, 3));
+        assertEquals(Collections.<Integer>emptyList(), pager.getPage(5, 3));
+    }
+
+    @Test
+    public void failsWhenAPageCantBeRead() throws Exception {
+        StreamingListOutput<Integer> output = new StreamingListOutput<Integer>(new ItemResponse(), "items",
+                new StreamingListOutput.Pager<Integer>() {
+                    public List<Integer> getPage(int offset, int limit) throws Exception {
+                        throw new Exception("gone");
+                    }
+                }, null, config);
+        try {
+            output.write(new ByteArrayOutputStream());
+            fail("Wrote a response without its entities");
+        } catch (WebApplicationException e) {
+            assertEquals("gone", e.getCause().getMessage());
+        }
+    }
+}
@@ -30,7 +30,7 @@
 package edu.mit.ll.em.api.rs.impl;
 
 import edu.mit.ll.nics.common.constants.SADisplayConstants;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
+import edu.mit.ll.em.api.util.RabbitPublisher;
 import edu.mit.ll.nics.nicsdao.DatalayerDAO;
 import edu.mit.ll.nics.nicsdao.DocumentDAO;
 import edu.mit.ll.nics.nicsdao.FolderDAO;
@@ -75,8 +75,8 @@ public class DatalayerServiceImplTest {
     private static UserDAOImpl userDao = mock(UserDAOImpl.class);
     private static UserOrgDAOImpl userOrgDao = mock(UserOrgDAOImpl.class);
     private static UserSessionDAOImpl userSessionDao = mock(UserSessionDAOImpl.class);
-    private static RabbitPubSubProducer rabbitProducer = mock(RabbitPubSubProducer.class);
-    private static DatalayerServiceImpl datalayerService = new DatalayerServiceImpl(configuration, datalayerDao, folderDao, documentDao, userDao, userOrgDao, userSessionDao, rabbitProducer, jerseyClient);
+    private static RabbitPublisher rabbitPublisher = mock(RabbitPublisher.class);
+    private static DatalayerServiceImpl datalayerService = new DatalayerServiceImpl(configuration, datalayerDao, folderDao, documentDao, userDao, userOrgDao, userSessionDao, rabbitPublisher, jerseyClient);
     private static JerseyWebTarget target = mock(JerseyWebTarget.class);
     private static JerseyInvocation.Builder builder = mock(JerseyInvocation.Builder.class);
     private String internalUrl = "https://apps.intterragroup.com/arcgis/rest/services/NICS/SCCFDAVLResources/MapServer/0";
@@ -198,6 +198,6 @@ public class DatalayerServiceImplTest {
 
     @After
     public void tearDown() {
-        Mockito.reset(configuration, datalayerDao, folderDao, documentDao, userDao, userOrgDao, userSessionDao, rabbitProducer, jerseyClient, target, builder);
+        Mockito.reset(configuration, datalayerDao, folderDao, documentDao, userDao, userOrgDao, userSessionDao, rabbitPublisher, jerseyClient, target, builder);
     }
 }
\ No newline at end of file
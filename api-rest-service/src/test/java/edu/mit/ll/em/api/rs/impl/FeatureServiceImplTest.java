@@ -0,0 +1,284 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.rs.impl;
+
+import com.vividsolutions.jts.geom.Envelope;
+import edu.mit.ll.em.api.dataaccess.CollabroomFeatureDAO;
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.dataaccess.FeatureChangeLog;
+import edu.mit.ll.em.api.dataaccess.FeatureIndex;
+import edu.mit.ll.em.api.dataaccess.TransactionMgr;
+import edu.mit.ll.em.api.dataaccess.WorkspaceCopyDAO;
+import edu.mit.ll.em.api.rs.FeatureServiceResponse;
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.FeatureSimplifier;
+import edu.mit.ll.em.api.util.RabbitPublisher;
+import edu.mit.ll.nics.common.entity.CollabroomFeature;
+import edu.mit.ll.nics.common.entity.Feature;
+import edu.mit.ll.nics.nicsdao.DocumentDAO;
+import edu.mit.ll.nics.nicsdao.FeatureDAO;
+import edu.mit.ll.nics.nicsdao.query.QueryConstraint.UTCRange;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import javax.ws.rs.core.Response;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FeatureServiceImplTest {
+
+    private static final String USERNAME = "user@example.com";
+    private static final long USER_ID = 5;
+    private static final int COLLABROOM_ID = 1;
+    private static final int GEOTYPE = 3857;
+
+    private BaseConfiguration config = new BaseConfiguration();
+    private FeatureDAO featureDao = mock(FeatureDAO.class);
+    private EntityCacheMgr entityCacheMgr = mock(EntityCacheMgr.class);
+    private FeatureChangeLog changeLog = mock(FeatureChangeLog.class);
+    private FeatureIndex featureIndex = mock(FeatureIndex.class);
+    private TransactionMgr transactionMgr = mock(TransactionMgr.class);
+    private RabbitPublisher rabbitPublisher = mock(RabbitPublisher.class);
+    private FeatureSimplifier simplifier = mock(FeatureSimplifier.class);
+    private WorkspaceCopyDAO workspaceCopyDao = mock(WorkspaceCopyDAO.class);
+    private CollabroomFeatureDAO collabroomFeatureDao = mock(CollabroomFeatureDAO.class);
+    private FeatureServiceImpl featureService;
+
+    @Before
+    public void setup() {
+        featureService = new FeatureServiceImpl(config, featureDao, mock(DocumentDAO.class), entityCacheMgr,
+                changeLog, featureIndex, transactionMgr, rabbitPublisher, simplifier, workspaceCopyDao,
+                collabroomFeatureDao);
+        when(entityCacheMgr.getUserId(USERNAME)).thenReturn(USER_ID);
+        when(entityCacheMgr.hasCollabRoomPermission(eq(USER_ID), eq(COLLABROOM_ID), anyString())).thenReturn(true);
+        when(entityCacheMgr.hasCollabRoomPermission(USER_ID, COLLABROOM_ID)).thenReturn(true);
+    }
+
+    private static Feature feature(long featureId, String geometry) {
+        Feature feature = new Feature();
+        feature.setFeatureId(featureId);
+        feature.setGeometry(geometry);
+        return feature;
+    }
+
+    @Test
+    public void boundingBoxAtAZoomSimplifiesCopiesOfTheIndexedFeatures() {
+        Feature indexed = feature(11, "LINESTRING (0 0, 1 1, 2 2)");
+        Feature small = feature(12, "POINT (1 1)");
+        List<Feature> found = new ArrayList<Feature>();
+        found.add(indexed);
+        found.add(small);
+        when(featureIndex.query(eq(COLLABROOM_ID), eq(GEOTYPE), any(Envelope.class), anyInt(),
+                any(FeatureIndex.Loader.class))).thenReturn(new FeatureIndex.Result(7, found));
+        when(simplifier.simplify(eq(11L), eq(GEOTYPE), eq("LINESTRING (0 0, 1 1, 2 2)"), anyDouble()))
+                .thenReturn("LINESTRING (0 0, 2 2)");
+        when(simplifier.simplify(eq(12L), eq(GEOTYPE), eq("POINT (1 1)"), anyDouble()))
+                .thenReturn(small.getGeometry());
+
+        Response response = featureService.getCollabroomFeatures(COLLABROOM_ID, USER_ID, null, GEOTYPE, null,
+                "0,0,10,10", 10, null, null, USERNAME);
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        FeatureServiceResponse body = (FeatureServiceResponse) response.getEntity();
+        assertEquals(Long.valueOf(7), body.getVersion());
+        List<Feature> returned = new ArrayList<Feature>(body.getFeatures());
+        assertEquals(2, returned.size());
+        assertEquals(11L, returned.get(0).getFeatureId());
+        assertEquals("LINESTRING (0 0, 2 2)", returned.get(0).getGeometry());
+        assertEquals(small, returned.get(1));
+        // The index keeps the full geometry
+        assertEquals("LINESTRING (0 0, 1 1, 2 2)", indexed.getGeometry());
+        verify(simplifier).simplify(11L, GEOTYPE, "LINESTRING (0 0, 1 1, 2 2)",
+                FeatureSimplifier.getTolerance(10, null, GEOTYPE));
+        verify(featureIndex).query(eq(COLLABROOM_ID), eq(GEOTYPE), eq(new Envelope(0, 10, 0, 10)), anyInt(),
+                any(FeatureIndex.Loader.class));
+    }
+
+    private static final String BATCH = "{\"features\":[{\"type\":\"point\",\"geometry\":\"POINT (1 1)\"}," +
+            "{\"type\":\"point\",\"geometry\":\"POINT (2 2)\"}],\"deletedFeatureIds\":[31]}";
+
+    /** Runs the batch transactions through Spring against a mocked connection */
+    private Connection transactionConnection() throws Exception {
+        DataSource dataSource = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        final TransactionTemplate template = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        when(transactionMgr.execute(any(TransactionCallback.class))).thenAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                TransactionCallback<Object> callback = invocation.getArgument(0);
+                return template.execute(callback);
+            }
+        });
+        return connection;
+    }
+
+    private void inCollabRoom(long featureId, int collabRoomId) {
+        when(collabroomFeatureDao.lockRoomFeatures(eq(collabRoomId), anyCollection()))
+                .thenReturn(Collections.singleton(featureId));
+    }
+
+    @Test
+    public void batchIsPersistedInOneTransactionAndPublishedOnce() throws Exception {
+        Connection connection = transactionConnection();
+        inCollabRoom(31, COLLABROOM_ID);
+        when(featureDao.addFeature(any(JSONObject.class), anyList(), eq(GEOTYPE))).thenReturn(21L, 22L);
+        when(featureDao.getFeature(21L)).thenReturn(feature(21, "POINT (1 1)"));
+        when(featureDao.getFeature(22L)).thenReturn(feature(22, "POINT (2 2)"));
+
+        Response response = featureService.postCollabRoomFeatures(COLLABROOM_ID, GEOTYPE, BATCH, USERNAME);
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals(2, ((FeatureServiceResponse) response.getEntity()).getCount());
+        verify(featureDao, times(2)).addCollabroomFeature(any(CollabroomFeature.class));
+        verify(featureDao).setCollabroomFeatureDeleted(31L, true);
+        verify(connection).commit();
+        verify(connection, never()).rollback();
+        verify(rabbitPublisher).publish(eq("iweb.NICS.collabroom.1.featurebatch"), anyString());
+        verify(rabbitPublisher, times(1)).publish(anyString(), anyString());
+    }
+
+    @Test
+    public void batchIsRolledBackWhenAnItemFails() throws Exception {
+        Connection connection = transactionConnection();
+        inCollabRoom(31, COLLABROOM_ID);
+        when(featureDao.addFeature(any(JSONObject.class), anyList(), eq(GEOTYPE))).thenReturn(21L, 22L);
+        when(featureDao.getFeature(21L)).thenReturn(feature(21, "POINT (1 1)"));
+        // The second feature is not read back
+
+        Response response = featureService.postCollabRoomFeatures(COLLABROOM_ID, GEOTYPE, BATCH, USERNAME);
+
+        assertEquals(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), response.getStatus());
+        verify(connection).rollback();
+        verify(connection, never()).commit();
+        verify(featureDao, never()).setCollabroomFeatureDeleted(anyLong(), anyBoolean());
+        verify(rabbitPublisher, never()).publish(anyString(), anyString());
+    }
+
+    @Test
+    public void batchCannotDeleteFeaturesOfAnotherRoom() throws Exception {
+        Connection connection = transactionConnection();
+        inCollabRoom(31, COLLABROOM_ID + 1);
+
+        Response response = featureService.postCollabRoomFeatures(COLLABROOM_ID, GEOTYPE, BATCH, USERNAME);
+
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+        // Checked within the batch's transaction, before anything is persisted
+        verify(collabroomFeatureDao).lockRoomFeatures(COLLABROOM_ID, Collections.singletonList(31L));
+        verify(connection).rollback();
+        verify(connection, never()).commit();
+        verify(featureDao, never()).addFeature(any(JSONObject.class), anyList(), anyInt());
+        verify(featureDao, never()).setCollabroomFeatureDeleted(anyLong(), anyBoolean());
+        verify(rabbitPublisher, never()).publish(anyString(), anyString());
+    }
+
+    @Test
+    public void unchangedVersionIsNotModified() {
+        when(changeLog.isCurrent()).thenReturn(true);
+        when(changeLog.getVersion(COLLABROOM_ID)).thenReturn(7L);
+
+        Response response = featureService.getCollabroomFeatures(COLLABROOM_ID, USER_ID, null, GEOTYPE, null,
+                null, null, null, "\"7\"", USERNAME);
+
+        assertEquals(Response.Status.NOT_MODIFIED.getStatusCode(), response.getStatus());
+        verify(featureDao, never()).getFeatureState(COLLABROOM_ID, (UTCRange) null, GEOTYPE);
+    }
+
+    @Test
+    public void unchangedVersionIsReadAgainWhileChangesMayBeMissed() {
+        when(changeLog.isCurrent()).thenReturn(false);
+        when(changeLog.getVersion(COLLABROOM_ID)).thenReturn(7L);
+        when(featureDao.getFeatureState(COLLABROOM_ID, (UTCRange) null, GEOTYPE))
+                .thenReturn(Arrays.asList(feature(11, "POINT (1 1)")));
+
+        Response response = featureService.getCollabroomFeatures(COLLABROOM_ID, USER_ID, null, GEOTYPE, null,
+                null, null, null, "\"7\"", USERNAME);
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        verify(featureDao).getFeatureState(COLLABROOM_ID, (UTCRange) null, GEOTYPE);
+    }
+
+    private void copiesWorkspace() {
+        List<Long> copyIds = Arrays.asList(21L, 22L);
+        when(workspaceCopyDao.copyFeatures((int) USER_ID, COLLABROOM_ID)).thenReturn(copyIds);
+        when(featureDao.getFeatures(copyIds)).thenReturn(Arrays.asList(feature(21, "POINT (1 1)"),
+                feature(22, "POINT (2 2)")));
+    }
+
+    @Test
+    public void copiedWorkspaceIsSentAsAFeatureMessagePerCopy() throws Exception {
+        copiesWorkspace();
+
+        Response response = featureService.copyWorkspace((int) USER_ID, COLLABROOM_ID, USERNAME);
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals(2, ((FeatureServiceResponse) response.getEntity()).getCount());
+        verify(rabbitPublisher, times(2)).publish(eq("iweb.NICS.collabroom.1.feature"), anyString());
+        verify(rabbitPublisher, times(2)).publish(anyString(), anyString());
+    }
+
+    @Test
+    public void copiedWorkspaceIsSentAsOneFeatureBatchWhenPerFeatureMessagesAreOff() throws Exception {
+        config.setProperty(APIConfig.FEATURE_COPY_PERFEATUREMESSAGES, false);
+        copiesWorkspace();
+
+        featureService.copyWorkspace((int) USER_ID, COLLABROOM_ID, USERNAME);
+
+        verify(rabbitPublisher).publish(eq("iweb.NICS.collabroom.1.featurebatch"), anyString());
+        verify(rabbitPublisher, times(1)).publish(anyString(), anyString());
+    }
+}
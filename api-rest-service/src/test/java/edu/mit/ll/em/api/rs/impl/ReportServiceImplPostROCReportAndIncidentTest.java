@@ -33,12 +33,12 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.configuration.Configuration;
 import edu.mit.ll.em.api.rs.*;
 import edu.mit.ll.em.api.rs.validator.ReportValidator;
+import edu.mit.ll.em.api.util.RabbitPublisher;
 import edu.mit.ll.nics.common.constants.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.Form;
 import edu.mit.ll.nics.common.entity.FormType;
 import edu.mit.ll.nics.common.entity.Incident;
 import edu.mit.ll.nics.common.entity.User;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.nicsdao.impl.*;
 
 
@@ -65,10 +65,10 @@ public class ReportServiceImplPostROCReportAndIncidentTest {
     private static final UserSessionDAOImpl userSessionDao = mock(UserSessionDAOImpl.class);
     private static final UxoreportDAOImpl uxoreportDao = mock(UxoreportDAOImpl.class);
     private IncidentService incidentService = mock(IncidentService.class);
-    private RabbitPubSubProducer rabbitProducer = mock(RabbitPubSubProducer.class);
+    private RabbitPublisher rabbitPublisher = mock(RabbitPublisher.class);
     private ReportValidator reportValidator = mock(ReportValidator.class);
     private Configuration emApConfiguration = mock(Configuration.class);
-    public ReportServiceImpl reportServiceImpl = new ReportServiceImpl(incidentDao, userDao, formDao, userSessionDao, uxoreportDao, incidentService, rabbitProducer, reportValidator);
+    public ReportServiceImpl reportServiceImpl = new ReportServiceImpl(incidentDao, userDao, formDao, userSessionDao, uxoreportDao, incidentService, rabbitPublisher, reportValidator);
     private int userSessionId = 1;
     private Form form = null;
     private int formTypeId =  1;
@@ -189,7 +189,7 @@ public class ReportServiceImplPostROCReportAndIncidentTest {
 
         Response returnedMessage = reportServiceImpl.postIncidentAndROC(orgId, form);
         String topic = String.format("iweb.NICS.incident.%d.report.%s.new", form.getIncidentid(), reportType.toUpperCase());
-        verify(rabbitProducer, times(1)).produce(topic, objectMapper.writeValueAsString(form));
+        verify(rabbitPublisher, times(1)).publish(topic, objectMapper.writeValueAsString(form));
         assertEquals(Response.Status.OK.getStatusCode(), returnedMessage.getStatus());
         ReportServiceResponse reportServiceResponse = (ReportServiceResponse) returnedMessage.getEntity();
         assertEquals("success: persisted report", reportServiceResponse.getMessage());
@@ -214,7 +214,7 @@ public class ReportServiceImplPostROCReportAndIncidentTest {
         Form persistedForm =  new Form();
         when(formDao.persistForm(form)).thenReturn(persistedForm);
         String topic = String.format("iweb.NICS.incident.%d.report.%s.new", form.getIncidentid(), reportType.toUpperCase());
-        doThrow(new RuntimeException("Test")).when(rabbitProducer).produce(topic, objectMapper.writeValueAsString(form));
+        when(rabbitPublisher.publish(topic, objectMapper.writeValueAsString(form))).thenReturn(false);
 
         Response returnedMessage = reportServiceImpl.postIncidentAndROC(orgId, form);
         assertEquals(Response.Status.OK.getStatusCode(), returnedMessage.getStatus());
@@ -228,6 +228,6 @@ public class ReportServiceImplPostROCReportAndIncidentTest {
 
     @After
     public void tearDown() {
-        reset(incidentDao, userDao, formDao, userSessionDao, uxoreportDao, incidentService, rabbitProducer);
+        reset(incidentDao, userDao, formDao, userSessionDao, uxoreportDao, incidentService, rabbitPublisher);
     }
 }
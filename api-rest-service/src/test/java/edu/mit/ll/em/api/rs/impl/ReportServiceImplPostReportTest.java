@@ -32,13 +32,13 @@ package edu.mit.ll.em.api.rs.impl;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
 import edu.mit.ll.em.api.rs.validator.ReportValidator;
+import edu.mit.ll.em.api.util.RabbitPublisher;
 import edu.mit.ll.nics.common.entity.Incident;
 import edu.mit.ll.em.api.rs.IncidentService;
 import edu.mit.ll.em.api.rs.ReportServiceResponse;
 import edu.mit.ll.nics.common.entity.Form;
 import edu.mit.ll.nics.common.entity.FormType;
 import edu.mit.ll.nics.common.entity.User;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.nicsdao.impl.*;
 
 
@@ -50,7 +50,6 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.mockito.Mockito.*;
 
-import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -62,11 +61,11 @@ public class ReportServiceImplPostReportTest {
     private static final UserSessionDAOImpl userSessionDao = mock(UserSessionDAOImpl.class);
     private static final UxoreportDAOImpl uxoreportDao = mock(UxoreportDAOImpl.class);
     private IncidentService incidentService = mock(IncidentService.class);
-    private RabbitPubSubProducer rabbitProducer = mock(RabbitPubSubProducer.class);
+    private RabbitPublisher rabbitPublisher = mock(RabbitPublisher.class);
     private EntityCacheMgr entityCacheMgr = mock(EntityCacheMgr.class);
     private ReportValidator reportValidator = mock(ReportValidator.class);
 
-    public ReportServiceImpl reportServiceImpl = new ReportServiceImpl(incidentDao, userDao, formDao, userSessionDao, uxoreportDao, incidentService, rabbitProducer, reportValidator);
+    public ReportServiceImpl reportServiceImpl = new ReportServiceImpl(incidentDao, userDao, formDao, userSessionDao, uxoreportDao, incidentService, rabbitPublisher, reportValidator);
     private int userSessionId = 1;
     private Form form = null;
 
@@ -143,7 +142,7 @@ public class ReportServiceImplPostReportTest {
 
         Response response = reportServiceImpl.postReport(form.getIncidentid(), reportType, form);
         String topic = String.format("iweb.NICS.incident.%d.report.%s.new", form.getIncidentid(), reportType.toUpperCase());
-        verify(rabbitProducer, times(1)).produce(topic, objectMapper.writeValueAsString(form));
+        verify(rabbitPublisher, times(1)).publish(topic, objectMapper.writeValueAsString(form));
         assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
         ReportServiceResponse reportServiceResponse = ((ReportServiceResponse)response.getEntity());
         assertEquals("success: persisted report", reportServiceResponse.getMessage());
@@ -159,10 +158,10 @@ public class ReportServiceImplPostReportTest {
         Form persistedForm =  new Form();
         when(formDao.persistForm(form)).thenReturn(persistedForm);
         String topic = String.format("iweb.NICS.incident.%d.report.%s.new", form.getIncidentid(), reportType.toUpperCase());
-        doThrow(new IOException("Test")).when(rabbitProducer).produce(topic, objectMapper.writeValueAsString(form));
+        when(rabbitPublisher.publish(topic, objectMapper.writeValueAsString(form))).thenReturn(false);
 
         Response response = reportServiceImpl.postReport(form.getIncidentid(), reportType, form);
-        verify(rabbitProducer, times(1)).produce(topic, objectMapper.writeValueAsString(form));
+        verify(rabbitPublisher, times(1)).publish(topic, objectMapper.writeValueAsString(form));
 
         assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
         ReportServiceResponse reportServiceResponse = ((ReportServiceResponse)response.getEntity());
@@ -173,6 +172,6 @@ public class ReportServiceImplPostReportTest {
 
     @After
     public void tearDown() {
-        reset(incidentDao, userDao, formDao, userSessionDao, uxoreportDao, incidentService, rabbitProducer, entityCacheMgr);
+        reset(incidentDao, userDao, formDao, userSessionDao, uxoreportDao, incidentService, rabbitPublisher, entityCacheMgr);
     }
 }
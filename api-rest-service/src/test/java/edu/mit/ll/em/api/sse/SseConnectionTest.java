@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.sse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class SseConnectionTest {
+
+    private ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private AsyncContext asyncContext = mock(AsyncContext.class);
+    private boolean ready = true;
+    private WriteListener writeListener;
+
+    @Before
+    public void setup() throws IOException {
+        ServletResponse response = mock(ServletResponse.class);
+        when(asyncContext.getResponse()).thenReturn(response);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                written.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return ready;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+                writeListener = listener;
+            }
+        });
+    }
+
+    @Test
+    public void frameSendsEachLineAsData() {
+        assertEquals("event: chat\ndata: {\"a\":1}\n\n", SseConnection.frame("chat", "{\"a\":1}"));
+        assertEquals("data: one\ndata: two\n\n", SseConnection.frame(null, "one\ntwo"));
+    }
+
+    @Test
+    public void sendWritesRightAwayWhileTheClientKeepsUp() throws Exception {
+        SseConnection connection = new SseConnection(asyncContext, 1, 10);
+        connection.start();
+
+        assertTrue(connection.send("a\n\n"));
+        assertTrue(connection.send("b\n\n"));
+
+        assertEquals("a\n\nb\n\n", written.toString("UTF-8"));
+    }
+
+    @Test
+    public void framesWaitUntilTheStreamIsWritable() throws Exception {
+        SseConnection connection = new SseConnection(asyncContext, 1, 10);
+        assertTrue(connection.send("a\n\n"));
+        connection.start();
+        ready = false;
+        assertTrue(connection.send("b\n\n"));
+        assertEquals("", written.toString("UTF-8"));
+
+        ready = true;
+        writeListener.onWritePossible();
+
+        assertEquals("a\n\nb\n\n", written.toString("UTF-8"));
+    }
+
+    @Test
+    public void overflowDisconnectsSlowClient() throws Exception {
+        SseConnection connection = new SseConnection(asyncContext, 1, 2);
+        connection.start();
+        ready = false;
+
+        assertTrue(connection.send("a\n\n"));
+        assertTrue(connection.send("b\n\n"));
+        assertFalse(connection.send("c\n\n"));
+
+        assertTrue(connection.isClosed());
+        verify(asyncContext).complete();
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class FeatureSimplifierTest {
+
+    private FeatureSimplifier simplifier;
+
+    @Before
+    public void setup() {
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(APIConfig.FEATURE_SIMPLIFY_MINVERTICES, 10);
+        simplifier = new FeatureSimplifier(config);
+    }
+
+    /** A straight line of the given number of vertices, 0.01 apart */
+    private static String line(int vertices, double y) {
+        StringBuilder wkt = new StringBuilder("LINESTRING (");
+        for (int i = 0; i < vertices; i++) {
+            if (i > 0) {
+                wkt.append(", ");
+            }
+            wkt.append(i / 100.0).append(' ').append(y);
+        }
+        return wkt.append(')').toString();
+    }
+
+    @Test
+    public void toleranceIsAPixelRoundedDownToAPowerOfTwo() {
+        assertNull(FeatureSimplifier.getTolerance(null, null, 3857));
+        // 156543 meters per pixel at zoom 0, 152.87 at zoom 10
+        assertEquals(131072.0, FeatureSimplifier.getTolerance(0, null, 3857), 0);
+        assertEquals(128.0, FeatureSimplifier.getTolerance(10, null, 3857), 0);
+        assertEquals(1.0, FeatureSimplifier.getTolerance(0, null, 4326), 0);
+        assertEquals(0.5, FeatureSimplifier.getTolerance(10, 0.75, 3857), 0);
+    }
+
+    @Test
+    public void rejectsOutOfRangeScales() {
+        Object[][] scales = {{-1, null}, {31, null}, {null, 0.0}, {null, Double.NaN},
+                {null, Double.POSITIVE_INFINITY}};
+        for (Object[] scale : scales) {
+            try {
+                FeatureSimplifier.getTolerance((Integer) scale[0], (Double) scale[1], 3857);
+                fail("Accepted " + scale[0] + ", " + scale[1]);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void leavesSmallGeometriesAlone() {
+        String wkt = line(9, 0);
+        assertSame(wkt, simplifier.simplify(1, 3857, wkt, 1));
+        assertNull(simplifier.simplify(1, 3857, null, 1));
+    }
+
+    @Test
+    public void dropsVerticesWithinTheTolerance() {
+        String simplified = simplifier.simplify(1, 3857, line(200, 0), 1);
+        assertEquals(2, FeatureSimplifier.countVertices(simplified));
+    }
+
+    @Test
+    public void cachesUntilTheGeometryChanges() {
+        String wkt = line(200, 0);
+        String simplified = simplifier.simplify(1, 3857, wkt, 1);
+
+        assertSame(simplified, simplifier.simplify(1, 3857, new String(wkt), 1));
+        assertNotSame(simplified, simplifier.simplify(1, 3857, wkt, 2));
+
+        String moved = simplifier.simplify(1, 3857, line(200, 5), 1);
+        assertNotSame(simplified, moved);
+        assertEquals(2, FeatureSimplifier.countVertices(moved));
+    }
+
+    @Test
+    public void leavesUnreadableGeometriesAlone() {
+        String wkt = "LINESTRING (" + line(20, 0);
+        assertSame(wkt, simplifier.simplify(1, 3857, wkt, 1));
+    }
+}
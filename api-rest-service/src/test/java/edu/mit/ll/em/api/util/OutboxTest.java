@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxTest {
+
+    private File dir;
+    private Outbox outbox;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("outbox").toFile();
+        outbox = new Outbox(dir, 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        outbox.close();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void claimsOnlyReleasedMessagesInOrder() throws Exception {
+        long first = outbox.append("topic", "one");
+        long second = outbox.append("topic", "two");
+        outbox.append("topic", "three");
+
+        assertTrue(outbox.claim(10).isEmpty());
+
+        outbox.release(second);
+        outbox.release(first);
+        List<Outbox.Entry> entries = outbox.claim(10);
+        assertEquals(2, entries.size());
+        assertEquals("one", entries.get(0).getMessage());
+        assertEquals("two", entries.get(1).getMessage());
+        assertTrue(outbox.claim(10).isEmpty());
+    }
+
+    @Test
+    public void recoversUnacknowledgedMessagesAfterRestart() throws Exception {
+        long first = outbox.append("iweb.NICS.1.login", "one");
+        outbox.append("iweb.NICS.1.login", "two");
+        outbox.ack(first);
+        outbox.close();
+
+        outbox = new Outbox(dir, 1024 * 1024);
+        assertEquals(1, outbox.getPendingCount());
+        List<Outbox.Entry> entries = outbox.claim(10);
+        assertEquals(1, entries.size());
+        assertEquals("iweb.NICS.1.login", entries.get(0).getTopic());
+        assertEquals("two", entries.get(0).getMessage());
+
+        long third = outbox.append("topic", "three");
+        assertTrue(third > entries.get(0).getId());
+    }
+
+    @Test
+    public void dropsAPartiallyWrittenRecord() throws Exception {
+        outbox.append("topic", "one");
+        outbox.close();
+        RandomAccessFile file = new RandomAccessFile(new File(dir, String.format("%020d.log", 1)), "rw");
+        file.seek(file.length());
+        file.write(new byte[] {0, 0, 0, 40, 1, 2});
+        file.close();
+
+        outbox = new Outbox(dir, 1024 * 1024);
+        List<Outbox.Entry> entries = outbox.claim(10);
+        assertEquals(1, entries.size());
+        assertEquals("one", entries.get(0).getMessage());
+        assertEquals(2, outbox.append("topic", "two"));
+    }
+
+    @Test
+    public void deletesSegmentsOnceEveryMessageIsAcknowledged() throws Exception {
+        outbox.close();
+        outbox = new Outbox(dir, 1);
+        long first = outbox.append("topic", "one");
+        long second = outbox.append("topic", "two");
+        assertEquals(2, outbox.getSegmentCount());
+
+        outbox.ack(first);
+        assertEquals(1, outbox.getSegmentCount());
+        outbox.ack(second);
+        assertEquals(0, outbox.getPendingCount());
+        assertEquals(2, dir.listFiles().length);
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2008-2018, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.json.JSONObject;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class RabbitPublisherTest {
+
+    private RabbitPubSubProducer producer = mock(RabbitPubSubProducer.class);
+    private RabbitPublisher.ProducerFactory producerFactory = mock(RabbitPublisher.ProducerFactory.class);
+    private BaseConfiguration config = new BaseConfiguration();
+    private RabbitPublisher publisher;
+
+    @Before
+    public void setup() throws Exception {
+        when(producerFactory.create()).thenReturn(producer);
+        config.setProperty("em.api.rabbitmq.publisher.retries", "1");
+        config.setProperty("em.api.rabbitmq.outbox.topics", "topic");
+    }
+
+    @After
+    public void tearDown() {
+        if (publisher != null) {
+            publisher.shutdown();
+        }
+    }
+
+    @Test
+    public void publishesQueuedMessagesInOrder() throws Exception {
+        publisher = new RabbitPublisher(config, producerFactory, 0);
+
+        assertTrue(publisher.publish("iweb.NICS.1.login", "a"));
+        assertTrue(publisher.publish("iweb.NICS.1.login", "b"));
+
+        InOrder inOrder = inOrder(producer);
+        inOrder.verify(producer, timeout(1000)).produce("iweb.NICS.1.login", "a");
+        inOrder.verify(producer, timeout(1000)).produce("iweb.NICS.1.login", "b");
+        verify(producerFactory, times(1)).create();
+    }
+
+    @Test
+    public void reconnectsAndRetriesAfterAFailedPublish() throws Exception {
+        doThrow(new IOException("Test")).doNothing().when(producer).produce("topic", "msg");
+        publisher = new RabbitPublisher(config, producerFactory, 0);
+
+        publisher.publish("topic", "msg");
+
+        verify(producer, timeout(1000).times(2)).produce("topic", "msg");
+        verify(producer, times(1)).destroy();
+        verify(producerFactory, times(2)).create();
+        assertEquals(1L, publisher.getStats().get("publishedCount"));
+        assertEquals(0L, publisher.getStats().get("failedCount"));
+    }
+
+    @Test
+    public void countsMessagesThatExhaustTheirRetries() throws Exception {
+        doThrow(new IOException("Test")).when(producer).produce("topic", "msg");
+        publisher = new RabbitPublisher(config, producerFactory, 0);
+
+        publisher.publish("topic", "msg");
+
+        verify(producer, timeout(1000).times(2)).produce("topic", "msg");
+        long deadline = System.currentTimeMillis() + 1000;
+        while (publisher.getStats().get("failedCount").longValue() == 0 &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1L, publisher.getStats().get("failedCount"));
+        assertEquals(0L, publisher.getStats().get("publishedCount"));
+    }
+
+    @Test
+    public void dropsMessagesOnceTheQueueIsFull() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                sending.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(producer).produce("topic", "first");
+        config.setProperty("em.api.rabbitmq.publisher.capacity", "1");
+        publisher = new RabbitPublisher(config, producerFactory, 0);
+
+        publisher.publish("topic", "first");
+        assertTrue(sending.await(1, TimeUnit.SECONDS));
+        assertTrue(publisher.publish("topic", "second"));
+        assertFalse(publisher.publish("topic", "third"));
+        assertEquals(1, publisher.getQueueDepth());
+        assertEquals(1L, publisher.getStats().get("droppedCount"));
+
+        release.countDown();
+        verify(producer, timeout(1000)).produce("topic", "second");
+        verify(producer, never()).produce("topic", "third");
+    }
+
+    @Test
+    public void journaledMessagesOutOfRetriesAreNotOvertaken() throws Exception {
+        File dir = Files.createTempDirectory("outbox").toFile();
+        doThrow(new IOException("Test")).doThrow(new IOException("Test")).doThrow(new IOException("Test"))
+                .doNothing().when(producer).produce("topic", "first");
+        publisher = new RabbitPublisher(config, producerFactory, new Outbox(dir, 1024 * 1024), 0);
+
+        assertTrue(publisher.publish("topic", "first"));
+        assertTrue(publisher.publish("topic", "second"));
+
+        verify(producer, timeout(1000)).produce("topic", "second");
+        InOrder inOrder = inOrder(producer);
+        inOrder.verify(producer, times(4)).produce("topic", "first");
+        inOrder.verify(producer).produce("topic", "second");
+        assertEquals(0L, publisher.getStats().get("failedCount"));
+    }
+
+    @Test
+    public void journalsOnlyTheOutboxTopics() throws Exception {
+        File dir = Files.createTempDirectory("outbox").toFile();
+        doThrow(new IOException("Test")).when(producer).produce("other", "not journaled");
+        publisher = new RabbitPublisher(config, producerFactory, new Outbox(dir, 1024 * 1024), 0);
+
+        assertTrue(publisher.publish("other", "not journaled"));
+        assertTrue(publisher.publish("topic", "journaled"));
+
+        verify(producer, timeout(1000)).produce("topic", "journaled");
+        verify(producer, timeout(1000).times(2)).produce("other", "not journaled");
+        // a journaled message would be held for another attempt rather than counted as failed
+        long deadline = System.currentTimeMillis() + 1000;
+        while (publisher.getStats().get("failedCount").longValue() == 0 &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1L, publisher.getStats().get("failedCount"));
+    }
+
+    @Test
+    public void journaledJsonIsSentWithAMessageId() throws Exception {
+        File dir = Files.createTempDirectory("outbox").toFile();
+        publisher = new RabbitPublisher(config, producerFactory, new Outbox(dir, 1024 * 1024), 0);
+
+        assertTrue(publisher.publish("topic", "{\"featureId\":1}"));
+
+        ArgumentCaptor<String> sent = ArgumentCaptor.forClass(String.class);
+        verify(producer, timeout(1000)).produce(eq("topic"), sent.capture());
+        JSONObject message = new JSONObject(sent.getValue());
+        assertEquals(1, message.getInt("featureId"));
+        assertFalse(message.getString(RabbitPublisher.MESSAGE_ID).isEmpty());
+    }
+
+    @Test
+    public void messageIdsAreAddedToJsonObjectsOnly() throws Exception {
+        assertTrue(RabbitPublisher.withMessageId("{}").matches("\\{\"messageId\":\"[-0-9a-f]+\"\\}"));
+        assertTrue(RabbitPublisher.withMessageId(" { \"a\":1}").matches("\\{\"messageId\":\"[-0-9a-f]+\",\"a\":1\\}"));
+        assertEquals("<gml/>", RabbitPublisher.withMessageId("<gml/>"));
+        assertFalse(RabbitPublisher.withMessageId("{}").equals(RabbitPublisher.withMessageId("{}")));
+    }
+
+    @Test
+    public void resendsJournaledMessagesAfterARestart() throws Exception {
+        File dir = Files.createTempDirectory("outbox").toFile();
+        doThrow(new IOException("Test")).when(producer).produce("topic", "msg");
+        publisher = new RabbitPublisher(config, producerFactory, new Outbox(dir, 1024 * 1024), 0);
+
+        assertTrue(publisher.publish("topic", "msg"));
+        verify(producer, timeout(1000).atLeast(2)).produce("topic", "msg");
+        publisher.shutdown();
+        assertEquals(0L, publisher.getStats().get("failedCount"));
+
+        RabbitPubSubProducer restarted = mock(RabbitPubSubProducer.class);
+        when(producerFactory.create()).thenReturn(restarted);
+        Outbox outbox = new Outbox(dir, 1024 * 1024);
+        assertEquals(1, outbox.getPendingCount());
+        publisher = new RabbitPublisher(config, producerFactory, outbox, 0);
+
+        verify(restarted, timeout(1000)).produce("topic", "msg");
+        long deadline = System.currentTimeMillis() + 1000;
+        while (outbox.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, outbox.getPendingCount());
+    }
+}